@@ -4,16 +4,27 @@ import org.apache.commons.cli.CommandLine;
 import org.ini4j.Ini;
 import org.ini4j.Profile;
 import schule.ngb.carrot.events.ServerEvent;
+import schule.ngb.carrot.events.QueueListener;
 import schule.ngb.carrot.events.ServerListener;
 import schule.ngb.carrot.gui.CarrotGUI;
+import schule.ngb.carrot.maildrop.SearchIndex;
 import schule.ngb.carrot.protocol.ProtocolHandlerFactory;
+import schule.ngb.carrot.protocol.SMTPFactory;
+import schule.ngb.carrot.util.ConfigWatcher;
 import schule.ngb.carrot.util.Configuration;
+import schule.ngb.carrot.util.CredentialService;
 import schule.ngb.carrot.util.Log;
+import schule.ngb.carrot.util.TlsContext;
+import schule.ngb.carrot.util.UserDirectory;
 
 import java.awt.GraphicsEnvironment;
+import java.io.BufferedReader;
+import java.io.Console;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
@@ -38,6 +49,20 @@ public class CarrotServer {
 		// Kommandozeile parsen (Apache commons-cli)
 		CommandLine cli = Configuration.parseCli(args);
 
+		// Nur Passwort-Hash für die Konfiguration erzeugen
+		if( cli != null && cli.hasOption("hash-password") ) {
+			Console console = System.console();
+			String password;
+			if( console != null ) {
+				char[] chars = console.readPassword("Password: ");
+				password = chars == null ? "" : new String(chars);
+			} else {
+				password = new BufferedReader(new InputStreamReader(System.in)).readLine();
+			}
+			System.out.println(CredentialService.hash(password == null ? "" : password));
+			return;
+		}
+
 		// Kommandozeile auf spezifische Config-Datei prüfen
 		Path configFile = Paths.get(System.getProperty("user.dir"), CONFIG_FILE);
 		if( cli != null && cli.hasOption("config") ) {
@@ -47,21 +72,8 @@ public class CarrotServer {
 			}
 		}
 
-		// App-Konfiguration aufbauen, beginnend mit der Default-Konfiguration (ini4j)
-		Ini config;
-		config = Configuration.from()
-			.load(CarrotServer.class.getResourceAsStream(CONFIG_FILE))
-			.load(configFile)
-			.build();
-		// Der DATA_PATH könnte sich bis hier geändert haben, dort nach carrot.config suchen.
-		config = Configuration.from(config)
-			.load(Paths.get(config.get(Configuration.SECTION_MAIN, "data"), CONFIG_FILE))
-			.load(cli)
-			.build();
-		// Statische App-Informationen ergänzen
-		Profile.Section appSection = config.get(Configuration.SECTION_MAIN).addChild("app");
-		appSection.put("name", CarrotServer.APP_NAME);
-		appSection.put("version", CarrotServer.APP_VERSION);
+		// App-Konfiguration aufbauen
+		Ini config = buildConfig(configFile, cli);
 
 		// ggf. DEBUG-Modus einschalten.
 		// TODO: configure log output format (file, console, gui)
@@ -79,12 +91,47 @@ public class CarrotServer {
 		// Start der App
 		CarrotServer app = new CarrotServer(config);
 		app.start();
+		// ggf. Konfigurationsdateien auf Änderungen überwachen
+		if( config.get(Configuration.SECTION_MAIN, "reload", boolean.class) ) {
+			app.watchConfig(configFile, cli);
+		}
 		// ggf. GUI initialisieren
 		if( !GraphicsEnvironment.isHeadless() && !config.get(Configuration.SECTION_MAIN, "headless", boolean.class) ) {
 			app.createGUI();
 		}
 	}
 
+	/**
+	 * Baut die globale Konfiguration aus der Default-Konfiguration, der Konfigurationsdatei, der
+	 * {@code carrot.config} im Datenordner und der Kommandozeile auf.
+	 *
+	 * @param configFile Pfad der Konfigurationsdatei.
+	 * @param cli Die Kommandozeile oder {@code null}.
+	 * @return Die globale Konfiguration.
+	 */
+	public static Ini buildConfig( Path configFile, CommandLine cli ) {
+		// App-Konfiguration aufbauen, beginnend mit der Default-Konfiguration (ini4j)
+		Ini config;
+		config = Configuration.from()
+			.load(CarrotServer.class.getResourceAsStream(CONFIG_FILE))
+			.load(configFile)
+			.build();
+		// Der DATA_PATH könnte sich bis hier geändert haben, dort nach carrot.config suchen.
+		config = Configuration.from(config)
+			.load(getDataConfigFile(config))
+			.load(cli)
+			.build();
+		// Statische App-Informationen ergänzen
+		Profile.Section appSection = config.get(Configuration.SECTION_MAIN).addChild("app");
+		appSection.put("name", CarrotServer.APP_NAME);
+		appSection.put("version", CarrotServer.APP_VERSION);
+		return config;
+	}
+
+	private static Path getDataConfigFile( Ini config ) {
+		return Paths.get(config.get(Configuration.SECTION_MAIN, "data"), CONFIG_FILE);
+	}
+
 	/**
 	 * Globaler Name der App.
 	 */
@@ -107,7 +154,12 @@ public class CarrotServer {
 	/**
 	 * Globale Konfiguration der App.
 	 */
-	private final Ini config;
+	private volatile Ini config;
+
+	/**
+	 * Überwacht die Konfigurationsdateien, falls {@code reload} aktiviert ist.
+	 */
+	private ConfigWatcher configWatcher;
 
 	/**
 	 * Liste der verfügbaren Dienste (Protokolle) bei diesem Start der App.
@@ -126,11 +178,9 @@ public class CarrotServer {
 		LOG.debug("Starting %s with configuration:", APP_NAME);
 		LOG.debug(this.config::toString);
 
-		if( !this.config.get("users").isEmpty() ) {
-			LOG.debug("Possible logins:");
-			for( String username : config.get("users").keySet() ) {
-				LOG.debug("    %s", username);
-			}
+		UserDirectory users = UserDirectory.load(this.config);
+		if( !users.isEmpty() ) {
+			LOG.debug("%d possible logins", users.size());
 		} else {
 			LOG.warn("No authentication data found in config. You won't be able to log in.");
 		}
@@ -174,22 +224,48 @@ public class CarrotServer {
 	/**
 	 * Startet die App.
 	 * <p>
-	 * Pro Dienst wird ein Socket auf dem eingestellten Port geöffnet.
+	 * Pro Dienst wird ein Socket auf dem eingestellten Port geöffnet. Ist ein TLS-Keystore
+	 * eingestellt, wird für Dienste mit TLS-Port ein weiterer Socket mit implizitem TLS geöffnet.
+	 * <p>
+	 * Factories, die {@link QueueListener} implementieren, werden bei den Warteschlangen aller
+	 * SMTP-Dienste angemeldet. Ist {@code search_index} aktiviert, wird der {@link SearchIndex}
+	 * bei den {@link schule.ngb.carrot.maildrop.MaildropEvents} angemeldet.
 	 */
 	public void start( List<ProtocolHandlerFactory> protocols ) {
 		this.services = new ArrayList<>();
+		boolean tls = TlsContext.isConfigured(config);
 		for( ProtocolHandlerFactory phf : protocols ) {
-			Server s = new Server(phf.getPort(), phf);
-			if( config.get("carrot", "timeout", int.class) > 0 ) {
-				s.setConnectionTimeout(config.get("carrot", "timeout", int.class));
+			start(new Server(phf.getPort(), phf));
+			if( tls && phf.getTlsPort() > 0 ) {
+				start(new Server(phf.getTlsPort(), phf, () -> TlsContext.get(this.config)));
 			}
-			services.add(s);
-			s.start();
+		}
 
-			s.addListener(serverLogger);
+		for( ProtocolHandlerFactory phf : protocols ) {
+			if( phf instanceof SMTPFactory ) {
+				for( ProtocolHandlerFactory listener : protocols ) {
+					if( listener instanceof QueueListener ) {
+						((SMTPFactory) phf).getTransmissionQueue().addListener((QueueListener) listener);
+					}
+				}
+			}
+		}
+
+		if( config.get(Configuration.SECTION_MAIN, "search_index", boolean.class) ) {
+			SearchIndex.subscribe();
 		}
 	}
 
+	private void start( Server s ) {
+		if( config.get("carrot", "timeout", int.class) > 0 ) {
+			s.setConnectionTimeout(config.get("carrot", "timeout", int.class));
+		}
+		services.add(s);
+		s.start();
+
+		s.addListener(serverLogger);
+	}
+
 	/**
 	 * Liefert eine Liste der Dienste, die in dieser App laufen.
 	 *
@@ -208,14 +284,87 @@ public class CarrotServer {
 		return config;
 	}
 
+	/**
+	 * Überwacht die Konfigurationsdateien und lädt die Konfiguration bei Änderungen neu.
+	 *
+	 * @param configFile Pfad der Konfigurationsdatei.
+	 * @param cli Die Kommandozeile oder {@code null}.
+	 * @see #reload(Ini)
+	 */
+	public void watchConfig( Path configFile, CommandLine cli ) {
+		List<Path> files = new ArrayList<>(List.of(configFile, getDataConfigFile(config)));
+		Path usersFile = UserDirectory.getUsersFile(config);
+		if( usersFile != null ) {
+			files.add(usersFile);
+		}
+		try {
+			configWatcher = new ConfigWatcher(files, 500, () -> {
+				for( Path file : files ) {
+					if( !file.equals(usersFile) && Files.isRegularFile(file) ) {
+						try {
+							new Ini(file.toFile());
+						} catch( IOException ex ) {
+							LOG.error(ex, "Invalid configuration in %s, keeping current configuration", file);
+							return;
+						}
+					}
+				}
+				reload(buildConfig(configFile, cli));
+			});
+		} catch( IOException ex ) {
+			LOG.error(ex, "Failed to watch configuration files, live reload is disabled");
+		}
+	}
+
+	/**
+	 * Übernimmt eine neue globale Konfiguration in alle laufenden Dienste.
+	 * <p>
+	 * Die Konfiguration wird in allen Protokollen ersetzt. Bestehende Verbindungen behalten ihre
+	 * Konfiguration, neue Verbindungen erhalten die neue. Die Annahme neuer Verbindungen wird
+	 * dabei nicht unterbrochen. Änderungen an {@code data} und den Ports erfordern einen Neustart.
+	 *
+	 * @param newConfig Die neue globale Konfiguration.
+	 */
+	public void reload( Ini newConfig ) {
+		if( newConfig.get(Configuration.SECTION_MAIN, "host") == null ) {
+			LOG.error("Reloaded configuration has no host, keeping current configuration");
+			return;
+		}
+		String data = config.get(Configuration.SECTION_MAIN, "data");
+		if( !data.equals(newConfig.get(Configuration.SECTION_MAIN, "data")) ) {
+			LOG.warn("Change of data folder requires a restart");
+			newConfig.put(Configuration.SECTION_MAIN, "data", data);
+		}
+
+		this.config = newConfig;
+		int timeout = newConfig.get(Configuration.SECTION_MAIN, "timeout", int.class);
+		for( Server server : services ) {
+			server.setConnectionTimeout(timeout);
+			if( server.isTls() ) {
+				// Shares the factory with the plain server
+				continue;
+			}
+			try {
+				server.getProtocolHandlerFactory().reload(newConfig);
+			} catch( RuntimeException ex ) {
+				LOG.error(ex, "Failed to reload configuration for %s", server.getProtocolName());
+			}
+		}
+		LOG.info("Configuration reloaded (%d users)", UserDirectory.load(newConfig).size());
+	}
+
 	/**
 	 * Stoppt den Server, beendet alle Dienste und beendet die App.
 	 */
 	public void shutdown() {
 		LOG.info("initialized orderly shutdown, closing open connections");
+		if( configWatcher != null ) {
+			configWatcher.close();
+		}
 		for( Server server : services ) {
 			server.close();
 		}
+		SearchIndex.unsubscribe();
 	}
 
 	// Interner ServerListener, hauptsächlich für das Logging.
@@ -174,6 +174,8 @@ public final class ProtocolLoader {
 		protocols.add(EchoHandler.class);
 		protocols.add(POP3Handler.class);
 		protocols.add(SMTPHandler.class);
+		protocols.add(LMTPHandler.class);
+		protocols.add(IMAPHandler.class);
 
 		// Factory-Klassen instanziieren.
 		for( Class<?> ph : protocols ) {
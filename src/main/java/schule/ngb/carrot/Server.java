@@ -7,7 +7,9 @@ import schule.ngb.carrot.protocol.ProtocolHandler;
 import schule.ngb.carrot.protocol.ProtocolHandlerFactory;
 import schule.ngb.carrot.util.Log;
 import schule.ngb.carrot.util.Timer;
+import schule.ngb.carrot.util.TlsContext;
 
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -17,6 +19,7 @@ import java.util.Iterator;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 
 /**
@@ -69,7 +72,12 @@ public class Server implements Runnable {
 	/**
 	 * Timeout für Verbindungen.
 	 */
-	private int connectionTimeout = -1;
+	private volatile int connectionTimeout = -1;
+
+	/**
+	 * Ob der Timeout-Thread läuft.
+	 */
+	private boolean timerRunning = false;
 
 	/**
 	 * Timer-Thread für den Timeout.
@@ -81,6 +89,12 @@ public class Server implements Runnable {
 	 */
 	private final ProtocolHandlerFactory factory;
 
+	/**
+	 * Liefert den {@link SSLContext} für implizites TLS oder {@code null} für unverschlüsselte
+	 * Verbindungen.
+	 */
+	private final Supplier<SSLContext> tls;
+
 	/**
 	 * Executor, auf dem die {@link ProtocolHandler} ausgeführt werden.
 	 */
@@ -107,8 +121,25 @@ public class Server implements Runnable {
 	 * @param phFactory Factory für die {@link ProtocolHandler}.
 	 */
 	public Server( int port, ProtocolHandlerFactory phFactory ) {
+		this(port, phFactory, null);
+	}
+
+	/**
+	 * Erstellt einen Server, der Verbindungen direkt mit TLS verschlüsselt (implizites TLS, zum
+	 * Beispiel POP3S oder SMTPS).
+	 * <p>
+	 * Der {@link SSLContext} wird für jede Verbindung neu von {@code tls} abgefragt. Ein neues
+	 * Zertifikat wird so ohne Neustart übernommen. Der Handshake findet erst im Thread der
+	 * Verbindung statt und blockiert nicht die Annahme weiterer Verbindungen.
+	 *
+	 * @param port Port, auf dem der Server Verbindungen entgegennimmt.
+	 * @param phFactory Factory für die {@link ProtocolHandler}.
+	 * @param tls Liefert den Kontext für TLS oder {@code null} für unverschlüsselte Verbindungen.
+	 */
+	public Server( int port, ProtocolHandlerFactory phFactory, Supplier<SSLContext> tls ) {
 		this.port = port;
 		this.factory = phFactory;
+		this.tls = tls;
 		this.connections = new ArrayList<>();
 
 		// Events vorbereiten
@@ -124,9 +155,10 @@ public class Server implements Runnable {
 			@Override
 			public void run() {
 				while( running ) {
+					int timeout = connectionTimeout;
 					for( ProtocolHandler ph : connections ) {
-						if( ph.isRunning() ) {
-							if( ph.getTimer().getMillis() > connectionTimeout ) {
+						if( timeout > 0 && ph.isRunning() ) {
+							if( ph.getTimer().getMillis() > timeout ) {
 								ph.close();
 								dispatch("timeout", ph);
 							}
@@ -138,17 +170,38 @@ public class Server implements Runnable {
 					} catch( InterruptedException ignored ) {
 					}
 				}
+				synchronized( Server.this ) {
+					timerRunning = false;
+				}
 			}
 		};
 	}
 
+	/**
+	 * Liefert die Factory für die {@link ProtocolHandler} dieses Servers.
+	 *
+	 * @return Die Factory.
+	 */
+	public ProtocolHandlerFactory getProtocolHandlerFactory() {
+		return this.factory;
+	}
+
 	/**
 	 * Liefert den Namen des Protokolls, das auf diesem Server läuft.
 	 *
 	 * @return
 	 */
 	public String getProtocolName() {
-		return this.factory.getName();
+		return this.tls == null ? this.factory.getName() : this.factory.getName() + "s";
+	}
+
+	/**
+	 * Liefert, ob Verbindungen zu diesem Server direkt mit TLS verschlüsselt werden.
+	 *
+	 * @return {@code true} bei implizitem TLS.
+	 */
+	public boolean isTls() {
+		return this.tls != null;
 	}
 
 	/**
@@ -194,13 +247,25 @@ public class Server implements Runnable {
 	/**
 	 * Setzt den Verbindungstimeout des Servers.
 	 * <p>
-	 * Wenn der Server {@link #isRunning() läuft}, wird der Aufruf ignoriert.
+	 * Wenn der Server {@link #isRunning() läuft}, gilt der neue Timeout sofort für alle
+	 * Verbindungen.
 	 *
 	 * @param connectionTimeout Der neue Verbindungstimeout.
 	 */
 	public void setConnectionTimeout( int connectionTimeout ) {
-		if( !this.running ) {
-			this.connectionTimeout = connectionTimeout;
+		this.connectionTimeout = connectionTimeout;
+		if( this.running ) {
+			startTimer();
+		}
+	}
+
+	/**
+	 * Startet den Timeout-Thread, falls ein Timeout eingestellt ist und er noch nicht läuft.
+	 */
+	private synchronized void startTimer() {
+		if( connectionTimeout > 0 && !timerRunning ) {
+			timerRunning = true;
+			new Thread(timer).start();
 		}
 	}
 
@@ -236,24 +301,27 @@ public class Server implements Runnable {
 
 			running = true;
 			// Start timeout thread
-			if( connectionTimeout > 0 ) {
-				new Thread(timer).start();
-			}
+			startTimer();
 
 			dispatch("started");
 			while( running && !Thread.interrupted() ) {
 				try {
 					// Warten auf Verbindungsversuch durch Client:
 					Socket clientSocket = serverSocket.accept();
+					if( tls != null ) {
+						clientSocket = secure(clientSocket);
+					}
 
 					// Eingehende Nachrichten vom neu verbundenen Client werden
 					// in einem eigenen Thread empfangen:
 
-					ProtocolHandler ph = this.factory.create(clientSocket);
-					this.connections.add(ph);
-					this.exec.submit(ph);
+					if( clientSocket != null ) {
+						ProtocolHandler ph = this.factory.create(clientSocket);
+						this.connections.add(ph);
+						this.exec.submit(ph);
 
-					dispatch("connected", ph);
+						dispatch("connected", ph);
+					}
 				} catch( SocketTimeoutException ex ) {
 				}
 
@@ -282,6 +350,30 @@ public class Server implements Runnable {
 		}
 	}
 
+	/**
+	 * Verschlüsselt eine neue Verbindung mit TLS.
+	 *
+	 * @param clientSocket Die unverschlüsselte Verbindung.
+	 * @return Die verschlüsselte Verbindung oder {@code null}, falls TLS nicht möglich ist. Die
+	 * 	Verbindung wird dann geschlossen.
+	 */
+	private Socket secure( Socket clientSocket ) {
+		try {
+			SSLContext context = tls.get();
+			if( context != null ) {
+				return TlsContext.wrap(context, clientSocket);
+			}
+			LOG.warn("No TLS context for %s, rejecting connection", getProtocolName());
+		} catch( IOException ex ) {
+			LOG.debug("Failed to start TLS for %s: %s", clientSocket.getRemoteSocketAddress(), ex.getMessage());
+		}
+		try {
+			clientSocket.close();
+		} catch( IOException ignored ) {
+		}
+		return null;
+	}
+
 	/**
 	 * Trennt alle bestehenden Verbindungen ohne den Server zu stoppen.
 	 */
@@ -0,0 +1,39 @@
+package schule.ngb.carrot.events;
+
+import java.nio.file.Path;
+
+/**
+ * Eine Änderung in einem Maildrop: Eine Mail wurde zugestellt oder gelöscht.
+ *
+ * @see MaildropListener
+ */
+public final class MaildropEvent {
+
+	/**
+	 * Name des Nutzers, dem der Maildrop gehört.
+	 */
+	public final String user;
+
+	/**
+	 * Ordner des Maildrops.
+	 */
+	public final Path maildrop;
+
+	/**
+	 * ID (Dateiname) der Mail.
+	 */
+	public final String mailId;
+
+	/**
+	 * Datei der Mail. Nach einer Löschung existiert sie nicht mehr.
+	 */
+	public final Path file;
+
+	public MaildropEvent( String user, Path maildrop, String mailId, Path file ) {
+		this.user = user;
+		this.maildrop = maildrop;
+		this.mailId = mailId;
+		this.file = file;
+	}
+
+}
@@ -0,0 +1,28 @@
+package schule.ngb.carrot.events;
+
+/**
+ * Ein Listener, der auf {@link MaildropEvent}s der Maildrops hört.
+ * <p>
+ * Die Methoden werden in dem Thread aufgerufen, der die Mail geschrieben oder gelöscht hat, zum
+ * Beispiel von der SMTP Warteschlange oder einer POP3-Sitzung. Sie sollten daher schnell
+ * zurückkehren und längere Arbeiten in einem eigenen Thread erledigen.
+ *
+ * @see schule.ngb.carrot.maildrop.MaildropEvents
+ */
+public interface MaildropListener extends Listener<MaildropEvent> {
+
+	/**
+	 * Wird aufgerufen, sobald eine Mail vollständig im Maildrop liegt.
+	 *
+	 * @param e Das Maildrop-Event.
+	 */
+	void mailDelivered( MaildropEvent e );
+
+	/**
+	 * Wird aufgerufen, sobald eine Mail aus dem Maildrop entfernt wurde.
+	 *
+	 * @param e Das Maildrop-Event.
+	 */
+	void mailExpunged( MaildropEvent e );
+
+}
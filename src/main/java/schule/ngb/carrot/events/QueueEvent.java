@@ -0,0 +1,36 @@
+package schule.ngb.carrot.events;
+
+import schule.ngb.carrot.maildrop.MailAddress;
+import schule.ngb.carrot.protocol.QueueMetrics;
+
+public final class QueueEvent {
+
+	public final QueueMetrics metrics;
+
+	public final MailAddress sender;
+
+	/**
+	 * Empfänger, auf den sich das Event bezieht, oder {@code null}, wenn das Event die ganze
+	 * Nachricht betrifft.
+	 */
+	public final MailAddress recipient;
+
+	/**
+	 * Zeit in Millisekunden seit Annahme der Nachricht.
+	 */
+	public final long age;
+
+	/**
+	 * Grund eines Fehlers oder {@code null}.
+	 */
+	public final String reason;
+
+	public QueueEvent( QueueMetrics metrics, MailAddress sender, MailAddress recipient, long age, String reason ) {
+		this.metrics = metrics;
+		this.sender = sender;
+		this.recipient = recipient;
+		this.age = age;
+		this.reason = reason;
+	}
+
+}
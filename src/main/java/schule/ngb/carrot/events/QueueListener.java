@@ -0,0 +1,40 @@
+package schule.ngb.carrot.events;
+
+/**
+ * Ein Listener, der auf {@link QueueEvent}s der SMTP Warteschlange hört.
+ * <p>
+ * Die Methoden werden aus den Threads der Warteschlange aufgerufen und sollten daher schnell
+ * zurückkehren.
+ */
+public interface QueueListener extends Listener<QueueEvent> {
+
+	/**
+	 * Wird aufgerufen, sobald eine Nachricht in die Warteschlange gestellt wurde.
+	 *
+	 * @param e Das Queue-Event.
+	 */
+	void mailQueued( QueueEvent e );
+
+	/**
+	 * Wird aufgerufen, sobald eine Nachricht an einen Empfänger zugestellt wurde.
+	 *
+	 * @param e Das Queue-Event.
+	 */
+	void mailDelivered( QueueEvent e );
+
+	/**
+	 * Wird aufgerufen, wenn die Zustellung an einen Empfänger vorübergehend fehlgeschlagen ist
+	 * und später wiederholt wird.
+	 *
+	 * @param e Das Queue-Event.
+	 */
+	void deliveryDeferred( QueueEvent e );
+
+	/**
+	 * Wird aufgerufen, wenn die Zustellung an einen Empfänger endgültig fehlgeschlagen ist.
+	 *
+	 * @param e Das Queue-Event.
+	 */
+	void deliveryFailed( QueueEvent e );
+
+}
@@ -0,0 +1,170 @@
+package schule.ngb.carrot.maildrop;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Die wichtigsten Header einer Mail in kompakter Form.
+ * <p>
+ * Enthalten sind die Felder, die IMAP als {@code ENVELOPE} liefert (RFC 3501, Abschnitt
+ * 7.4.2). Die Werte sind unverändert, also zum Beispiel noch mit Encoded Words. Fehlende oder
+ * leere Header sind {@code null}. Mehrere Felder mit Adressen werden mit Komma verbunden, von
+ * anderen zählt das erste.
+ * <p>
+ * Der {@link MaildropIndex} speichert für jede Mail ein {@code Envelope}, damit die Header nicht
+ * für jede Anfrage neu gelesen werden müssen.
+ */
+public final class Envelope {
+
+	private static final int DATE = 0, SUBJECT = 1, FROM = 2, SENDER = 3, REPLY_TO = 4, TO = 5, CC = 6,
+		BCC = 7, IN_REPLY_TO = 8, MESSAGE_ID = 9;
+
+	private static final String[] FIELDS = {
+		"date", "subject", "from", "sender", "reply-to", "to", "cc", "bcc", "in-reply-to", "message-id"
+	};
+
+
+	private final String[] values;
+
+	private Envelope( String[] values ) {
+		this.values = values;
+	}
+
+	/**
+	 * Übernimmt die Felder aus den Headern einer Mail.
+	 *
+	 * @param headers Die Header.
+	 * @return Das Envelope.
+	 */
+	public static Envelope of( MimeHeaders headers ) {
+		String[] values = new String[FIELDS.length];
+		for( int i = 0; i < FIELDS.length; i++ ) {
+			List<String> all = headers.getAll(FIELDS[i]);
+			String value = all.isEmpty() ? null : all.get(0);
+			if( all.size() > 1 && i >= FROM && i <= BCC ) {
+				value = String.join(", ", all);
+			}
+			values[i] = value == null || value.isEmpty() ? null : value;
+		}
+		return new Envelope(values);
+	}
+
+	/**
+	 * Liest die Header einer Mail-Datei.
+	 *
+	 * @param file Die Datei.
+	 * @return Das Envelope.
+	 * @throws IOException Falls die Datei nicht gelesen werden kann.
+	 */
+	public static Envelope read( Path file ) throws IOException {
+		return of(MimeParser.readHeaders(file));
+	}
+
+	public String getDate() {
+		return values[DATE];
+	}
+
+	public String getSubject() {
+		return values[SUBJECT];
+	}
+
+	public String getFrom() {
+		return values[FROM];
+	}
+
+	public String getSender() {
+		return values[SENDER];
+	}
+
+	public String getReplyTo() {
+		return values[REPLY_TO];
+	}
+
+	public String getTo() {
+		return values[TO];
+	}
+
+	public String getCc() {
+		return values[CC];
+	}
+
+	public String getBcc() {
+		return values[BCC];
+	}
+
+	public String getInReplyTo() {
+		return values[IN_REPLY_TO];
+	}
+
+	public String getMessageId() {
+		return values[MESSAGE_ID];
+	}
+
+	/**
+	 * Kodiert die Felder in einer Zeile ohne Zeilenumbrüche, getrennt durch Tabulatoren.
+	 */
+	String encode() {
+		StringBuilder result = new StringBuilder();
+		for( int i = 0; i < values.length; i++ ) {
+			if( i > 0 ) {
+				result.append('\t');
+			}
+			String value = values[i];
+			if( value == null ) {
+				continue;
+			}
+			for( int j = 0; j < value.length(); j++ ) {
+				char ch = value.charAt(j);
+				switch( ch ) {
+					case '\\':
+						result.append("\\\\");
+						break;
+					case '\t':
+						result.append("\\t");
+						break;
+					case '\r':
+						result.append("\\r");
+						break;
+					case '\n':
+						result.append("\\n");
+						break;
+					default:
+						result.append(ch);
+				}
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Dekodiert eine mit {@link #encode()} erstellte Zeile.
+	 *
+	 * @throws IllegalArgumentException Falls die Zeile nicht alle Felder enthält.
+	 */
+	static Envelope decode( String line ) {
+		String[] values = new String[FIELDS.length];
+		StringBuilder value = new StringBuilder();
+		int field = 0;
+		for( int i = 0; i <= line.length(); i++ ) {
+			char ch = i < line.length() ? line.charAt(i) : '\t';
+			if( ch == '\t' ) {
+				if( field >= FIELDS.length ) {
+					throw new IllegalArgumentException("too many fields in envelope");
+				}
+				values[field++] = value.length() == 0 ? null : value.toString();
+				value.setLength(0);
+			} else if( ch == '\\' && i + 1 < line.length() ) {
+				char next = line.charAt(++i);
+				value.append(next == 't' ? '\t' : next == 'r' ? '\r' : next == 'n' ? '\n' : next);
+			} else {
+				value.append(ch);
+			}
+		}
+		if( field != FIELDS.length ) {
+			throw new IllegalArgumentException("missing fields in envelope");
+		}
+		return new Envelope(values);
+	}
+
+}
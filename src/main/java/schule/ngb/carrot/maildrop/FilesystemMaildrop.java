@@ -7,9 +7,12 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -38,24 +41,38 @@ public class FilesystemMaildrop implements Maildrop {
 
 	public static final String LOCKFILE = ".lock";
 
+	public static final String MAIL_EXTENSION = ".eml";
+
 
 	private static final Log LOG = Log.getLogger(FilesystemMaildrop.class);
 
+	/**
+	 * Gemeinsame Sperrverwaltung für alle Maildrops im Dateisystem.
+	 */
+	private static final MaildropLockManager LOCKS = new MaildropLockManager(64);
+
 
 	private final Ini config;
 
+	private final String username;
+
 	private final Path root;
 
 	private final HashMap<Path, Mail> mails;
 
+	/**
+	 * Anzahl der Unterordner, auf die die Mails verteilt werden. Bei {@code 0} liegen alle Mails
+	 * direkt im Maildrop.
+	 */
+	private final int shards;
+
+	private MaildropLockManager.MaildropLock lock;
+
 	public FilesystemMaildrop( String username, String maildrop, Ini config ) throws MaildropException {
 		this.config = config;
+		this.username = username;
 
-		this.root = Paths.get(
-			this.config.get(SECTION_MAIN, "data"),
-			maildrop,
-			username
-		);
+		this.root = getRoot(username, maildrop, config);
 		if( !Files.exists(root) ) {
 			try {
 				Files.createDirectories(root);
@@ -63,6 +80,7 @@ public class FilesystemMaildrop implements Maildrop {
 				throw new MaildropException(e);
 			}
 		}
+		this.shards = getShards(config);
 
 		mails = new HashMap<>();
 
@@ -72,23 +90,31 @@ public class FilesystemMaildrop implements Maildrop {
 	/**
 	 * Updates the list of eml-files present on the filesystem. Only new mails are added to the lsit
 	 * of files (identified by the filepath).
+	 * <p>
+	 * Mails are collected from the maildrop itself and from its shard directories, independent of
+	 * the configured number of shards. Thus, a maildrop can be read while it is being
+	 * {@link #reshard() resharded}.
 	 *
 	 * @throws MaildropException
 	 */
 	public void updateFileList() throws MaildropException {
-		List<Path> mailList = null;
+		List<Path> mailList = new ArrayList<>();
 		try {
-			mailList = Files.list(root)
-				.filter(
-					( m ) -> m.getFileName().toString().endsWith(".eml")
-				)
-				.sorted().collect(Collectors.toList());
+			collectNewMails(root, mailList);
+			try( Stream<Path> dirs = Files.list(root) ) {
+				for( Path dir : dirs.filter(FilesystemMaildrop::isShardDirectory).collect(Collectors.toList()) ) {
+					collectNewMails(dir, mailList);
+				}
+			}
 		} catch( IOException e ) {
 			throw new MaildropException(e);
 		}
+
+		// Only new mails need to be sorted, known mails keep their numbers
+		mailList.sort(Comparator.comparing(( p ) -> p.getFileName().toString()));
 		for( Path p : mailList ) {
 			// TODO: maybe check mtime for updates?
-			if( Files.isReadable(p) && !Files.isDirectory(p) && !mails.containsKey(p) ) {
+			if( Files.isReadable(p) ) {
 				mails.put(p,
 					new Mail(mails.size() + 1, p)
 				);
@@ -96,6 +122,29 @@ public class FilesystemMaildrop implements Maildrop {
 		}
 	}
 
+	private void collectNewMails( Path dir, List<Path> mailList ) throws IOException {
+		try( Stream<Path> files = Files.list(dir) ) {
+			files
+				.filter(( m ) -> m.getFileName().toString().endsWith(MAIL_EXTENSION))
+				.filter(( m ) -> !mails.containsKey(m))
+				.filter(( m ) -> !Files.isDirectory(m))
+				.forEach(mailList::add);
+		}
+	}
+
+	private static boolean isShardDirectory( Path dir ) {
+		String name = dir.getFileName().toString();
+		if( name.isEmpty() || !Files.isDirectory(dir) ) {
+			return false;
+		}
+		for( int i = 0; i < name.length(); i++ ) {
+			if( Character.digit(name.charAt(i), 16) < 0 ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	public Stream<Mail> getMailStream() {
 		return getMailStream(false);
 	}
@@ -200,23 +249,39 @@ public class FilesystemMaildrop implements Maildrop {
 
 	@Override
 	public void executeDelete() throws MaildropException {
-		Path trash = getTrash();
-
 		for( Mail mail : listAllMails() ) {
 			if( mail.deleted ) {
-				ensureTrashExists();
-				try {
-					Files.move(mail.file, trash.resolve(mail.file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
-					LOG.debug("Moved mail file %s/%s to trash", mail.file.getParent().getFileName(), mail.file.getFileName());
-				} catch( IOException e ) {
-					LOG.error(e, "Failed to move mail file %s/%s to trash", mail.file.getParent().getFileName(), mail.file.getFileName());
-					throw new MaildropException(e);
-				}
-				mails.remove(mail);
+				moveToTrash(mail.file);
 			}
 		}
 	}
 
+	@Override
+	public MaildropSnapshot snapshot() throws MaildropException {
+		updateFileList();
+		return MaildropSnapshot.of(getMailStream().collect(Collectors.toList()));
+	}
+
+	@Override
+	public void executeDelete( MaildropSnapshot snapshot ) throws MaildropException {
+		for( int n = snapshot.nextDeleted(1); n > 0; n = snapshot.nextDeleted(n + 1) ) {
+			moveToTrash(snapshot.getDeletedFile(n));
+		}
+	}
+
+	private void moveToTrash( Path file ) throws MaildropException {
+		ensureTrashExists();
+		try {
+			Files.move(file, getTrash().resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+			LOG.debug("Moved mail file %s/%s to trash", file.getParent().getFileName(), file.getFileName());
+		} catch( IOException e ) {
+			LOG.error(e, "Failed to move mail file %s/%s to trash", file.getParent().getFileName(), file.getFileName());
+			throw new MaildropException(e);
+		}
+		mails.remove(file);
+		MaildropEvents.expunged(username, root, file);
+	}
+
 	@Override
 	public void restoreDeleted() throws MaildropException {
 		Path trash = getTrash();
@@ -224,9 +289,11 @@ public class FilesystemMaildrop implements Maildrop {
 		if( Files.isDirectory(trash) ) {
 			try {
 				for( Path mail : Files.list(trash).collect(Collectors.toList()) ) {
-					if( mail.getFileName().toString().endsWith(".eml") ) {
+					if( mail.getFileName().toString().endsWith(MAIL_EXTENSION) ) {
 						try {
-							Files.move(mail, root.resolve(mail.getFileName()));
+							Path target = getMailPath(mail.getFileName().toString());
+							Files.createDirectories(target.getParent());
+							Files.move(mail, target);
 						} catch( FileAlreadyExistsException ignored ) {
 						}
 					} else {
@@ -243,6 +310,91 @@ public class FilesystemMaildrop implements Maildrop {
 		}
 	}
 
+	@Override
+	public List<Mail> search( SearchQuery query ) throws MaildropException {
+		List<Mail> mails = listMails();
+		Set<String> ids = SearchIndex.forMaildrop(this).search(query, mails);
+		return mails.stream().filter(( m ) -> ids.contains(m.getId())).collect(Collectors.toList());
+	}
+
+	/**
+	 * Verteilt alle Mails des Maildrops entsprechend der aktuell eingestellten Anzahl an Shards.
+	 * <p>
+	 * Der Maildrop muss dazu {@link #lock() gesperrt} sein, damit keine laufende Sitzung auf
+	 * verschobene Dateien zugreift. Jede Mail wird einzeln atomar verschoben und leere
+	 * Shard-Ordner werden entfernt. Da beim Lesen immer alle Ordner durchsucht werden, bleibt der
+	 * Maildrop auch bei einem Abbruch konsistent und die Migration kann erneut gestartet werden.
+	 *
+	 * @return Anzahl der verschobenen Mails.
+	 * @throws MaildropException Falls der Maildrop nicht gesperrt ist oder eine Datei nicht
+	 * 	verschoben werden kann.
+	 */
+	public int reshard() throws MaildropException {
+		if( lock == null || !lock.isValid() ) {
+			throw new MaildropException("maildrop " + this.root.getFileName() + " must be locked for resharding");
+		}
+
+		updateFileList();
+
+		int moved = 0;
+		for( Mail mail : listAllMails() ) {
+			Path target = getMailPath(mail.getId());
+			if( !target.equals(mail.file) ) {
+				try {
+					Files.createDirectories(target.getParent());
+					Files.move(mail.file, target, StandardCopyOption.ATOMIC_MOVE);
+				} catch( IOException e ) {
+					throw new MaildropException(e);
+				}
+				mails.remove(mail.file);
+				mail.file = target;
+				mails.put(target, mail);
+				moved += 1;
+			}
+		}
+
+		try( Stream<Path> dirs = Files.list(root) ) {
+			for( Path dir : dirs.filter(FilesystemMaildrop::isShardDirectory).collect(Collectors.toList()) ) {
+				try {
+					Files.delete(dir);
+				} catch( DirectoryNotEmptyException ignored ) {
+				}
+			}
+		} catch( IOException e ) {
+			throw new MaildropException(e);
+		}
+
+		return moved;
+	}
+
+	/**
+	 * Liefert den Pfad, unter dem eine Mail mit dem angegebenen Dateinamen entsprechend der
+	 * eingestellten Anzahl Shards abgelegt wird.
+	 *
+	 * @param filename Dateiname der Mail.
+	 * @return Der Pfad der Mail-Datei.
+	 */
+	public Path getMailPath( String filename ) {
+		return getMailPath(root, shards, filename);
+	}
+
+	private static Path getMailPath( Path root, int shards, String filename ) {
+		if( shards > 0 ) {
+			// Spread hash bits, since similar filenames differ only in few bits
+			int h = filename.hashCode() * 0x9E3779B9;
+			h ^= (h >>> 16);
+			int bucket = (h & 0x7fffffff) % shards;
+			int digits = Math.max(2, (Integer.toHexString(shards - 1).length()));
+			return root.resolve(String.format("%0" + digits + "x", bucket)).resolve(filename);
+		} else {
+			return root.resolve(filename);
+		}
+	}
+
+	public int getShardCount() {
+		return shards;
+	}
+
 	public Path getRoot() {
 		return root;
 	}
@@ -267,55 +419,86 @@ public class FilesystemMaildrop implements Maildrop {
 		}
 	}
 
+	@Override
+	public boolean tryLock() throws MaildropException {
+		if( lock != null && lock.isValid() ) {
+			return true;
+		}
+		lock = LOCKS.tryLock(getLock());
+		return lock != null;
+	}
+
 	@Override
 	public void lock() throws MaildropException {
-		Path lock = getLock();
-		if( !Files.exists(lock) ) {
-			try {
-				Files.createFile(lock);
-			} catch( IOException e ) {
-				LOG.error(e, "Failed to lock maildrop %s", this.root.getFileName());
-				throw new MaildropException(e);
-			}
+		if( !tryLock() ) {
+			throw new MaildropException("maildrop " + this.root.getFileName() + " already in use");
 		}
 	}
 
 	@Override
 	public void unlock() throws MaildropException {
-		Path lock = getLock();
-		if( Files.exists(lock) ) {
-			try {
-				Files.delete(lock);
-			} catch( IOException e ) {
-				LOG.error(e, "Failed to unlock maildrop %s", this.root.getFileName());
-				throw new MaildropException(e);
-			}
+		if( lock != null ) {
+			lock.close();
+			lock = null;
 		}
 	}
 
 	@Override
-	public boolean isLocked() {
-		return Files.exists(getLock());
+	public void createMail( String content ) throws MaildropException {
+		createMail(new SpooledMessage(content));
 	}
 
 	@Override
-	public void createMail( String content ) throws MaildropException {
-		String filename = new SimpleDateFormat("yyyyMMddHHmmss'.eml'").format(new Date());
-		Path mailPath = root.resolve(filename);
+	public void createMail( SpooledMessage message ) throws MaildropException {
+		store(username, root, shards, message);
+	}
+
+	/**
+	 * Legt eine Nachricht im Maildrop eines Nutzers ab, ohne die vorhandenen Mails einzulesen.
+	 * Für Zustellungen, die den Maildrop sonst nicht benötigen, ist das günstiger als
+	 * {@link #createMail(SpooledMessage)} auf einem neuen {@code FilesystemMaildrop}.
+	 *
+	 * @param username Name des Nutzers.
+	 * @param maildrop Ordner der Maildrops.
+	 * @param config Die Konfiguration.
+	 * @param message Die Nachricht.
+	 * @throws MaildropException Falls die Nachricht nicht abgelegt werden kann.
+	 */
+	public static void deliver( String username, String maildrop, Ini config, SpooledMessage message ) throws MaildropException {
+		store(username, getRoot(username, maildrop, config), getShards(config), message);
+	}
+
+	private static void store( String username, Path root, int shards, SpooledMessage message ) throws MaildropException {
+		String basename = new SimpleDateFormat("yyyyMMddHHmmss'" + MAIL_EXTENSION + "'").format(new Date());
+		String filename = basename;
+		Path mailPath = getMailPath(root, shards, filename);
 		int i = 0;
-		while( Files.exists(mailPath) ) {
-			filename = String.format("%d" + filename, ++i);
+		while( true ) {
+			try {
+				Files.createDirectories(mailPath.getParent());
+				message.deliverTo(mailPath);
+				break;
+			} catch( FileAlreadyExistsException ex ) {
+				filename = String.format("%d%s", ++i, basename);
+				mailPath = getMailPath(root, shards, filename);
+			} catch( IOException e ) {
+				LOG.error(e, "Failed to create mail file %s/%s", mailPath.getParent().getFileName(), mailPath.getFileName());
+				throw new MaildropException(e);
+			}
 		}
+		LOG.debug("Created mail file %s/%s", mailPath.getParent().getFileName(), mailPath.getFileName());
+		MaildropEvents.delivered(username, root, mailPath);
+	}
 
-		try {
-			Path tmpPath = Files.createTempFile("tmpmail", filename);
-			Files.writeString(tmpPath, content, StandardCharsets.UTF_8);
-			Files.move(tmpPath, mailPath);
-			LOG.debug("Created mail file %s/%s", mailPath.getParent().getFileName(), mailPath.getFileName());
-		} catch( IOException e ) {
-			LOG.error(e, "Failed to create mail file %s/%s", mailPath.getParent().getFileName(), mailPath.getFileName());
-			throw new MaildropException(e);
+	private static Path getRoot( String username, String maildrop, Ini config ) {
+		return Paths.get(config.get(SECTION_MAIN, "data"), maildrop, username);
+	}
+
+	private static int getShards( Ini config ) {
+		if( config.get(SECTION_MAIN, "maildrop_shards") != null ) {
+			return Math.max(0, config.get(SECTION_MAIN, "maildrop_shards", int.class));
 		}
+		return 0;
 	}
 
 }
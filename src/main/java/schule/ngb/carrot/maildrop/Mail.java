@@ -1,12 +1,11 @@
 package schule.ngb.carrot.maildrop;
 
+import schule.ngb.carrot.util.Digest;
+
 import java.io.IOException;
-import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.List;
 
 public final class Mail {
@@ -45,12 +44,9 @@ public final class Mail {
 
 	public String getHash() throws IOException {
 		if( hash == null ) {
-			try {
-				MessageDigest md5 = MessageDigest.getInstance("md5");
-				// TODO: need to consider charset here?
-				md5.update(StandardCharsets.UTF_8.encode(getText()));
-				hash = String.format("%032x", new BigInteger(1, md5.digest()));
-			} catch( NoSuchAlgorithmException e ) {
+			if( Digest.md5Available() ) {
+				hash = Digest.md5(file);
+			} else {
 				hash = id;
 			}
 		}
@@ -28,14 +28,42 @@ public interface Maildrop {
 
 	void executeDelete() throws MaildropException;
 
+	/**
+	 * Erstellt eine Momentaufnahme der aktuell vorhandenen Mails für eine Sitzung.
+	 *
+	 * @return Die Momentaufnahme.
+	 * @throws MaildropException Falls die Mails nicht gelesen werden können.
+	 */
+	MaildropSnapshot snapshot() throws MaildropException;
+
+	/**
+	 * Löscht die in einer Momentaufnahme zum Löschen markierten Mails.
+	 *
+	 * @param snapshot Die Momentaufnahme.
+	 * @throws MaildropException Falls eine Mail nicht gelöscht werden kann.
+	 */
+	void executeDelete( MaildropSnapshot snapshot ) throws MaildropException;
+
 	void restoreDeleted() throws MaildropException;
 
+	/**
+	 * Sucht Mails über den Volltextindex des Maildrops.
+	 *
+	 * @param query Die Anfrage.
+	 * @return Die passenden Mails, nach Nummer sortiert.
+	 * @throws MaildropException Falls der Index nicht gelesen werden kann.
+	 * @see SearchIndex
+	 */
+	List<Mail> search( SearchQuery query ) throws MaildropException;
+
+	boolean tryLock() throws MaildropException;
+
 	void lock() throws MaildropException;
 
 	void unlock() throws MaildropException;
 
-	boolean isLocked();
-
 	void createMail( String content ) throws MaildropException;
 
+	void createMail( SpooledMessage message ) throws MaildropException;
+
 }
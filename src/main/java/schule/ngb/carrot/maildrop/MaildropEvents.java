@@ -0,0 +1,114 @@
+package schule.ngb.carrot.maildrop;
+
+import schule.ngb.carrot.events.EventDispatcher;
+import schule.ngb.carrot.events.MaildropEvent;
+import schule.ngb.carrot.events.MaildropListener;
+import schule.ngb.carrot.util.Log;
+
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Verteilt Zustellungen und Löschungen in den Maildrops an interessierte Teile des Servers.
+ * <p>
+ * Ein {@link MaildropListener} meldet sich entweder für die Maildrops eines Nutzers an oder für
+ * alle Nutzer. So erfahren zum Beispiel IMAP-Sitzungen im Zustand {@code IDLE} und der
+ * {@link SearchIndex} sofort von neuen Mails, ohne die Ordner regelmäßig neu einzulesen.
+ * <p>
+ * Die Events werden von {@link FilesystemMaildrop} ausgelöst, nachdem die Datei geschrieben bzw.
+ * verschoben wurde. Das Auslösen kommt ohne Sperren aus: Die Listener eines Nutzers liegen in
+ * einem eigenen {@link EventDispatcher}, der in einer {@link ConcurrentHashMap} nachgeschlagen
+ * wird. Nur das An- und Abmelden sperrt kurz den Eintrag des Nutzers. Hat ein Nutzer keine
+ * Listener mehr, wird sein Eintrag entfernt.
+ */
+public final class MaildropEvents {
+
+	private static final Log LOG = Log.getLogger(MaildropEvents.class);
+
+
+	private static final String DELIVERED = "delivered", EXPUNGED = "expunged";
+
+	/**
+	 * Listener für alle Nutzer.
+	 */
+	private static final EventDispatcher<MaildropEvent, MaildropListener> ALL = createDispatcher();
+
+	/**
+	 * Listener je Nutzer.
+	 */
+	private static final ConcurrentMap<String, EventDispatcher<MaildropEvent, MaildropListener>> TOPICS = new ConcurrentHashMap<>();
+
+	/**
+	 * Meldet einen Listener für die Maildrops eines Nutzers an.
+	 *
+	 * @param user Name des Nutzers.
+	 * @param listener Der Listener.
+	 */
+	public static void subscribe( String user, MaildropListener listener ) {
+		TOPICS.compute(user, ( key, dispatcher ) -> {
+			if( dispatcher == null ) {
+				dispatcher = createDispatcher();
+			}
+			dispatcher.addListener(listener);
+			return dispatcher;
+		});
+	}
+
+	public static void unsubscribe( String user, MaildropListener listener ) {
+		TOPICS.computeIfPresent(user, ( key, dispatcher ) -> {
+			dispatcher.removeListener(listener);
+			return dispatcher.hasListeners() ? dispatcher : null;
+		});
+	}
+
+	/**
+	 * Meldet einen Listener für die Maildrops aller Nutzer an. Mehrfaches Anmelden hat keine
+	 * Wirkung.
+	 *
+	 * @param listener Der Listener.
+	 */
+	public static void subscribeAll( MaildropListener listener ) {
+		ALL.addListener(listener);
+	}
+
+	public static void unsubscribeAll( MaildropListener listener ) {
+		ALL.removeListener(listener);
+	}
+
+	static void delivered( String user, Path maildrop, Path file ) {
+		publish(DELIVERED, new MaildropEvent(user, maildrop, file.getFileName().toString(), file));
+	}
+
+	static void expunged( String user, Path maildrop, Path file ) {
+		publish(EXPUNGED, new MaildropEvent(user, maildrop, file.getFileName().toString(), file));
+	}
+
+	private static void publish( String type, MaildropEvent event ) {
+		// A failing listener must not fail the delivery
+		try {
+			ALL.dispatchEvent(type, event);
+		} catch( RuntimeException ex ) {
+			LOG.error(ex, "Listener failed on %s event for mail %s of user %s", type, event.mailId, event.user);
+		}
+		EventDispatcher<MaildropEvent, MaildropListener> dispatcher = TOPICS.get(event.user);
+		if( dispatcher != null ) {
+			try {
+				dispatcher.dispatchEvent(type, event);
+			} catch( RuntimeException ex ) {
+				LOG.error(ex, "Listener failed on %s event for mail %s of user %s", type, event.mailId, event.user);
+			}
+		}
+	}
+
+	private static EventDispatcher<MaildropEvent, MaildropListener> createDispatcher() {
+		EventDispatcher<MaildropEvent, MaildropListener> dispatcher = new EventDispatcher<>();
+		dispatcher.registerEventType(DELIVERED, ( e, l ) -> l.mailDelivered(e));
+		dispatcher.registerEventType(EXPUNGED, ( e, l ) -> l.mailExpunged(e));
+		return dispatcher;
+	}
+
+	private MaildropEvents() {
+	}
+
+}
@@ -0,0 +1,416 @@
+package schule.ngb.carrot.maildrop;
+
+import schule.ngb.carrot.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Dauerhafte UIDs und Flags der Mails eines Maildrops für IMAP.
+ * <p>
+ * IMAP (RFC 3501) verlangt für jede Mail eine UID, die sich nicht ändert, solange die
+ * {@link #getUidValidity() UIDVALIDITY} gleich bleibt, sowie gespeicherte Flags wie
+ * {@code \Seen}. Der Index liegt in der Datei {@value #INDEX_FILE} im Maildrop und wird mit einer
+ * {@link MaildropSnapshot Momentaufnahme} {@link #update(MaildropSnapshot) abgeglichen}: Neue Mails
+ * erhalten die nächste freie UID, Einträge für Mails, die nicht mehr existieren (zum Beispiel per
+ * POP3 gelöscht), werden entfernt. Einzelne Zustellungen und Löschungen, etwa aus den
+ * {@link MaildropEvents}, können mit {@link #add(String, Path)} und {@link #remove(String)}
+ * eingetragen werden, ohne den Maildrop neu einzulesen.
+ * <p>
+ * Zu jeder Mail wird außerdem ein {@link Envelope} mit ihren wichtigsten Headern gespeichert,
+ * damit sie nicht für jede Anfrage neu gelesen werden müssen.
+ * <p>
+ * Die Einträge werden als nach UID sortiertes Array bereitgestellt, das bei jeder Änderung der
+ * Liste ersetzt und danach nicht mehr verändert wird. Sitzungen können es ohne Sperre lesen und
+ * an einem neuen Array erkennen, dass sich die Liste geändert hat. Veränderlich sind nur die Flags
+ * der Einträge.
+ */
+public final class MaildropIndex {
+
+	private static final Log LOG = Log.getLogger(MaildropIndex.class);
+
+
+	public static final String INDEX_FILE = ".index";
+
+	public static final int FLAG_SEEN = 1, FLAG_ANSWERED = 1 << 1, FLAG_FLAGGED = 1 << 2,
+		FLAG_DELETED = 1 << 3, FLAG_DRAFT = 1 << 4;
+
+	private static final String VERSION = "2";
+
+	/**
+	 * Version ohne {@link Envelope}. Solche Dateien werden weiter gelesen, die Envelopes werden bei
+	 * Bedarf ergänzt.
+	 */
+	private static final String VERSION_1 = "1";
+
+	private static final Entry[] EMPTY = new Entry[0];
+
+
+	/**
+	 * Eine Mail im Index.
+	 */
+	public static final class Entry {
+
+		private final long uid;
+
+		private final String id;
+
+		/**
+		 * Größe mit {@code CRLF} als Zeilenende, wie sie per IMAP übertragen wird.
+		 */
+		private final long size;
+
+		private volatile Path file;
+
+		private volatile int flags;
+
+		private volatile Envelope envelope;
+
+		private Entry( long uid, String id, long size, int flags, Envelope envelope ) {
+			this.uid = uid;
+			this.id = id;
+			this.size = size;
+			this.flags = flags;
+			this.envelope = envelope;
+		}
+
+		public long getUid() {
+			return uid;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public Path getFile() {
+			return file;
+		}
+
+		public int getFlags() {
+			return flags;
+		}
+
+		public boolean hasFlag( int flag ) {
+			return (flags & flag) != 0;
+		}
+
+		/**
+		 * Liest den Inhalt der Mail. Einzelne {@code LF} werden durch {@code CRLF} ersetzt.
+		 *
+		 * @return Der Inhalt mit {@link #getSize()} Bytes.
+		 * @throws IOException Falls die Datei nicht (mehr) gelesen werden kann.
+		 */
+		public byte[] readContent() throws IOException {
+			byte[] raw = Files.readAllBytes(file);
+			int bare = 0;
+			for( int i = 0; i < raw.length; i++ ) {
+				if( raw[i] == '\n' && (i == 0 || raw[i - 1] != '\r') ) {
+					bare += 1;
+				}
+			}
+			if( bare == 0 ) {
+				return raw;
+			}
+			byte[] content = new byte[raw.length + bare];
+			for( int i = 0, j = 0; i < raw.length; i++ ) {
+				if( raw[i] == '\n' && (i == 0 || raw[i - 1] != '\r') ) {
+					content[j++] = '\r';
+				}
+				content[j++] = raw[i];
+			}
+			return content;
+		}
+
+	}
+
+
+	private final Path file;
+
+	private long uidValidity;
+
+	private long uidNext = 1;
+
+	private volatile Entry[] entries = EMPTY;
+
+	private final Map<String, Entry> byId = new HashMap<>();
+
+	private boolean dirty = false;
+
+	/**
+	 * Lädt den Index aus einer Datei. Existiert sie nicht oder ist sie beschädigt, beginnt ein
+	 * neuer Index mit neuer UIDVALIDITY.
+	 *
+	 * @param file Die Indexdatei.
+	 */
+	public MaildropIndex( Path file ) {
+		this.file = file;
+		if( Files.exists(file) ) {
+			try {
+				load();
+				return;
+			} catch( IOException | RuntimeException ex ) {
+				LOG.warn("Index %s is unreadable, assigning new UIDs: %s", file, ex.getMessage());
+				byId.clear();
+			}
+		}
+		uidValidity = System.currentTimeMillis() / 1000;
+		uidNext = 1;
+		dirty = true;
+	}
+
+	/**
+	 * Erstellt den Index für einen Maildrop im Dateisystem.
+	 *
+	 * @param maildrop Der Maildrop.
+	 * @return Der geladene Index.
+	 */
+	public static MaildropIndex forMaildrop( FilesystemMaildrop maildrop ) {
+		return new MaildropIndex(maildrop.getRoot().resolve(INDEX_FILE));
+	}
+
+	public long getUidValidity() {
+		return uidValidity;
+	}
+
+	public synchronized long getUidNext() {
+		return uidNext;
+	}
+
+	/**
+	 * Liefert alle Einträge nach UID sortiert. Das Array darf nicht verändert werden.
+	 *
+	 * @return Die Einträge.
+	 */
+	public Entry[] getEntries() {
+		return entries;
+	}
+
+	public synchronized Entry get( String id ) {
+		return byId.get(id);
+	}
+
+	/**
+	 * Gleicht den Index mit den vorhandenen Mails ab. Die Mails einer Momentaufnahme sind nach
+	 * Dateinamen und damit nach Eingang sortiert, neue Mails erhalten in dieser Reihenfolge
+	 * aufsteigende UIDs.
+	 *
+	 * @param snapshot Momentaufnahme aller Mails.
+	 * @return {@code true}, wenn Mails hinzugekommen oder entfernt worden sind.
+	 * @throws MaildropException Falls die Momentaufnahme nicht gelesen werden kann.
+	 */
+	public synchronized boolean update( MaildropSnapshot snapshot ) throws MaildropException {
+		int n = snapshot.countAll();
+		List<Entry> list = new ArrayList<>(n);
+		Set<String> ids = new HashSet<>(n * 2);
+		boolean added = false;
+		for( int number = 1; number <= n; number++ ) {
+			String id = snapshot.getId(number);
+			Path path = snapshot.getFile(number);
+			Entry entry = byId.get(id);
+			if( entry == null ) {
+				long size;
+				Envelope envelope;
+				try {
+					size = crlfSize(path);
+					envelope = Envelope.read(path);
+				} catch( IOException ex ) {
+					// Removed in the meantime
+					continue;
+				}
+				entry = new Entry(uidNext++, id, size, 0, envelope);
+				byId.put(id, entry);
+				added = true;
+			}
+			entry.file = path;
+			ids.add(id);
+			list.add(entry);
+		}
+
+		boolean removed = byId.size() > ids.size();
+		if( removed ) {
+			byId.keySet().retainAll(ids);
+		}
+		if( !added && !removed && entries.length == list.size() ) {
+			return false;
+		}
+
+		list.sort(Comparator.comparingLong(Entry::getUid));
+		entries = list.toArray(EMPTY);
+		dirty = true;
+		return true;
+	}
+
+	/**
+	 * Fügt eine zugestellte Mail mit der nächsten UID hinzu, ohne den Maildrop neu einzulesen.
+	 *
+	 * @param id Die ID der Mail.
+	 * @param file Die Datei der Mail.
+	 * @return {@code false}, falls die Mail schon im Index ist.
+	 * @throws IOException Falls die Mail nicht (mehr) gelesen werden kann.
+	 */
+	public synchronized boolean add( String id, Path file ) throws IOException {
+		if( byId.containsKey(id) ) {
+			return false;
+		}
+		Entry entry = new Entry(uidNext++, id, crlfSize(file), 0, Envelope.read(file));
+		entry.file = file;
+		byId.put(id, entry);
+		Entry[] list = Arrays.copyOf(entries, entries.length + 1);
+		list[entries.length] = entry;
+		entries = list;
+		dirty = true;
+		return true;
+	}
+
+	/**
+	 * Entfernt eine gelöschte Mail, ohne den Maildrop neu einzulesen.
+	 *
+	 * @param id Die ID der Mail.
+	 * @return {@code false}, falls die Mail nicht im Index ist.
+	 */
+	public synchronized boolean remove( String id ) {
+		Entry entry = byId.remove(id);
+		if( entry == null ) {
+			return false;
+		}
+		Entry[] list = new Entry[entries.length - 1];
+		int n = 0;
+		for( Entry e : entries ) {
+			if( e != entry ) {
+				list[n++] = e;
+			}
+		}
+		entries = list;
+		dirty = true;
+		return true;
+	}
+
+	/**
+	 * Setzt die Flags einer Mail. Die Änderung wird mit dem nächsten {@link #save()} gespeichert.
+	 *
+	 * @param entry Der Eintrag.
+	 * @param flags Die neuen Flags.
+	 */
+	public synchronized void setFlags( Entry entry, int flags ) {
+		if( entry.flags != flags ) {
+			entry.flags = flags;
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Liefert das {@link Envelope} einer Mail. Fehlt es (Index der Version 1), werden die Header
+	 * gelesen und mit dem nächsten {@link #save()} gespeichert.
+	 *
+	 * @param entry Der Eintrag.
+	 * @return Das Envelope.
+	 * @throws IOException Falls die Mail nicht (mehr) gelesen werden kann.
+	 */
+	public Envelope getEnvelope( Entry entry ) throws IOException {
+		Envelope envelope = entry.envelope;
+		if( envelope == null ) {
+			envelope = Envelope.read(entry.file);
+			synchronized( this ) {
+				entry.envelope = envelope;
+				dirty = true;
+			}
+		}
+		return envelope;
+	}
+
+	/**
+	 * Speichert den Index, falls er sich seit dem letzten Speichern geändert hat. Die Datei wird
+	 * vollständig neu geschrieben und atomar ersetzt.
+	 *
+	 * @throws MaildropException Falls die Datei nicht geschrieben werden kann.
+	 */
+	public synchronized void save() throws MaildropException {
+		if( !dirty ) {
+			return;
+		}
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			try( BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8) ) {
+				out.write(VERSION + " " + uidValidity + " " + uidNext + "\n");
+				for( Entry entry : entries ) {
+					out.write(entry.uid + " " + entry.flags + " " + entry.size + " " + entry.id);
+					if( entry.envelope != null ) {
+						out.write('\t');
+						out.write(entry.envelope.encode());
+					}
+					out.write('\n');
+				}
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			dirty = false;
+		} catch( IOException ex ) {
+			throw new MaildropException(ex);
+		}
+	}
+
+	private void load() throws IOException {
+		List<Entry> list = new ArrayList<>();
+		try( BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8) ) {
+			String[] header = in.readLine().split(" ");
+			if( !header[0].equals(VERSION) && !header[0].equals(VERSION_1) ) {
+				throw new IOException("unknown index version " + header[0]);
+			}
+			uidValidity = Long.parseLong(header[1]);
+			uidNext = Long.parseLong(header[2]);
+
+			String line;
+			while( (line = in.readLine()) != null ) {
+				int tab = line.indexOf('\t');
+				Envelope envelope = tab < 0 ? null : Envelope.decode(line.substring(tab + 1));
+				String[] parts = (tab < 0 ? line : line.substring(0, tab)).split(" ", 4);
+				Entry entry = new Entry(Long.parseLong(parts[0]), parts[3], Long.parseLong(parts[2]), Integer.parseInt(parts[1]), envelope);
+				byId.put(entry.id, entry);
+				list.add(entry);
+			}
+		}
+		// Files are attached on the first update
+		list.sort(Comparator.comparingLong(Entry::getUid));
+		entries = list.toArray(EMPTY);
+	}
+
+	/**
+	 * Berechnet die Größe einer Datei, wenn einzelne {@code LF} durch {@code CRLF} ersetzt werden.
+	 */
+	private static long crlfSize( Path path ) throws IOException {
+		long size = 0;
+		byte[] buffer = new byte[8192];
+		byte last = 0;
+		try( InputStream in = Files.newInputStream(path) ) {
+			int n;
+			while( (n = in.read(buffer)) > 0 ) {
+				for( int i = 0; i < n; i++ ) {
+					if( buffer[i] == '\n' && last != '\r' ) {
+						size += 1;
+					}
+					last = buffer[i];
+				}
+				size += n;
+			}
+		}
+		return size;
+	}
+
+}
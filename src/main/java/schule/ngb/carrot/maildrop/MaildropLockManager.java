@@ -0,0 +1,169 @@
+package schule.ngb.carrot.maildrop;
+
+import schule.ngb.carrot.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Verwaltet exklusive Sperren auf Maildrops.
+ * <p>
+ * Sperren innerhalb der JVM werden in einer {@link ConcurrentMap} gehalten. Die Prüfung, ob ein
+ * Maildrop schon von einer anderen Sitzung gesperrt ist, kommt daher ohne Zugriff auf das
+ * Dateisystem aus. Konkurrierende Sperrversuche auf denselben Maildrop werden über eine feste
+ * Anzahl von Stripes (Monitore, die über den Hash des Pfades ausgewählt werden) serialisiert.
+ * <p>
+ * Zur Abstimmung mit anderen Prozessen wird zusätzlich ein {@link FileLock} auf der Sperrdatei
+ * gehalten. Das Betriebssystem gibt diese Sperre automatisch frei, wenn der Prozess endet. Nach
+ * einem Absturz bleiben daher keine Sperren zurück, auch wenn die Sperrdatei selbst noch existiert.
+ */
+public final class MaildropLockManager {
+
+	private static final Log LOG = Log.getLogger(MaildropLockManager.class);
+
+
+	/**
+	 * Eine gehaltene Sperre. Mit {@link #close()} wird die Sperre freigegeben.
+	 */
+	public final class MaildropLock implements AutoCloseable {
+
+		private final Path lockFile;
+
+		private final FileChannel channel;
+
+		private final FileLock fileLock;
+
+		private MaildropLock( Path lockFile, FileChannel channel, FileLock fileLock ) {
+			this.lockFile = lockFile;
+			this.channel = channel;
+			this.fileLock = fileLock;
+		}
+
+		public Path getLockFile() {
+			return lockFile;
+		}
+
+		public boolean isValid() {
+			return held.get(lockFile) == this;
+		}
+
+		@Override
+		public void close() {
+			release(this);
+		}
+
+	}
+
+
+	private final Object[] stripes;
+
+	private final ConcurrentMap<Path, MaildropLock> held;
+
+	/**
+	 * Erstellt einen {@code MaildropLockManager} mit der angegebenen Anzahl Stripes. Die Anzahl
+	 * wird auf die nächste Zweierpotenz aufgerundet.
+	 *
+	 * @param concurrency Anzahl der Stripes.
+	 */
+	public MaildropLockManager( int concurrency ) {
+		int n = Integer.highestOneBit(Math.max(1, concurrency - 1)) << 1;
+		stripes = new Object[n];
+		for( int i = 0; i < n; i++ ) {
+			stripes[i] = new Object();
+		}
+		held = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Versucht die Sperrdatei {@code lockFile} exklusiv zu sperren.
+	 *
+	 * @param lockFile Pfad zur Sperrdatei des Maildrops.
+	 * @return Die Sperre oder {@code null}, falls der Maildrop schon gesperrt ist.
+	 * @throws MaildropException Falls die Sperrdatei nicht geöffnet werden kann.
+	 */
+	public MaildropLock tryLock( Path lockFile ) throws MaildropException {
+		lockFile = lockFile.toAbsolutePath().normalize();
+
+		// Schneller Weg: Sperre wird schon in dieser JVM gehalten
+		if( held.containsKey(lockFile) ) {
+			return null;
+		}
+
+		synchronized( stripe(lockFile) ) {
+			if( held.containsKey(lockFile) ) {
+				return null;
+			}
+
+			FileChannel channel = null;
+			try {
+				channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				FileLock fileLock = channel.tryLock();
+				if( fileLock == null ) {
+					// Von einem anderen Prozess gesperrt
+					channel.close();
+					return null;
+				}
+
+				MaildropLock lock = new MaildropLock(lockFile, channel, fileLock);
+				held.put(lockFile, lock);
+				return lock;
+			} catch( OverlappingFileLockException ex ) {
+				closeQuietly(channel);
+				return null;
+			} catch( IOException ex ) {
+				closeQuietly(channel);
+				throw new MaildropException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Gibt die in dieser JVM gehaltene Sperre auf {@code lockFile} frei, falls vorhanden.
+	 *
+	 * @param lockFile Pfad zur Sperrdatei des Maildrops.
+	 */
+	public void unlock( Path lockFile ) {
+		MaildropLock lock = held.get(lockFile.toAbsolutePath().normalize());
+		if( lock != null ) {
+			release(lock);
+		}
+	}
+
+	private void release( MaildropLock lock ) {
+		synchronized( stripe(lock.lockFile) ) {
+			if( !held.remove(lock.lockFile, lock) ) {
+				return;
+			}
+
+			try {
+				lock.fileLock.release();
+			} catch( IOException ex ) {
+				LOG.warn("Failed to release lock %s", lock.lockFile);
+			} finally {
+				closeQuietly(lock.channel);
+			}
+		}
+	}
+
+	private Object stripe( Path lockFile ) {
+		int h = lockFile.hashCode();
+		h ^= (h >>> 16);
+		return stripes[h & (stripes.length - 1)];
+	}
+
+	private static void closeQuietly( FileChannel channel ) {
+		if( channel != null ) {
+			try {
+				channel.close();
+			} catch( IOException ignored ) {
+			}
+		}
+	}
+
+}
@@ -0,0 +1,292 @@
+package schule.ngb.carrot.maildrop;
+
+import schule.ngb.carrot.util.Digest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Momentaufnahme eines Maildrops für eine POP3-Sitzung.
+ * <p>
+ * Nach RFC 1939 bleibt die Nummerierung der Mails während einer Sitzung gleich. Mails, die nach
+ * der Anmeldung zugestellt werden, erscheinen erst in der nächsten Sitzung. Die Momentaufnahme
+ * wird beim Anmelden einmal erstellt und enthält Größe, UIDL und Pfad jeder Mail in Arrays, die
+ * über die Nummer der Mail ({@code 1} bis {@link #countAll()}) indiziert werden. {@code STAT},
+ * {@code LIST} und {@code UIDL} benötigen dadurch keinen Zugriff auf das Dateisystem.
+ * <p>
+ * Veränderlich sind nur die Markierungen zum Löschen. Eine Momentaufnahme gehört zu einer
+ * Sitzung und ist nicht threadsicher.
+ */
+public final class MaildropSnapshot {
+
+	/**
+	 * Ziel für die Bytes einer Mail, zum Beispiel die Ausgabe einer Sitzung.
+	 */
+	public interface Output {
+
+		void write( byte[] bytes, int offset, int length );
+
+	}
+
+	/**
+	 * Erstellt eine Momentaufnahme aus einer nach Nummer sortierten Liste von Mails. Die Mails
+	 * werden neu ab {@code 1} nummeriert.
+	 *
+	 * @param mails Die Mails.
+	 * @return Die Momentaufnahme.
+	 */
+	public static MaildropSnapshot of( List<Mail> mails ) {
+		int n = mails.size();
+		Path[] files = new Path[n];
+		String[] ids = new String[n];
+		long[] sizes = new long[n];
+		long total = 0;
+		for( int i = 0; i < n; i++ ) {
+			Mail mail = mails.get(i);
+			files[i] = mail.getFile();
+			ids[i] = mail.getId();
+			sizes[i] = mail.getSizeOrZero();
+			total += sizes[i];
+		}
+		return new MaildropSnapshot(files, ids, sizes, total);
+	}
+
+
+	private final Path[] files;
+
+	private final String[] ids;
+
+	private final long[] sizes;
+
+	/**
+	 * MD5-Hashes der Mails als alternative UIDL. Werden erst bei Bedarf berechnet.
+	 */
+	private String[] hashes;
+
+	private final long totalSize;
+
+	private final BitSet deleted;
+
+	private long deletedSize = 0;
+
+	private MaildropSnapshot( Path[] files, String[] ids, long[] sizes, long totalSize ) {
+		this.files = files;
+		this.ids = ids;
+		this.sizes = sizes;
+		this.totalSize = totalSize;
+		this.deleted = new BitSet(files.length);
+	}
+
+	/**
+	 * Prüft, ob eine Nummer zu einer nicht gelöschten Mail gehört.
+	 *
+	 * @param number Nummer der Mail.
+	 * @return {@code true}, wenn die Mail existiert und nicht gelöscht ist.
+	 */
+	public boolean exists( int number ) {
+		return number > 0 && number <= files.length && !deleted.get(number - 1);
+	}
+
+	/**
+	 * Anzahl aller Mails, einschließlich der zum Löschen markierten.
+	 *
+	 * @return Anzahl der Mails.
+	 */
+	public int countAll() {
+		return files.length;
+	}
+
+	/**
+	 * Anzahl der Mails, die nicht zum Löschen markiert sind.
+	 *
+	 * @return Anzahl der Mails.
+	 */
+	public int count() {
+		return files.length - deleted.cardinality();
+	}
+
+	/**
+	 * Gesamtgröße der Mails, die nicht zum Löschen markiert sind.
+	 *
+	 * @return Größe in Bytes.
+	 */
+	public long size() {
+		return totalSize - deletedSize;
+	}
+
+	public long size( int number ) throws MaildropException {
+		return sizes[index(number)];
+	}
+
+	public String getId( int number ) throws MaildropException {
+		return ids[index(number)];
+	}
+
+	/**
+	 * Liefert den MD5-Hash des Inhalts einer Mail. Der Hash wird beim ersten Aufruf berechnet.
+	 *
+	 * @param number Nummer der Mail.
+	 * @return Der Hash als Hex-String.
+	 * @throws MaildropException Falls die Mail nicht existiert oder nicht gelesen werden kann.
+	 */
+	public String getHash( int number ) throws MaildropException {
+		int i = index(number);
+		if( hashes == null ) {
+			hashes = new String[files.length];
+		}
+		if( hashes[i] == null ) {
+			if( Digest.md5Available() ) {
+				try {
+					hashes[i] = Digest.md5(files[i]);
+				} catch( IOException e ) {
+					throw new MaildropException(e);
+				}
+			} else {
+				hashes[i] = ids[i];
+			}
+		}
+		return hashes[i];
+	}
+
+	public Path getFile( int number ) throws MaildropException {
+		return files[index(number)];
+	}
+
+	/**
+	 * Öffnet eine Mail zum Lesen.
+	 *
+	 * @param number Nummer der Mail.
+	 * @return Der Inhalt der Mail.
+	 * @throws MaildropException Falls die Mail nicht existiert oder nicht geöffnet werden kann.
+	 */
+	public InputStream open( int number ) throws MaildropException {
+		try {
+			return Files.newInputStream(getFile(number));
+		} catch( IOException e ) {
+			throw new MaildropException(e);
+		}
+	}
+
+	/**
+	 * Schreibt eine Mail für {@code RETR} oder {@code TOP} (RFC 1939).
+	 * <p>
+	 * Die Bytes werden nicht dekodiert, Mails mit {@code 8BITMIME} oder in anderen Zeichensätzen
+	 * bleiben unverändert. Zeilen, die mit einem Punkt beginnen, erhalten einen weiteren Punkt,
+	 * einzelne {@code LF} werden zu {@code CRLF} ergänzt und eine unvollständige letzte Zeile wird
+	 * abgeschlossen. Der Punkt am Ende wird nicht geschrieben.
+	 *
+	 * @param mail Der Inhalt der Mail, siehe {@link #open(int)}.
+	 * @param bodyLines Anzahl Zeilen nach den Headern oder {@code -1} für die ganze Mail.
+	 * @param out Das Ziel.
+	 * @throws IOException Falls die Mail nicht gelesen werden kann.
+	 */
+	public static void write( InputStream mail, int bodyLines, Output out ) throws IOException {
+		byte[] in = new byte[8192];
+		// Each byte becomes at most two
+		byte[] buf = new byte[in.length * 2];
+		boolean headers = true;
+		int remaining = bodyLines;
+		int last = '\n', lineLength = 0;
+		int n;
+		while( (n = mail.read(in)) != -1 ) {
+			int len = 0;
+			boolean stop = false;
+			for( int i = 0; i < n && !stop; i++ ) {
+				byte b = in[i];
+				if( b == '\n' ) {
+					if( last != '\r' ) {
+						buf[len++] = '\r';
+					}
+					buf[len++] = '\n';
+					if( bodyLines >= 0 ) {
+						if( headers ) {
+							headers = lineLength > 0;
+							stop = !headers && remaining == 0;
+						} else {
+							remaining -= 1;
+							stop = remaining == 0;
+						}
+					}
+					lineLength = 0;
+				} else {
+					if( last == '\n' && b == '.' ) {
+						buf[len++] = '.';
+					}
+					buf[len++] = b;
+					if( b != '\r' ) {
+						lineLength += 1;
+					}
+				}
+				last = b;
+			}
+			out.write(buf, 0, len);
+			if( stop ) {
+				return;
+			}
+		}
+		if( last != '\n' ) {
+			out.write(new byte[]{'\r', '\n'}, 0, 2);
+		}
+	}
+
+	/**
+	 * Markiert eine Mail zum Löschen.
+	 *
+	 * @param number Nummer der Mail.
+	 * @throws MaildropException Falls die Mail nicht existiert oder schon markiert ist.
+	 */
+	public void delete( int number ) throws MaildropException {
+		int i = index(number);
+		deleted.set(i);
+		deletedSize += sizes[i];
+	}
+
+	public boolean isDeleted( int number ) {
+		return number > 0 && number <= files.length && deleted.get(number - 1);
+	}
+
+	/**
+	 * Entfernt alle Markierungen zum Löschen.
+	 */
+	public void resetDeleted() {
+		deleted.clear();
+		deletedSize = 0;
+	}
+
+	/**
+	 * Nächste zum Löschen markierte Nummer ab {@code number} (einschließlich) oder {@code -1}.
+	 * Zum Durchlaufen aller markierten Mails:
+	 * <pre>
+	 * for( int n = snapshot.nextDeleted(1); n > 0; n = snapshot.nextDeleted(n + 1) ) { ... }
+	 * </pre>
+	 *
+	 * @param number Nummer, ab der gesucht wird.
+	 * @return Die Nummer der nächsten markierten Mail oder {@code -1}.
+	 */
+	public int nextDeleted( int number ) {
+		int i = deleted.nextSetBit(Math.max(0, number - 1));
+		return i < 0 ? -1 : i + 1;
+	}
+
+	/**
+	 * Liefert den Pfad einer zum Löschen markierten Mail.
+	 *
+	 * @param number Nummer der Mail.
+	 * @return Der Pfad der Mail.
+	 */
+	Path getDeletedFile( int number ) {
+		return files[number - 1];
+	}
+
+	private int index( int number ) throws MaildropException {
+		if( !exists(number) ) {
+			throw new MaildropException("no file for number " + number);
+		}
+		return number - 1;
+	}
+
+}
@@ -0,0 +1,142 @@
+package schule.ngb.carrot.maildrop;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Die Header eines Teils einer Mail, wie sie der {@link MimeParser} liest.
+ * <p>
+ * Die Felder bleiben in ihrer Reihenfolge erhalten. Folgezeilen sind bereits angehängt
+ * (Unfolding nach RFC 5322), die Werte ansonsten unverändert, also zum Beispiel noch mit
+ * Encoded Words (RFC 2047). Namen werden ohne Beachtung der Groß- und Kleinschreibung verglichen.
+ */
+public final class MimeHeaders {
+
+	private static final Pattern PARAMETER = Pattern.compile(";\\s*([^\\s=;]+)\\s*=\\s*(\"((?:[^\"\\\\]|\\\\.)*)\"|[^;\\s]+)");
+
+
+	private final List<String> names = new ArrayList<>();
+
+	private final List<String> values = new ArrayList<>();
+
+	/**
+	 * Typ, falls kein Header {@code Content-Type} vorhanden ist.
+	 */
+	private final String defaultType;
+
+	MimeHeaders( String defaultType ) {
+		this.defaultType = defaultType;
+	}
+
+	/**
+	 * Fügt ein vollständiges Feld hinzu. Zeilen ohne Doppelpunkt werden ignoriert.
+	 */
+	void add( String field ) {
+		int colon = field.indexOf(':');
+		if( colon > 0 ) {
+			names.add(field.substring(0, colon).trim());
+			values.add(field.substring(colon + 1).trim());
+		}
+	}
+
+	public int size() {
+		return names.size();
+	}
+
+	public String getName( int i ) {
+		return names.get(i);
+	}
+
+	public String getValue( int i ) {
+		return values.get(i);
+	}
+
+	/**
+	 * Liefert den Wert des ersten Feldes mit dem Namen.
+	 *
+	 * @param name Name des Feldes.
+	 * @return Der Wert oder {@code null}.
+	 */
+	public String get( String name ) {
+		for( int i = 0; i < names.size(); i++ ) {
+			if( names.get(i).equalsIgnoreCase(name) ) {
+				return values.get(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Liefert die Werte aller Felder mit dem Namen.
+	 *
+	 * @param name Name des Feldes.
+	 * @return Die Werte in ihrer Reihenfolge.
+	 */
+	public List<String> getAll( String name ) {
+		List<String> result = new ArrayList<>(1);
+		for( int i = 0; i < names.size(); i++ ) {
+			if( names.get(i).equalsIgnoreCase(name) ) {
+				result.add(values.get(i));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Liefert den Header {@code Content-Type}. Fehlt er, gilt nach RFC 2046 {@code text/plain}
+	 * bzw. in {@code multipart/digest} {@code message/rfc822}.
+	 *
+	 * @return Der Inhaltstyp mit Parametern.
+	 */
+	public String getContentType() {
+		String type = get("content-type");
+		return type == null || type.isEmpty() ? defaultType : type;
+	}
+
+	/**
+	 * Liefert Typ und Untertyp des Inhalts ohne Parameter in Kleinbuchstaben, zum Beispiel
+	 * {@code text/html}.
+	 *
+	 * @return Der MIME-Typ.
+	 */
+	public String getMimeType() {
+		String type = getContentType();
+		int semicolon = type.indexOf(';');
+		return (semicolon < 0 ? type : type.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Liefert einen Parameter eines Feldes, zum Beispiel {@code charset} aus
+	 * {@code Content-Type}.
+	 *
+	 * @param name Name des Feldes.
+	 * @param parameter Name des Parameters.
+	 * @return Der Wert ohne Anführungszeichen oder {@code null}.
+	 */
+	public String getParameter( String name, String parameter ) {
+		String value = name.equalsIgnoreCase("content-type") ? getContentType() : get(name);
+		if( value == null ) {
+			return null;
+		}
+		Matcher m = PARAMETER.matcher(value);
+		while( m.find() ) {
+			if( m.group(1).equalsIgnoreCase(parameter) ) {
+				return m.group(3) != null ? m.group(3).replaceAll("\\\\(.)", "$1") : m.group(2);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		for( int i = 0; i < names.size(); i++ ) {
+			result.append(names.get(i)).append(": ").append(values.get(i)).append('\n');
+		}
+		return result.toString();
+	}
+
+}
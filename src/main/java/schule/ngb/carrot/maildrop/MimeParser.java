@@ -0,0 +1,395 @@
+package schule.ngb.carrot.maildrop;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streaming-Parser für Mails nach RFC 5322 und MIME (RFC 2045, RFC 2046).
+ * <p>
+ * Die Mail wird zeilenweise durch einen Puffer fester Größe aus einem
+ * {@link ReadableByteChannel} gelesen und nie vollständig im Speicher gehalten. Die Struktur wird
+ * an einen {@link Handler} gemeldet: Für jeden Teil zuerst die {@link MimeHeaders Header}, dann
+ * der Inhalt in Stücken und zuletzt das Ende des Teils. Teile vom Typ {@code multipart/*} werden
+ * an ihren Grenzen zerlegt, {@code message/rfc822} wird als eingebettete Mail gelesen. Der Inhalt
+ * wird so gemeldet, wie er in der Mail steht, also noch mit {@code Content-Transfer-Encoding}.
+ * <p>
+ * Der Parser ist tolerant: Einzelne {@code LF} als Zeilenende, fehlende Leerzeilen nach den
+ * Headern und fehlende abschließende Grenzen werden akzeptiert. Ab einer Tiefe von
+ * {@value #MAX_DEPTH} werden Teile nicht weiter zerlegt.
+ * <pre>
+ * try( FileChannel channel = FileChannel.open(file) ) {
+ *     new MimeParser(channel).parse(new MimeParser.Handler() {
+ *         public void startPart( int depth, MimeHeaders headers ) {
+ *             System.out.println(depth + " " + headers.getMimeType());
+ *         }
+ *     });
+ * }
+ * </pre>
+ */
+public final class MimeParser {
+
+	/**
+	 * Empfänger der Ereignisse des Parsers.
+	 */
+	public interface Handler {
+
+		/**
+		 * Ein Teil beginnt. Die Header der Mail selbst haben die Tiefe 0.
+		 *
+		 * @param depth Tiefe des Teils.
+		 * @param headers Die Header des Teils.
+		 * @throws IOException Bricht das Parsen ab.
+		 */
+		default void startPart( int depth, MimeHeaders headers ) throws IOException {
+		}
+
+		/**
+		 * Ein Stück des Inhalts eines Teils, der nicht weiter zerlegt wird. Das Array wird danach
+		 * wiederverwendet.
+		 *
+		 * @param data Puffer mit dem Inhalt.
+		 * @param offset Beginn im Puffer.
+		 * @param length Anzahl Bytes.
+		 * @throws IOException Bricht das Parsen ab.
+		 */
+		default void body( byte[] data, int offset, int length ) throws IOException {
+		}
+
+		/**
+		 * Ein Teil endet.
+		 *
+		 * @param depth Tiefe des Teils.
+		 * @throws IOException Bricht das Parsen ab.
+		 */
+		default void endPart( int depth ) throws IOException {
+		}
+
+	}
+
+
+	/**
+	 * Maximale Tiefe verschachtelter Teile.
+	 */
+	public static final int MAX_DEPTH = 10;
+
+	public static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Maximale Größe der Header eines Teils. Weitere Header werden ignoriert.
+	 */
+	public static final int MAX_HEADER_SIZE = 256 * 1024;
+
+	/**
+	 * Ergebnisse beim Lesen eines Abschnitts: Ende der Mail oder Leerzeile nach den Headern. Andere
+	 * Ergebnisse sind Grenzen, siehe {@link #boundary()}.
+	 */
+	private static final int END = -1, NO_BOUNDARY = -2;
+
+	private static final byte[] CRLF = {'\r', '\n'};
+
+
+	private final ReadableByteChannel channel;
+
+	private final byte[] data = new byte[BUFFER_SIZE];
+
+	private final ByteBuffer buffer = ByteBuffer.wrap(data);
+
+	private int pos = 0, limit = 0;
+
+	private boolean eof = false;
+
+	/**
+	 * Die aktuelle Zeile im Puffer. Ist sie länger als der Puffer, wird sie in Stücken gelesen
+	 * und {@code continued} ist für alle Stücke außer dem ersten gesetzt.
+	 */
+	private int lineStart, lineEnd;
+
+	private boolean lineComplete = true, continued = false;
+
+	/**
+	 * Grenzen ({@code --boundary}) der offenen Teile vom Typ {@code multipart/*}, innen zuletzt.
+	 */
+	private final List<byte[]> boundaries = new ArrayList<>();
+
+	private Handler handler;
+
+	/**
+	 * Länge des Zeilenendes, das vor der nächsten Zeile noch gemeldet werden muss. Das Zeilenende
+	 * vor einer Grenze gehört zur Grenze.
+	 */
+	private int pendingEol = 0;
+
+	private byte[] field = new byte[256];
+
+	private int fieldLength = 0;
+
+	public MimeParser( ReadableByteChannel channel ) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Liest nur die Header der Mail.
+	 *
+	 * @param channel Quelle der Mail.
+	 * @return Die Header.
+	 * @throws IOException Falls nicht gelesen werden kann.
+	 */
+	public static MimeHeaders readHeaders( ReadableByteChannel channel ) throws IOException {
+		MimeParser parser = new MimeParser(channel);
+		parser.skipByteOrderMark();
+		MimeHeaders headers = new MimeHeaders("text/plain");
+		parser.readHeaders(headers);
+		return headers;
+	}
+
+	/**
+	 * Liest nur die Header einer Mail-Datei.
+	 *
+	 * @param file Die Datei.
+	 * @return Die Header.
+	 * @throws IOException Falls die Datei nicht gelesen werden kann.
+	 */
+	public static MimeHeaders readHeaders( Path file ) throws IOException {
+		try( FileChannel channel = FileChannel.open(file) ) {
+			return readHeaders(channel);
+		}
+	}
+
+	/**
+	 * Liest die ganze Mail und meldet ihre Teile.
+	 *
+	 * @param handler Empfänger der Ereignisse.
+	 * @throws IOException Falls nicht gelesen werden kann oder der Handler abbricht.
+	 */
+	public void parse( Handler handler ) throws IOException {
+		this.handler = handler;
+		skipByteOrderMark();
+		parsePart(0, "text/plain");
+	}
+
+	private int parsePart( int depth, String defaultType ) throws IOException {
+		MimeHeaders headers = new MimeHeaders(defaultType);
+		int result = readHeaders(headers);
+		handler.startPart(depth, headers);
+		if( result == NO_BOUNDARY ) {
+			String mime = headers.getMimeType();
+			String boundary = mime.startsWith("multipart/") ? headers.getParameter("content-type", "boundary") : null;
+			if( depth >= MAX_DEPTH ) {
+				result = readBody(true);
+			} else if( boundary != null && !boundary.isEmpty() ) {
+				String childType = mime.equals("multipart/digest") ? "message/rfc822" : "text/plain";
+				result = parseMultipart(depth, ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1), childType);
+			} else if( mime.equals("message/rfc822") ) {
+				result = parsePart(depth + 1, "text/plain");
+			} else {
+				result = readBody(true);
+			}
+		}
+		handler.endPart(depth);
+		return result;
+	}
+
+	private int parseMultipart( int depth, byte[] delimiter, String childType ) throws IOException {
+		int index = boundaries.size();
+		boundaries.add(delimiter);
+		try {
+			// Preamble
+			int result = readBody(false);
+			while( result == index * 2 ) {
+				result = parsePart(depth + 1, childType);
+			}
+			if( result != index * 2 + 1 ) {
+				// End of the mail or boundary of an outer part
+				return result;
+			}
+		} finally {
+			boundaries.remove(index);
+		}
+		// Epilogue
+		return readBody(false);
+	}
+
+	/**
+	 * Liest Header bis zur Leerzeile.
+	 *
+	 * @return {@link #NO_BOUNDARY} nach einer Leerzeile, sonst {@link #END} oder eine Grenze, falls
+	 * 	der Teil keinen Inhalt hat.
+	 */
+	private int readHeaders( MimeHeaders headers ) throws IOException {
+		int size = 0;
+		fieldLength = 0;
+		while( readLine() ) {
+			int length = lineEnd - lineStart;
+			if( !continued ) {
+				int boundary = boundary();
+				if( boundary != NO_BOUNDARY ) {
+					addField(headers);
+					return boundary;
+				}
+				if( lineComplete && length - eolLength() == 0 ) {
+					addField(headers);
+					return NO_BOUNDARY;
+				}
+				if( data[lineStart] != ' ' && data[lineStart] != '\t' ) {
+					addField(headers);
+				}
+			}
+			size += length;
+			if( size <= MAX_HEADER_SIZE ) {
+				appendField(lineStart, length - eolLength());
+			}
+		}
+		addField(headers);
+		return END;
+	}
+
+	/**
+	 * Liest Inhalt bis zur nächsten Grenze eines offenen Teils.
+	 *
+	 * @param report Ob der Inhalt an den Handler gemeldet wird.
+	 * @return Die Grenze oder {@link #END}.
+	 */
+	private int readBody( boolean report ) throws IOException {
+		pendingEol = 0;
+		while( readLine() ) {
+			if( !continued ) {
+				int boundary = boundary();
+				if( boundary != NO_BOUNDARY ) {
+					return boundary;
+				}
+			}
+			if( report ) {
+				if( pendingEol > 0 ) {
+					handler.body(CRLF, 2 - pendingEol, pendingEol);
+				}
+				pendingEol = eolLength();
+				int length = lineEnd - lineStart - pendingEol;
+				if( length > 0 ) {
+					handler.body(data, lineStart, length);
+				}
+			}
+		}
+		if( report && pendingEol > 0 ) {
+			handler.body(CRLF, 2 - pendingEol, pendingEol);
+		}
+		return END;
+	}
+
+	/**
+	 * Prüft, ob die aktuelle Zeile eine Grenze eines offenen Teils ist.
+	 *
+	 * @return {@code 2 * i} für die Grenze von Teil {@code i}, {@code 2 * i + 1} für seine
+	 * 	abschließende Grenze oder {@link #NO_BOUNDARY}.
+	 */
+	private int boundary() {
+		int length = lineEnd - lineStart;
+		if( boundaries.isEmpty() || length < 3 || data[lineStart] != '-' || data[lineStart + 1] != '-' ) {
+			return NO_BOUNDARY;
+		}
+		for( int i = boundaries.size() - 1; i >= 0; i-- ) {
+			byte[] delimiter = boundaries.get(i);
+			if( length >= delimiter.length
+				&& Arrays.equals(data, lineStart, lineStart + delimiter.length, delimiter, 0, delimiter.length) ) {
+				int after = lineStart + delimiter.length;
+				boolean close = after + 1 < lineEnd && data[after] == '-' && data[after + 1] == '-';
+				return close ? 2 * i + 1 : 2 * i;
+			}
+		}
+		return NO_BOUNDARY;
+	}
+
+	/**
+	 * Länge des Zeilenendes ({@code CRLF} oder {@code LF}) der aktuellen Zeile.
+	 */
+	private int eolLength() {
+		if( !lineComplete ) {
+			return 0;
+		}
+		return lineEnd - lineStart >= 2 && data[lineEnd - 2] == '\r' ? 2 : 1;
+	}
+
+	/**
+	 * Liest die nächste Zeile bzw. das nächste Stück einer langen Zeile in den Puffer.
+	 *
+	 * @return {@code false} am Ende der Mail.
+	 */
+	private boolean readLine() throws IOException {
+		continued = !lineComplete;
+		int scan = pos;
+		while( true ) {
+			for( int i = scan; i < limit; i++ ) {
+				if( data[i] == '\n' ) {
+					setLine(pos, i + 1, true);
+					return true;
+				}
+			}
+			if( eof || (pos == 0 && limit == data.length) ) {
+				if( pos == limit ) {
+					return false;
+				}
+				// Last line without line break or line longer than the buffer
+				setLine(pos, limit, false);
+				return true;
+			}
+			scan = limit - pos;
+			fill();
+		}
+	}
+
+	private void setLine( int start, int end, boolean complete ) {
+		lineStart = start;
+		lineEnd = end;
+		lineComplete = complete;
+		pos = end;
+	}
+
+	/**
+	 * Verschiebt den Rest im Puffer an den Anfang und liest aus dem Kanal nach.
+	 */
+	private void fill() throws IOException {
+		if( pos > 0 ) {
+			System.arraycopy(data, pos, data, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		buffer.limit(data.length).position(limit);
+		int n = channel.read(buffer);
+		if( n < 0 ) {
+			eof = true;
+		} else {
+			limit += n;
+		}
+	}
+
+	private void skipByteOrderMark() throws IOException {
+		while( limit < 3 && !eof ) {
+			fill();
+		}
+		if( limit >= 3 && data[0] == (byte) 0xEF && data[1] == (byte) 0xBB && data[2] == (byte) 0xBF ) {
+			pos = 3;
+		}
+	}
+
+	private void appendField( int start, int length ) {
+		if( fieldLength + length > field.length ) {
+			field = Arrays.copyOf(field, Math.max(field.length * 2, fieldLength + length));
+		}
+		System.arraycopy(data, start, field, fieldLength, length);
+		fieldLength += length;
+	}
+
+	private void addField( MimeHeaders headers ) {
+		if( fieldLength > 0 ) {
+			headers.add(new String(field, 0, fieldLength, StandardCharsets.UTF_8));
+			fieldLength = 0;
+		}
+	}
+
+}
@@ -73,11 +73,31 @@ public class SQLiteMaildrop implements Maildrop {
 
 	}
 
+	@Override
+	public MaildropSnapshot snapshot() throws MaildropException {
+		return MaildropSnapshot.of(List.of());
+	}
+
+	@Override
+	public void executeDelete( MaildropSnapshot snapshot ) throws MaildropException {
+
+	}
+
 	@Override
 	public void restoreDeleted() throws MaildropException {
 
 	}
 
+	@Override
+	public List<Mail> search( SearchQuery query ) throws MaildropException {
+		return null;
+	}
+
+	@Override
+	public boolean tryLock() throws MaildropException {
+		return true;
+	}
+
 	@Override
 	public void lock() throws MaildropException {
 
@@ -89,12 +109,12 @@ public class SQLiteMaildrop implements Maildrop {
 	}
 
 	@Override
-	public boolean isLocked() {
-		return false;
+	public void createMail( String content ) throws MaildropException {
+
 	}
 
 	@Override
-	public void createMail( String content ) throws MaildropException {
+	public void createMail( SpooledMessage message ) throws MaildropException {
 
 	}
 
@@ -0,0 +1,1179 @@
+package schule.ngb.carrot.maildrop;
+
+import schule.ngb.carrot.events.MaildropEvent;
+import schule.ngb.carrot.events.MaildropListener;
+import schule.ngb.carrot.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.Normalizer;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Volltextindex über die Mails eines Maildrops.
+ * <p>
+ * Indiziert werden die Header {@code From}, {@code To}, {@code Cc} und {@code Subject}, das Datum
+ * aus dem Header {@code Date} sowie der dekodierte Text aller Teile vom Typ {@code text/*}. Texte
+ * werden in Wörter zerlegt, die klein und ohne diakritische Zeichen gespeichert werden. Gesucht
+ * wird nach Wortanfängen, siehe {@link SearchQuery}.
+ * <p>
+ * Der Index liegt im Ordner {@value #INDEX_DIR} im Maildrop. Jede Mail erhält eine interne
+ * Nummer, die nicht wiederverwendet wird. Neue Mails werden in unveränderlichen Segmenten
+ * gespeichert, die je Wort eine aufsteigende Liste der Nummern enthalten (Differenzen als Varint).
+ * Gelöschte Mails werden nur in der Datei {@value #DELETED_FILE} vermerkt. Gibt es mehr als
+ * {@value #MAX_SEGMENTS} Segmente, werden die jüngeren und kleineren zusammengeführt und
+ * gelöschte Mails dabei entfernt. Ältere, große Segmente werden erst neu geschrieben, wenn die
+ * jüngeren ähnlich groß sind oder in ihnen mehr Mails gelöscht als vorhanden sind.
+ * <p>
+ * Von einem Segment werden nur die Liste der Mails und das Wörterbuch im Speicher gehalten, die
+ * Listen der Nummern werden bei einer Suche aus der Datei gelesen. Im Wörterbuch wird über
+ * jedes {@value #SPARSE_INTERVAL}. Wort binär gesucht.
+ * <p>
+ * Zustellungen und Löschungen erfährt der Index über die {@link MaildropEvents}, sobald er mit
+ * {@link #subscribe()} angemeldet ist. Sie werden asynchron in einem gemeinsamen Thread
+ * eingearbeitet. Vor jeder Suche wird der
+ * Index außerdem mit den vorhandenen Mails abgeglichen. So werden auch Mails gefunden, die auf
+ * anderem Weg in den Maildrop gelangt sind, und ein fehlender oder beschädigter Index wird neu
+ * aufgebaut.
+ */
+public final class SearchIndex {
+
+	private static final Log LOG = Log.getLogger(SearchIndex.class);
+
+
+	public static final String INDEX_DIR = ".search";
+
+	public static final String DELETED_FILE = "deleted";
+
+	/**
+	 * Anzahl Segmente, ab der zusammengeführt wird.
+	 */
+	public static final int MAX_SEGMENTS = 8;
+
+	/**
+	 * Ein Segment wird mit jüngeren nur zusammengeführt, wenn es höchstens so viel mal größer ist
+	 * als diese zusammen.
+	 */
+	public static final int MERGE_RATIO = 2;
+
+	/**
+	 * Maximale Anzahl Mails in einem neuen Segment.
+	 */
+	public static final int SEGMENT_SIZE = 1000;
+
+	/**
+	 * Längere Wörter werden gekürzt.
+	 */
+	public static final int MAX_TERM_LENGTH = 32;
+
+	/**
+	 * Datum von Mails ohne (lesbaren) Header {@code Date}.
+	 */
+	static final long NO_DATE = Long.MIN_VALUE;
+
+	private static final int SPARSE_INTERVAL = 32;
+
+	private static final int MAGIC = 0x43534931;
+
+	private static final String SEGMENT_PREFIX = "seg", SEGMENT_EXTENSION = ".idx";
+
+	private static final ConcurrentMap<Path, SearchIndex> INDEXES = new ConcurrentHashMap<>();
+
+	/**
+	 * Thread, der Zustellungen und Löschungen einarbeitet, damit die Zustellung nicht warten muss.
+	 */
+	private static final ExecutorService INDEXER = Executors.newSingleThreadExecutor(( r ) -> {
+		Thread t = new Thread(r, "search-indexer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private static final Pattern ENCODED_WORD = Pattern.compile("=\\?([^?]+)\\?([bBqQ])\\?([^?]*)\\?=");
+
+	private static final Pattern HTML_SKIP = Pattern.compile("<(script|style)\\b.*?</\\1\\s*>", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+	private static final Pattern HTML_TAG = Pattern.compile("<[^>]*>");
+
+	private static final Pattern HTML_ENTITY = Pattern.compile("&(#x?[0-9a-fA-F]+|[a-zA-Z]+);");
+
+
+	/**
+	 * Meldet Zustellungen und Löschungen an den Index des jeweiligen Maildrops.
+	 */
+	private static final MaildropListener LISTENER = new MaildropListener() {
+		@Override
+		public void mailDelivered( MaildropEvent e ) {
+			forRoot(e.maildrop).add(e.file);
+		}
+
+		@Override
+		public void mailExpunged( MaildropEvent e ) {
+			forRoot(e.maildrop).remove(e.mailId);
+		}
+	};
+
+
+	/**
+	 * Liefert den Index eines Maildrops. Alle Instanzen eines Maildrops teilen sich einen Index,
+	 * der beim ersten Zugriff geladen wird.
+	 *
+	 * @param maildrop Der Maildrop.
+	 * @return Der Index.
+	 */
+	public static SearchIndex forMaildrop( FilesystemMaildrop maildrop ) {
+		return forRoot(maildrop.getRoot());
+	}
+
+	private static SearchIndex forRoot( Path root ) {
+		return INDEXES.computeIfAbsent(root, ( r ) -> new SearchIndex(r.resolve(INDEX_DIR)));
+	}
+
+	/**
+	 * Meldet die Indizes bei den {@link MaildropEvents} an. Neue und gelöschte Mails werden dann
+	 * sofort eingearbeitet. Sonst wird ein Index erst bei der nächsten Suche abgeglichen.
+	 */
+	public static void subscribe() {
+		MaildropEvents.subscribeAll(LISTENER);
+	}
+
+	public static void unsubscribe() {
+		MaildropEvents.unsubscribeAll(LISTENER);
+	}
+
+	/**
+	 * Zerlegt einen Text in Wörter, wie sie im Index gespeichert werden.
+	 *
+	 * @param text Der Text.
+	 * @return Die Wörter.
+	 */
+	static List<String> tokenize( String text ) {
+		List<String> words = new ArrayList<>();
+		tokenize(text, words::add);
+		return words;
+	}
+
+	private static void tokenize( String text, Consumer<String> words ) {
+		String normalized = Normalizer.normalize(text, Normalizer.Form.NFD);
+		StringBuilder word = new StringBuilder(MAX_TERM_LENGTH);
+		for( int i = 0; i < normalized.length(); i++ ) {
+			char ch = normalized.charAt(i);
+			if( Character.isLetterOrDigit(ch) ) {
+				if( word.length() < MAX_TERM_LENGTH ) {
+					word.append(Character.toLowerCase(ch));
+				}
+			} else if( Character.getType(ch) != Character.NON_SPACING_MARK && word.length() > 0 ) {
+				words.accept(word.toString());
+				word.setLength(0);
+			}
+		}
+		if( word.length() > 0 ) {
+			words.accept(word.toString());
+		}
+	}
+
+
+	/**
+	 * Ein unveränderliches Segment des Index.
+	 * <p>
+	 * Aufbau der Datei: {@code MAGIC}, nächste freie Nummer, Anzahl Mails, je Mail Nummer, Datum
+	 * und ID; danach die Listen der Nummern, dann das Wörterbuch mit je Wort Länge, UTF-8-Bytes,
+	 * Position und Länge der Liste (als Varint) und zuletzt Position des Wörterbuchs und Anzahl
+	 * Wörter.
+	 */
+	private static final class Segment implements Closeable {
+
+		private final Path file;
+
+		private final long number;
+
+		private final int nextDocId;
+
+		private final int[] docIds;
+
+		private final long[] dates;
+
+		private final String[] mailIds;
+
+		private final byte[] dictionary;
+
+		private final String[] sparseTerms;
+
+		private final int[] sparsePositions;
+
+		private final FileChannel channel;
+
+		private Segment( Path file, long number ) throws IOException {
+			this.file = file;
+			this.number = number;
+			this.channel = FileChannel.open(file, StandardOpenOption.READ);
+			try {
+				long size = channel.size();
+				ByteBuffer trailer = read(size - 12, 12);
+				long dictOffset = trailer.getLong();
+				int termCount = trailer.getInt();
+
+				// The stream must not be closed, it would close the channel
+				DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+				if( in.readInt() != MAGIC ) {
+					throw new IOException("not a search index segment");
+				}
+				nextDocId = in.readInt();
+				int n = in.readInt();
+				docIds = new int[n];
+				dates = new long[n];
+				mailIds = new String[n];
+				for( int i = 0; i < n; i++ ) {
+					docIds[i] = in.readInt();
+					dates[i] = in.readLong();
+					mailIds[i] = in.readUTF();
+				}
+
+				dictionary = read(dictOffset, (int) (size - 12 - dictOffset)).array();
+				int sparse = (termCount + SPARSE_INTERVAL - 1) / SPARSE_INTERVAL;
+				sparseTerms = new String[sparse];
+				sparsePositions = new int[sparse];
+				int[] pos = {0};
+				for( int i = 0; i < termCount; i++ ) {
+					if( i % SPARSE_INTERVAL == 0 ) {
+						sparsePositions[i / SPARSE_INTERVAL] = pos[0];
+						sparseTerms[i / SPARSE_INTERVAL] = readTerm(pos);
+					} else {
+						int length = (int) readVarint(dictionary, pos);
+						pos[0] += length;
+					}
+					readVarint(dictionary, pos);
+					readVarint(dictionary, pos);
+				}
+			} catch( IOException | RuntimeException ex ) {
+				channel.close();
+				throw ex instanceof IOException ? (IOException) ex : new IOException(ex);
+			}
+		}
+
+		/**
+		 * Fügt die Nummern aller Mails mit einem Wort, das mit {@code prefix} beginnt, zu
+		 * {@code result} hinzu.
+		 */
+		private void collect( String prefix, BitSet result ) throws IOException {
+			int i = Arrays.binarySearch(sparseTerms, prefix);
+			if( i < 0 ) {
+				i = -i - 2;
+			}
+			int[] pos = {i < 0 ? 0 : sparsePositions[i]};
+			while( pos[0] < dictionary.length ) {
+				String term = readTerm(pos);
+				long offset = readVarint(dictionary, pos);
+				int length = (int) readVarint(dictionary, pos);
+				if( term.startsWith(prefix) ) {
+					readPostings(offset, length, result::set);
+				} else if( term.compareTo(prefix) > 0 ) {
+					break;
+				}
+			}
+		}
+
+		private void readPostings( long offset, int length, IntConsumer ids ) throws IOException {
+			byte[] data = read(offset, length).array();
+			int[] pos = {0};
+			int id = 0;
+			while( pos[0] < data.length ) {
+				id += (int) readVarint(data, pos);
+				ids.accept(id);
+			}
+		}
+
+		private String readTerm( int[] pos ) {
+			int length = (int) readVarint(dictionary, pos);
+			String term = new String(dictionary, pos[0], length, StandardCharsets.UTF_8);
+			pos[0] += length;
+			return term;
+		}
+
+		private ByteBuffer read( long position, int length ) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			while( buffer.hasRemaining() ) {
+				if( channel.read(buffer, position + buffer.position()) < 0 ) {
+					throw new IOException("unexpected end of segment " + file.getFileName());
+				}
+			}
+			buffer.flip();
+			return buffer;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+
+	}
+
+	/**
+	 * Position beim Zusammenführen der Wörterbücher mehrerer Segmente.
+	 */
+	private static final class Cursor implements Comparable<Cursor> {
+
+		private final Segment segment;
+
+		private final int[] pos = {0};
+
+		private String term;
+
+		private long offset;
+
+		private int length;
+
+		private Cursor( Segment segment ) {
+			this.segment = segment;
+		}
+
+		private boolean next() {
+			if( pos[0] >= segment.dictionary.length ) {
+				return false;
+			}
+			term = segment.readTerm(pos);
+			offset = readVarint(segment.dictionary, pos);
+			length = (int) readVarint(segment.dictionary, pos);
+			return true;
+		}
+
+		@Override
+		public int compareTo( Cursor o ) {
+			int c = term.compareTo(o.term);
+			return c != 0 ? c : Long.compare(segment.number, o.segment.number);
+		}
+
+	}
+
+	/**
+	 * Schreibt ein neues Segment. Es wird erst mit {@link #commit()} unter seinem Namen sichtbar.
+	 */
+	private static final class SegmentWriter implements Closeable {
+
+		private final Path tmp, file;
+
+		private final DataOutputStream out;
+
+		private final ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+
+		private final ByteArrayOutputStream postings = new ByteArrayOutputStream();
+
+		private int termCount = 0;
+
+		private SegmentWriter( Path file, int nextDocId, int docCount ) throws IOException {
+			this.file = file;
+			this.tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 65536));
+			out.writeInt(MAGIC);
+			out.writeInt(nextDocId);
+			out.writeInt(docCount);
+		}
+
+		private void document( int docId, long date, String mailId ) throws IOException {
+			out.writeInt(docId);
+			out.writeLong(date);
+			out.writeUTF(mailId);
+		}
+
+		/**
+		 * Schreibt die Nummern eines Wortes. Wörter müssen sortiert übergeben werden.
+		 */
+		private void term( String term, IntList ids ) throws IOException {
+			long offset = out.size();
+			int last = 0;
+			postings.reset();
+			for( int i = 0; i < ids.size; i++ ) {
+				writeVarint(postings, ids.values[i] - last);
+				last = ids.values[i];
+			}
+			postings.writeTo(out);
+			byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+			writeVarint(dictionary, bytes.length);
+			dictionary.write(bytes, 0, bytes.length);
+			writeVarint(dictionary, offset);
+			writeVarint(dictionary, postings.size());
+			termCount += 1;
+		}
+
+		private void commit() throws IOException {
+			long dictOffset = out.size();
+			dictionary.writeTo(out);
+			out.writeLong(dictOffset);
+			out.writeInt(termCount);
+			out.close();
+			Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+			Files.deleteIfExists(tmp);
+		}
+
+	}
+
+	private interface IntConsumer {
+
+		void accept( int value ) throws IOException;
+
+	}
+
+	private static final class IntList {
+
+		private int[] values = new int[4];
+
+		private int size = 0;
+
+		private void add( int value ) {
+			if( size == values.length ) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		/**
+		 * Sortiert die Werte und entfernt doppelte.
+		 */
+		private void sortUnique() {
+			Arrays.sort(values, 0, size);
+			int n = 0;
+			for( int i = 0; i < size; i++ ) {
+				if( n == 0 || values[n - 1] != values[i] ) {
+					values[n++] = values[i];
+				}
+			}
+			size = n;
+		}
+
+	}
+
+	/**
+	 * Die indizierten Daten einer Mail.
+	 */
+	private static final class Document implements MimeParser.Handler {
+
+		private final String mailId;
+
+		private int docId;
+
+		private long date = NO_DATE;
+
+		private final Set<String> terms = new HashSet<>();
+
+		/**
+		 * Header des aktuellen Teils vom Typ {@code text/*} oder {@code null}.
+		 */
+		private MimeHeaders text;
+
+		private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+		private Document( String mailId ) {
+			this.mailId = mailId;
+		}
+
+		private static Document read( Path file ) throws IOException {
+			Document doc = new Document(file.getFileName().toString());
+			try( FileChannel channel = FileChannel.open(file) ) {
+				new MimeParser(channel).parse(doc);
+			}
+			return doc;
+		}
+
+		@Override
+		public void startPart( int depth, MimeHeaders headers ) {
+			if( depth == 0 ) {
+				addTerms(SearchQuery.Field.FROM, decodeWords(String.join(", ", headers.getAll("from"))));
+				addTerms(SearchQuery.Field.TO, decodeWords(String.join(", ", headers.getAll("to"))));
+				addTerms(SearchQuery.Field.CC, decodeWords(String.join(", ", headers.getAll("cc"))));
+				addTerms(SearchQuery.Field.SUBJECT, decodeWords(headers.get("subject")));
+				date = parseDate(headers.get("date"));
+			}
+			text = headers.getMimeType().startsWith("text/") ? headers : null;
+			content.reset();
+		}
+
+		@Override
+		public void body( byte[] data, int offset, int length ) {
+			if( text != null ) {
+				content.write(data, offset, length);
+			}
+		}
+
+		@Override
+		public void endPart( int depth ) {
+			if( text == null ) {
+				return;
+			}
+			byte[] body = decodeTransfer(text.get("content-transfer-encoding"), content.toByteArray());
+			String value = new String(body, charset(text.getParameter("content-type", "charset")));
+			if( text.getMimeType().equals("text/html") ) {
+				value = stripHtml(value);
+			}
+			addTerms(SearchQuery.Field.BODY, value);
+			text = null;
+			content.reset();
+		}
+
+		private void addTerms( SearchQuery.Field field, String text ) {
+			if( text != null ) {
+				tokenize(text, ( word ) -> terms.add(field.code + word));
+			}
+		}
+
+	}
+
+
+	private final Path dir;
+
+	private boolean loaded = false;
+
+	/**
+	 * Segmente nach Nummer sortiert. Die Nummern der Mails steigen mit den Segmenten.
+	 */
+	private final List<Segment> segments = new ArrayList<>();
+
+	private long nextSegment = 1;
+
+	private int nextDocId = 0;
+
+	/**
+	 * Interne Nummern der vorhandenen Mails nach ID.
+	 */
+	private final Map<String, Integer> docs = new HashMap<>();
+
+	private final BitSet deleted = new BitSet();
+
+	/**
+	 * Gemeldete Zustellungen ({@link Path}) und Löschungen ({@link String}) in Reihenfolge.
+	 */
+	private final Queue<Object> pending = new ConcurrentLinkedQueue<>();
+
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+	private SearchIndex( Path dir ) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Meldet eine zugestellte Mail.
+	 *
+	 * @param file Die Datei der Mail.
+	 */
+	public void add( Path file ) {
+		pending.add(file);
+		schedule();
+	}
+
+	/**
+	 * Meldet eine gelöschte Mail.
+	 *
+	 * @param mailId Die ID (der Dateiname) der Mail.
+	 */
+	public void remove( String mailId ) {
+		pending.add(mailId);
+		schedule();
+	}
+
+	/**
+	 * Sucht Mails. Vorher wird der Index mit den übergebenen Mails abgeglichen.
+	 *
+	 * @param query Die Anfrage.
+	 * @param mails Alle Mails des Maildrops.
+	 * @return Die IDs der passenden Mails.
+	 * @throws MaildropException Falls der Index nicht gelesen oder geschrieben werden kann.
+	 */
+	public synchronized Set<String> search( SearchQuery query, Collection<Mail> mails ) throws MaildropException {
+		try {
+			load();
+			applyPending();
+			sync(mails);
+
+			BitSet result = query.evaluate(this);
+			result.andNot(deleted);
+			Set<String> ids = new HashSet<>();
+			for( Segment segment : segments ) {
+				for( int i = 0; i < segment.docIds.length; i++ ) {
+					if( result.get(segment.docIds[i]) ) {
+						ids.add(segment.mailIds[i]);
+					}
+				}
+			}
+			return ids;
+		} catch( IOException ex ) {
+			throw new MaildropException(ex);
+		}
+	}
+
+	/**
+	 * Anzahl der indizierten Mails.
+	 *
+	 * @return Anzahl Mails.
+	 */
+	public synchronized int size() {
+		return docs.size();
+	}
+
+	BitSet matchAll( char field, List<String> words ) throws IOException {
+		if( words.isEmpty() ) {
+			return matchAllDocuments();
+		}
+		BitSet result = null;
+		for( String word : words ) {
+			BitSet match = new BitSet();
+			for( Segment segment : segments ) {
+				segment.collect(field + word, match);
+			}
+			if( result == null ) {
+				result = match;
+			} else {
+				result.and(match);
+			}
+		}
+		return result;
+	}
+
+	BitSet matchDate( long from, long to ) {
+		BitSet result = new BitSet();
+		for( Segment segment : segments ) {
+			for( int i = 0; i < segment.docIds.length; i++ ) {
+				if( segment.dates[i] >= from && segment.dates[i] <= to ) {
+					result.set(segment.docIds[i]);
+				}
+			}
+		}
+		return result;
+	}
+
+	BitSet matchAllDocuments() {
+		BitSet result = new BitSet();
+		for( Segment segment : segments ) {
+			for( int id : segment.docIds ) {
+				result.set(id);
+			}
+		}
+		return result;
+	}
+
+	private void schedule() {
+		if( scheduled.compareAndSet(false, true) ) {
+			INDEXER.execute(() -> {
+				scheduled.set(false);
+				synchronized( this ) {
+					try {
+						load();
+						applyPending();
+					} catch( IOException ex ) {
+						LOG.error(ex, "Failed to update search index %s", dir);
+					}
+				}
+			});
+		}
+	}
+
+	private void load() throws IOException {
+		if( loaded ) {
+			return;
+		}
+		loaded = true;
+		Files.createDirectories(dir);
+
+		List<Path> files = new ArrayList<>();
+		try( Stream<Path> list = Files.list(dir) ) {
+			list.forEach(files::add);
+		}
+		files.sort(null);
+		for( Path file : files ) {
+			String name = file.getFileName().toString();
+			if( name.endsWith(".tmp") ) {
+				Files.delete(file);
+			} else if( name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_EXTENSION) ) {
+				long number = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXTENSION.length()));
+				try {
+					Segment segment = new Segment(file, number);
+					segments.add(segment);
+					nextDocId = Math.max(nextDocId, segment.nextDocId);
+				} catch( IOException ex ) {
+					// Mails of this segment are indexed again by the next search
+					LOG.warn("Removing unreadable search index segment %s: %s", file, ex.getMessage());
+					Files.delete(file);
+				}
+				nextSegment = Math.max(nextSegment, number + 1);
+			}
+		}
+
+		Path deletedFile = dir.resolve(DELETED_FILE);
+		if( Files.exists(deletedFile) ) {
+			for( String line : Files.readAllLines(deletedFile) ) {
+				if( !line.isBlank() ) {
+					deleted.set(Integer.parseInt(line.trim()));
+				}
+			}
+		}
+		for( Segment segment : segments ) {
+			for( int i = 0; i < segment.docIds.length; i++ ) {
+				if( !deleted.get(segment.docIds[i]) ) {
+					docs.put(segment.mailIds[i], segment.docIds[i]);
+				}
+			}
+		}
+		LOG.debug("Loaded search index %s with %d mails in %d segments", dir, docs.size(), segments.size());
+	}
+
+	private void applyPending() throws IOException {
+		List<Path> added = new ArrayList<>();
+		List<String> removed = new ArrayList<>();
+		Object item;
+		while( (item = pending.poll()) != null ) {
+			if( item instanceof Path ) {
+				added.add((Path) item);
+			} else {
+				// Keep the order of deliveries and deletions
+				index(added);
+				added.clear();
+				removed.add((String) item);
+			}
+		}
+		index(added);
+		delete(removed);
+		maybeMerge();
+	}
+
+	/**
+	 * Gleicht den Index mit den vorhandenen Mails ab.
+	 */
+	private void sync( Collection<Mail> mails ) throws IOException {
+		List<Path> missing = new ArrayList<>();
+		int known = 0;
+		for( Mail mail : mails ) {
+			if( docs.containsKey(mail.getId()) ) {
+				known += 1;
+			} else {
+				missing.add(mail.getFile());
+			}
+		}
+		List<String> removed = new ArrayList<>();
+		if( known < docs.size() ) {
+			Set<String> present = new HashSet<>(mails.size() * 2);
+			for( Mail mail : mails ) {
+				present.add(mail.getId());
+			}
+			for( String id : docs.keySet() ) {
+				if( !present.contains(id) ) {
+					removed.add(id);
+				}
+			}
+		}
+		if( !missing.isEmpty() || !removed.isEmpty() ) {
+			LOG.debug("Search index %s: %d mails to add, %d to remove", dir, missing.size(), removed.size());
+		}
+		index(missing);
+		delete(removed);
+		maybeMerge();
+	}
+
+	/**
+	 * Indiziert Mails und speichert sie in neuen Segmenten.
+	 */
+	private void index( List<Path> files ) throws IOException {
+		List<Document> batch = new ArrayList<>(Math.min(files.size(), SEGMENT_SIZE));
+		for( Path file : files ) {
+			if( docs.containsKey(file.getFileName().toString()) ) {
+				continue;
+			}
+			try {
+				batch.add(Document.read(file));
+			} catch( IOException ex ) {
+				// Deleted in the meantime
+				continue;
+			}
+			if( batch.size() == SEGMENT_SIZE ) {
+				writeSegment(batch);
+				batch.clear();
+			}
+		}
+		if( !batch.isEmpty() ) {
+			writeSegment(batch);
+		}
+	}
+
+	private void writeSegment( List<Document> batch ) throws IOException {
+		int firstDocId = nextDocId;
+		Map<String, IntList> terms = new HashMap<>();
+		for( Document doc : batch ) {
+			doc.docId = nextDocId++;
+			for( String term : doc.terms ) {
+				terms.computeIfAbsent(term, ( t ) -> new IntList()).add(doc.docId);
+			}
+		}
+		String[] sorted = terms.keySet().toArray(new String[0]);
+		Arrays.sort(sorted);
+
+		long number = nextSegment++;
+		Path file = dir.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_EXTENSION));
+		try( SegmentWriter writer = new SegmentWriter(file, nextDocId, batch.size()) ) {
+			for( Document doc : batch ) {
+				writer.document(doc.docId, doc.date, doc.mailId);
+			}
+			for( String term : sorted ) {
+				writer.term(term, terms.get(term));
+			}
+			writer.commit();
+		} catch( IOException ex ) {
+			nextDocId = firstDocId;
+			throw ex;
+		}
+
+		segments.add(new Segment(file, number));
+		for( Document doc : batch ) {
+			docs.put(doc.mailId, doc.docId);
+		}
+	}
+
+	private void delete( List<String> mailIds ) throws IOException {
+		StringBuilder lines = new StringBuilder();
+		for( String mailId : mailIds ) {
+			Integer docId = docs.remove(mailId);
+			if( docId != null ) {
+				deleted.set(docId);
+				lines.append(docId).append('\n');
+			}
+		}
+		if( lines.length() > 0 ) {
+			Files.writeString(dir.resolve(DELETED_FILE), lines, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		}
+	}
+
+	/**
+	 * Führt die jüngsten Segmente zusammen, falls es mehr als {@value #MAX_SEGMENTS} gibt oder in
+	 * einem Segment mehr Mails gelöscht als vorhanden sind.
+	 * <p>
+	 * Zusammengeführt wird immer das Ende der Liste, damit die Nummern der Mails weiter mit den
+	 * Segmenten steigen. Ein älteres Segment kommt nur hinzu, wenn es höchstens
+	 * {@value #MERGE_RATIO}-mal so viele Mails enthält wie die jüngeren zusammen. So wird jede Mail
+	 * nur logarithmisch oft neu geschrieben und das große Segment mit dem Bestand bleibt
+	 * unverändert, bis die neuen Mails ähnlich groß sind oder die gelöschten überwiegen.
+	 */
+	private void maybeMerge() throws IOException {
+		int n = segments.size();
+		int[] live = new int[n];
+		int first = n;
+		for( int s = 0; s < n; s++ ) {
+			Segment segment = segments.get(s);
+			for( int docId : segment.docIds ) {
+				if( !deleted.get(docId) ) {
+					live[s] += 1;
+				}
+			}
+			if( first == n && segment.docIds.length - live[s] > live[s] ) {
+				first = s;
+			}
+		}
+		if( n > MAX_SEGMENTS ) {
+			int start = n - 1;
+			long sum = live[start];
+			while( start > 0 && live[start - 1] <= MERGE_RATIO * sum ) {
+				start -= 1;
+				sum += live[start];
+			}
+			first = Math.min(first, Math.min(start, n - 2));
+		}
+		if( first < n ) {
+			merge(segments.subList(first, n));
+		}
+	}
+
+	/**
+	 * Ersetzt die Segmente durch ein neues ohne die gelöschten Mails.
+	 */
+	private void merge( List<Segment> run ) throws IOException {
+		long start = System.nanoTime();
+		BitSet merged = new BitSet();
+		BitSet written = new BitSet();
+		for( Segment segment : run ) {
+			for( int i = 0; i < segment.docIds.length; i++ ) {
+				int docId = segment.docIds[i];
+				merged.set(docId);
+				Integer live = docs.get(segment.mailIds[i]);
+				if( live != null && live == docId ) {
+					written.set(docId);
+				}
+			}
+		}
+
+		Segment result = null;
+		if( !written.isEmpty() ) {
+			long number = nextSegment++;
+			Path file = dir.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_EXTENSION));
+			try( SegmentWriter writer = new SegmentWriter(file, nextDocId, written.cardinality()) ) {
+				BitSet done = new BitSet();
+				for( Segment segment : run ) {
+					for( int i = 0; i < segment.docIds.length; i++ ) {
+						int docId = segment.docIds[i];
+						if( written.get(docId) && !done.get(docId) ) {
+							writer.document(docId, segment.dates[i], segment.mailIds[i]);
+							done.set(docId);
+						}
+					}
+				}
+
+				PriorityQueue<Cursor> cursors = new PriorityQueue<>();
+				for( Segment segment : run ) {
+					Cursor cursor = new Cursor(segment);
+					if( cursor.next() ) {
+						cursors.add(cursor);
+					}
+				}
+				IntList ids = new IntList();
+				while( !cursors.isEmpty() ) {
+					String term = cursors.peek().term;
+					ids.size = 0;
+					boolean sorted = true;
+					while( !cursors.isEmpty() && cursors.peek().term.equals(term) ) {
+						Cursor cursor = cursors.poll();
+						int before = ids.size;
+						cursor.segment.readPostings(cursor.offset, cursor.length, ( id ) -> {
+							if( written.get(id) ) {
+								ids.add(id);
+							}
+						});
+						if( before > 0 && ids.size > before && ids.values[before] <= ids.values[before - 1] ) {
+							sorted = false;
+						}
+						if( cursor.next() ) {
+							cursors.add(cursor);
+						}
+					}
+					if( !sorted ) {
+						ids.sortUnique();
+					}
+					if( ids.size > 0 ) {
+						writer.term(term, ids);
+					}
+				}
+				writer.commit();
+			}
+			result = new Segment(file, number);
+		}
+
+		int count = run.size();
+		for( Iterator<Segment> it = run.iterator(); it.hasNext(); ) {
+			Segment segment = it.next();
+			segment.close();
+			Files.delete(segment.file);
+			it.remove();
+		}
+		if( result != null ) {
+			segments.add(result);
+		}
+
+		// Keep only deletions of mails in the remaining segments
+		deleted.andNot(merged);
+		Path deletedFile = dir.resolve(DELETED_FILE);
+		if( deleted.isEmpty() ) {
+			Files.deleteIfExists(deletedFile);
+		} else {
+			StringBuilder lines = new StringBuilder();
+			deleted.stream().forEach(( docId ) -> lines.append(docId).append('\n'));
+			Files.writeString(deletedFile, lines);
+		}
+		LOG.debug("Merged %d segments of search index %s: %d mails in %d ms", count, dir, written.cardinality(), (System.nanoTime() - start) / 1000000);
+	}
+
+
+	private static void writeVarint( ByteArrayOutputStream out, long value ) {
+		while( (value & ~0x7FL) != 0 ) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static long readVarint( byte[] data, int[] pos ) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = data[pos[0]++];
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while( (b & 0x80) != 0 );
+		return value;
+	}
+
+	private static Charset charset( String name ) {
+		if( name != null ) {
+			try {
+				return Charset.forName(name);
+			} catch( IllegalArgumentException ignored ) {
+			}
+		}
+		return StandardCharsets.UTF_8;
+	}
+
+	private static byte[] decodeTransfer( String encoding, byte[] raw ) {
+		if( encoding == null ) {
+			return raw;
+		}
+		encoding = encoding.trim().toLowerCase(Locale.ROOT);
+		if( encoding.equals("base64") ) {
+			try {
+				return Base64.getMimeDecoder().decode(raw);
+			} catch( IllegalArgumentException ex ) {
+				return new byte[0];
+			}
+		} else if( encoding.equals("quoted-printable") ) {
+			return decodeQuotedPrintable(raw, false);
+		}
+		return raw;
+	}
+
+	/**
+	 * Dekodiert Quoted-Printable (RFC 2045) bzw. das Q-Encoding von Headern (RFC 2047).
+	 */
+	private static byte[] decodeQuotedPrintable( byte[] data, boolean header ) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+		for( int i = 0; i < data.length; i++ ) {
+			byte b = data[i];
+			if( b == '=' ) {
+				if( i + 2 < data.length && Character.digit(data[i + 1], 16) >= 0 && Character.digit(data[i + 2], 16) >= 0 ) {
+					out.write(Character.digit(data[i + 1], 16) * 16 + Character.digit(data[i + 2], 16));
+					i += 2;
+				} else {
+					// Soft line break
+					int j = i + 1;
+					while( j < data.length && (data[j] == ' ' || data[j] == '\t' || data[j] == '\r') ) {
+						j += 1;
+					}
+					if( j < data.length && data[j] == '\n' ) {
+						i = j;
+					} else {
+						out.write(b);
+					}
+				}
+			} else if( header && b == '_' ) {
+				out.write(' ');
+			} else {
+				out.write(b);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Dekodiert Encoded Words (RFC 2047) in einem Header.
+	 */
+	private static String decodeWords( String value ) {
+		if( value == null || !value.contains("=?") ) {
+			return value;
+		}
+		StringBuilder result = new StringBuilder();
+		Matcher m = ENCODED_WORD.matcher(value);
+		int last = 0;
+		boolean lastEncoded = false;
+		while( m.find() ) {
+			String between = value.substring(last, m.start());
+			if( !lastEncoded || !between.isBlank() ) {
+				result.append(between);
+			}
+			byte[] bytes = m.group(3).getBytes(StandardCharsets.ISO_8859_1);
+			try {
+				bytes = m.group(2).equalsIgnoreCase("B") ? Base64.getDecoder().decode(bytes) : decodeQuotedPrintable(bytes, true);
+			} catch( IllegalArgumentException ignored ) {
+			}
+			result.append(new String(bytes, charset(m.group(1).split("\\*", 2)[0])));
+			last = m.end();
+			lastEncoded = true;
+		}
+		return result.append(value.substring(last)).toString();
+	}
+
+	/**
+	 * Liefert den Tag aus einem Header {@code Date} (RFC 5322) in der Zeitzone des Absenders.
+	 */
+	private static long parseDate( String value ) {
+		if( value == null ) {
+			return NO_DATE;
+		}
+		String date = value.replaceAll("\\([^)]*\\)", " ").replaceAll("\\s+", " ").trim();
+		try {
+			return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toLocalDate().toEpochDay();
+		} catch( DateTimeParseException ex ) {
+			return NO_DATE;
+		}
+	}
+
+	private static String stripHtml( String html ) {
+		String text = HTML_TAG.matcher(HTML_SKIP.matcher(html).replaceAll(" ")).replaceAll(" ");
+		Matcher m = HTML_ENTITY.matcher(text);
+		StringBuilder result = new StringBuilder(text.length());
+		while( m.find() ) {
+			String entity = m.group(1);
+			String replacement = " ";
+			if( entity.startsWith("#") ) {
+				try {
+					int cp = entity.startsWith("#x") || entity.startsWith("#X") ? Integer.parseInt(entity.substring(2), 16) : Integer.parseInt(entity.substring(1));
+					replacement = new String(Character.toChars(cp));
+				} catch( IllegalArgumentException ignored ) {
+				}
+			} else {
+				switch( entity.toLowerCase(Locale.ROOT) ) {
+					case "auml":
+						replacement = "ä";
+						break;
+					case "ouml":
+						replacement = "ö";
+						break;
+					case "uuml":
+						replacement = "ü";
+						break;
+					case "szlig":
+						replacement = "ß";
+						break;
+				}
+			}
+			m.appendReplacement(result, Matcher.quoteReplacement(replacement));
+		}
+		m.appendTail(result);
+		return result.toString();
+	}
+
+}
@@ -0,0 +1,172 @@
+package schule.ngb.carrot.maildrop;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Eine Suchanfrage an den {@link SearchIndex} eines Maildrops.
+ * <p>
+ * Anfragen werden über die statischen Methoden erstellt und können mit {@link #and(SearchQuery...)},
+ * {@link #or(SearchQuery, SearchQuery)} und {@link #not(SearchQuery)} kombiniert werden:
+ * <pre>
+ * SearchQuery q = SearchQuery.and(
+ *     SearchQuery.field(SearchQuery.Field.FROM, "neugebauer"),
+ *     SearchQuery.not(SearchQuery.text("pop3")),
+ *     SearchQuery.sentSince(LocalDate.of(2017, 9, 14))
+ * );
+ * List&lt;Mail&gt; mails = maildrop.search(q);
+ * </pre>
+ * Suchbegriffe werden wie der indizierte Text in Wörter zerlegt. Eine Mail passt, wenn jedes
+ * Wort der Anfrage der Anfang eines Wortes im Feld ist. Groß- und Kleinschreibung sowie
+ * diakritische Zeichen werden nicht unterschieden.
+ */
+public final class SearchQuery {
+
+	/**
+	 * Die indizierten Felder einer Mail.
+	 */
+	public enum Field {
+
+		FROM('f'), TO('t'), CC('c'), SUBJECT('s'), BODY('b');
+
+		/**
+		 * Präfix der Wörter dieses Feldes im Index.
+		 */
+		final char code;
+
+		Field( char code ) {
+			this.code = code;
+		}
+
+	}
+
+	private interface Evaluator {
+
+		BitSet evaluate( SearchIndex index ) throws IOException;
+
+	}
+
+
+	/**
+	 * Findet Mails, die alle Wörter in einem der Felder enthalten.
+	 *
+	 * @param words Die Suchbegriffe.
+	 * @return Die Anfrage.
+	 */
+	public static SearchQuery text( String words ) {
+		List<String> terms = SearchIndex.tokenize(words);
+		return new SearchQuery("TEXT " + words, ( index ) -> {
+			BitSet result = null;
+			for( Field field : Field.values() ) {
+				BitSet match = index.matchAll(field.code, terms);
+				if( result == null ) {
+					result = match;
+				} else {
+					result.or(match);
+				}
+			}
+			return result;
+		});
+	}
+
+	/**
+	 * Findet Mails, die alle Wörter im angegebenen Feld enthalten.
+	 *
+	 * @param field Das Feld.
+	 * @param words Die Suchbegriffe.
+	 * @return Die Anfrage.
+	 */
+	public static SearchQuery field( Field field, String words ) {
+		List<String> terms = SearchIndex.tokenize(words);
+		return new SearchQuery(field + " " + words, ( index ) -> index.matchAll(field.code, terms));
+	}
+
+	/**
+	 * Findet Mails, deren Header {@code Date} vor dem Tag liegt. Uhrzeit und Zeitzone werden wie
+	 * bei IMAP nicht berücksichtigt.
+	 *
+	 * @param date Der Tag.
+	 * @return Die Anfrage.
+	 */
+	public static SearchQuery sentBefore( LocalDate date ) {
+		return new SearchQuery("SENTBEFORE " + date, ( index ) -> index.matchDate(Long.MIN_VALUE + 1, date.toEpochDay() - 1));
+	}
+
+	public static SearchQuery sentOn( LocalDate date ) {
+		return new SearchQuery("SENTON " + date, ( index ) -> index.matchDate(date.toEpochDay(), date.toEpochDay()));
+	}
+
+	public static SearchQuery sentSince( LocalDate date ) {
+		return new SearchQuery("SENTSINCE " + date, ( index ) -> index.matchDate(date.toEpochDay(), Long.MAX_VALUE));
+	}
+
+	/**
+	 * Findet alle Mails.
+	 *
+	 * @return Die Anfrage.
+	 */
+	public static SearchQuery all() {
+		return new SearchQuery("ALL", SearchIndex::matchAllDocuments);
+	}
+
+	public static SearchQuery and( SearchQuery... queries ) {
+		return new SearchQuery(describe("AND", queries), ( index ) -> {
+			BitSet result = index.matchAllDocuments();
+			for( SearchQuery query : queries ) {
+				result.and(query.evaluate(index));
+			}
+			return result;
+		});
+	}
+
+	public static SearchQuery or( SearchQuery a, SearchQuery b ) {
+		return new SearchQuery(describe("OR", a, b), ( index ) -> {
+			BitSet result = a.evaluate(index);
+			result.or(b.evaluate(index));
+			return result;
+		});
+	}
+
+	public static SearchQuery not( SearchQuery query ) {
+		return new SearchQuery("NOT " + query, ( index ) -> {
+			BitSet result = index.matchAllDocuments();
+			result.andNot(query.evaluate(index));
+			return result;
+		});
+	}
+
+	private static String describe( String operator, SearchQuery... queries ) {
+		return Arrays.stream(queries).map(SearchQuery::toString)
+			.collect(Collectors.joining(" ", operator + " (", ")"));
+	}
+
+
+	private final String description;
+
+	private final Evaluator evaluator;
+
+	private SearchQuery( String description, Evaluator evaluator ) {
+		this.description = description;
+		this.evaluator = evaluator;
+	}
+
+	/**
+	 * Wertet die Anfrage aus.
+	 *
+	 * @return Die internen Nummern der passenden Mails. Die Menge kann auch gelöschte Mails
+	 * 	enthalten.
+	 */
+	BitSet evaluate( SearchIndex index ) throws IOException {
+		return evaluator.evaluate(index);
+	}
+
+	@Override
+	public String toString() {
+		return description;
+	}
+
+}
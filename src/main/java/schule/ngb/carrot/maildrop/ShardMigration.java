@@ -0,0 +1,84 @@
+package schule.ngb.carrot.maildrop;
+
+import org.ini4j.Ini;
+import schule.ngb.carrot.util.Log;
+import schule.ngb.carrot.util.Timer;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+
+/**
+ * Verteilt die Mails aller angegebenen Maildrops im laufenden Betrieb auf die eingestellte Anzahl
+ * an Shards ({@code maildrop_shards}).
+ * <p>
+ * Jeder Maildrop wird für die Dauer der Migration {@link FilesystemMaildrop#tryLock() gesperrt}.
+ * Maildrops, die gerade von einer Sitzung benutzt werden, werden übersprungen und später erneut
+ * versucht.
+ */
+public final class ShardMigration implements Runnable {
+
+	private static final Log LOG = Log.getLogger(ShardMigration.class);
+
+	/**
+	 * Wartezeit (in ms), bevor gesperrte Maildrops erneut versucht werden.
+	 */
+	private static final int RETRY_DELAY = 5000;
+
+
+	private final Ini config;
+
+	private final String maildrop;
+
+	private final Collection<String> users;
+
+	public ShardMigration( Ini config, String maildrop, Collection<String> users ) {
+		this.config = config;
+		this.maildrop = maildrop;
+		this.users = users;
+	}
+
+	@Override
+	public void run() {
+		Timer timer = new Timer().start();
+		Deque<String> pending = new ArrayDeque<>(users);
+		int total = pending.size(), done = 0, moved = 0;
+
+		while( !pending.isEmpty() && !Thread.currentThread().isInterrupted() ) {
+			Deque<String> locked = new ArrayDeque<>();
+
+			for( String user : pending ) {
+				try {
+					FilesystemMaildrop md = new FilesystemMaildrop(user, maildrop, config);
+					if( !md.tryLock() ) {
+						locked.add(user);
+						continue;
+					}
+					try {
+						moved += md.reshard();
+						done += 1;
+						LOG.debug("Resharded maildrop of user %s (%d of %d)", user, done, total);
+					} finally {
+						md.unlock();
+					}
+				} catch( MaildropException ex ) {
+					LOG.error(ex, "Failed to reshard maildrop of user %s", user);
+					done += 1;
+				}
+			}
+
+			pending = locked;
+			if( !pending.isEmpty() ) {
+				LOG.info("%d maildrops in use, retrying resharding in %ds", pending.size(), RETRY_DELAY / 1000);
+				try {
+					Thread.sleep(RETRY_DELAY);
+				} catch( InterruptedException ex ) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		LOG.info("Resharded %d maildrops (%d mails moved) in %.3fs", done, moved, timer.getSeconds());
+	}
+
+}
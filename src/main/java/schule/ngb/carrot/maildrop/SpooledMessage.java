@@ -0,0 +1,211 @@
+package schule.ngb.carrot.maildrop;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Puffer für den Inhalt einer eingehenden Nachricht.
+ * <p>
+ * Bis zu einer Größe von {@code threshold} Bytes wird die Nachricht im Speicher gehalten. Wird die
+ * Grenze überschritten, wird der Inhalt in eine Spool-Datei ausgelagert und alle weiteren Daten
+ * direkt in die Datei geschrieben. Liegt der Spool-Ordner im selben Dateisystem wie die Maildrops,
+ * kann die Nachricht bei der Zustellung per Hardlink abgelegt werden, statt sie neu zu schreiben.
+ * <p>
+ * Mit {@link #close()} wird die Spool-Datei gelöscht. Bereits zugestellte Kopien bleiben davon
+ * unberührt.
+ */
+public final class SpooledMessage implements Closeable {
+
+	private static final byte[] CRLF = {'\r', '\n'};
+
+
+	private final Path spoolDir;
+
+	private final int threshold;
+
+	private ByteArrayOutputStream buffer;
+
+	private OutputStream out;
+
+	private Path file;
+
+	private long size = 0;
+
+	/**
+	 * Erstellt eine neue, leere Nachricht.
+	 *
+	 * @param spoolDir Ordner für Spool-Dateien.
+	 * @param threshold Größe in Bytes, ab der die Nachricht ausgelagert wird. Bei einem Wert
+	 * 	kleiner oder gleich {@code 0} bleibt die Nachricht immer im Speicher.
+	 */
+	public SpooledMessage( Path spoolDir, int threshold ) {
+		this.spoolDir = spoolDir;
+		this.threshold = threshold;
+		this.buffer = new ByteArrayOutputStream(threshold > 0 ? Math.min(threshold, 8192) : 8192);
+		this.out = buffer;
+	}
+
+	/**
+	 * Erstellt eine Nachricht, die vollständig im Speicher gehalten wird.
+	 *
+	 * @param content Inhalt der Nachricht.
+	 */
+	public SpooledMessage( String content ) {
+		this(null, 0);
+		byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+		buffer.write(bytes, 0, bytes.length);
+		size = bytes.length;
+	}
+
+	/**
+	 * Erstellt eine abgeschlossene Nachricht aus einer vorhandenen Datei. Die Datei wird wie eine
+	 * Spool-Datei behandelt und mit {@link #close()} gelöscht.
+	 *
+	 * @param file Pfad zur Datei mit dem Inhalt der Nachricht.
+	 * @return Die Nachricht.
+	 * @throws IOException Falls die Datei nicht gelesen werden kann.
+	 */
+	public static SpooledMessage fromFile( Path file ) throws IOException {
+		SpooledMessage message = new SpooledMessage(file.getParent(), 0);
+		message.size = Files.size(file);
+		message.file = file;
+		message.buffer = null;
+		message.out = null;
+		return message;
+	}
+
+	public void write( byte[] b, int off, int len ) throws IOException {
+		if( out == null ) {
+			throw new IOException("message already finished");
+		}
+		if( buffer != null && threshold > 0 && size + len > threshold ) {
+			spill();
+		}
+		out.write(b, off, len);
+		size += len;
+	}
+
+	/**
+	 * Hängt eine Zeile (UTF-8 kodiert) gefolgt von {@code CRLF} an.
+	 *
+	 * @param line Die Zeile ohne Zeilenumbruch.
+	 * @throws IOException Falls die Spool-Datei nicht geschrieben werden kann.
+	 */
+	public void writeLine( String line ) throws IOException {
+		byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+		write(bytes, 0, bytes.length);
+		write(CRLF, 0, CRLF.length);
+	}
+
+	/**
+	 * Schließt das Schreiben ab. Danach kann die Nachricht zugestellt werden.
+	 *
+	 * @throws IOException Falls die Spool-Datei nicht geschrieben werden kann.
+	 */
+	public void finish() throws IOException {
+		if( out != null && file != null ) {
+			out.close();
+		}
+		out = null;
+	}
+
+	private void spill() throws IOException {
+		Files.createDirectories(spoolDir);
+		file = Files.createTempFile(spoolDir, "spool", ".tmp");
+		out = new BufferedOutputStream(Files.newOutputStream(file), 65536);
+		buffer.writeTo(out);
+		buffer = null;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public boolean isSpooled() {
+		return file != null;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	public InputStream openStream() throws IOException {
+		if( file != null ) {
+			return Files.newInputStream(file);
+		} else {
+			return new ByteArrayInputStream(buffer.toByteArray());
+		}
+	}
+
+	/**
+	 * Liest die vollständige Nachricht als Text. Sollte nur für kleine Nachrichten oder in
+	 * Ausnahmefällen verwendet werden.
+	 *
+	 * @return Die Nachricht als UTF-8 Text.
+	 * @throws IOException Falls die Spool-Datei nicht gelesen werden kann.
+	 */
+	public String readString() throws IOException {
+		if( file != null ) {
+			// Like the buffer, replace invalid bytes instead of failing on 8-bit mail
+			return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+		} else {
+			return buffer.toString(StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Legt die Nachricht unter {@code target} ab. Ausgelagerte Nachrichten werden per Hardlink
+	 * abgelegt, falls das Dateisystem dies unterstützt, und ansonsten kopiert. Nachrichten im
+	 * Speicher werden in eine temporäre Datei neben dem Ziel geschrieben und dann verschoben.
+	 *
+	 * @param target Zielpfad der Mail.
+	 * @throws IOException Falls die Nachricht nicht abgelegt werden kann.
+	 */
+	public void deliverTo( Path target ) throws IOException {
+		finish();
+		if( file != null ) {
+			try {
+				Files.createLink(target, file);
+			} catch( FileAlreadyExistsException ex ) {
+				throw ex;
+			} catch( UnsupportedOperationException | IOException ex ) {
+				Files.copy(file, target);
+			}
+		} else {
+			// Unique name, concurrent deliveries may use the same target name
+			Path tmp = Files.createTempFile(target.getParent(), ".", ".tmp");
+			try {
+				try( OutputStream fout = Files.newOutputStream(tmp) ) {
+					buffer.writeTo(fout);
+				}
+				Files.move(tmp, target);
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			finish();
+		} catch( IOException ignored ) {
+		}
+		if( file != null ) {
+			try {
+				Files.deleteIfExists(file);
+			} catch( IOException ignored ) {
+			}
+		}
+	}
+
+}
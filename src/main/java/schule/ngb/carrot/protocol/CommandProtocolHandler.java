@@ -1,6 +1,7 @@
 package schule.ngb.carrot.protocol;
 
 import org.ini4j.Ini;
+import schule.ngb.carrot.util.ConfigSnapshot;
 import schule.ngb.carrot.util.Configuration;
 
 import java.net.Socket;
@@ -20,6 +21,10 @@ public abstract class CommandProtocolHandler extends StringProtocolHandler {
 		super(clientSocket, config);
 	}
 
+	public CommandProtocolHandler( Socket clientSocket, Ini config, ConfigSnapshot settings ) {
+		super(clientSocket, config, settings);
+	}
+
 	public String getSeparator() {
 		return separator;
 	}
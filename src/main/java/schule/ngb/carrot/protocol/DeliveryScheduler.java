@@ -0,0 +1,296 @@
+package schule.ngb.carrot.protocol;
+
+import schule.ngb.carrot.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plant Zustellungen zeitversetzt ein und führt sie mit einer festen Anzahl Worker aus.
+ * <p>
+ * Zustellungen ({@link Job Jobs}) warten in einer {@link DelayQueue}, bis sie fällig sind. Ein
+ * einzelner Dispatcher-Thread entnimmt fällige Jobs und übergibt sie an die Worker. Wartende Jobs
+ * belegen also keinen Worker. Pro Ziel (zum Beispiel dem Host der Empfänger) laufen höchstens
+ * {@code maxPerDestination} Jobs gleichzeitig. Weitere fällige Jobs für dasselbe Ziel werden
+ * zurückgestellt und gestartet, sobald ein laufender Job endet.
+ * <p>
+ * Schlägt eine Zustellung fehl, wird sie mit exponentiell wachsender Wartezeit erneut versucht.
+ * Nach {@code maxAttempts} Versuchen wird {@link Job#giveUp(IOException)} aufgerufen, ebenso
+ * sofort bei einer unerwarteten {@link RuntimeException}.
+ */
+public final class DeliveryScheduler {
+
+	private static final Log LOG = Log.getLogger(DeliveryScheduler.class);
+
+
+	/**
+	 * Eine einzelne Zustellung an ein Ziel.
+	 */
+	public static abstract class Job implements Delayed {
+
+		private static final AtomicLong SEQUENCE = new AtomicLong(0);
+
+		private final String destination;
+
+		/**
+		 * Reihenfolge bei gleicher Fälligkeit.
+		 */
+		private final long seq = SEQUENCE.incrementAndGet();
+
+		private long due;
+
+		private int attempts = 0;
+
+		protected Job( String destination ) {
+			this.destination = destination;
+		}
+
+		public String getDestination() {
+			return destination;
+		}
+
+		/**
+		 * Liefert die Anzahl bisher fehlgeschlagener Versuche.
+		 *
+		 * @return Anzahl der Versuche.
+		 */
+		public int getAttempts() {
+			return attempts;
+		}
+
+		/**
+		 * Führt die Zustellung aus. Wirft die Methode eine {@link IOException}, wird die Zustellung
+		 * später wiederholt.
+		 *
+		 * @throws IOException Falls die Zustellung (vorübergehend) fehlschlägt.
+		 */
+		protected abstract void deliver() throws IOException;
+
+		/**
+		 * Wird aufgerufen, wenn die Zustellung endgültig fehlgeschlagen ist.
+		 *
+		 * @param cause Der Fehler des letzten Versuchs.
+		 */
+		protected abstract void giveUp( IOException cause );
+
+		/**
+		 * Wird aufgerufen, wenn die Zustellung fehlgeschlagen ist und erneut versucht wird.
+		 *
+		 * @param cause Der Fehler des letzten Versuchs.
+		 * @param delay Wartezeit bis zum nächsten Versuch in ms.
+		 */
+		protected void deferred( IOException cause, long delay ) {
+		}
+
+		/**
+		 * Wird nach erfolgreicher oder endgültig fehlgeschlagener Zustellung aufgerufen.
+		 */
+		protected void finished() {
+		}
+
+		@Override
+		public long getDelay( TimeUnit unit ) {
+			return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo( Delayed o ) {
+			Job other = (Job) o;
+			int c = Long.compare(due, other.due);
+			return c != 0 ? c : Long.compare(seq, other.seq);
+		}
+
+	}
+
+	/**
+	 * Laufende und zurückgestellte Jobs eines Ziels.
+	 */
+	private static final class Destination {
+
+		private int running = 0;
+
+		private final Queue<Job> waiting = new ArrayDeque<>();
+
+	}
+
+
+	private final DelayQueue<Job> delayed = new DelayQueue<>();
+
+	private final ExecutorService workers;
+
+	private final Thread dispatcher;
+
+	/**
+	 * Aktive Ziele. Zugriffe sind über die Map synchronisiert.
+	 */
+	private final Map<String, Destination> destinations = new HashMap<>();
+
+	private final int maxPerDestination;
+
+	private final int maxAttempts;
+
+	private final long retryDelay;
+
+	private final long maxRetryDelay;
+
+	/**
+	 * Erstellt einen neuen {@code DeliveryScheduler} und startet den Dispatcher.
+	 *
+	 * @param name Präfix für die Namen der Threads.
+	 * @param workers Anzahl der Worker.
+	 * @param maxPerDestination Maximale Anzahl gleichzeitiger Jobs pro Ziel.
+	 * @param maxAttempts Maximale Anzahl Versuche pro Job.
+	 * @param retryDelay Wartezeit (in ms) vor dem ersten erneuten Versuch.
+	 * @param maxRetryDelay Maximale Wartezeit (in ms) zwischen zwei Versuchen.
+	 */
+	public DeliveryScheduler( String name, int workers, int maxPerDestination, int maxAttempts, long retryDelay, long maxRetryDelay ) {
+		this.maxPerDestination = Math.max(1, maxPerDestination);
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.retryDelay = Math.max(0, retryDelay);
+		this.maxRetryDelay = Math.max(this.retryDelay, maxRetryDelay);
+
+		AtomicInteger threadCount = new AtomicInteger(0);
+		ThreadFactory threads = ( r ) -> {
+			Thread t = new Thread(r, name + "-" + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+		this.workers = Executors.newFixedThreadPool(Math.max(1, workers), threads);
+
+		dispatcher = new Thread(this::dispatch, name + "-dispatcher");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * Plant einen Job zur Ausführung nach {@code delay} Millisekunden ein.
+	 *
+	 * @param job Der Job.
+	 * @param delay Wartezeit in ms.
+	 */
+	public void schedule( Job job, long delay ) {
+		job.due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay));
+		delayed.add(job);
+	}
+
+	/**
+	 * Liefert die Anzahl der Jobs, die noch nicht fällig sind oder auf ein freies Ziel warten.
+	 *
+	 * @return Anzahl wartender Jobs.
+	 */
+	public int getWaitingCount() {
+		int n = delayed.size();
+		synchronized( destinations ) {
+			for( Destination d : destinations.values() ) {
+				n += d.waiting.size();
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Beendet den Dispatcher und alle Worker. Laufende Jobs werden unterbrochen.
+	 */
+	public void shutdown() {
+		dispatcher.interrupt();
+		workers.shutdownNow();
+	}
+
+	private void dispatch() {
+		while( !Thread.currentThread().isInterrupted() ) {
+			Job job;
+			try {
+				job = delayed.take();
+			} catch( InterruptedException ex ) {
+				break;
+			}
+
+			synchronized( destinations ) {
+				Destination d = destinations.computeIfAbsent(job.destination, ( k ) -> new Destination());
+				if( d.running < maxPerDestination ) {
+					d.running += 1;
+					start(job);
+				} else {
+					d.waiting.add(job);
+				}
+			}
+		}
+	}
+
+	private void start( Job job ) {
+		workers.execute(() -> run(job));
+	}
+
+	private void run( Job job ) {
+		boolean done = true;
+		try {
+			job.deliver();
+		} catch( IOException ex ) {
+			job.attempts += 1;
+			if( job.attempts < maxAttempts ) {
+				long delay = backoff(job.attempts);
+				LOG.info("Delivery to %s failed (attempt %d of %d), retrying in %.1fs: %s",
+					job.destination, job.attempts, maxAttempts, delay / 1000.0, ex.getMessage());
+				job.deferred(ex, delay);
+				schedule(job, delay);
+				done = false;
+			} else {
+				LOG.error(ex, "Delivery to %s failed after %d attempts", job.destination, job.attempts);
+				job.giveUp(ex);
+			}
+		} catch( RuntimeException ex ) {
+			// Retrying would most likely fail again, but the mail must not be dropped silently
+			LOG.error(ex, "Unexpected error during delivery to %s", job.destination);
+			job.attempts += 1;
+			job.giveUp(new IOException(ex));
+		} finally {
+			try {
+				if( done ) {
+					job.finished();
+				}
+			} finally {
+				release(job.destination);
+			}
+		}
+	}
+
+	private void release( String destination ) {
+		synchronized( destinations ) {
+			Destination d = destinations.get(destination);
+			Job next = d.waiting.poll();
+			if( next != null ) {
+				start(next);
+			} else {
+				d.running -= 1;
+				if( d.running == 0 ) {
+					destinations.remove(destination);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Berechnet die Wartezeit vor dem nächsten Versuch. Die Zeit verdoppelt sich mit jedem
+	 * Versuch bis zu {@link #maxRetryDelay}.
+	 *
+	 * @param attempts Anzahl bisheriger Versuche.
+	 * @return Wartezeit in ms.
+	 */
+	private long backoff( int attempts ) {
+		int shift = Math.min(attempts - 1, 30);
+		long delay = retryDelay << shift;
+		return (delay < 0 || delay > maxRetryDelay) ? maxRetryDelay : delay;
+	}
+
+}
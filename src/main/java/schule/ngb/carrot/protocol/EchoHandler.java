@@ -1,6 +1,7 @@
 package schule.ngb.carrot.protocol;
 
 import org.ini4j.Ini;
+import schule.ngb.carrot.util.ConfigSnapshot;
 import schule.ngb.carrot.util.Log;
 
 import java.net.Socket;
@@ -24,9 +25,21 @@ public class EchoHandler extends StringProtocolHandler {
 	 * @param config
 	 */
 	public EchoHandler( Socket clientSocket, Ini config ) {
-		super(clientSocket, config);
+		this(clientSocket, config, ConfigSnapshot.compile(config));
+	}
+
+	/**
+	 * Erstellt einen neuen {@code EchoHandler} mit der Momentaufnahme der Konfiguration seiner
+	 * Factory.
+	 *
+	 * @param clientSocket
+	 * @param config
+	 * @param settings
+	 */
+	public EchoHandler( Socket clientSocket, Ini config, ConfigSnapshot settings ) {
+		super(clientSocket, config, settings);
 
-		messageFormat = config.get("echo", "message_format");
+		messageFormat = settings.get("echo", "message_format");
 	}
 
 	@Override
@@ -1,27 +1,52 @@
 package schule.ngb.carrot.protocol;
 
 import org.ini4j.Ini;
+import schule.ngb.carrot.util.ConfigSnapshot;
 import schule.ngb.carrot.util.Configuration;
 import schule.ngb.carrot.util.Timer;
 
+import javax.net.ssl.SSLSocket;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public abstract class GenericProtocolHandler implements ProtocolHandler {
 
 	protected final Ini config;
 
-	protected final Socket socket;
+	/**
+	 * Momentaufnahme von {@link #config} für häufig benötigte Werte.
+	 */
+	protected final ConfigSnapshot settings;
+
+	/**
+	 * Die Verbindung zum Client. Wird beim Wechsel zu TLS durch die verschlüsselte Verbindung
+	 * ersetzt.
+	 */
+	protected volatile Socket socket;
 
 	protected boolean running = false;
 
 	private final Timer timer;
 
+	/**
+	 * Ressourcen, die beim Schließen der Verbindung freigegeben werden.
+	 */
+	private final List<AutoCloseable> resources;
+
 	public GenericProtocolHandler( Socket clientSocket, Ini config ) {
+		this(clientSocket, config, ConfigSnapshot.compile(config));
+	}
+
+	public GenericProtocolHandler( Socket clientSocket, Ini config, ConfigSnapshot settings ) {
 		this.socket = clientSocket;
 		this.config = config;
+		this.settings = settings;
 
 		this.timer = new Timer();
+		this.resources = new CopyOnWriteArrayList<>();
 	}
 
 	@Override
@@ -52,6 +77,36 @@ public abstract class GenericProtocolHandler implements ProtocolHandler {
 		return socket;
 	}
 
+	/**
+	 * Liefert, ob die Verbindung mit TLS verschlüsselt ist.
+	 *
+	 * @return {@code true} bei einer TLS-Verbindung.
+	 */
+	public boolean isSecure() {
+		return socket instanceof SSLSocket;
+	}
+
+	/**
+	 * Liefert die IP-Adresse des Clients.
+	 *
+	 * @return Die Adresse oder {@code null}, falls der Socket nicht verbunden ist.
+	 */
+	public String getRemoteAddress() {
+		InetAddress address = socket.getInetAddress();
+		return address == null ? null : address.getHostAddress();
+	}
+
+	/**
+	 * Registriert eine Ressource (zum Beispiel die Sperre eines Maildrops), die automatisch
+	 * freigegeben wird, sobald die Verbindung geschlossen wird. Das gilt auch, wenn die Verbindung
+	 * unerwartet abbricht oder durch einen Timeout getrennt wird.
+	 *
+	 * @param resource Die freizugebende Ressource.
+	 */
+	public void releaseOnClose( AutoCloseable resource ) {
+		resources.add(resource);
+	}
+
 	@Override
 	public void stop() {
 		running = false;
@@ -65,7 +120,8 @@ public abstract class GenericProtocolHandler implements ProtocolHandler {
 			try {
 				socket.shutdownInput();
 				socket.shutdownOutput();
-			} catch( IOException ignored ) {
+			} catch( IOException | UnsupportedOperationException ignored ) {
+				// SSLSockets do not support half-close
 			}
 		}
 
@@ -76,6 +132,15 @@ public abstract class GenericProtocolHandler implements ProtocolHandler {
 			} catch( IOException ignored ) {
 			}
 		}
+
+		// Release resources bound to this connection
+		for( AutoCloseable resource : resources ) {
+			try {
+				resource.close();
+			} catch( Exception ignored ) {
+			}
+		}
+		resources.clear();
 	}
 
 }
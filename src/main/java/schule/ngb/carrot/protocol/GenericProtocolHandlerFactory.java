@@ -1,6 +1,7 @@
 package schule.ngb.carrot.protocol;
 
 import org.ini4j.Ini;
+import schule.ngb.carrot.util.ConfigSnapshot;
 import schule.ngb.carrot.util.Configuration;
 import schule.ngb.carrot.util.Log;
 
@@ -23,6 +24,11 @@ public class GenericProtocolHandlerFactory implements ProtocolHandlerFactory {
 	 */
 	private int port = 0;
 
+	/**
+	 * Eingestellter Port für implizites TLS.
+	 */
+	private int tlsPort = 0;
+
 	/**
 	 * Dateiname der Konfigurationsdatei, die geladen werden soll.
 	 */
@@ -31,7 +37,13 @@ public class GenericProtocolHandlerFactory implements ProtocolHandlerFactory {
 	/**
 	 * Konfiguration des Protokolls.
 	 */
-	protected final Ini config;
+	protected volatile Ini config;
+
+	/**
+	 * Unveränderliche Momentaufnahme von {@link #config} für die Handler. Wird bei
+	 * {@link #reload(Ini)} als Ganzes ersetzt.
+	 */
+	protected volatile ConfigSnapshot settings;
 
 	protected final Class<? extends ProtocolHandler> type;
 
@@ -41,6 +53,7 @@ public class GenericProtocolHandlerFactory implements ProtocolHandlerFactory {
 		processAnnotation();
 
 		this.config = this.loadConfig(globalConfig);
+		this.settings = ConfigSnapshot.compile(this.config);
 
 		LOG.debug("Created %s with configuration:", getClass().getSimpleName());
 		LOG.debug(this.config::toString);
@@ -49,6 +62,9 @@ public class GenericProtocolHandlerFactory implements ProtocolHandlerFactory {
 		if( this.config.get(this.name, "port") != null ) {
 			this.port = this.config.get(this.name, "port", int.class);
 		}
+		if( this.config.get(this.name, "tls_port") != null ) {
+			this.tlsPort = this.config.get(this.name, "tls_port", int.class);
+		}
 	}
 
 	/**
@@ -78,6 +94,7 @@ public class GenericProtocolHandlerFactory implements ProtocolHandlerFactory {
 			name = annotation.name();
 			configFile = annotation.config();
 			this.port = annotation.port();
+			this.tlsPort = annotation.tlsPort();
 		}
 		this.name = name.isEmpty() ? type.getSimpleName() : name;
 		this.configFile = configFile.isBlank() ? this.name.toLowerCase() + ".config" : configFile;
@@ -91,6 +108,11 @@ public class GenericProtocolHandlerFactory implements ProtocolHandlerFactory {
 		return this.port;
 	}
 
+	@Override
+	public int getTlsPort() {
+		return this.tlsPort;
+	}
+
 	public String getConfigFile() {
 		return configFile;
 	}
@@ -99,12 +121,45 @@ public class GenericProtocolHandlerFactory implements ProtocolHandlerFactory {
 		return config;
 	}
 
+	public ConfigSnapshot getSettings() {
+		return settings;
+	}
+
+	/**
+	 * Lädt die Konfiguration des Protokolls mit der neuen globalen Konfiguration neu und ersetzt
+	 * die Momentaufnahme. Handler, die danach erstellt werden, erhalten die neue Konfiguration.
+	 * Eine Änderung des Ports wird erst nach einem Neustart wirksam.
+	 *
+	 * @param globalConfig Die neue globale Konfiguration.
+	 */
+	@Override
+	public void reload( Ini globalConfig ) {
+		Ini newConfig = this.loadConfig(globalConfig);
+		ConfigSnapshot newSettings = ConfigSnapshot.compile(newConfig);
+
+		String newPort = newConfig.get(this.name, "port");
+		if( newPort != null && !newPort.trim().equals(Integer.toString(this.port)) ) {
+			LOG.warn("Port change for %s to %s requires a restart", this.name, newPort);
+		}
+
+		this.config = newConfig;
+		this.settings = newSettings;
+		LOG.info("Reloaded configuration for %s", this.name);
+	}
+
 	@Override
 	public ProtocolHandler create( Socket clientSocket ) {
 		try {
-			return type.getDeclaredConstructor(Socket.class, Ini.class).newInstance(
-				clientSocket, this.config
-			);
+			ConfigSnapshot current = this.settings;
+			try {
+				return type.getDeclaredConstructor(Socket.class, Ini.class, ConfigSnapshot.class).newInstance(
+					clientSocket, current.getConfig(), current
+				);
+			} catch( NoSuchMethodException ignored ) {
+				return type.getDeclaredConstructor(Socket.class, Ini.class).newInstance(
+					clientSocket, current.getConfig()
+				);
+			}
 		} catch( InstantiationException | IllegalAccessException | InvocationTargetException |
 				 NoSuchMethodException e ) {
 			LOG.error(e, "Failed to instantiate protocol class %s", type.getSimpleName());
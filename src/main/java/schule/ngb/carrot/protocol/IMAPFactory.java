@@ -0,0 +1,342 @@
+package schule.ngb.carrot.protocol;
+
+import org.ini4j.Ini;
+import schule.ngb.carrot.events.MaildropEvent;
+import schule.ngb.carrot.events.MaildropListener;
+import schule.ngb.carrot.maildrop.FilesystemMaildrop;
+import schule.ngb.carrot.maildrop.Mail;
+import schule.ngb.carrot.maildrop.MaildropEvents;
+import schule.ngb.carrot.maildrop.MaildropException;
+import schule.ngb.carrot.maildrop.MaildropIndex;
+import schule.ngb.carrot.maildrop.MaildropSnapshot;
+import schule.ngb.carrot.maildrop.SearchQuery;
+import schule.ngb.carrot.util.ConfigSnapshot;
+import schule.ngb.carrot.util.Configuration;
+import schule.ngb.carrot.util.Log;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * Factory für {@link IMAPHandler}.
+ * <p>
+ * IMAP nutzt die Maildrops von POP3 (Abschnitt {@code [pop3]}, die Standardwerte stammen aus der
+ * {@code pop3.config}). Jeder Nutzer hat genau ein Postfach {@code INBOX}. Alle Sitzungen eines
+ * Nutzers teilen sich eine {@link Mailbox} mit dem {@link MaildropIndex}.
+ * <p>
+ * Solange ein Postfach ausgewählt ist, hört es auf die {@link MaildropEvents} seines Nutzers.
+ * Zustellungen (per SMTP, LMTP oder als Fehlermeldung) und Löschungen (zum Beispiel per POP3)
+ * werden einzeln in den Index eingetragen, ohne den Maildrop neu einzulesen, und Sitzungen im
+ * Zustand {@code IDLE} erhalten sofort die Änderungen.
+ */
+public class IMAPFactory extends GenericProtocolHandlerFactory {
+
+	private static final Log LOG = Log.getLogger(IMAPFactory.class);
+
+
+	/**
+	 * Eine Änderung am Index aus einem {@link MaildropEvent}.
+	 */
+	private interface IndexUpdate {
+
+		boolean apply( MaildropIndex index ) throws IOException;
+
+	}
+
+	/**
+	 * Das Postfach eines Nutzers mit allen Sitzungen, die es ausgewählt haben.
+	 */
+	public final class Mailbox implements MaildropListener {
+
+		private final String user;
+
+		private final Set<IMAPHandler> sessions = new CopyOnWriteArraySet<>();
+
+		/**
+		 * Gemeldete Änderungen, die noch nicht im Index sind.
+		 */
+		private final Queue<IndexUpdate> updates = new ConcurrentLinkedQueue<>();
+
+		/**
+		 * Ob das Einarbeiten der Änderungen bereits eingeplant ist.
+		 */
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		private MaildropIndex index;
+
+		/**
+		 * Ob das Postfach nach der letzten Sitzung aus der Factory entfernt wurde.
+		 */
+		private boolean closed = false;
+
+		private Mailbox( String user ) {
+			this.user = user;
+		}
+
+		public String getUser() {
+			return user;
+		}
+
+		/**
+		 * Liefert den Index des Postfachs. Beim ersten Aufruf wird er geladen und abgeglichen.
+		 *
+		 * @return Der Index.
+		 * @throws MaildropException Falls der Maildrop nicht gelesen werden kann.
+		 */
+		public synchronized MaildropIndex getIndex() throws MaildropException {
+			if( index == null ) {
+				refresh();
+			}
+			return index;
+		}
+
+		/**
+		 * Gleicht den Index mit den Dateien im Maildrop ab.
+		 *
+		 * @return {@code true}, wenn Mails hinzugekommen oder entfernt worden sind.
+		 * @throws MaildropException Falls der Maildrop nicht gelesen werden kann.
+		 */
+		public synchronized boolean refresh() throws MaildropException {
+			FilesystemMaildrop maildrop = createMaildrop();
+			if( index == null ) {
+				index = MaildropIndex.forMaildrop(maildrop);
+			}
+			boolean changed = index.update(maildrop.snapshot());
+			index.save();
+			return changed;
+		}
+
+		/**
+		 * Verschiebt alle Mails mit dem Flag {@code \Deleted} in den Papierkorb. Dazu wird der
+		 * Maildrop kurz gesperrt.
+		 *
+		 * @return {@code false}, falls der Maildrop von einer POP3-Sitzung gesperrt ist.
+		 * @throws MaildropException Falls Mails nicht gelöscht werden können.
+		 */
+		public synchronized boolean expunge() throws MaildropException {
+			MaildropIndex index = getIndex();
+			FilesystemMaildrop maildrop = createMaildrop();
+			if( !maildrop.tryLock() ) {
+				return false;
+			}
+			try {
+				MaildropSnapshot snapshot = maildrop.snapshot();
+				for( int n = 1; n <= snapshot.countAll(); n++ ) {
+					MaildropIndex.Entry entry = index.get(snapshot.getId(n));
+					if( entry != null && entry.hasFlag(MaildropIndex.FLAG_DELETED) ) {
+						snapshot.delete(n);
+					}
+				}
+				maildrop.executeDelete(snapshot);
+			} finally {
+				maildrop.unlock();
+			}
+			refresh();
+			return true;
+		}
+
+		/**
+		 * Sucht Mails über den Volltextindex des Maildrops.
+		 *
+		 * @param query Die Anfrage.
+		 * @return Die IDs der passenden Mails.
+		 * @throws MaildropException Falls der Index nicht gelesen werden kann.
+		 */
+		public Set<String> search( SearchQuery query ) throws MaildropException {
+			return createMaildrop().search(query).stream().map(Mail::getId).collect(Collectors.toSet());
+		}
+
+		/**
+		 * Meldet eine Sitzung an. Mit der ersten Sitzung hört das Postfach auf die
+		 * {@link MaildropEvents} des Nutzers.
+		 *
+		 * @param session Die Sitzung.
+		 * @return {@code false}, falls das Postfach inzwischen geschlossen wurde.
+		 */
+		private synchronized boolean addSession( IMAPHandler session ) {
+			if( closed ) {
+				return false;
+			}
+			if( sessions.isEmpty() ) {
+				MaildropEvents.subscribe(user, this);
+			}
+			sessions.add(session);
+			return true;
+		}
+
+		/**
+		 * Meldet eine Sitzung ab. Geht die letzte Sitzung, werden offene Änderungen gespeichert
+		 * und das Postfach aus der Factory entfernt. Die nächste Sitzung lädt den Index neu.
+		 *
+		 * @param session Die Sitzung.
+		 */
+		public synchronized void removeSession( IMAPHandler session ) {
+			if( !sessions.remove(session) || !sessions.isEmpty() ) {
+				return;
+			}
+
+			MaildropEvents.unsubscribe(user, this);
+			if( index != null ) {
+				applyPending();
+				try {
+					index.save();
+				} catch( MaildropException ex ) {
+					LOG.error(ex, "Failed to save index for user %s", user);
+				}
+			}
+			closed = true;
+			mailboxes.remove(user, this);
+		}
+
+		/**
+		 * Benachrichtigt alle Sitzungen außer {@code origin} über eine Änderung.
+		 *
+		 * @param origin Die Sitzung, die die Änderung verursacht hat, oder {@code null}.
+		 */
+		public void notifySessions( IMAPHandler origin ) {
+			for( IMAPHandler session : sessions ) {
+				if( session != origin ) {
+					session.mailboxChanged();
+				}
+			}
+		}
+
+		@Override
+		public void mailDelivered( MaildropEvent e ) {
+			if( e.maildrop.equals(getRoot()) ) {
+				schedule(( index ) -> index.add(e.mailId, e.file));
+			}
+		}
+
+		@Override
+		public void mailExpunged( MaildropEvent e ) {
+			if( e.maildrop.equals(getRoot()) ) {
+				schedule(( index ) -> index.remove(e.mailId));
+			}
+		}
+
+		/**
+		 * Plant eine Änderung ein. Mehrere Änderungen kurz hintereinander werden zusammen
+		 * eingearbeitet und gespeichert.
+		 */
+		private void schedule( IndexUpdate update ) {
+			updates.add(update);
+			if( scheduled.compareAndSet(false, true) ) {
+				NOTIFIER.execute(this::applyUpdates);
+			}
+		}
+
+		private void applyUpdates() {
+			scheduled.set(false);
+			boolean changed;
+			synchronized( this ) {
+				if( closed ) {
+					// Saved by the last session
+					return;
+				}
+				changed = applyPending();
+				if( changed ) {
+					try {
+						index.save();
+					} catch( MaildropException ex ) {
+						LOG.error(ex, "Failed to save index for user %s", user);
+					}
+				}
+			}
+			if( changed ) {
+				notifySessions(null);
+			}
+		}
+
+		private synchronized boolean applyPending() {
+			boolean changed = false;
+			IndexUpdate update;
+			while( (update = updates.poll()) != null ) {
+				if( index == null ) {
+					// Loaded with all mails on first access
+					continue;
+				}
+				try {
+					changed |= update.apply(index);
+				} catch( IOException ex ) {
+					// Removed in the meantime
+					LOG.debug("Failed to add mail to index for user %s: %s", user, ex.getMessage());
+				}
+			}
+			return changed;
+		}
+
+		private Path getRoot() {
+			return Paths.get(config.get("carrot", "data"), settings.get("pop3", "maildrop"), user);
+		}
+
+		private FilesystemMaildrop createMaildrop() throws MaildropException {
+			return new FilesystemMaildrop(user, settings.get("pop3", "maildrop"), config);
+		}
+
+	}
+
+
+	/**
+	 * Thread, der Änderungen in die Postfächer einarbeitet, damit zustellende und löschende
+	 * Threads nicht warten müssen.
+	 */
+	private static final ExecutorService NOTIFIER = Executors.newSingleThreadExecutor(( r ) -> {
+		Thread t = new Thread(r, "imap-notify");
+		t.setDaemon(true);
+		return t;
+	});
+
+
+	private final ConcurrentMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+	public IMAPFactory( Ini config ) {
+		super(config, IMAPHandler.class);
+	}
+
+	@Override
+	protected Ini loadConfig( Ini globalConfig ) {
+		return Configuration.from(globalConfig)
+			.loadLeft(POP3Handler.class.getResourceAsStream("pop3.config"))
+			.loadLeft(type.getResourceAsStream(this.getConfigFile()))
+			.build();
+	}
+
+	@Override
+	public ProtocolHandler create( Socket clientSocket ) {
+		ConfigSnapshot current = settings;
+		return new IMAPHandler(clientSocket, current.getConfig(), current, this);
+	}
+
+	/**
+	 * Liefert das Postfach eines Nutzers und meldet {@code session} daran an. Die Sitzung muss
+	 * sich mit {@link Mailbox#removeSession(IMAPHandler)} wieder abmelden. Postfächer ohne
+	 * Sitzungen werden nicht aufbewahrt.
+	 *
+	 * @param user Name des Nutzers.
+	 * @param session Die Sitzung.
+	 * @return Das Postfach.
+	 */
+	public Mailbox openMailbox( String user, IMAPHandler session ) {
+		while( true ) {
+			Mailbox mailbox = mailboxes.computeIfAbsent(user, Mailbox::new);
+			if( mailbox.addSession(session) ) {
+				return mailbox;
+			}
+			// Closed by the last session in the meantime, already removed from the map
+		}
+	}
+
+}
@@ -0,0 +1,1773 @@
+package schule.ngb.carrot.protocol;
+
+import org.ini4j.Ini;
+import schule.ngb.carrot.CarrotServer;
+import schule.ngb.carrot.maildrop.Envelope;
+import schule.ngb.carrot.maildrop.MaildropException;
+import schule.ngb.carrot.maildrop.MaildropIndex;
+import schule.ngb.carrot.maildrop.MimeHeaders;
+import schule.ngb.carrot.maildrop.MimeParser;
+import schule.ngb.carrot.maildrop.SearchIndex;
+import schule.ngb.carrot.maildrop.SearchQuery;
+import schule.ngb.carrot.util.ConfigSnapshot;
+import schule.ngb.carrot.util.CredentialService;
+import schule.ngb.carrot.util.Log;
+import schule.ngb.carrot.util.LoginThrottle;
+import schule.ngb.carrot.util.TlsContext;
+
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * IMAP4rev1 (RFC 3501) für die Maildrops von POP3.
+ * <p>
+ * Jeder Nutzer hat genau ein Postfach {@code INBOX}. Unterstützt werden {@code LOGIN},
+ * {@code SELECT} und {@code EXAMINE}, {@code FETCH} (Flags, Größe, Datum, Header und Body mit
+ * Teilbereichen, {@code ENVELOPE}), {@code STORE}, {@code EXPUNGE}, {@code CLOSE}, {@code SEARCH}, die {@code UID}-Varianten,
+ * {@code IDLE} (RFC 2177), {@code LITERAL+} (RFC 7888) und {@code STARTTLS}. Weitere Postfächer
+ * ({@code CREATE}, {@code APPEND}, {@code COPY}) gibt es nicht. {@code BODYSTRUCTURE} wird noch
+ * nicht unterstützt.
+ * <p>
+ * UIDs, Flags und das {@link Envelope} speichert der {@link MaildropIndex}. Die Textkriterien von {@code SEARCH}
+ * ({@code FROM}, {@code SUBJECT}, {@code TEXT} usw.) und {@code SENTSINCE} usw. nutzen den
+ * {@link SearchIndex} und finden daher Wortanfänge statt beliebiger Teilstrings. Zustellungen und Löschungen
+ * erfährt die {@link IMAPFactory} über die {@link schule.ngb.carrot.maildrop.MaildropEvents} und
+ * meldet sie sofort an Sitzungen im Zustand {@code IDLE}, sonst beim nächsten {@code NOOP} oder
+ * {@code CHECK}. Der Maildrop wird nur bei {@code SELECT}, {@code EXAMINE} und {@code STATUS}
+ * neu eingelesen sowie wenn eine Mail nicht gelesen werden kann.
+ */
+@Protocol( name = "imap", port = 143, tlsPort = 993, factory = IMAPFactory.class )
+public class IMAPHandler extends StringProtocolHandler {
+
+	private static final Log LOG = Log.getLogger(IMAPHandler.class);
+
+
+	public static final int STATE_NOT_AUTHENTICATED = 0;
+
+	public static final int STATE_AUTHENTICATED = 1;
+
+	public static final int STATE_SELECTED = 2;
+
+	public static final int STATE_LOGOUT = 3;
+
+	/**
+	 * Codes für {@link ProtocolException}: Antwort {@code NO} bzw. {@code BAD}.
+	 */
+	public static final int RESULT_NO = 1, RESULT_BAD = 2;
+
+	/**
+	 * Maximale Größe eines Literals in einem Befehl.
+	 */
+	public static final int MAX_LITERAL_SIZE = 65536;
+
+	/**
+	 * Namen der Flags in der Reihenfolge der Bits in {@link MaildropIndex}.
+	 */
+	private static final String[] FLAG_NAMES = {"\\Seen", "\\Answered", "\\Flagged", "\\Deleted", "\\Draft"};
+
+	private static final String ALL_FLAGS = String.join(" ", FLAG_NAMES);
+
+	/**
+	 * Threads, die Änderungen an Sitzungen im Zustand {@code IDLE} senden. Ein Client, der nicht
+	 * liest, blockiert so nur seinen eigenen Thread und nicht die Benachrichtigung der anderen.
+	 */
+	private static final ExecutorService PUSHER = Executors.newCachedThreadPool(( r ) -> {
+		Thread t = new Thread(r, "imap-push");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private static final DateTimeFormatter INTERNALDATE = DateTimeFormatter.ofPattern("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
+
+	private static final DateTimeFormatter SEARCH_DATE = new DateTimeFormatterBuilder()
+		.parseCaseInsensitive().appendPattern("d-MMM-yyyy").toFormatter(Locale.US);
+
+
+	/**
+	 * Argumente eines Befehls. Literale wurden vorher gelesen und stehen in der Zeile als
+	 * {@code \0<index>\0}.
+	 */
+	private static final class Args {
+
+		private final String line;
+
+		private final List<String> literals;
+
+		private int pos = 0;
+
+		private Args( String line, List<String> literals ) {
+			this.line = line;
+			this.literals = literals;
+		}
+
+		private boolean peek( char ch ) {
+			return pos < line.length() && line.charAt(pos) == ch;
+		}
+
+		private boolean peekAtom( String atom ) {
+			return line.regionMatches(true, pos, atom, 0, atom.length())
+				&& (pos + atom.length() == line.length() || line.charAt(pos + atom.length()) == ' ');
+		}
+
+		private void expect( char ch ) throws ProtocolException {
+			if( !peek(ch) ) {
+				throw new ProtocolException(RESULT_BAD, "expected '" + ch + "'");
+			}
+			pos += 1;
+		}
+
+		private void space() throws ProtocolException {
+			expect(' ');
+		}
+
+		private void end() throws ProtocolException {
+			if( pos < line.length() ) {
+				throw new ProtocolException(RESULT_BAD, "unexpected arguments");
+			}
+		}
+
+		private String atom() throws ProtocolException {
+			int start = pos;
+			while( pos < line.length() ) {
+				char ch = line.charAt(pos);
+				if( ch == ' ' || ch == '(' || ch == ')' || ch == '"' || ch == '{' || ch == '\0' ) {
+					break;
+				}
+				pos += 1;
+			}
+			if( start == pos ) {
+				throw new ProtocolException(RESULT_BAD, "missing argument");
+			}
+			return line.substring(start, pos);
+		}
+
+		private String astring() throws ProtocolException {
+			if( peek('"') ) {
+				pos += 1;
+				StringBuilder value = new StringBuilder();
+				while( pos < line.length() ) {
+					char ch = line.charAt(pos++);
+					if( ch == '"' ) {
+						return value.toString();
+					}
+					if( ch == '\\' && pos < line.length() ) {
+						ch = line.charAt(pos++);
+					}
+					value.append(ch);
+				}
+				throw new ProtocolException(RESULT_BAD, "unterminated string");
+			} else if( peek('\0') ) {
+				int end = line.indexOf('\0', pos + 1);
+				int i = Integer.parseInt(line.substring(pos + 1, end));
+				pos = end + 1;
+				return literals.get(i);
+			} else {
+				return atom();
+			}
+		}
+
+		private List<String> list() throws ProtocolException {
+			List<String> values = new ArrayList<>();
+			expect('(');
+			while( !peek(')') ) {
+				if( !values.isEmpty() ) {
+					space();
+				}
+				values.add(astring());
+			}
+			expect(')');
+			return values;
+		}
+
+		/**
+		 * Liest ein Datenelement von {@code FETCH}, das in {@code []} auch Leerzeichen und
+		 * Klammern enthalten kann.
+		 */
+		private String fetchAtt() throws ProtocolException {
+			int start = pos, depth = 0;
+			while( pos < line.length() ) {
+				char ch = line.charAt(pos);
+				if( ch == '[' ) {
+					depth += 1;
+				} else if( ch == ']' ) {
+					depth -= 1;
+				} else if( depth == 0 && (ch == ' ' || ch == '(' || ch == ')') ) {
+					break;
+				}
+				pos += 1;
+			}
+			if( start == pos ) {
+				throw new ProtocolException(RESULT_BAD, "missing fetch attribute");
+			}
+			return line.substring(start, pos);
+		}
+
+	}
+
+	/**
+	 * Eine Menge von Nummern oder UIDs wie {@code 1:4,7,9:*}.
+	 */
+	private static final class SequenceSet {
+
+		private static final long STAR = -1;
+
+		/**
+		 * Paare von Grenzen, {@link #STAR} steht für die größte Nummer.
+		 */
+		private final long[] ranges;
+
+		private SequenceSet( String value ) throws ProtocolException {
+			String[] parts = value.split(",");
+			ranges = new long[parts.length * 2];
+			for( int i = 0; i < parts.length; i++ ) {
+				int colon = parts[i].indexOf(':');
+				ranges[2 * i] = number(colon < 0 ? parts[i] : parts[i].substring(0, colon));
+				ranges[2 * i + 1] = colon < 0 ? ranges[2 * i] : number(parts[i].substring(colon + 1));
+			}
+		}
+
+		private boolean contains( long n, long max ) {
+			for( int i = 0; i < ranges.length; i += 2 ) {
+				long a = ranges[i] == STAR ? max : ranges[i];
+				long b = ranges[i + 1] == STAR ? max : ranges[i + 1];
+				if( n >= Math.min(a, b) && n <= Math.max(a, b) ) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Größte ausdrücklich angegebene Nummer.
+		 */
+		private long maxNumber() {
+			long max = 0;
+			for( long n : ranges ) {
+				max = Math.max(max, n);
+			}
+			return max;
+		}
+
+		private static long number( String value ) throws ProtocolException {
+			if( value.equals("*") ) {
+				return STAR;
+			}
+			try {
+				long n = Long.parseLong(value);
+				if( n > 0 ) {
+					return n;
+				}
+			} catch( NumberFormatException ignored ) {
+			}
+			throw new ProtocolException(RESULT_BAD, "invalid sequence set");
+		}
+
+	}
+
+	/**
+	 * Ein Datenelement von {@code FETCH}.
+	 */
+	private static final class FetchItem {
+
+		private static final int FLAGS = 0, UID = 1, SIZE = 2, INTERNALDATE = 3, BODY = 4, ENVELOPE = 5;
+
+		private static final int SECTION_ALL = 0, SECTION_HEADER = 1, SECTION_TEXT = 2, SECTION_FIELDS = 3;
+
+		private final int type;
+
+		/**
+		 * Name in der Antwort.
+		 */
+		private String name;
+
+		private int section = SECTION_ALL;
+
+		private Set<String> fields;
+
+		private boolean fieldsNot = false;
+
+		private boolean peek = false;
+
+		private long partialStart = -1, partialLength;
+
+		private FetchItem( int type, String name ) {
+			this.type = type;
+			this.name = name;
+		}
+
+		private static FetchItem body( String name, int section, boolean peek ) {
+			FetchItem item = new FetchItem(BODY, name);
+			item.section = section;
+			item.peek = peek;
+			return item;
+		}
+
+		private static void parse( String att, List<FetchItem> items ) throws ProtocolException {
+			String upper = att.toUpperCase(Locale.ROOT);
+			switch( upper ) {
+				case "FLAGS":
+					items.add(new FetchItem(FLAGS, "FLAGS"));
+					return;
+				case "UID":
+					items.add(new FetchItem(UID, "UID"));
+					return;
+				case "RFC822.SIZE":
+					items.add(new FetchItem(SIZE, "RFC822.SIZE"));
+					return;
+				case "INTERNALDATE":
+					items.add(new FetchItem(INTERNALDATE, "INTERNALDATE"));
+					return;
+				case "ENVELOPE":
+					items.add(new FetchItem(ENVELOPE, "ENVELOPE"));
+					return;
+				case "FAST":
+					parse("FLAGS", items);
+					parse("INTERNALDATE", items);
+					parse("RFC822.SIZE", items);
+					return;
+				case "ALL":
+					parse("FAST", items);
+					parse("ENVELOPE", items);
+					return;
+				case "RFC822":
+					items.add(body("RFC822", SECTION_ALL, false));
+					return;
+				case "RFC822.HEADER":
+					items.add(body("RFC822.HEADER", SECTION_HEADER, true));
+					return;
+				case "RFC822.TEXT":
+					items.add(body("RFC822.TEXT", SECTION_TEXT, false));
+					return;
+			}
+
+			boolean peek = upper.startsWith("BODY.PEEK[");
+			if( !peek && !upper.startsWith("BODY[") ) {
+				throw new ProtocolException(RESULT_BAD, "unsupported fetch attribute " + att);
+			}
+			int open = upper.indexOf('['), close = upper.lastIndexOf(']');
+			if( close < open ) {
+				throw new ProtocolException(RESULT_BAD, "invalid section " + att);
+			}
+			String spec = upper.substring(open + 1, close);
+
+			FetchItem item = body("BODY[" + spec + "]", SECTION_ALL, peek);
+			if( spec.equals("HEADER") ) {
+				item.section = SECTION_HEADER;
+			} else if( spec.equals("TEXT") ) {
+				item.section = SECTION_TEXT;
+			} else if( spec.startsWith("HEADER.FIELDS") ) {
+				item.section = SECTION_FIELDS;
+				item.fieldsNot = spec.startsWith("HEADER.FIELDS.NOT");
+				Args args = new Args(spec.substring(spec.indexOf(' ') + 1), List.of());
+				item.fields = new HashSet<>(args.list());
+			} else if( !spec.isEmpty() ) {
+				throw new ProtocolException(RESULT_BAD, "unsupported section " + spec);
+			}
+
+			String partial = upper.substring(close + 1);
+			if( !partial.isEmpty() ) {
+				int dot = partial.indexOf('.');
+				if( !partial.startsWith("<") || !partial.endsWith(">") || dot < 0 ) {
+					throw new ProtocolException(RESULT_BAD, "invalid partial " + partial);
+				}
+				try {
+					item.partialStart = Long.parseLong(partial.substring(1, dot));
+					item.partialLength = Long.parseLong(partial.substring(dot + 1, partial.length() - 1));
+				} catch( NumberFormatException ex ) {
+					throw new ProtocolException(RESULT_BAD, "invalid partial " + partial);
+				}
+				item.name += "<" + item.partialStart + ">";
+			}
+			items.add(item);
+		}
+
+	}
+
+	/**
+	 * Ein Kriterium von {@code SEARCH}.
+	 */
+	private interface Criterion {
+
+		boolean matches( int number, MaildropIndex.Entry entry ) throws IOException;
+
+	}
+
+
+	private final IMAPFactory factory;
+
+	private final String[] capabilities;
+
+	private int state = STATE_NOT_AUTHENTICATED;
+
+	private String username;
+
+	private IMAPFactory.Mailbox mailbox;
+
+	private MaildropIndex index;
+
+	private boolean readOnly = false;
+
+	/**
+	 * Die Mails, wie sie der Client kennt. Index {@code i} ist die Nummer {@code i + 1}. Wird nur
+	 * bei {@link #sync()} durch die aktuellen Einträge des Index ersetzt.
+	 */
+	private MaildropIndex.Entry[] view;
+
+	/**
+	 * Tag des laufenden {@code IDLE} oder {@code null}.
+	 */
+	private volatile String idleTag;
+
+	/**
+	 * Ob das Postfach seit der letzten Meldung von einer anderen Sitzung oder einer Zustellung
+	 * verändert wurde.
+	 */
+	private volatile boolean pendingChanges = false;
+
+	/**
+	 * Schützt den Zustand der Sitzung, da Änderungen während {@code IDLE} aus einem anderen Thread
+	 * gemeldet werden.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Ob das Senden der Änderungen bereits eingeplant ist.
+	 */
+	private final AtomicBoolean pushScheduled = new AtomicBoolean(false);
+
+	public IMAPHandler( Socket clientSocket, Ini config ) {
+		this(clientSocket, config, ConfigSnapshot.compile(config), null);
+	}
+
+	public IMAPHandler( Socket clientSocket, Ini config, ConfigSnapshot settings, IMAPFactory factory ) {
+		super(clientSocket, config, settings);
+		this.factory = factory;
+		this.capabilities = settings.getArray("imap", "capabilities");
+
+		setBatchReplies(true);
+		releaseOnClose(() -> {
+			IMAPFactory.Mailbox mb = mailbox;
+			if( mb != null ) {
+				mb.removeSession(this);
+			}
+		});
+	}
+
+	@Override
+	public void handleConnect() {
+		send("* OK [CAPABILITY %s] %s %s (v%s) ready", getCapabilities(), settings.getHost(),
+			CarrotServer.APP_NAME, CarrotServer.APP_VERSION);
+	}
+
+	@Override
+	public void handleDisconnect() {
+		deselect();
+	}
+
+	@Override
+	public void handleMessage( String message ) {
+		resetTimer();
+
+		if( idleTag != null ) {
+			lock.lock();
+			try {
+				handleDone(message);
+			} finally {
+				lock.unlock();
+			}
+			return;
+		}
+
+		int sp = message.indexOf(' ');
+		if( sp <= 0 ) {
+			send("* BAD missing tag or command");
+			return;
+		}
+		String tag = message.substring(0, sp);
+
+		// Literals are read before locking, the client may be slow
+		List<String> literals = new ArrayList<>();
+		String line;
+		try {
+			line = readLiterals(message.substring(sp + 1), literals);
+		} catch( ProtocolException ex ) {
+			send("%s BAD %s", tag, ex.getMessage());
+			return;
+		} catch( IOException ex ) {
+			close();
+			return;
+		}
+
+		lock.lock();
+		try {
+			Args args = new Args(line, literals);
+			String command = args.atom().toUpperCase(Locale.ROOT);
+			if( args.peek(' ') ) {
+				args.space();
+			}
+			handleCommand(tag, command, args);
+		} catch( ProtocolException ex ) {
+			send("%s %s %s", tag, ex.getCode() == RESULT_NO ? "NO" : "BAD", ex.getMessage());
+		} finally {
+			lock.unlock();
+		}
+
+		// Changes reported while this command was running
+		if( pendingChanges && idleTag != null ) {
+			pushChanges();
+		}
+	}
+
+	private void handleCommand( String tag, String command, Args args ) throws ProtocolException {
+		switch( command ) {
+			case "CAPABILITY":
+				args.end();
+				send("* CAPABILITY %s", getCapabilities());
+				send("%s OK CAPABILITY completed", tag);
+				break;
+			case "NOOP":
+				args.end();
+				handleNoop(tag, command);
+				break;
+			case "LOGOUT":
+				args.end();
+				handleLogout(tag);
+				break;
+
+			// Not authenticated
+			case "STARTTLS":
+				args.end();
+				handleStartTls(tag);
+				break;
+			case "LOGIN":
+				handleLogin(tag, args);
+				break;
+			case "AUTHENTICATE":
+				requireState(STATE_NOT_AUTHENTICATED);
+				throw new ProtocolException(RESULT_NO, "unsupported authentication mechanism");
+
+			// Authenticated
+			case "SELECT":
+			case "EXAMINE":
+				handleSelect(tag, args, command.equals("EXAMINE"));
+				break;
+			case "LIST":
+			case "LSUB":
+				handleList(tag, args, command);
+				break;
+			case "STATUS":
+				handleStatus(tag, args);
+				break;
+			case "SUBSCRIBE":
+			case "UNSUBSCRIBE":
+				requireState(STATE_AUTHENTICATED, STATE_SELECTED);
+				if( !isInbox(args.astring()) ) {
+					throw new ProtocolException(RESULT_NO, "[NONEXISTENT] no such mailbox");
+				}
+				send("%s OK %s completed", tag, command);
+				break;
+			case "CREATE":
+			case "DELETE":
+			case "RENAME":
+			case "APPEND":
+				requireState(STATE_AUTHENTICATED, STATE_SELECTED);
+				throw new ProtocolException(RESULT_NO, "[CANNOT] only INBOX is supported");
+			case "IDLE":
+				args.end();
+				handleIdle(tag);
+				break;
+
+			// Selected
+			case "CHECK":
+				requireState(STATE_SELECTED);
+				args.end();
+				handleNoop(tag, command);
+				break;
+			case "CLOSE":
+				args.end();
+				handleClose(tag);
+				break;
+			case "EXPUNGE":
+				args.end();
+				handleExpunge(tag);
+				break;
+			case "FETCH":
+				handleFetch(tag, args, false);
+				break;
+			case "STORE":
+				handleStore(tag, args, false);
+				break;
+			case "SEARCH":
+				handleSearch(tag, args, false);
+				break;
+			case "COPY":
+				requireState(STATE_SELECTED);
+				throw new ProtocolException(RESULT_NO, "[CANNOT] only INBOX is supported");
+			case "UID":
+				String sub = args.atom().toUpperCase(Locale.ROOT);
+				args.space();
+				switch( sub ) {
+					case "FETCH":
+						handleFetch(tag, args, true);
+						break;
+					case "STORE":
+						handleStore(tag, args, true);
+						break;
+					case "SEARCH":
+						handleSearch(tag, args, true);
+						break;
+					case "COPY":
+						requireState(STATE_SELECTED);
+						throw new ProtocolException(RESULT_NO, "[CANNOT] only INBOX is supported");
+					default:
+						throw new ProtocolException(RESULT_BAD, "unknown command UID " + sub);
+				}
+				break;
+
+			default:
+				throw new ProtocolException(RESULT_BAD, "unknown command " + command);
+		}
+	}
+
+	/**
+	 * Liest die Literale eines Befehls ({@code {n}} bzw. {@code {n+}} am Zeilenende). Bei
+	 * synchronisierenden Literalen wird der Client vorher zum Senden aufgefordert.
+	 *
+	 * @return Die Zeile, in der die Literale durch Verweise ersetzt sind.
+	 */
+	private String readLiterals( String line, List<String> literals ) throws IOException, ProtocolException {
+		StringBuilder command = new StringBuilder();
+		while( line.endsWith("}") ) {
+			int open = line.lastIndexOf('{');
+			if( open < 0 ) {
+				break;
+			}
+			String spec = line.substring(open + 1, line.length() - 1);
+			boolean nonSync = spec.endsWith("+");
+			if( nonSync ) {
+				spec = spec.substring(0, spec.length() - 1);
+			}
+			// number = 1*DIGIT (RFC 3501), so no sign
+			if( spec.isEmpty() || !spec.chars().allMatch(( ch ) -> ch >= '0' && ch <= '9') ) {
+				break;
+			}
+			long size;
+			try {
+				size = Long.parseLong(spec);
+			} catch( NumberFormatException ex ) {
+				break;
+			}
+
+			if( size > MAX_LITERAL_SIZE ) {
+				if( nonSync ) {
+					// Discard the literal and the rest of the command
+					readBytes(size, null);
+					readLine();
+				}
+				throw new ProtocolException(RESULT_BAD, "literal too large");
+			}
+			if( !nonSync ) {
+				send("+ ready for literal data");
+				flush();
+			}
+			ByteArrayOutputStream data = new ByteArrayOutputStream((int) size);
+			readBytes(size, data);
+			literals.add(data.toString(StandardCharsets.UTF_8));
+			command.append(line, 0, open).append('\0').append(literals.size() - 1).append('\0');
+
+			line = readLine();
+			if( line == null ) {
+				throw new EOFException("connection closed while reading command");
+			}
+		}
+		return command.append(line).toString();
+	}
+
+	private void requireState( int... states ) throws ProtocolException {
+		for( int s : states ) {
+			if( state == s ) {
+				return;
+			}
+		}
+		throw new ProtocolException(RESULT_BAD, "command invalid in this state");
+	}
+
+	private String getCapabilities() {
+		List<String> capas = new ArrayList<>(capabilities.length);
+		for( String capa : capabilities ) {
+			capa = capa.trim().toUpperCase(Locale.ROOT);
+			if( capa.equals("STARTTLS") && (isSecure() || !TlsContext.isConfigured(config)) ) {
+				continue;
+			}
+			capas.add(capa);
+		}
+		return String.join(" ", capas);
+	}
+
+	private void handleLogout( String tag ) {
+		send("* BYE %s logging out", settings.getHost());
+		send("%s OK LOGOUT completed", tag);
+		state = STATE_LOGOUT;
+		deselect();
+		close();
+	}
+
+	/**
+	 * Wechselt zu TLS (RFC 3501, Abschnitt 6.2.1).
+	 */
+	private void handleStartTls( String tag ) throws ProtocolException {
+		requireState(STATE_NOT_AUTHENTICATED);
+		if( isSecure() ) {
+			throw new ProtocolException(RESULT_BAD, "TLS already active");
+		}
+		SSLContext context = TlsContext.get(config);
+		if( context == null ) {
+			throw new ProtocolException(RESULT_NO, "[UNAVAILABLE] TLS not available");
+		}
+
+		send("%s OK begin TLS negotiation now", tag);
+		try {
+			startTls(context);
+		} catch( IOException ex ) {
+			LOG.debug("TLS negotiation failed: %s", ex.getMessage());
+			close();
+		}
+	}
+
+	private void handleLogin( String tag, Args args ) throws ProtocolException {
+		requireState(STATE_NOT_AUTHENTICATED);
+		String user = args.astring();
+		args.space();
+		String password = args.astring();
+		args.end();
+
+		LoginThrottle throttle = LoginThrottle.getInstance();
+		if( throttle.getDelay(settings, getRemoteAddress(), user) == 0
+			&& CredentialService.getInstance().verify(settings, user, password) ) {
+			throttle.success(getRemoteAddress(), user);
+			username = user;
+			state = STATE_AUTHENTICATED;
+			send("%s OK [CAPABILITY %s] LOGIN completed", tag, getCapabilities());
+		} else {
+			delayReplies(throttle.failure(settings, getRemoteAddress(), user));
+			throw new ProtocolException(RESULT_NO, "[AUTHENTICATIONFAILED] authentication failed");
+		}
+	}
+
+	private void handleSelect( String tag, Args args, boolean examine ) throws ProtocolException {
+		requireState(STATE_AUTHENTICATED, STATE_SELECTED);
+		String name = args.astring();
+		args.end();
+
+		deselect();
+		if( !isInbox(name) ) {
+			throw new ProtocolException(RESULT_NO, "[NONEXISTENT] no such mailbox");
+		}
+
+		// Register first so no change after reading the maildrop is missed
+		IMAPFactory.Mailbox mb = factory.openMailbox(username, this);
+		refresh(mb);
+		try {
+			index = mb.getIndex();
+		} catch( MaildropException ex ) {
+			mb.removeSession(this);
+			LOG.error(ex, "Failed to open maildrop for user %s", username);
+			throw new ProtocolException(RESULT_NO, "[UNAVAILABLE] mailbox not available");
+		}
+		mailbox = mb;
+		readOnly = examine;
+		view = index.getEntries();
+		state = STATE_SELECTED;
+
+		send("* FLAGS (%s)", ALL_FLAGS);
+		send("* %d EXISTS", view.length);
+		send("* 0 RECENT");
+		for( int i = 0; i < view.length; i++ ) {
+			if( !view[i].hasFlag(MaildropIndex.FLAG_SEEN) ) {
+				send("* OK [UNSEEN %d] first unseen message", i + 1);
+				break;
+			}
+		}
+		send("* OK [PERMANENTFLAGS (%s)] flags permitted", readOnly ? "" : ALL_FLAGS);
+		send("* OK [UIDVALIDITY %d] UIDs valid", index.getUidValidity());
+		send("* OK [UIDNEXT %d] predicted next UID", index.getUidNext());
+		send("%s OK [%s] %s completed", tag, readOnly ? "READ-ONLY" : "READ-WRITE", examine ? "EXAMINE" : "SELECT");
+	}
+
+	/**
+	 * Verlässt das ausgewählte Postfach, ohne Mails zu löschen.
+	 */
+	private void deselect() {
+		if( mailbox != null ) {
+			mailbox.removeSession(this);
+		}
+		mailbox = null;
+		index = null;
+		view = null;
+		if( state == STATE_SELECTED ) {
+			state = STATE_AUTHENTICATED;
+		}
+	}
+
+	private void handleList( String tag, Args args, String command ) throws ProtocolException {
+		requireState(STATE_AUTHENTICATED, STATE_SELECTED);
+		String reference = args.astring();
+		args.space();
+		String pattern = args.astring();
+		args.end();
+
+		if( pattern.isEmpty() ) {
+			if( command.equals("LIST") ) {
+				send("* LIST (\\Noselect) \"/\" \"\"");
+			}
+		} else if( matches(reference + pattern, "INBOX") ) {
+			send("* %s (%s) \"/\" INBOX", command, command.equals("LIST") ? "\\HasNoChildren" : "");
+		}
+		send("%s OK %s completed", tag, command);
+	}
+
+	private void handleStatus( String tag, Args args ) throws ProtocolException {
+		requireState(STATE_AUTHENTICATED, STATE_SELECTED);
+		String name = args.astring();
+		args.space();
+		List<String> items = args.list();
+		args.end();
+
+		if( !isInbox(name) ) {
+			throw new ProtocolException(RESULT_NO, "[NONEXISTENT] no such mailbox");
+		}
+		// Only INBOX exists, so a selected mailbox is the same one
+		IMAPFactory.Mailbox mb = mailbox != null ? mailbox : factory.openMailbox(username, this);
+		MaildropIndex idx;
+		try {
+			refresh(mb);
+			idx = mb.getIndex();
+		} catch( MaildropException ex ) {
+			LOG.error(ex, "Failed to open maildrop for user %s", username);
+			throw new ProtocolException(RESULT_NO, "[UNAVAILABLE] mailbox not available");
+		} finally {
+			if( mb != mailbox ) {
+				mb.removeSession(this);
+			}
+		}
+
+		MaildropIndex.Entry[] entries = idx.getEntries();
+		StringBuilder status = new StringBuilder();
+		for( String item : items ) {
+			item = item.toUpperCase(Locale.ROOT);
+			long value;
+			switch( item ) {
+				case "MESSAGES":
+					value = entries.length;
+					break;
+				case "RECENT":
+					value = 0;
+					break;
+				case "UIDNEXT":
+					value = idx.getUidNext();
+					break;
+				case "UIDVALIDITY":
+					value = idx.getUidValidity();
+					break;
+				case "UNSEEN":
+					value = 0;
+					for( MaildropIndex.Entry entry : entries ) {
+						if( !entry.hasFlag(MaildropIndex.FLAG_SEEN) ) {
+							value += 1;
+						}
+					}
+					break;
+				default:
+					throw new ProtocolException(RESULT_BAD, "unknown status item " + item);
+			}
+			if( status.length() > 0 ) {
+				status.append(' ');
+			}
+			status.append(item).append(' ').append(value);
+		}
+		send("* STATUS INBOX (%s)", status);
+		send("%s OK STATUS completed", tag);
+	}
+
+	private void handleNoop( String tag, String command ) {
+		if( state == STATE_SELECTED ) {
+			sync();
+		}
+		send("%s OK %s completed", tag, command);
+	}
+
+	/**
+	 * Wartet auf Änderungen im Postfach (RFC 2177), bis der Client {@code DONE} sendet.
+	 */
+	private void handleIdle( String tag ) throws ProtocolException {
+		requireState(STATE_AUTHENTICATED, STATE_SELECTED);
+		idleTag = tag;
+		send("+ idling");
+		if( state == STATE_SELECTED ) {
+			pendingChanges = false;
+			sync();
+		}
+	}
+
+	private void handleDone( String message ) {
+		String tag = idleTag;
+		idleTag = null;
+		if( message.trim().equalsIgnoreCase("DONE") ) {
+			send("%s OK IDLE terminated", tag);
+		} else {
+			send("%s BAD expected DONE", tag);
+		}
+	}
+
+	/**
+	 * Meldet, dass sich das ausgewählte Postfach geändert hat. Die Methode wird aus anderen
+	 * Threads aufgerufen und kehrt sofort zurück. Ist die Sitzung im Zustand {@code IDLE}, werden
+	 * die Änderungen von einem {@link #PUSHER} gesendet, sonst beim nächsten {@code NOOP},
+	 * {@code CHECK} oder {@code IDLE}.
+	 */
+	void mailboxChanged() {
+		pendingChanges = true;
+		if( idleTag != null && pushScheduled.compareAndSet(false, true) ) {
+			PUSHER.execute(() -> {
+				pushScheduled.set(false);
+				pushChanges();
+			});
+		}
+	}
+
+	/**
+	 * Sendet die Änderungen, falls die Sitzung im Zustand {@code IDLE} ist und gerade kein anderer
+	 * Thread auf sie zugreift.
+	 */
+	private void pushChanges() {
+		if( idleTag != null && lock.tryLock() ) {
+			try {
+				pendingChanges = false;
+				if( idleTag != null && state == STATE_SELECTED ) {
+					sync();
+					flush();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Gleicht das Postfach mit dem Maildrop ab und benachrichtigt die anderen Sitzungen, falls
+	 * sich etwas geändert hat.
+	 */
+	private void refresh( IMAPFactory.Mailbox mb ) {
+		try {
+			if( mb.refresh() ) {
+				mb.notifySessions(this);
+			}
+		} catch( MaildropException ex ) {
+			LOG.error(ex, "Failed to update index for user %s", username);
+		}
+	}
+
+	/**
+	 * Sendet {@code EXPUNGE} für entfernte und {@code EXISTS} für neue Mails und übernimmt die
+	 * aktuellen Einträge des Index als {@link #view}.
+	 */
+	private void sync() {
+		MaildropIndex.Entry[] current = index.getEntries();
+		if( current == view ) {
+			return;
+		}
+
+		int j = 0, kept = 0;
+		for( MaildropIndex.Entry entry : view ) {
+			while( j < current.length && current[j].getUid() < entry.getUid() ) {
+				j += 1;
+			}
+			if( j < current.length && current[j].getUid() == entry.getUid() ) {
+				kept += 1;
+				j += 1;
+			} else {
+				send("* %d EXPUNGE", kept + 1);
+			}
+		}
+		view = current;
+		if( current.length > kept ) {
+			send("* %d EXISTS", current.length);
+		}
+	}
+
+	private void handleClose( String tag ) throws ProtocolException {
+		requireState(STATE_SELECTED);
+		if( !readOnly ) {
+			try {
+				expunge();
+			} catch( ProtocolException ex ) {
+				LOG.debug("CLOSE without expunge for user %s: %s", username, ex.getMessage());
+			}
+		}
+		deselect();
+		send("%s OK CLOSE completed", tag);
+	}
+
+	private void handleExpunge( String tag ) throws ProtocolException {
+		requireState(STATE_SELECTED);
+		if( readOnly ) {
+			throw new ProtocolException(RESULT_NO, "mailbox is read-only");
+		}
+		expunge();
+		sync();
+		send("%s OK EXPUNGE completed", tag);
+	}
+
+	private void expunge() throws ProtocolException {
+		try {
+			index.save();
+			if( !mailbox.expunge() ) {
+				throw new ProtocolException(RESULT_NO, "[INUSE] maildrop is locked by another session");
+			}
+		} catch( MaildropException ex ) {
+			LOG.error(ex, "Failed to expunge mails for user %s", username);
+			throw new ProtocolException(RESULT_NO, "[UNAVAILABLE] expunge failed");
+		}
+		mailbox.notifySessions(this);
+	}
+
+	private void handleFetch( String tag, Args args, boolean uid ) throws ProtocolException {
+		requireState(STATE_SELECTED);
+		SequenceSet set = parseSequenceSet(args.atom(), uid);
+		args.space();
+
+		List<FetchItem> items = new ArrayList<>();
+		if( args.peek('(') ) {
+			args.expect('(');
+			while( !args.peek(')') ) {
+				if( !items.isEmpty() ) {
+					args.space();
+				}
+				FetchItem.parse(args.fetchAtt(), items);
+			}
+			args.expect(')');
+		} else {
+			FetchItem.parse(args.fetchAtt(), items);
+		}
+		args.end();
+
+		boolean failed = false;
+		long max = uid ? maxUid() : view.length;
+		for( int i = 0; i < view.length; i++ ) {
+			MaildropIndex.Entry entry = view[i];
+			if( set.contains(uid ? entry.getUid() : i + 1, max) ) {
+				try {
+					fetch(i + 1, entry, items, uid);
+				} catch( IOException ex ) {
+					// Expunged by another session or POP3
+					LOG.debug("Failed to fetch mail %s for user %s: %s", entry.getId(), username, ex.getMessage());
+					failed = true;
+				}
+			}
+		}
+		saveIndex();
+
+		if( failed ) {
+			// Files might have been moved, e.g. by resharding
+			refresh(mailbox);
+			throw new ProtocolException(RESULT_NO, "some messages could not be fetched");
+		}
+		send("%s OK FETCH completed", tag);
+	}
+
+	private void fetch( int number, MaildropIndex.Entry entry, List<FetchItem> items, boolean uid ) throws IOException {
+		byte[] content = null;
+		boolean seen = false, hasFlags = false, hasUid = false;
+		for( FetchItem item : items ) {
+			if( item.type == FetchItem.BODY ) {
+				if( content == null ) {
+					content = entry.readContent();
+				}
+				seen |= !item.peek;
+			}
+			hasFlags |= item.type == FetchItem.FLAGS;
+			hasUid |= item.type == FetchItem.UID;
+		}
+
+		boolean flagsChanged = false;
+		if( seen && !readOnly && !entry.hasFlag(MaildropIndex.FLAG_SEEN) ) {
+			index.setFlags(entry, entry.getFlags() | MaildropIndex.FLAG_SEEN);
+			flagsChanged = true;
+		}
+
+		StringBuilder line = new StringBuilder("* ").append(number).append(" FETCH (");
+		boolean first = true;
+		if( uid && !hasUid ) {
+			line.append("UID ").append(entry.getUid());
+			first = false;
+		}
+		for( FetchItem item : items ) {
+			if( !first ) {
+				line.append(' ');
+			}
+			first = false;
+			line.append(item.name).append(' ');
+			switch( item.type ) {
+				case FetchItem.FLAGS:
+					line.append('(').append(formatFlags(entry.getFlags())).append(')');
+					break;
+				case FetchItem.UID:
+					line.append(entry.getUid());
+					break;
+				case FetchItem.SIZE:
+					line.append(entry.getSize());
+					break;
+				case FetchItem.INTERNALDATE:
+					line.append('"').append(INTERNALDATE.format(
+						Files.getLastModifiedTime(entry.getFile()).toInstant().atZone(ZoneId.systemDefault())
+					)).append('"');
+					break;
+				case FetchItem.ENVELOPE:
+					appendEnvelope(line, index.getEnvelope(entry));
+					break;
+				case FetchItem.BODY:
+					sendSection(line, content, item);
+					break;
+			}
+		}
+		if( flagsChanged && !hasFlags ) {
+			line.append(" FLAGS (").append(formatFlags(entry.getFlags())).append(')');
+		}
+		send(line.append(')').toString());
+	}
+
+	/**
+	 * Sendet einen Teil einer Mail als Literal. Die bisherige Zeile wird dazu gesendet und
+	 * anschließend geleert.
+	 */
+	private void sendSection( StringBuilder line, byte[] content, FetchItem item ) {
+		int headerEnd = headerEnd(content);
+		byte[] data = content;
+		int offset = 0, length = content.length;
+		switch( item.section ) {
+			case FetchItem.SECTION_HEADER:
+				length = headerEnd;
+				break;
+			case FetchItem.SECTION_TEXT:
+				offset = headerEnd;
+				length = content.length - headerEnd;
+				break;
+			case FetchItem.SECTION_FIELDS:
+				data = headerFields(content, headerEnd, item.fields, item.fieldsNot);
+				length = data.length;
+				break;
+		}
+		if( item.partialStart >= 0 ) {
+			int start = (int) Math.min(item.partialStart, length);
+			offset += start;
+			length = (int) Math.min(item.partialLength, length - start);
+		}
+
+		line.append('{').append(length).append('}');
+		send(line.toString());
+		sendBytes(data, offset, length);
+		line.setLength(0);
+	}
+
+	/**
+	 * Hängt ein {@code ENVELOPE} an. Fehlen {@code Sender} oder {@code Reply-To}, wird nach
+	 * RFC 3501 {@code From} verwendet.
+	 */
+	private void appendEnvelope( StringBuilder line, Envelope envelope ) {
+		String from = envelope.getFrom();
+		line.append('(');
+		appendString(line, envelope.getDate());
+		line.append(' ');
+		appendString(line, envelope.getSubject());
+		line.append(' ');
+		appendAddresses(line, from);
+		line.append(' ');
+		appendAddresses(line, envelope.getSender() != null ? envelope.getSender() : from);
+		line.append(' ');
+		appendAddresses(line, envelope.getReplyTo() != null ? envelope.getReplyTo() : from);
+		line.append(' ');
+		appendAddresses(line, envelope.getTo());
+		line.append(' ');
+		appendAddresses(line, envelope.getCc());
+		line.append(' ');
+		appendAddresses(line, envelope.getBcc());
+		line.append(' ');
+		appendString(line, envelope.getInReplyTo());
+		line.append(' ');
+		appendString(line, envelope.getMessageId());
+		line.append(')');
+	}
+
+	private void appendAddresses( StringBuilder line, String value ) {
+		List<String[]> addresses = value == null ? List.of() : parseAddresses(value);
+		if( addresses.isEmpty() ) {
+			line.append("NIL");
+			return;
+		}
+		line.append('(');
+		for( String[] address : addresses ) {
+			line.append('(');
+			for( int i = 0; i < address.length; i++ ) {
+				if( i > 0 ) {
+					line.append(' ');
+				}
+				appendString(line, address[i]);
+			}
+			line.append(')');
+		}
+		line.append(')');
+	}
+
+	/**
+	 * Hängt einen String als Quoted String an. Enthält er Zeilenumbrüche oder Zeichen außerhalb
+	 * von ASCII, wird er als Literal gesendet. Dazu wird die bisherige Zeile gesendet und
+	 * anschließend geleert.
+	 */
+	private void appendString( StringBuilder line, String value ) {
+		if( value == null ) {
+			line.append("NIL");
+			return;
+		}
+		boolean quotable = true;
+		for( int i = 0; i < value.length() && quotable; i++ ) {
+			char ch = value.charAt(i);
+			quotable = ch > 0 && ch < 128 && ch != '\r' && ch != '\n';
+		}
+		if( quotable ) {
+			line.append('"').append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		line.append('{').append(bytes.length).append('}');
+		send(line.toString());
+		sendBytes(bytes, 0, bytes.length);
+		line.setLength(0);
+	}
+
+	private void handleStore( String tag, Args args, boolean uid ) throws ProtocolException {
+		requireState(STATE_SELECTED);
+		SequenceSet set = parseSequenceSet(args.atom(), uid);
+		args.space();
+		String item = args.atom().toUpperCase(Locale.ROOT);
+		args.space();
+
+		char mode = item.charAt(0);
+		if( mode == '+' || mode == '-' ) {
+			item = item.substring(1);
+		}
+		boolean silent = item.endsWith(".SILENT");
+		if( silent ) {
+			item = item.substring(0, item.length() - ".SILENT".length());
+		}
+		if( !item.equals("FLAGS") ) {
+			throw new ProtocolException(RESULT_BAD, "unsupported store item " + item);
+		}
+
+		List<String> names;
+		if( args.peek('(') ) {
+			names = args.list();
+		} else {
+			names = new ArrayList<>();
+			names.add(args.atom());
+			while( args.peek(' ') ) {
+				args.space();
+				names.add(args.atom());
+			}
+		}
+		args.end();
+		int flags = parseFlags(names);
+
+		if( readOnly ) {
+			throw new ProtocolException(RESULT_NO, "mailbox is read-only");
+		}
+
+		long max = uid ? maxUid() : view.length;
+		for( int i = 0; i < view.length; i++ ) {
+			MaildropIndex.Entry entry = view[i];
+			if( set.contains(uid ? entry.getUid() : i + 1, max) ) {
+				int newFlags = mode == '+' ? entry.getFlags() | flags : mode == '-' ? entry.getFlags() & ~flags : flags;
+				index.setFlags(entry, newFlags);
+				if( !silent ) {
+					if( uid ) {
+						send("* %d FETCH (UID %d FLAGS (%s))", i + 1, entry.getUid(), formatFlags(newFlags));
+					} else {
+						send("* %d FETCH (FLAGS (%s))", i + 1, formatFlags(newFlags));
+					}
+				}
+			}
+		}
+		saveIndex();
+		send("%s OK STORE completed", tag);
+	}
+
+	private void handleSearch( String tag, Args args, boolean uid ) throws ProtocolException {
+		requireState(STATE_SELECTED);
+		if( args.peekAtom("CHARSET") ) {
+			args.atom();
+			args.space();
+			String charset = args.astring().toUpperCase(Locale.ROOT);
+			if( !charset.equals("UTF-8") && !charset.equals("US-ASCII") ) {
+				throw new ProtocolException(RESULT_NO, "[BADCHARSET (UTF-8 US-ASCII)] unsupported charset");
+			}
+			args.space();
+		}
+		List<Criterion> criteria = new ArrayList<>();
+		criteria.add(parseCriterion(args));
+		while( args.peek(' ') ) {
+			args.space();
+			criteria.add(parseCriterion(args));
+		}
+		args.end();
+		Criterion criterion = and(criteria);
+
+		StringBuilder result = new StringBuilder("* SEARCH");
+		for( int i = 0; i < view.length; i++ ) {
+			try {
+				if( criterion.matches(i + 1, view[i]) ) {
+					result.append(' ').append(uid ? view[i].getUid() : i + 1);
+				}
+			} catch( IOException ex ) {
+				// Expunged by another session or POP3
+				LOG.debug("Failed to search mail %s for user %s: %s", view[i].getId(), username, ex.getMessage());
+			}
+		}
+		send(result.toString());
+		send("%s OK SEARCH completed", tag);
+	}
+
+	private Criterion parseCriterion( Args args ) throws ProtocolException {
+		if( args.peek('(') ) {
+			args.expect('(');
+			List<Criterion> criteria = new ArrayList<>();
+			while( !args.peek(')') ) {
+				if( !criteria.isEmpty() ) {
+					args.space();
+				}
+				criteria.add(parseCriterion(args));
+			}
+			args.expect(')');
+			return and(criteria);
+		}
+
+		String key = args.atom().toUpperCase(Locale.ROOT);
+		switch( key ) {
+			case "ALL":
+			case "OLD":
+				return ( n, e ) -> true;
+			case "NEW":
+			case "RECENT":
+				return ( n, e ) -> false;
+			case "ANSWERED":
+				return flag(MaildropIndex.FLAG_ANSWERED, true);
+			case "DELETED":
+				return flag(MaildropIndex.FLAG_DELETED, true);
+			case "DRAFT":
+				return flag(MaildropIndex.FLAG_DRAFT, true);
+			case "FLAGGED":
+				return flag(MaildropIndex.FLAG_FLAGGED, true);
+			case "SEEN":
+				return flag(MaildropIndex.FLAG_SEEN, true);
+			case "UNANSWERED":
+				return flag(MaildropIndex.FLAG_ANSWERED, false);
+			case "UNDELETED":
+				return flag(MaildropIndex.FLAG_DELETED, false);
+			case "UNDRAFT":
+				return flag(MaildropIndex.FLAG_DRAFT, false);
+			case "UNFLAGGED":
+				return flag(MaildropIndex.FLAG_FLAGGED, false);
+			case "UNSEEN":
+				return flag(MaildropIndex.FLAG_SEEN, false);
+			case "KEYWORD":
+				// Keywords can not be stored
+				argument(args);
+				return ( n, e ) -> false;
+			case "UNKEYWORD":
+				argument(args);
+				return ( n, e ) -> true;
+
+			case "FROM":
+				return search(SearchQuery.field(SearchQuery.Field.FROM, argument(args)));
+			case "TO":
+				return search(SearchQuery.field(SearchQuery.Field.TO, argument(args)));
+			case "CC":
+				return search(SearchQuery.field(SearchQuery.Field.CC, argument(args)));
+			case "SUBJECT":
+				return search(SearchQuery.field(SearchQuery.Field.SUBJECT, argument(args)));
+			case "BODY":
+				return search(SearchQuery.field(SearchQuery.Field.BODY, argument(args)));
+			case "TEXT":
+				return search(SearchQuery.text(argument(args)));
+			case "SENTBEFORE":
+				return search(SearchQuery.sentBefore(parseDate(argument(args))));
+			case "SENTON":
+				return search(SearchQuery.sentOn(parseDate(argument(args))));
+			case "SENTSINCE":
+				return search(SearchQuery.sentSince(parseDate(argument(args))));
+			case "BCC": {
+				String needle = argument(args).toLowerCase(Locale.ROOT);
+				return ( n, e ) -> {
+					String bcc = index.getEnvelope(e).getBcc();
+					return bcc != null && bcc.toLowerCase(Locale.ROOT).contains(needle);
+				};
+			}
+			case "HEADER":
+				String name = argument(args);
+				return header(name.toUpperCase(Locale.ROOT), argument(args));
+
+			case "BEFORE": {
+				LocalDate date = parseDate(argument(args));
+				return ( n, e ) -> internalDate(e).isBefore(date);
+			}
+			case "ON": {
+				LocalDate date = parseDate(argument(args));
+				return ( n, e ) -> internalDate(e).isEqual(date);
+			}
+			case "SINCE": {
+				LocalDate date = parseDate(argument(args));
+				return ( n, e ) -> !internalDate(e).isBefore(date);
+			}
+			case "LARGER": {
+				long size = parseNumber(argument(args));
+				return ( n, e ) -> e.getSize() > size;
+			}
+			case "SMALLER": {
+				long size = parseNumber(argument(args));
+				return ( n, e ) -> e.getSize() < size;
+			}
+
+			case "NOT": {
+				args.space();
+				Criterion criterion = parseCriterion(args);
+				return ( n, e ) -> !criterion.matches(n, e);
+			}
+			case "OR": {
+				args.space();
+				Criterion a = parseCriterion(args);
+				args.space();
+				Criterion b = parseCriterion(args);
+				return ( n, e ) -> a.matches(n, e) || b.matches(n, e);
+			}
+			case "UID": {
+				args.space();
+				SequenceSet set = new SequenceSet(args.atom());
+				long max = maxUid();
+				return ( n, e ) -> set.contains(e.getUid(), max);
+			}
+
+			default:
+				if( Character.isDigit(key.charAt(0)) || key.charAt(0) == '*' ) {
+					SequenceSet set = parseSequenceSet(key, false);
+					int max = view.length;
+					return ( n, e ) -> set.contains(n, max);
+				}
+				throw new ProtocolException(RESULT_BAD, "unknown search key " + key);
+		}
+	}
+
+	private static String argument( Args args ) throws ProtocolException {
+		args.space();
+		return args.astring();
+	}
+
+	private static Criterion and( List<Criterion> criteria ) {
+		return ( n, e ) -> {
+			for( Criterion criterion : criteria ) {
+				if( !criterion.matches(n, e) ) {
+					return false;
+				}
+			}
+			return true;
+		};
+	}
+
+	private static Criterion flag( int flag, boolean set ) {
+		return ( n, e ) -> e.hasFlag(flag) == set;
+	}
+
+	/**
+	 * Fragt den {@link SearchIndex} einmal ab und prüft die Mails gegen das Ergebnis.
+	 */
+	private Criterion search( SearchQuery query ) throws ProtocolException {
+		Set<String> ids;
+		try {
+			ids = mailbox.search(query);
+		} catch( MaildropException ex ) {
+			LOG.error(ex, "Search %s failed for user %s", query, username);
+			throw new ProtocolException(RESULT_NO, "[UNAVAILABLE] search failed");
+		}
+		return ( n, e ) -> ids.contains(e.getId());
+	}
+
+	/**
+	 * Sucht in den Headern einer Mail. Diese Kriterien lesen die Header jeder Mail.
+	 */
+	private static Criterion header( String name, String value ) {
+		String needle = value.toLowerCase(Locale.ROOT);
+		return ( n, e ) -> {
+			MimeHeaders headers = MimeParser.readHeaders(e.getFile());
+			for( String field : headers.getAll(name) ) {
+				if( field.toLowerCase(Locale.ROOT).contains(needle) ) {
+					return true;
+				}
+			}
+			return false;
+		};
+	}
+
+	private static LocalDate internalDate( MaildropIndex.Entry entry ) throws IOException {
+		return Files.getLastModifiedTime(entry.getFile()).toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+	}
+
+	private static LocalDate parseDate( String value ) throws ProtocolException {
+		try {
+			return LocalDate.parse(value, SEARCH_DATE);
+		} catch( DateTimeParseException ex ) {
+			throw new ProtocolException(RESULT_BAD, "invalid date " + value);
+		}
+	}
+
+	private static long parseNumber( String value ) throws ProtocolException {
+		try {
+			return Long.parseLong(value);
+		} catch( NumberFormatException ex ) {
+			throw new ProtocolException(RESULT_BAD, "invalid number " + value);
+		}
+	}
+
+	private SequenceSet parseSequenceSet( String value, boolean uid ) throws ProtocolException {
+		SequenceSet set = new SequenceSet(value);
+		if( !uid && set.maxNumber() > view.length ) {
+			throw new ProtocolException(RESULT_BAD, "invalid message sequence number");
+		}
+		return set;
+	}
+
+	private long maxUid() {
+		return view.length == 0 ? 0 : view[view.length - 1].getUid();
+	}
+
+	private void saveIndex() {
+		try {
+			index.save();
+		} catch( MaildropException ex ) {
+			LOG.error(ex, "Failed to save index for user %s", username);
+		}
+	}
+
+	private static boolean isInbox( String name ) {
+		return name.equalsIgnoreCase("INBOX");
+	}
+
+	/**
+	 * Prüft einen Namen gegen ein Muster von {@code LIST} mit den Platzhaltern {@code *} und
+	 * {@code %}.
+	 */
+	private static boolean matches( String pattern, String name ) {
+		StringBuilder regex = new StringBuilder();
+		for( char ch : pattern.toCharArray() ) {
+			if( ch == '*' ) {
+				regex.append(".*");
+			} else if( ch == '%' ) {
+				regex.append("[^/]*");
+			} else {
+				regex.append(Pattern.quote(String.valueOf(ch)));
+			}
+		}
+		return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE).matcher(name).matches();
+	}
+
+	private static String formatFlags( int flags ) {
+		StringBuilder names = new StringBuilder();
+		for( int i = 0; i < FLAG_NAMES.length; i++ ) {
+			if( (flags & (1 << i)) != 0 ) {
+				if( names.length() > 0 ) {
+					names.append(' ');
+				}
+				names.append(FLAG_NAMES[i]);
+			}
+		}
+		return names.toString();
+	}
+
+	/**
+	 * Wandelt Namen von Flags in Bits um. Unbekannte Schlüsselwörter werden ignoriert, da sie
+	 * nicht in {@code PERMANENTFLAGS} angeboten werden.
+	 */
+	private static int parseFlags( List<String> names ) throws ProtocolException {
+		int flags = 0;
+		for( String name : names ) {
+			if( name.equalsIgnoreCase("\\Recent") ) {
+				throw new ProtocolException(RESULT_BAD, "\\Recent can not be stored");
+			}
+			for( int i = 0; i < FLAG_NAMES.length; i++ ) {
+				if( FLAG_NAMES[i].equalsIgnoreCase(name) ) {
+					flags |= 1 << i;
+				}
+			}
+		}
+		return flags;
+	}
+
+	/**
+	 * Liefert die Position hinter der Leerzeile, die den Header vom Body trennt.
+	 */
+	private static int headerEnd( byte[] content ) {
+		if( content.length >= 2 && content[0] == '\r' && content[1] == '\n' ) {
+			return 2;
+		}
+		for( int i = 0; i + 3 < content.length; i++ ) {
+			if( content[i] == '\r' && content[i + 1] == '\n' && content[i + 2] == '\r' && content[i + 3] == '\n' ) {
+				return i + 4;
+			}
+		}
+		return content.length;
+	}
+
+	/**
+	 * Liefert die Header-Felder, deren Name (nicht) in {@code names} steht, mit abschließender
+	 * Leerzeile.
+	 */
+	private static byte[] headerFields( byte[] content, int headerEnd, Set<String> names, boolean not ) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int pos = 0;
+		while( pos < headerEnd ) {
+			// A field ends at a line break not followed by whitespace (folding)
+			int end = pos;
+			do {
+				while( end < headerEnd && content[end] != '\n' ) {
+					end += 1;
+				}
+				end = Math.min(end + 1, headerEnd);
+			} while( end < headerEnd && (content[end] == ' ' || content[end] == '\t') );
+
+			int colon = pos;
+			while( colon < end && content[colon] != ':' ) {
+				colon += 1;
+			}
+			if( colon < end ) {
+				String name = new String(content, pos, colon - pos, StandardCharsets.US_ASCII).trim().toUpperCase(Locale.ROOT);
+				if( names.contains(name) != not ) {
+					out.write(content, pos, end - pos);
+				}
+			}
+			pos = end;
+		}
+		out.write('\r');
+		out.write('\n');
+		return out.toByteArray();
+	}
+
+	/**
+	 * Zerlegt eine Liste von Adressen (RFC 5322) in die Struktur von {@code ENVELOPE}: Name, Route,
+	 * Postfach und Host. Gruppen beginnen mit einem Eintrag, der nur das Postfach (den Namen der
+	 * Gruppe) enthält, und enden mit einem leeren Eintrag.
+	 */
+	private static List<String[]> parseAddresses( String value ) {
+		List<String[]> result = new ArrayList<>();
+		StringBuilder current = new StringBuilder();
+		boolean quoted = false, angle = false, group = false;
+		int comment = 0;
+		for( int i = 0; i <= value.length(); i++ ) {
+			char ch = i < value.length() ? value.charAt(i) : ',';
+			if( quoted || comment > 0 ) {
+				current.append(ch);
+				if( ch == '\\' && i + 1 < value.length() ) {
+					current.append(value.charAt(++i));
+				} else if( quoted && ch == '"' ) {
+					quoted = false;
+				} else if( !quoted && ch == '(' ) {
+					comment += 1;
+				} else if( !quoted && ch == ')' ) {
+					comment -= 1;
+				}
+				continue;
+			}
+			if( ch == ':' && !angle && !group ) {
+				result.add(new String[]{null, null, unquote(current.toString().trim()), null});
+				current.setLength(0);
+				group = true;
+			} else if( ch == ';' && !angle && group ) {
+				addAddress(result, current.toString());
+				current.setLength(0);
+				result.add(new String[]{null, null, null, null});
+				group = false;
+			} else if( ch == ',' && !angle ) {
+				addAddress(result, current.toString());
+				current.setLength(0);
+			} else {
+				quoted |= ch == '"';
+				comment += ch == '(' ? 1 : 0;
+				angle = ch == '<' || (angle && ch != '>');
+				current.append(ch);
+			}
+		}
+		if( group ) {
+			result.add(new String[]{null, null, null, null});
+		}
+		return result;
+	}
+
+	private static void addAddress( List<String[]> result, String text ) {
+		text = text.trim();
+		if( text.isEmpty() ) {
+			return;
+		}
+		String name = null, addr;
+		int open = text.lastIndexOf('<');
+		if( open >= 0 ) {
+			int close = text.indexOf('>', open);
+			name = unquote(text.substring(0, open).trim());
+			addr = text.substring(open + 1, close < 0 ? text.length() : close).trim();
+		} else {
+			// addr@host (Name)
+			int comment = text.indexOf('(');
+			if( comment >= 0 ) {
+				int close = text.lastIndexOf(')');
+				name = text.substring(comment + 1, close > comment ? close : text.length()).trim();
+				addr = text.substring(0, comment).trim();
+			} else {
+				addr = text;
+			}
+		}
+
+		String route = null;
+		int colon = addr.indexOf(':');
+		if( addr.startsWith("@") && colon > 0 ) {
+			route = addr.substring(0, colon);
+			addr = addr.substring(colon + 1);
+		}
+		int at = addr.lastIndexOf('@');
+		String mailbox = at < 0 ? addr : addr.substring(0, at);
+		// NIL as host would mark the start of a group
+		String host = at < 0 ? "" : addr.substring(at + 1);
+		result.add(new String[]{name == null || name.isEmpty() ? null : name, route, unquote(mailbox), host});
+	}
+
+	private static String unquote( String value ) {
+		if( value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"") ) {
+			return value.substring(1, value.length() - 1).replaceAll("\\\\(.)", "$1");
+		}
+		return value;
+	}
+
+}
@@ -0,0 +1,96 @@
+package schule.ngb.carrot.protocol;
+
+import org.ini4j.Ini;
+import schule.ngb.carrot.maildrop.FilesystemMaildrop;
+import schule.ngb.carrot.maildrop.MailAddress;
+import schule.ngb.carrot.maildrop.MaildropException;
+import schule.ngb.carrot.maildrop.SpooledMessage;
+import schule.ngb.carrot.util.ConfigSnapshot;
+import schule.ngb.carrot.util.Configuration;
+import schule.ngb.carrot.util.Log;
+
+import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Factory für {@link LMTPHandler}.
+ * <p>
+ * LMTP nutzt die Konfiguration von SMTP (Abschnitt {@code [smtp]}), die mit einer eventuell
+ * vorhandenen {@code lmtp.config} zusammengeführt wird. Nachrichten werden ohne Warteschlange
+ * direkt in die Maildrops zugestellt.
+ */
+public class LMTPFactory extends GenericProtocolHandlerFactory {
+
+	private static final Log LOG = Log.getLogger(LMTPFactory.class);
+
+
+	/**
+	 * Ordner für ausgelagerte Nachrichten.
+	 */
+	private final Path spoolDir;
+
+	/**
+	 * Größe in Bytes, ab der Nachrichten ausgelagert werden.
+	 */
+	private final int spoolThreshold;
+
+	public LMTPFactory( Ini config ) {
+		super(config, LMTPHandler.class);
+
+		spoolDir = Paths.get(
+			this.config.get(Configuration.SECTION_MAIN, "data"),
+			this.config.get("smtp", "maildrop"),
+			this.config.get("smtp", "spool_dir")
+		);
+		if( this.config.get("smtp", "spool", boolean.class) ) {
+			spoolThreshold = this.config.get("smtp", "spool_threshold", int.class);
+		} else {
+			spoolThreshold = 0;
+		}
+	}
+
+	@Override
+	protected Ini loadConfig( Ini globalConfig ) {
+		Ini config = Configuration.from(globalConfig)
+			.loadLeft(SMTPHandler.class.getResourceAsStream("smtp.config"))
+			.loadLeft(type.getResourceAsStream(this.getConfigFile()))
+			.build();
+
+		if( globalConfig.get("smtp", "maildrop") == null ) {
+			if( globalConfig.get("pop3", "maildrop") != null ) {
+				config.put("smtp", "maildrop", config.get("pop3", "maildrop"));
+			}
+		}
+
+		return config;
+	}
+
+	@Override
+	public ProtocolHandler create( Socket clientSocket ) {
+		ConfigSnapshot current = settings;
+		return new LMTPHandler(clientSocket, current.getConfig(), current, this);
+	}
+
+	/**
+	 * Erstellt einen neuen Puffer für eine eingehende Nachricht.
+	 *
+	 * @return Eine leere Nachricht.
+	 */
+	public SpooledMessage createMessage() {
+		return new SpooledMessage(spoolDir, spoolThreshold);
+	}
+
+	/**
+	 * Legt die Nachricht im Maildrop des Empfängers ab.
+	 *
+	 * @param rcpt Der (lokale) Empfänger.
+	 * @param message Die Nachricht.
+	 * @throws MaildropException Falls die Nachricht nicht abgelegt werden kann.
+	 */
+	public void deliver( MailAddress rcpt, SpooledMessage message ) throws MaildropException {
+		FilesystemMaildrop.deliver(rcpt.getMailbox(), settings.get("smtp", "maildrop"), config, message);
+		LOG.debug("Delivered mail to mailbox %s (%d bytes)", rcpt.getMailbox(), message.size());
+	}
+
+}
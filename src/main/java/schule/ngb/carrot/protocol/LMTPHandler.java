@@ -0,0 +1,114 @@
+package schule.ngb.carrot.protocol;
+
+import org.ini4j.Ini;
+import schule.ngb.carrot.CarrotServer;
+import schule.ngb.carrot.maildrop.MailAddress;
+import schule.ngb.carrot.maildrop.MaildropException;
+import schule.ngb.carrot.maildrop.SpooledMessage;
+import schule.ngb.carrot.util.ConfigSnapshot;
+import schule.ngb.carrot.util.Log;
+
+import java.net.Socket;
+import java.util.List;
+
+/**
+ * Implementierung des Local Mail Transfer Protocol (RFC 2033).
+ * <p>
+ * LMTP entspricht weitgehend SMTP und nutzt dieselbe Verarbeitung von {@code MAIL},
+ * {@code RCPT}, {@code DATA} und {@code BDAT}. Die Anmeldung erfolgt mit {@code LHLO}.
+ * Nachrichten werden nicht in die Warteschlange gestellt, sondern sofort in die Maildrops
+ * zugestellt. Nach dem Ende der Nachricht wird für jeden angenommenen Empfänger eine eigene
+ * Antwort gesendet. Es werden nur lokale Empfänger angenommen.
+ */
+@Protocol( name = "lmtp", port = 24, factory = LMTPFactory.class )
+public class LMTPHandler extends SMTPHandler {
+
+	private static final Log LOG = Log.getLogger(LMTPHandler.class);
+
+
+	private final LMTPFactory factory;
+
+	public LMTPHandler( Socket clientSocket, Ini config, ConfigSnapshot settings, LMTPFactory factory ) {
+		super(clientSocket, config, settings, null);
+		this.factory = factory;
+	}
+
+	@Override
+	public void handleConnect() {
+		send(STATUS_READY, "%s LMTP ready on %s (v%s)",
+			settings.getHost(),
+			CarrotServer.APP_NAME, CarrotServer.APP_VERSION
+		);
+	}
+
+	@Override
+	public void handleMessage( String message ) {
+		String[] parts = splitMessage(message);
+		switch( parts[0] ) {
+			case "LHLO":
+				resetTimer();
+				try {
+					handleEhlo(parts[1]);
+				} catch( ProtocolException e ) {
+					send(e.getCode(), e.getMessage());
+				}
+				break;
+
+			case "HELO":
+			case "EHLO":
+				resetTimer();
+				send(STATUS_UNKNOWN_CMD, "use LHLO");
+				break;
+
+			default:
+				super.handleMessage(message);
+				break;
+		}
+	}
+
+	@Override
+	protected boolean acceptRecipient( MailAddress rcptAddr ) {
+		return isLocalMailPath(rcptAddr) && settings.hasUser(rcptAddr.getMailbox());
+	}
+
+	@Override
+	protected ProtocolException checkTransaction() {
+		ProtocolException rejected = super.checkTransaction();
+		if( rejected != null && rejected.getCode() == STATUS_TRANSACTION_FAILED ) {
+			// Ohne angenommene Empfänger gäbe es keine Antwort auf DATA (RFC 2033, Abschnitt 4.2)
+			return new ProtocolException(STATUS_WRONG_ORDER, "no valid recipients");
+		}
+		return rejected;
+	}
+
+	@Override
+	protected SpooledMessage createMessage() {
+		return factory.createMessage();
+	}
+
+	@Override
+	protected void deliverMessage( MailAddress from, List<MailAddress> recipients, String body, SpooledMessage message ) {
+		try {
+			for( MailAddress rcpt : recipients ) {
+				try {
+					factory.deliver(rcpt, message);
+					send(STATUS_OK, "<%s> delivered", rcpt);
+				} catch( MaildropException ex ) {
+					LOG.error(ex, "Failed to deliver mail to %s", rcpt);
+					send(STATUS_LOCAL_ERR, "<%s> temporary failure, try again later", rcpt);
+				}
+			}
+		} finally {
+			message.close();
+		}
+	}
+
+	@Override
+	protected void rejectMessage( int code, String text ) {
+		// Eine Antwort pro Empfänger (RFC 2033, Abschnitt 4.2)
+		for( MailAddress rcpt : getRecipients() ) {
+			send(code, "<%s> %s", rcpt, text);
+		}
+	}
+
+}
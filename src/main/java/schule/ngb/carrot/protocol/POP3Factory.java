@@ -4,40 +4,178 @@ import org.ini4j.Ini;
 import schule.ngb.carrot.maildrop.FilesystemMaildrop;
 import schule.ngb.carrot.maildrop.Maildrop;
 import schule.ngb.carrot.maildrop.MaildropException;
+import schule.ngb.carrot.maildrop.ShardMigration;
+import schule.ngb.carrot.util.ConfigSnapshot;
+import schule.ngb.carrot.util.Configuration;
 import schule.ngb.carrot.util.Log;
+import schule.ngb.carrot.util.Timer;
 
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class POP3Factory extends GenericProtocolHandlerFactory {
 
 	private static final Log LOG = Log.getLogger(POP3Factory.class);
 
 
+	/**
+	 * Pool für die Wiederherstellung der Maildrops. Die Anzahl Threads wird über
+	 * {@code restore_parallelism} begrenzt.
+	 */
+	private final ForkJoinPool restorePool;
+
+	/**
+	 * Laufende oder abgeschlossene Wiederherstellungen pro Nutzer. Jeder Maildrop wird pro Start
+	 * höchstens einmal wiederhergestellt.
+	 */
+	private final ConcurrentMap<String, CompletableFuture<Void>> restored;
+
+	/**
+	 * Anzahl bereits wiederhergestellter Maildrops.
+	 */
+	private final AtomicInteger restoredCount = new AtomicInteger(0);
+
+	/**
+	 * Zuletzt berechnete Capabilities der Handler.
+	 */
+	private volatile POP3Handler.Capabilities capabilities;
+
+	/**
+	 * Misst die Zeit seit Beginn der Wiederherstellung.
+	 */
+	private final Timer restoreTimer = new Timer();
+
 	public POP3Factory( Ini config ) {
 		super(config, POP3Handler.class);
-		restoreMails();
+
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		if( this.config.get("pop3", "restore_parallelism") != null ) {
+			parallelism = Math.max(1, this.config.get("pop3", "restore_parallelism", int.class));
+		}
+		restorePool = new ForkJoinPool(parallelism);
+		restored = new ConcurrentHashMap<>();
+
+		restoreTimer.start();
+		if( this.config.get("pop3", "restore_lazy", boolean.class) ) {
+			LOG.info("Maildrops of %d users will be restored on first login", getUsers().size());
+		} else {
+			restoreMails();
+		}
+
+		if( this.config.get(Configuration.SECTION_MAIN, "reshard", boolean.class) ) {
+			Thread migration = new Thread(new ShardMigration(
+				this.config, this.config.get("pop3", "maildrop"), new ArrayList<>(getUsers())
+			), "reshard");
+			migration.setDaemon(true);
+			migration.start();
+		}
+	}
+
+	/**
+	 * Liefert die Capabilities für eine Konfiguration. Die Bitmaske wird nur neu berechnet, wenn
+	 * sich die Konfiguration geändert hat.
+	 *
+	 * @param settings Die Konfiguration des Handlers.
+	 * @return Die Capabilities.
+	 */
+	POP3Handler.Capabilities getCapabilities( ConfigSnapshot settings ) {
+		POP3Handler.Capabilities capas = capabilities;
+		if( capas == null || capas.settings != settings ) {
+			capas = new POP3Handler.Capabilities(settings);
+			capabilities = capas;
+		}
+		return capas;
 	}
 
 	@Override
 	public ProtocolHandler create( Socket clientSocket ) {
-		return new POP3Handler(clientSocket, this.config);
+		ConfigSnapshot current = this.settings;
+		return new POP3Handler(clientSocket, current.getConfig(), current, this);
 	}
 
+	/**
+	 * Stellt die Maildrops aller Nutzer parallel wieder her und wartet, bis alle abgeschlossen
+	 * sind.
+	 */
 	public void restoreMails() {
+		Set<String> users = getUsers();
+
+		List<CompletableFuture<Void>> futures = new ArrayList<>(users.size());
+		for( String user : users ) {
+			futures.add(restoreAsync(user));
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+
+		LOG.info("Restored %d maildrops in %.3fs", users.size(), restoreTimer.getSeconds());
+	}
+
+	/**
+	 * Stellt den Maildrop des Nutzers wieder her, falls das seit dem Start noch nicht geschehen
+	 * ist. Läuft die Wiederherstellung gerade, wird auf das Ende gewartet.
+	 *
+	 * @param user Der Nutzername.
+	 */
+	public void ensureRestored( String user ) {
+		try {
+			restoreAsync(user).join();
+		} catch( CompletionException ignored ) {
+			// Fehler wurden schon bei der Wiederherstellung geloggt
+		}
+	}
+
+	/**
+	 * Liefert die Anzahl der bisher wiederhergestellten Maildrops.
+	 *
+	 * @return Anzahl wiederhergestellter Maildrops.
+	 */
+	public int getRestoredCount() {
+		return restoredCount.get();
+	}
+
+	/**
+	 * Liefert die Zeit in Millisekunden seit Beginn der Wiederherstellung.
+	 *
+	 * @return Vergangene Zeit in ms.
+	 */
+	public int getRestoreMillis() {
+		return restoreTimer.getMillis();
+	}
+
+	private Set<String> getUsers() {
+		return settings.getUserDirectory().getUserNames();
+	}
+
+	private CompletableFuture<Void> restoreAsync( String user ) {
+		return restored.computeIfAbsent(user,
+			( u ) -> CompletableFuture.runAsync(() -> restoreMaildrop(u), restorePool)
+		);
+	}
+
+	private void restoreMaildrop( String user ) {
 		boolean restore = config.get("pop3", "restore_trash_on_start", boolean.class);
-		for( String user : config.get("users").keySet() ) {
-			try {
-				Maildrop maildrop = new FilesystemMaildrop(user, config.get("pop3", "maildrop"), config);
-				if( maildrop.isLocked() ) {
-					maildrop.unlock();
-				}
-
-				if( restore ) {
-					maildrop.restoreDeleted();
-					LOG.debug("Restored mails from trash for user %s", user);
-				}
-			} catch( MaildropException ex ) {
-				LOG.error(ex, "failed to restore mails for user %s", user);
+		try {
+			// Sperren werden bei Programmende vom Betriebssystem freigegeben und müssen nicht
+			// mehr entfernt werden.
+			Maildrop maildrop = new FilesystemMaildrop(user, config.get("pop3", "maildrop"), config);
+			if( restore ) {
+				maildrop.restoreDeleted();
+				LOG.debug("Restored mails from trash for user %s", user);
+			}
+		} catch( MaildropException ex ) {
+			LOG.error(ex, "failed to restore mails for user %s", user);
+		} finally {
+			int total = settings.getUserDirectory().size();
+			int n = restoredCount.incrementAndGet();
+			if( n % Math.max(1, total / 10) == 0 ) {
+				LOG.info("Restored %d of %d maildrops (%.1fs)", n, total, restoreTimer.getSeconds());
 			}
 		}
 	}
@@ -3,23 +3,24 @@ package schule.ngb.carrot.protocol;
 import org.ini4j.Ini;
 import schule.ngb.carrot.CarrotServer;
 import schule.ngb.carrot.maildrop.FilesystemMaildrop;
-import schule.ngb.carrot.maildrop.Mail;
 import schule.ngb.carrot.maildrop.Maildrop;
 import schule.ngb.carrot.maildrop.MaildropException;
+import schule.ngb.carrot.maildrop.MaildropSnapshot;
+import schule.ngb.carrot.util.ConfigSnapshot;
 import schule.ngb.carrot.util.Configuration;
+import schule.ngb.carrot.util.CredentialService;
+import schule.ngb.carrot.util.Digest;
 import schule.ngb.carrot.util.Log;
+import schule.ngb.carrot.util.LoginThrottle;
+import schule.ngb.carrot.util.TlsContext;
 
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
-import java.math.BigInteger;
+import java.io.InputStream;
 import java.net.ProtocolException;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Iterator;
-import java.util.List;
 
-@Protocol( name = "pop3", port = 110, factory = POP3Factory.class )
+@Protocol( name = "pop3", port = 110, tlsPort = 995, factory = POP3Factory.class )
 public class POP3Handler extends StringProtocolHandler {
 
 	private static final Log LOG = Log.getLogger(POP3Handler.class);
@@ -34,20 +35,211 @@ public class POP3Handler extends StringProtocolHandler {
 	public static final char TERMINATOR = '.';
 
 
+	/**
+	 * Bits der Capabilities, von denen Befehle abhängen.
+	 */
+	static final long CAPA_CAPA = 1L, CAPA_USER = 1L << 1, CAPA_APOP = 1L << 2, CAPA_TOP = 1L << 3, CAPA_UIDL = 1L << 4,
+		CAPA_PIPELINING = 1L << 5, CAPA_RESP_CODES = 1L << 6, CAPA_AUTH_RESP_CODE = 1L << 7, CAPA_STLS = 1L << 8;
+
+	/**
+	 * Befehle mit der benötigten Capability und den erlaubten Zuständen.
+	 */
+	enum Command {
+		CAPA(CAPA_CAPA, STATE_AUTHORIZATION, STATE_TRANSACTION),
+		USER(CAPA_USER, STATE_AUTHORIZATION),
+		PASS(CAPA_USER, STATE_AUTHORIZATION),
+		APOP(CAPA_APOP, STATE_AUTHORIZATION),
+		STLS(CAPA_STLS, STATE_AUTHORIZATION),
+		STAT(0, STATE_TRANSACTION),
+		LIST(0, STATE_TRANSACTION),
+		RETR(0, STATE_TRANSACTION),
+		TOP(CAPA_TOP, STATE_TRANSACTION),
+		UIDL(CAPA_UIDL, STATE_TRANSACTION),
+		DELE(0, STATE_TRANSACTION),
+		RSET(0, STATE_TRANSACTION),
+		NOOP(0, STATE_AUTHORIZATION, STATE_TRANSACTION),
+		QUIT(0, STATE_AUTHORIZATION, STATE_TRANSACTION);
+
+		/**
+		 * Hashtabelle der Befehle nach {@link #key(String, int)}. Die Größe ist eine
+		 * Zweierpotenz, Kollisionen werden linear aufgelöst.
+		 */
+		private static final Command[] TABLE = new Command[64];
+
+		static {
+			for( Command c : values() ) {
+				int i = slot(c.key);
+				while( TABLE[i] != null ) {
+					i = (i + 1) & (TABLE.length - 1);
+				}
+				TABLE[i] = c;
+			}
+		}
+
+		/**
+		 * Sucht den Befehl am Anfang einer Zeile, ohne Groß- und Kleinschreibung zu beachten
+		 * und ohne neue Objekte zu erzeugen.
+		 *
+		 * @param line Die Zeile.
+		 * @param length Länge des Befehls in der Zeile.
+		 * @return Der Befehl oder {@code null}.
+		 */
+		static Command lookup( String line, int length ) {
+			int key = key(line, length);
+			if( key == 0 ) {
+				return null;
+			}
+			int i = slot(key);
+			Command c;
+			while( (c = TABLE[i]) != null ) {
+				if( c.key == key ) {
+					return c;
+				}
+				i = (i + 1) & (TABLE.length - 1);
+			}
+			return null;
+		}
+
+		/**
+		 * Packt die (höchstens vier) Buchstaben eines Befehls in Großbuchstaben in einen
+		 * {@code int}.
+		 *
+		 * @return Der Schlüssel oder {@code 0}, falls die Zeichen kein gültiger Befehl sind.
+		 */
+		private static int key( String line, int length ) {
+			if( length < 3 || length > 4 ) {
+				return 0;
+			}
+			int key = 0;
+			for( int i = 0; i < length; i++ ) {
+				char ch = line.charAt(i);
+				if( ch >= 'a' && ch <= 'z' ) {
+					ch -= 'a' - 'A';
+				} else if( ch < 'A' || ch > 'Z' ) {
+					return 0;
+				}
+				key = (key << 8) | ch;
+			}
+			return key;
+		}
+
+		private static int slot( int key ) {
+			return (key * 0x9E3779B1) >>> 26;
+		}
+
+		private final int key;
+
+		private final long capability;
+
+		/**
+		 * Erlaubte Zustände als Bitmaske ({@code 1 << state}).
+		 */
+		private final int states;
+
+		Command( long capability, int... states ) {
+			this.key = key(name(), name().length());
+			this.capability = capability;
+			int mask = 0;
+			for( int state : states ) {
+				mask |= 1 << state;
+			}
+			this.states = mask;
+		}
+
+	}
+
+	/**
+	 * Liste der Capabilities und deren Bitmaske, einmal pro Konfiguration berechnet.
+	 */
+	static final class Capabilities {
+
+		final ConfigSnapshot settings;
+
+		final String[] names;
+
+		final long mask;
+
+		Capabilities( ConfigSnapshot settings ) {
+			this.settings = settings;
+			this.names = settings.getArray("pop3", "capabilities");
+			long mask = 0;
+			for( String name : names ) {
+				switch( name.trim().toUpperCase() ) {
+					case "CAPA":
+						mask |= CAPA_CAPA;
+						break;
+					case "USER":
+						mask |= CAPA_USER;
+						break;
+					case "APOP":
+						mask |= CAPA_APOP;
+						break;
+					case "TOP":
+						mask |= CAPA_TOP;
+						break;
+					case "UIDL":
+						mask |= CAPA_UIDL;
+						break;
+					case "PIPELINING":
+						mask |= CAPA_PIPELINING;
+						break;
+					case "RESP-CODES":
+						mask |= CAPA_RESP_CODES;
+						break;
+					case "AUTH-RESP-CODE":
+						mask |= CAPA_AUTH_RESP_CODE;
+						break;
+					case "STLS":
+						mask |= CAPA_STLS;
+						break;
+				}
+			}
+			this.mask = mask;
+		}
+
+	}
+
+
 	private int state = STATE_AUTHORIZATION;
 
 	private String username;
 
 	private Maildrop maildrop;
 
+	/**
+	 * Die Mails zum Zeitpunkt der Anmeldung. Alle Befehle im Zustand {@code TRANSACTION} arbeiten
+	 * nur mit dieser Momentaufnahme.
+	 */
+	private MaildropSnapshot snapshot;
+
 	private long timestamp;
 
 	private final String[] capabilities;
 
+	private final long capabilityMask;
+
+	private final POP3Factory factory;
+
+	private final boolean uidlHash;
+
+	private final boolean enableApop;
+
 	public POP3Handler( Socket clientSocket, Ini config ) {
-		super(clientSocket, config);
+		this(clientSocket, config, ConfigSnapshot.compile(config), null);
+	}
 
-		capabilities = Configuration.toArray(config.get("pop3", "capabilities"));
+	public POP3Handler( Socket clientSocket, Ini config, ConfigSnapshot settings, POP3Factory factory ) {
+		super(clientSocket, config, settings);
+		this.factory = factory;
+
+		Capabilities capas = factory != null ? factory.getCapabilities(settings) : new Capabilities(settings);
+		capabilities = capas.names;
+		capabilityMask = capas.mask;
+
+		// Support PIPELINING (RFC 2449)
+		setBatchReplies((capabilityMask & CAPA_PIPELINING) != 0);
+		uidlHash = settings.getBoolean("pop3", "uidl_hash", false);
+		enableApop = settings.getBoolean("pop3", "enable_apop", false);
 	}
 
 	public boolean hasCapability( String capa ) {
@@ -60,46 +252,35 @@ public class POP3Handler extends StringProtocolHandler {
 	}
 
 	public boolean hasUser( String name ) {
-		return config.get("users", name) != null;
+		return CredentialService.getInstance().hasUser(settings, name);
 	}
 
+	/**
+	 * Liefert das Passwort eines Nutzers im Klartext.
+	 *
+	 * @param name Name des Nutzers.
+	 * @return Das Passwort oder {@code null}, falls nur ein Hash gespeichert ist.
+	 * @see CredentialService#getPlainPassword(ConfigSnapshot, String)
+	 */
 	public String getPassword( String name ) {
-		return config.get("users", name);
+		return CredentialService.getInstance().getPlainPassword(settings, name);
 	}
 
 	private String getMessageId() {
 		return String.format(
 			"<%d@%s>",
 			this.timestamp,
-			this.config.get("host")
+			settings.getHost()
 		);
 	}
 
-	private boolean canHash() {
-		try {
-			MessageDigest.getInstance("MD5");
-			return true;
-		} catch( NoSuchAlgorithmException ex ) {
-			return false;
-		}
-	}
-
-	private String getHash( String word ) {
-		try {
-			MessageDigest md5 = MessageDigest.getInstance("MD5");
-			md5.update(StandardCharsets.UTF_8.encode(word));
-			return String.format("%032x", new BigInteger(1, md5.digest()));
-		} catch( NoSuchAlgorithmException ex ) {
-			return null;
-		}
-	}
 
 	@Override
 	public void handleConnect() {
 		// Timestamp for APOP authentication
 		this.timestamp = System.currentTimeMillis();
 
-		if( config.get("pop3", "enable_apop", boolean.class) && canHash() ) {
+		if( enableApop && Digest.md5Available() ) {
 			sendOk("Welcome to %s (v%s) %s", CarrotServer.APP_NAME, CarrotServer.APP_VERSION, getMessageId());
 		} else {
 			sendOk("Welcome to %s (v%s)", CarrotServer.APP_NAME, CarrotServer.APP_VERSION);
@@ -119,41 +300,67 @@ public class POP3Handler extends StringProtocolHandler {
 
 	@Override
 	public void handleMessage( String message ) {
-		String[] parts = splitMessage(message);
-		String command = parts[0];
-		String value = parts[1];
-
 		resetTimer();
 
+		int length = message.indexOf(' ');
+		if( length < 0 ) {
+			length = message.length();
+		}
+		Command command = Command.lookup(message, length);
+		if( command == null || (command.capability & capabilityMask) != command.capability ) {
+			sendErr("unknown command: %s", message.substring(0, length).toUpperCase());
+			return;
+		}
+		String value = length < message.length() ? message.substring(length + 1) : "";
+
 		try {
-			if( command.equals("CAPA") && hasCapability("CAPA") ) {
-				handleCapa();
-			} else if( command.equals("USER") && hasCapability("USER") ) {
-				handleUser(value);
-			} else if( command.equals("PASS") && hasCapability("USER") ) {
-				handlePass(value);
-			} else if( command.equals("APOP") && hasCapability("APOP") ) {
-				handleApop(value);
-			} else if( command.equals("STAT") ) {
-				handleStat();
-			} else if( command.equals("LIST") ) {
-				handleList(value);
-			} else if( command.equals("RETR") ) {
-				handleRetr(value);
-			} else if( command.equals("TOP") && hasCapability("TOP") ) {
-				handleTop(value);
-			} else if( command.equals("UIDL") && hasCapability("UIDL") ) {
-				handleUidl(value);
-			} else if( command.equals("DELE") ) {
-				handleDele(value);
-			} else if( command.equals("RSET") ) {
-				handleRset();
-			} else if( command.equals("NOOP") ) {
-				sendOk();
-			} else if( command.equals("QUIT") ) {
-				handleQuit();
-			} else {
-				sendErr("unknown command: %s", command);
+			if( (command.states & (1 << state)) == 0 ) {
+				throw new ProtocolException("command invalid in this state");
+			}
+
+			switch( command ) {
+				case CAPA:
+					handleCapa();
+					break;
+				case USER:
+					handleUser(value);
+					break;
+				case PASS:
+					handlePass(value);
+					break;
+				case APOP:
+					handleApop(value);
+					break;
+				case STLS:
+					handleStls();
+					break;
+				case STAT:
+					handleStat();
+					break;
+				case LIST:
+					handleList(value);
+					break;
+				case RETR:
+					handleRetr(value);
+					break;
+				case TOP:
+					handleTop(value);
+					break;
+				case UIDL:
+					handleUidl(value);
+					break;
+				case DELE:
+					handleDele(value);
+					break;
+				case RSET:
+					handleRset();
+					break;
+				case NOOP:
+					sendOk();
+					break;
+				case QUIT:
+					handleQuit();
+					break;
 			}
 		} catch( ProtocolException pe ) {
 			sendErr(pe.getMessage());
@@ -168,40 +375,34 @@ public class POP3Handler extends StringProtocolHandler {
 	}
 
 	private void handleUser( String value ) throws ProtocolException {
-		checkState(STATE_AUTHORIZATION);
-
 		username = value;
 		sendOk();
 	}
 
 	private void handlePass( String value ) throws ProtocolException {
-		checkState(STATE_AUTHORIZATION);
-
 		if( username == null ) {
 			throw new ProtocolException("no username given");
 		}
 
-		if( hasUser(username) && getPassword(username).equals(value) ) {
+		if( !isThrottled() && CredentialService.getInstance().verify(settings, username, value) ) {
 			try {
 				createMaildrop();
 
 				state = STATE_TRANSACTION;
+				LoginThrottle.getInstance().success(getRemoteAddress(), username);
 				sendOk("welcome %s", username);
 			} catch( ProtocolException e ) {
 				throw e;
 			} catch( IOException ex ) {
 				LOG.error(ex, "Could not initialize maildrop for user %s", username);
-				throw new ProtocolException("operation failed with an error");
+				throw new ProtocolException(withCode("SYS/TEMP", "operation failed with an error"));
 			}
 		} else {
-			username = null;
-			throw new ProtocolException("authentication failed");
+			throw authenticationFailed();
 		}
 	}
 
 	private void handleApop( String value ) throws ProtocolException {
-		checkState(STATE_AUTHORIZATION);
-
 		String[] parts = value.split(" ");
 		if( parts.length != 2 ) {
 			throw new ProtocolException("wrong number of arguments");
@@ -210,31 +411,56 @@ public class POP3Handler extends StringProtocolHandler {
 		username = parts[0];
 		String userHash = parts[1];
 
-		if( hasUser(username) ) {
-			String pwdHash = getHash(getMessageId() + getPassword(username));
+		String password = isThrottled() ? null : getPassword(username);
+		if( password != null ) {
+			String pwdHash = Digest.md5(getMessageId() + password);
 			if( userHash.equalsIgnoreCase(pwdHash) ) {
 				try {
 					createMaildrop();
 
 					state = STATE_TRANSACTION;
+					LoginThrottle.getInstance().success(getRemoteAddress(), username);
 					sendOk("welcome %s", username);
 				} catch( ProtocolException ex ) {
 					throw ex;
 				} catch( IOException ex ) {
 					LOG.error(ex, "Could not initialize maildrop for user %s", username);
-					throw new ProtocolException("operation failed with an error");
+					throw new ProtocolException(withCode("SYS/TEMP", "operation failed with an error"));
 				}
 			} else {
-				throw new ProtocolException("authentication failed");
+				throw authenticationFailed();
 			}
 		} else {
-			throw new ProtocolException("authentication failed");
+			throw authenticationFailed();
 		}
 	}
 
+	/**
+	 * Prüft, ob Anmeldungen für den Client oder den Nutzer nach Fehlversuchen gesperrt sind.
+	 *
+	 * @return {@code true}, wenn das Passwort nicht geprüft werden soll.
+	 */
+	private boolean isThrottled() {
+		return LoginThrottle.getInstance().getDelay(settings, getRemoteAddress(), username) > 0;
+	}
+
+	/**
+	 * Zählt einen Fehlversuch und hält die Antwort entsprechend zurück.
+	 *
+	 * @return Die Exception mit der Fehlermeldung für den Client.
+	 */
+	private ProtocolException authenticationFailed() {
+		delayReplies(LoginThrottle.getInstance().failure(settings, getRemoteAddress(), username));
+		username = null;
+		return new ProtocolException(withCode("AUTH", "authentication failed"));
+	}
+
 	private void handleCapa() throws ProtocolException {
 		sendOk("Listing capabilities");
 		for( String capa : capabilities ) {
+			if( capa.equalsIgnoreCase("STLS") && (isSecure() || !TlsContext.isConfigured(config)) ) {
+				continue;
+			}
 			if( !capa.equals("APOP") ) {
 				send(capa);
 			}
@@ -242,55 +468,78 @@ public class POP3Handler extends StringProtocolHandler {
 		send(Character.toString(TERMINATOR));
 	}
 
+	/**
+	 * Wechselt zu TLS (RFC 2595). Ein mit {@code USER} übermittelter Name wird verworfen.
+	 */
+	private void handleStls() throws ProtocolException {
+		if( isSecure() ) {
+			throw new ProtocolException("command not permitted when TLS active");
+		}
+		SSLContext context = TlsContext.get(config);
+		if( context == null ) {
+			throw new ProtocolException(withCode("SYS/TEMP", "TLS not available"));
+		}
+
+		sendOk("begin TLS negotiation");
+		try {
+			startTls(context);
+			username = null;
+		} catch( IOException ex ) {
+			LOG.debug("TLS negotiation failed: %s", ex.getMessage());
+			close();
+		}
+	}
+
 	private void createMaildrop() throws ProtocolException, IOException {
+		if( factory != null ) {
+			factory.ensureRestored(username);
+		}
+
 		maildrop = new FilesystemMaildrop(
-			username, config.get("pop3", "maildrop"), config);
+			username, settings.get("pop3", "maildrop"), config);
 
-		if( maildrop.isLocked() ) {
+		if( !maildrop.tryLock() ) {
 			maildrop = null;
 			username = null;
-			throw new ProtocolException("maildrop already in use");
+			throw new ProtocolException(withCode("IN-USE", "maildrop already in use"));
 		} else {
-			maildrop.lock();
+			releaseOnClose(maildrop::unlock);
+		}
+
+		try {
+			snapshot = maildrop.snapshot();
+		} catch( MaildropException ex ) {
+			maildrop.unlock();
+			maildrop = null;
+			username = null;
+			throw ex;
 		}
 	}
 
 	private void handleRset() throws ProtocolException {
-		checkState(STATE_TRANSACTION);
-
-		maildrop.resetDeleted();
+		snapshot.resetDeleted();
 		sendOk("deleted mails restored");
 	}
 
 	private void handleStat() throws ProtocolException {
-		checkState(STATE_TRANSACTION);
-
-		try {
-			sendOk("%d %d", maildrop.count(), maildrop.size());
-		} catch( IOException ex ) {
-			LOG.error(ex, "failed to get maildrop size for user %s", username);
-			throw new ProtocolException("operation failed with an error");
-		}
+		sendOk("%d %d", snapshot.count(), snapshot.size());
 	}
 
 	private void handleList( String value ) throws ProtocolException {
-		checkState(STATE_TRANSACTION);
-
 		try {
 			if( value.isEmpty() ) {
-				sendOk("%d %d", maildrop.count(), maildrop.size());
-				for( Mail mail : maildrop.listMails() ) {
-					send("%d %d", mail.getNumber(), mail.getSize());
+				sendOk("%d %d", snapshot.count(), snapshot.size());
+				for( int n = 1; n <= snapshot.countAll(); n++ ) {
+					if( snapshot.exists(n) ) {
+						send("%d %d", n, snapshot.size(n));
+					}
 				}
 				send(Character.toString(TERMINATOR));
 			} else {
 				int number = Integer.parseInt(value);
-				sendOk("%d %d", number, maildrop.size(number));
+				sendOk("%d %d", number, snapshot.size(number));
 			}
-		} catch( IOException ex ) {
-			LOG.error(ex, "failed to get maildrop size for user %s", username);
-			throw new ProtocolException("operation failed with an error");
-		} catch( NumberFormatException ex ) {
+		} catch( NumberFormatException | MaildropException ex ) {
 			throw new ProtocolException("no such message");
 		}
 	}
@@ -302,27 +551,20 @@ public class POP3Handler extends StringProtocolHandler {
 			throw new ProtocolException("missing argument");
 		}
 
+		int number;
+		long size;
+		InputStream mail;
 		try {
-			int number = Integer.parseInt(value);
-
-			try {
-				List<String> lines = maildrop.getLines(number);
-				sendOk("%d octets", maildrop.size(number));
-				for( String line : lines ) {
-					if( !line.isEmpty() && line.charAt(0) == TERMINATOR ) {
-						line = TERMINATOR + line;
-					}
-					send(line);
-				}
-				send(Character.toString(TERMINATOR));
-			} catch( NumberFormatException |
-					 MaildropException ex ) {
-				throw new ProtocolException("no such message");
-			}
-		} catch( IOException ex ) {
-			LOG.error(ex, "failed to read maildrop for user ", username);
-			throw new ProtocolException("operation failed with an error");
+			number = Integer.parseInt(value);
+			size = snapshot.size(number);
+			mail = snapshot.open(number);
+		} catch( NumberFormatException |
+				 MaildropException ex ) {
+			throw new ProtocolException("no such message");
 		}
+
+		sendOk("%d octets", size);
+		sendMail(number, mail, -1);
 	}
 
 	public void handleTop( String value ) throws ProtocolException {
@@ -333,49 +575,45 @@ public class POP3Handler extends StringProtocolHandler {
 			throw new ProtocolException("wrong number of arguments");
 		}
 
+		int number, n;
+		InputStream mail;
 		try {
-			int number = Integer.parseInt(parts[0]);
-			int n = Integer.parseInt(parts[1]);
-
-			List<String> lines = maildrop.getLines(number);
-			sendOk("top of message follows");
-
-			// Send headers
-			Iterator<String> it = lines.iterator();
-			while( it.hasNext() ) {
-				String line = it.next();
-				send(line);
-
-				if( line.isEmpty() ) {
-					break;
-				}
-			}
-
-			while( it.hasNext() && n > 0 ) {
-				String line = it.next();
-				if( !line.isEmpty() && line.charAt(0) == TERMINATOR ) {
-					line = TERMINATOR + line;
-				}
-
-				send(line);
-				n -= 1;
+			number = Integer.parseInt(parts[0]);
+			n = Integer.parseInt(parts[1]);
+			if( n < 0 ) {
+				throw new ProtocolException("invalid number of lines");
 			}
-
-			send(Character.toString(TERMINATOR));
+			mail = snapshot.open(number);
 		} catch( NumberFormatException |
 				 MaildropException ex ) {
 			throw new ProtocolException("no such message");
 		}
+
+		sendOk("top of message follows");
+		sendMail(number, mail, n);
 	}
 
-	private void handleDele( String value ) throws ProtocolException {
-		checkState(STATE_TRANSACTION);
+	/**
+	 * Sendet die Mail unverändert mit Punkt-Maskierung und abschließendem Punkt. Schlägt das
+	 * Lesen nach der positiven Antwort fehl, wird die Verbindung geschlossen, da der Client das
+	 * Ende der Mail sonst nicht erkennen kann.
+	 */
+	private void sendMail( int number, InputStream mail, int bodyLines ) {
+		try( mail ) {
+			MaildropSnapshot.write(mail, bodyLines, this::sendBytes);
+			send(Character.toString(TERMINATOR));
+		} catch( IOException ex ) {
+			LOG.error(ex, "failed to read mail %d for user %s", number, username);
+			close();
+		}
+	}
 
+	private void handleDele( String value ) throws ProtocolException {
 		if( !value.isEmpty() ) {
 			try {
 				int number = Integer.parseInt(value);
 
-				maildrop.deleteFile(number);
+				snapshot.delete(number);
 				LOG.debug("user %s marked mail %d for deletion", username, number);
 				sendOk("mail marked for deletion");
 			} catch( NumberFormatException | MaildropException ex ) {
@@ -388,36 +626,45 @@ public class POP3Handler extends StringProtocolHandler {
 
 
 	private void handleUidl( String value ) throws ProtocolException {
-		checkState(STATE_TRANSACTION);
-
 		try {
 			if( value.isEmpty() ) {
 				sendOk();
-				for( Mail mail : maildrop.listMails() ) {
-					if( config.get("pop3", "uidl_hash", boolean.class) ) {
-						send("%d %s", mail.getNumber(), mail.getHash());
-					} else {
-						send("%d %s", mail.getNumber(), mail.getId());
+				for( int n = 1; n <= snapshot.countAll(); n++ ) {
+					if( snapshot.exists(n) ) {
+						send("%d %s", n, getUidl(n));
 					}
 				}
 				send(Character.toString(TERMINATOR));
 			} else {
 				int number = Integer.parseInt(value);
-				sendOk("%d %d", number, maildrop.getMail(number).getId());
+				if( !snapshot.exists(number) ) {
+					throw new ProtocolException("no such message");
+				}
+				sendOk("%d %s", number, getUidl(number));
 			}
+		} catch( ProtocolException ex ) {
+			throw ex;
 		} catch( IOException ex ) {
-			LOG.error(ex, "failed to get maildrop size for user %s", username);
+			LOG.error(ex, "failed to read maildrop for user %s", username);
 			throw new ProtocolException("operation failed with an error");
 		} catch( NumberFormatException ex ) {
 			throw new ProtocolException("no such message");
 		}
 	}
 
+	private String getUidl( int number ) throws MaildropException {
+		if( uidlHash ) {
+			return snapshot.getHash(number);
+		} else {
+			return snapshot.getId(number);
+		}
+	}
+
 	private void handleQuit() throws ProtocolException {
 		state = STATE_UPDATE;
 		try {
 			if( maildrop != null ) {
-				maildrop.executeDelete();
+				maildrop.executeDelete(snapshot);
 				maildrop.unlock();
 			}
 			sendOk("bye");
@@ -429,18 +676,21 @@ public class POP3Handler extends StringProtocolHandler {
 		}
 	}
 
-	private String[] splitMessage( String message ) {
-		int space = message.indexOf(" ");
-		if( space > 0 ) {
-			return new String[]{
-				message.substring(0, space).toUpperCase(),
-				message.substring(space + 1)
-			};
+	/**
+	 * Stellt einer Fehlermeldung einen erweiterten Antwortcode (RFC 2449, RFC 3206) voran, falls
+	 * die Capability {@code RESP-CODES} (bzw. {@code AUTH-RESP-CODE} für {@code [AUTH]})
+	 * angeboten wird.
+	 *
+	 * @param code Der Antwortcode, z.B. {@code IN-USE}.
+	 * @param message Die Fehlermeldung.
+	 * @return Die Fehlermeldung mit oder ohne Antwortcode.
+	 */
+	private String withCode( String code, String message ) {
+		long capability = code.equals("AUTH") ? CAPA_AUTH_RESP_CODE : CAPA_RESP_CODES;
+		if( (capabilityMask & capability) != 0 ) {
+			return "[" + code + "] " + message;
 		} else {
-			return new String[]{
-				message.toUpperCase(),
-				""
-			};
+			return message;
 		}
 	}
 
@@ -13,6 +13,11 @@ public @interface Protocol {
 
 	int port() default 0;
 
+	/**
+	 * Port für implizites TLS oder {@code 0}, falls das Protokoll keinen eigenen TLS-Port hat.
+	 */
+	int tlsPort() default 0;
+
 	String config() default "";
 
 	Class<? extends ProtocolHandlerFactory> factory() default GenericProtocolHandlerFactory.class;
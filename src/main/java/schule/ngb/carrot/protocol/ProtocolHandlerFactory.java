@@ -1,5 +1,7 @@
 package schule.ngb.carrot.protocol;
 
+import org.ini4j.Ini;
+
 import java.net.Socket;
 
 public interface ProtocolHandlerFactory {
@@ -10,4 +12,22 @@ public interface ProtocolHandlerFactory {
 
 	int getPort();
 
+	/**
+	 * Liefert den Port für implizites TLS.
+	 *
+	 * @return Der Port oder {@code 0}, falls kein TLS-Port verwendet wird.
+	 */
+	default int getTlsPort() {
+		return 0;
+	}
+
+	/**
+	 * Übernimmt eine neue globale Konfiguration. Bestehende Verbindungen behalten ihre
+	 * Konfiguration, neue Verbindungen erhalten die neue.
+	 *
+	 * @param globalConfig Die neue globale Konfiguration.
+	 */
+	default void reload( Ini globalConfig ) {
+	}
+
 }
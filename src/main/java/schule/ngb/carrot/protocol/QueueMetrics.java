@@ -0,0 +1,234 @@
+package schule.ngb.carrot.protocol;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Kennzahlen der SMTP Warteschlange.
+ * <p>
+ * Erfasst werden die Anzahl wartender Nachrichten, das Alter der ältesten Nachricht, die Zeit
+ * zwischen Annahme und Zustellung (als Histogramm), die Zustellrate und die Anzahl
+ * fehlgeschlagener Zustellungen nach Grund. Alle Methoden sind threadsicher und können jederzeit
+ * abgefragt werden.
+ */
+public final class QueueMetrics {
+
+	/**
+	 * Obere Grenzen (in ms) der Histogramm-Klassen für die Zustelldauer. Die letzte Klasse nimmt
+	 * alle längeren Zeiten auf.
+	 */
+	private static final long[] LATENCY_BOUNDS = {
+		10, 50, 100, 500, 1000, 5000, 10000, 60000, 300000, 3600000
+	};
+
+	/**
+	 * Anzahl Sekunden, über die die Zustellrate gemittelt werden kann.
+	 */
+	public static final int RATE_WINDOW = 60;
+
+
+	/**
+	 * Wartende Nachrichten nach laufender Nummer mit dem Zeitpunkt der Annahme. Die kleinste
+	 * Nummer ist die älteste Nachricht.
+	 */
+	private final ConcurrentSkipListMap<Long, Long> pending = new ConcurrentSkipListMap<>();
+
+	private final AtomicLong sequence = new AtomicLong(0);
+
+	private final LongAdder queued = new LongAdder();
+
+	private final LongAdder delivered = new LongAdder();
+
+	private final LongAdder deferred = new LongAdder();
+
+	private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_BOUNDS.length + 1);
+
+	/**
+	 * Zustellungen pro Sekunde als Ringpuffer über {@link #RATE_WINDOW} Sekunden.
+	 */
+	private final AtomicLongArray rateCounts = new AtomicLongArray(RATE_WINDOW);
+
+	/**
+	 * Sekunde, zu der der jeweilige Eintrag in {@link #rateCounts} gehört.
+	 */
+	private final AtomicLongArray rateSeconds = new AtomicLongArray(RATE_WINDOW);
+
+	private final ConcurrentMap<String, LongAdder> failures = new ConcurrentHashMap<>();
+
+	/**
+	 * Erfasst eine neu angenommene Nachricht.
+	 *
+	 * @return Laufende Nummer der Nachricht für {@link #completed(long)}.
+	 */
+	long queued() {
+		long seq = sequence.incrementAndGet();
+		pending.put(seq, System.currentTimeMillis());
+		queued.increment();
+		return seq;
+	}
+
+	/**
+	 * Entfernt eine Nachricht, deren Zustellung an alle Empfänger abgeschlossen ist.
+	 *
+	 * @param seq Laufende Nummer der Nachricht.
+	 */
+	void completed( long seq ) {
+		pending.remove(seq);
+	}
+
+	/**
+	 * Erfasst eine erfolgreiche Zustellung an einen Empfänger.
+	 *
+	 * @param latency Zeit seit Annahme der Nachricht in ms.
+	 */
+	void delivered( long latency ) {
+		delivered.increment();
+
+		int i = 0;
+		while( i < LATENCY_BOUNDS.length && latency > LATENCY_BOUNDS[i] ) {
+			i += 1;
+		}
+		latencies.incrementAndGet(i);
+
+		long second = System.currentTimeMillis() / 1000;
+		int slot = (int) (second % RATE_WINDOW);
+		long slotSecond = rateSeconds.get(slot);
+		if( slotSecond != second && rateSeconds.compareAndSet(slot, slotSecond, second) ) {
+			rateCounts.set(slot, 0);
+		}
+		rateCounts.incrementAndGet(slot);
+	}
+
+	/**
+	 * Erfasst eine vorübergehend fehlgeschlagene Zustellung.
+	 */
+	void deferred() {
+		deferred.increment();
+	}
+
+	/**
+	 * Erfasst eine endgültig fehlgeschlagene Zustellung an einen Empfänger.
+	 *
+	 * @param reason Grund des Fehlers.
+	 */
+	void failed( String reason ) {
+		failures.computeIfAbsent(reason, ( r ) -> new LongAdder()).increment();
+	}
+
+	/**
+	 * Liefert die Anzahl der Nachrichten, deren Zustellung noch nicht abgeschlossen ist.
+	 *
+	 * @return Anzahl wartender Nachrichten.
+	 */
+	public int getDepth() {
+		return pending.size();
+	}
+
+	/**
+	 * Liefert das Alter der ältesten wartenden Nachricht.
+	 *
+	 * @return Alter in ms oder {@code 0}, wenn die Warteschlange leer ist.
+	 */
+	public long getOldestAge() {
+		Map.Entry<Long, Long> oldest = pending.firstEntry();
+		if( oldest == null ) {
+			return 0;
+		}
+		return Math.max(0, System.currentTimeMillis() - oldest.getValue());
+	}
+
+	public long getQueuedCount() {
+		return queued.sum();
+	}
+
+	public long getDeliveredCount() {
+		return delivered.sum();
+	}
+
+	public long getDeferredCount() {
+		return deferred.sum();
+	}
+
+	/**
+	 * Liefert die Gesamtzahl endgültig fehlgeschlagener Zustellungen.
+	 *
+	 * @return Anzahl der Fehler.
+	 */
+	public long getFailedCount() {
+		long n = 0;
+		for( LongAdder count : failures.values() ) {
+			n += count.sum();
+		}
+		return n;
+	}
+
+	/**
+	 * Liefert die Anzahl endgültig fehlgeschlagener Zustellungen nach Grund.
+	 *
+	 * @return Kopie der Zähler, sortiert nach Grund.
+	 */
+	public Map<String, Long> getFailureCounts() {
+		Map<String, Long> counts = new TreeMap<>();
+		failures.forEach(( reason, count ) -> counts.put(reason, count.sum()));
+		return counts;
+	}
+
+	/**
+	 * Liefert die oberen Grenzen (in ms) der Histogramm-Klassen von
+	 * {@link #getLatencyHistogram()}. Die letzte Klasse des Histogramms hat keine obere Grenze.
+	 *
+	 * @return Die Klassengrenzen.
+	 */
+	public long[] getLatencyBounds() {
+		return LATENCY_BOUNDS.clone();
+	}
+
+	/**
+	 * Liefert die Anzahl der Zustellungen pro Klasse der Zustelldauer.
+	 *
+	 * @return Histogramm mit {@code getLatencyBounds().length + 1} Klassen.
+	 */
+	public long[] getLatencyHistogram() {
+		long[] histogram = new long[latencies.length()];
+		for( int i = 0; i < histogram.length; i++ ) {
+			histogram[i] = latencies.get(i);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Liefert die durchschnittliche Anzahl Zustellungen pro Sekunde in den letzten
+	 * {@code seconds} abgeschlossenen Sekunden.
+	 *
+	 * @param seconds Zeitraum in Sekunden (höchstens {@link #RATE_WINDOW} - 1).
+	 * @return Zustellungen pro Sekunde.
+	 */
+	public double getDeliveryRate( int seconds ) {
+		seconds = Math.max(1, Math.min(seconds, RATE_WINDOW - 1));
+		long now = System.currentTimeMillis() / 1000;
+		long n = 0;
+		for( long second = now - seconds; second < now; second++ ) {
+			int slot = (int) (second % RATE_WINDOW);
+			if( rateSeconds.get(slot) == second ) {
+				n += rateCounts.get(slot);
+			}
+		}
+		return n / (double) seconds;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+			"QueueMetrics[depth=%d, oldest=%dms, queued=%d, delivered=%d, deferred=%d, failed=%s, rate=%.1f/s]",
+			getDepth(), getOldestAge(), getQueuedCount(), getDeliveredCount(), getDeferredCount(),
+			getFailureCounts(), getDeliveryRate(10)
+		);
+	}
+
+}
@@ -0,0 +1,445 @@
+package schule.ngb.carrot.protocol;
+
+import schule.ngb.carrot.maildrop.MailAddress;
+import schule.ngb.carrot.maildrop.SpooledMessage;
+import schule.ngb.carrot.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Eine ausgehende SMTP Verbindung zu einem anderen Mailserver.
+ * <p>
+ * Nach dem Verbindungsaufbau wird {@code EHLO} gesendet und die angebotenen Erweiterungen werden
+ * gespeichert. Über eine Verbindung können nacheinander beliebig viele Nachrichten
+ * {@link #send(MailAddress, List, SpooledMessage) gesendet} werden. Bietet der Server
+ * {@code PIPELINING} (RFC 2920) an, werden {@code MAIL}, alle {@code RCPT} und {@code DATA} in
+ * einem Paket gesendet und die Antworten danach gemeinsam gelesen.
+ */
+public final class SMTPClient implements Closeable {
+
+	private static final Log LOG = Log.getLogger(SMTPClient.class);
+
+	private static final byte[] CRLF = {'\r', '\n'};
+
+
+	/**
+	 * Antwort des Servers auf einen Befehl.
+	 */
+	public static final class Reply {
+
+		public final int code;
+
+		public final String text;
+
+		public Reply( int code, String text ) {
+			this.code = code;
+			this.text = text;
+		}
+
+		public boolean isPositive() {
+			return code >= 200 && code < 400;
+		}
+
+		public boolean isTransient() {
+			return code >= 400 && code < 500;
+		}
+
+		@Override
+		public String toString() {
+			return code + " " + text;
+		}
+
+	}
+
+
+	private final Socket socket;
+
+	private final InputStream in;
+
+	private final OutputStream out;
+
+	private final Set<String> extensions = new HashSet<>();
+
+	private long lastUsed;
+
+	/**
+	 * Ob der Server bei der letzten Übertragung schon auf {@code MAIL} geantwortet hat.
+	 */
+	private boolean mailAnswered;
+
+	/**
+	 * Baut eine Verbindung zu {@code host} auf und meldet sich mit {@code EHLO} (oder
+	 * {@code HELO}, falls der Server kein ESMTP unterstützt) an.
+	 *
+	 * @param host Hostname des Servers.
+	 * @param port Port des Servers.
+	 * @param heloName Eigener Hostname für {@code EHLO}.
+	 * @param timeout Timeout für Verbindungsaufbau und Antworten in ms.
+	 * @throws IOException Falls die Verbindung nicht aufgebaut werden kann oder der Server sie
+	 * 	ablehnt.
+	 */
+	public SMTPClient( String host, int port, String heloName, int timeout ) throws IOException {
+		socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), timeout);
+			socket.setSoTimeout(timeout);
+			in = new BufferedInputStream(socket.getInputStream());
+			out = new BufferedOutputStream(socket.getOutputStream(), 16384);
+
+			expect(readReply(), "connect");
+
+			sendCommand("EHLO " + heloName);
+			flush();
+			List<String> lines = new ArrayList<>();
+			Reply ehlo = readReply(lines);
+			if( ehlo.isPositive() ) {
+				for( int i = 1; i < lines.size(); i++ ) {
+					extensions.add(lines.get(i).split(" ", 2)[0].toUpperCase(Locale.ROOT));
+				}
+			} else {
+				sendCommand("HELO " + heloName);
+				flush();
+				expect(readReply(), "HELO");
+			}
+		} catch( IOException ex ) {
+			close();
+			throw ex;
+		}
+		lastUsed = System.currentTimeMillis();
+		LOG.debug("Connected to %s:%d (extensions: %s)", host, port, extensions);
+	}
+
+	/**
+	 * Prüft, ob der Server die Erweiterung {@code extension} angeboten hat.
+	 *
+	 * @param extension Name der Erweiterung, z.B. {@code PIPELINING}.
+	 * @return {@code true}, wenn die Erweiterung unterstützt wird.
+	 */
+	public boolean supports( String extension ) {
+		return extensions.contains(extension.toUpperCase(Locale.ROOT));
+	}
+
+	/**
+	 * Liefert den Zeitpunkt der letzten Benutzung der Verbindung.
+	 *
+	 * @return Zeitpunkt in ms.
+	 */
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	public boolean isClosed() {
+		return socket.isClosed();
+	}
+
+	/**
+	 * Prüft, ob der Server bei der letzten Übertragung schon auf {@code MAIL} geantwortet hat.
+	 * Ist die Verbindung vorher abgebrochen, hat der Server die Nachricht sicher nicht angenommen
+	 * und sie kann über eine neue Verbindung gesendet werden.
+	 *
+	 * @return {@code true}, wenn eine Antwort auf {@code MAIL} gelesen wurde.
+	 */
+	public boolean isMailAnswered() {
+		return mailAnswered;
+	}
+
+	/**
+	 * Sendet eine Nachricht an alle Empfänger.
+	 * <p>
+	 * Die Liste der Antworten enthält für jeden Empfänger die Antwort auf das zugehörige
+	 * {@code RCPT}. Wurde ein Empfänger angenommen, wird die Antwort durch die Antwort auf das
+	 * Ende der Nachricht ersetzt. Lehnt der Server schon den Absender ab, erhalten alle Empfänger
+	 * diese Antwort.
+	 * <p>
+	 * Nachrichten mit {@code 8BITMIME} werden nur an Server gesendet, die diese Erweiterung
+	 * anbieten (RFC 6152), Nachrichten mit {@code BINARYMIME} nur an Server mit {@code CHUNKING}
+	 * und {@code BINARYMIME}. Sie werden dann ohne Punkt-Maskierung mit {@code BDAT} übertragen
+	 * (RFC 3030). Eine Umwandlung ist nicht implementiert. Fehlt die Erweiterung, erhalten alle
+	 * Empfänger eine dauerhafte Ablehnung, ohne dass etwas gesendet wird.
+	 *
+	 * @param from Absender.
+	 * @param recipients Empfänger.
+	 * @param body Art des Inhalts laut {@code BODY}, siehe {@link SMTPHandler#BODY_7BIT}.
+	 * @param message Die Nachricht.
+	 * @return Antwort des Servers pro Empfänger.
+	 * @throws IOException Falls die Verbindung unterbrochen wird.
+	 */
+	public List<Reply> send( MailAddress from, List<MailAddress> recipients, String body, SpooledMessage message ) throws IOException {
+		lastUsed = System.currentTimeMillis();
+		mailAnswered = false;
+
+		boolean chunked = body.equals(SMTPHandler.BODY_BINARYMIME);
+		boolean supported = chunked
+			? supports("CHUNKING") && supports("BINARYMIME")
+			: body.equals(SMTPHandler.BODY_7BIT) || supports(body);
+		if( !supported ) {
+			List<Reply> replies = new ArrayList<>(recipients.size());
+			Reply rejected = new Reply(SMTPHandler.STATUS_TRANSACTION_FAILED, "5.6.3 server does not support BODY=" + body);
+			for( int i = 0; i < recipients.size(); i++ ) {
+				replies.add(rejected);
+			}
+			return replies;
+		}
+
+		String mail = "MAIL FROM:" + from.toQualifiedString();
+		if( supports("SIZE") ) {
+			mail += " SIZE=" + message.size();
+		}
+		if( !body.equals(SMTPHandler.BODY_7BIT) ) {
+			mail += " BODY=" + body;
+		}
+
+		Reply mailReply;
+		List<Reply> replies = new ArrayList<>(recipients.size());
+		int accepted = 0;
+		Reply dataReply = null;
+
+		if( supports("PIPELINING") ) {
+			sendCommand(mail);
+			for( MailAddress rcpt : recipients ) {
+				sendCommand("RCPT TO:" + rcpt.toQualifiedString());
+			}
+			if( !chunked ) {
+				sendCommand("DATA");
+			}
+			flush();
+
+			mailReply = readReply();
+			mailAnswered = true;
+			for( int i = 0; i < recipients.size(); i++ ) {
+				Reply reply = readReply();
+				replies.add(reply);
+				if( reply.isPositive() ) {
+					accepted += 1;
+				}
+			}
+			if( !chunked ) {
+				dataReply = readReply();
+			}
+		} else {
+			sendCommand(mail);
+			flush();
+			mailReply = readReply();
+			mailAnswered = true;
+			if( mailReply.isPositive() ) {
+				for( MailAddress rcpt : recipients ) {
+					sendCommand("RCPT TO:" + rcpt.toQualifiedString());
+					flush();
+					Reply reply = readReply();
+					replies.add(reply);
+					if( reply.isPositive() ) {
+						accepted += 1;
+					}
+				}
+				if( accepted > 0 && !chunked ) {
+					sendCommand("DATA");
+					flush();
+					dataReply = readReply();
+				}
+			}
+		}
+
+		if( !mailReply.isPositive() ) {
+			if( dataReply != null && dataReply.code == 354 ) {
+				// Der Server erwartet trotzdem Daten
+				out.write(".\r\n".getBytes(StandardCharsets.US_ASCII));
+				flush();
+				readReply();
+			}
+			reset();
+			replies.clear();
+			for( int i = 0; i < recipients.size(); i++ ) {
+				replies.add(mailReply);
+			}
+			return replies;
+		}
+
+		Reply result;
+		if( chunked && accepted > 0 ) {
+			writeChunk(message);
+			result = readReply();
+		} else if( dataReply == null || dataReply.code != 354 ) {
+			if( dataReply != null && accepted > 0 ) {
+				// DATA wurde abgelehnt, obwohl Empfänger angenommen wurden
+				for( int i = 0; i < replies.size(); i++ ) {
+					if( replies.get(i).isPositive() ) {
+						replies.set(i, dataReply);
+					}
+				}
+			}
+			reset();
+			return replies;
+		} else {
+			writeData(message, accepted > 0);
+			result = readReply();
+		}
+		for( int i = 0; i < replies.size(); i++ ) {
+			if( replies.get(i).isPositive() ) {
+				replies.set(i, result);
+			}
+		}
+		lastUsed = System.currentTimeMillis();
+		return replies;
+	}
+
+	/**
+	 * Sendet {@code RSET}, um eine unvollständige Transaktion abzubrechen.
+	 *
+	 * @throws IOException Falls die Verbindung unterbrochen wird oder der Server ablehnt.
+	 */
+	public void reset() throws IOException {
+		sendCommand("RSET");
+		flush();
+		expect(readReply(), "RSET");
+	}
+
+	/**
+	 * Beendet die Sitzung mit {@code QUIT} und schließt die Verbindung.
+	 */
+	public void quit() {
+		try {
+			sendCommand("QUIT");
+			flush();
+			readReply();
+		} catch( IOException ignored ) {
+		} finally {
+			close();
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			socket.close();
+		} catch( IOException ignored ) {
+		}
+	}
+
+	/**
+	 * Sendet den Inhalt der Nachricht mit Punkt-Maskierung und abschließendem
+	 * {@code <CRLF>.<CRLF>}.
+	 */
+	private void writeData( SpooledMessage message, boolean content ) throws IOException {
+		if( content ) {
+			boolean lineStart = true;
+			int last = -1;
+			byte[] buf = new byte[8192];
+			try( InputStream data = message.openStream() ) {
+				int n;
+				while( (n = data.read(buf)) != -1 ) {
+					int start = 0;
+					for( int i = 0; i < n; i++ ) {
+						if( lineStart && buf[i] == '.' ) {
+							out.write(buf, start, i - start);
+							out.write('.');
+							start = i;
+						}
+						lineStart = buf[i] == '\n';
+					}
+					out.write(buf, start, n - start);
+					if( n > 0 ) {
+						last = buf[n - 1];
+					}
+				}
+			}
+			if( last != -1 && last != '\n' ) {
+				out.write(CRLF);
+			}
+		}
+		out.write(".\r\n".getBytes(StandardCharsets.US_ASCII));
+		flush();
+	}
+
+	/**
+	 * Sendet den Inhalt der Nachricht unverändert als einzigen Abschnitt mit
+	 * {@code BDAT <size> LAST}.
+	 */
+	private void writeChunk( SpooledMessage message ) throws IOException {
+		sendCommand("BDAT " + message.size() + " LAST");
+		try( InputStream data = message.openStream() ) {
+			data.transferTo(out);
+		}
+		flush();
+	}
+
+	private void sendCommand( String command ) throws IOException {
+		out.write(command.getBytes(StandardCharsets.UTF_8));
+		out.write(CRLF);
+	}
+
+	private void flush() throws IOException {
+		out.flush();
+	}
+
+	private Reply readReply() throws IOException {
+		return readReply(null);
+	}
+
+	/**
+	 * Liest eine (eventuell mehrzeilige) Antwort des Servers.
+	 *
+	 * @param lines Liste, in die der Text aller Zeilen geschrieben wird, oder {@code null}.
+	 * @return Die Antwort.
+	 * @throws IOException Falls die Verbindung unterbrochen wird oder die Antwort ungültig ist.
+	 */
+	private Reply readReply( List<String> lines ) throws IOException {
+		while( true ) {
+			String line = readLine();
+			if( line.length() < 3 ) {
+				throw new IOException("invalid reply from server: " + line);
+			}
+			int code;
+			try {
+				code = Integer.parseInt(line.substring(0, 3));
+			} catch( NumberFormatException ex ) {
+				throw new IOException("invalid reply from server: " + line);
+			}
+			String text = line.length() > 4 ? line.substring(4) : "";
+			if( lines != null ) {
+				lines.add(text);
+			}
+			if( line.length() == 3 || line.charAt(3) != '-' ) {
+				return new Reply(code, text);
+			}
+		}
+	}
+
+	private String readLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int b;
+		while( (b = in.read()) != -1 ) {
+			if( b == '\n' ) {
+				byte[] bytes = line.toByteArray();
+				int len = bytes.length;
+				if( len > 0 && bytes[len - 1] == '\r' ) {
+					len -= 1;
+				}
+				return new String(bytes, 0, len, StandardCharsets.UTF_8);
+			}
+			line.write(b);
+		}
+		throw new EOFException("connection closed by server");
+	}
+
+	private static void expect( Reply reply, String command ) throws IOException {
+		if( !reply.isPositive() ) {
+			throw new IOException(command + " rejected: " + reply);
+		}
+	}
+
+}
@@ -1,11 +1,14 @@
 package schule.ngb.carrot.protocol;
 
 import org.ini4j.Ini;
-import org.ini4j.Profile;
+import schule.ngb.carrot.events.EventDispatcher;
+import schule.ngb.carrot.events.QueueEvent;
+import schule.ngb.carrot.events.QueueListener;
 import schule.ngb.carrot.maildrop.FilesystemMaildrop;
 import schule.ngb.carrot.maildrop.MailAddress;
-import schule.ngb.carrot.maildrop.Maildrop;
 import schule.ngb.carrot.maildrop.MaildropException;
+import schule.ngb.carrot.maildrop.SpooledMessage;
+import schule.ngb.carrot.util.ConfigSnapshot;
 import schule.ngb.carrot.util.Configuration;
 import schule.ngb.carrot.util.Log;
 
@@ -13,15 +16,17 @@ import java.io.IOException;
 import java.net.Socket;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Random;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SMTPFactory extends GenericProtocolHandlerFactory {
 
@@ -30,69 +35,440 @@ public class SMTPFactory extends GenericProtocolHandlerFactory {
 
 	public final class TransmissionQueue {
 
-		private ExecutorService transmissions;
+		/**
+		 * Eine angenommene Nachricht. Die Zustellung wird auf einen {@link DeliveryJob} pro Ziel
+		 * verteilt. Ist der letzte Job beendet, wird die Nachricht geschlossen.
+		 */
+		private final class Transmission {
 
-		private int count = 0;
+			private final String id;
 
-		private String failureNotice = null;
+			private final MailAddress from;
 
-		public TransmissionQueue() {
-		}
+			/**
+			 * Art des Inhalts laut {@code BODY}, siehe {@link SMTPHandler#BODY_7BIT}.
+			 */
+			private final String body;
+
+			private final SpooledMessage message;
 
-		public int queueTransmission( MailAddress from, List<MailAddress> recipients, String content ) {
-			if( this.transmissions == null ) {
-				this.transmissions = Executors.newFixedThreadPool(2);
+			private final AtomicInteger remaining = new AtomicInteger(0);
+
+			/**
+			 * Laufende Nummer in den {@link QueueMetrics}.
+			 */
+			private final long seq;
+
+			private final long queuedAt;
+
+			private Transmission( String id, MailAddress from, String body, SpooledMessage message ) {
+				this.id = id;
+				this.from = from;
+				this.body = body;
+				this.message = message;
+				this.seq = metrics.queued();
+				this.queuedAt = System.currentTimeMillis();
 			}
 
-			Future<?> ignored = this.transmissions.submit(new Runnable() {
-				@Override
-				public void run() {
-					// Add random delay to simulate slow network
-					int delay = config.get("smtp", "random_send_delay", int.class);
-					LOG.debug("Message queued for transmission from mailbox %s (%d bytes)", from.getMailbox(), content.getBytes(StandardCharsets.UTF_8).length);
-					if( delay > 0 ) {
-						try {
-							Thread.sleep(new Random().nextInt(delay));
-						} catch( InterruptedException ignored ) {
-						}
+			private long getAge() {
+				return System.currentTimeMillis() - queuedAt;
+			}
+
+			private void jobFinished() {
+				if( remaining.decrementAndGet() == 0 ) {
+					metrics.completed(seq);
+					if( id != null ) {
+						journal.completed(id);
 					}
+					// Remove spool file, delivered mails are linked or copied
+					message.close();
+				}
+			}
+
+		}
+
+		/**
+		 * Zustellung einer Nachricht an alle Empfänger eines Ziels.
+		 */
+		private final class DeliveryJob extends DeliveryScheduler.Job {
 
-					Profile.Section users = config.get("users");
-					for( MailAddress addr : recipients ) {
-						if( isLocalAddress(addr) && users.containsKey(addr.getMailbox()) ) {
-							try {
-								Maildrop maildrop = new FilesystemMaildrop(addr.getMailbox(), config.get("smtp", "maildrop"), config);
-								maildrop.createMail(content);
-								LOG.debug("Created new mail in mailbox %s (%d bytes)", addr.getMailbox(), content.getBytes(StandardCharsets.UTF_8).length);
-							} catch( MaildropException e ) {
-								LOG.error(e, "Failed to open mailbox for user %s", from.getMailbox());
-							}
-						} else if( config.get("smtp", "create_error_mails", boolean.class) && isLocalAddress(from) && users.containsKey(from.getMailbox()) ) {
-							try {
-								Maildrop maildrop = new FilesystemMaildrop(from.getMailbox(), config.get("smtp", "maildrop"), config);
-								maildrop.createMail(
-									String.format(getFailureNotice(),
-										"4Sc6Cj3Nvxz9sT7.1700811207",
-										config.get("host"),
-										new Date(),
-										from,
-										addr,
-										content
-									)
-								);
-								LOG.debug("Created new failure notice in mailbox %s", from.getMailbox());
-							} catch( MaildropException e ) {
-								LOG.error(e, "Failed to open mailbox for user %s", from.getMailbox());
-							}
+			private final Transmission transmission;
+
+			/**
+			 * Empfänger, an die noch nicht zugestellt wurde. Wird nur vom ausführenden Worker
+			 * verändert.
+			 */
+			private final List<MailAddress> recipients;
+
+			private DeliveryJob( String destination, Transmission transmission ) {
+				super(destination);
+				this.transmission = transmission;
+				this.recipients = new ArrayList<>();
+			}
+
+			@Override
+			protected void deliver() throws IOException {
+				if( relay != null && !recipients.isEmpty() && !isLocalAddress(recipients.get(0)) ) {
+					relay();
+					return;
+				}
+
+				IOException failure = null;
+				Iterator<MailAddress> it = recipients.iterator();
+				while( it.hasNext() ) {
+					MailAddress addr = it.next();
+					try {
+						if( deliverTo(transmission.from, addr, transmission.message) ) {
+							metrics.delivered(transmission.getAge());
+							dispatch("delivered", transmission, addr, null);
 						} else {
-							LOG.debug("Transmission to recipient %s completed (NOOP).", addr.toString());
+							failed(addr, isLocalAddress(addr) ? "unknown recipient" : "no relay");
+						}
+						done(addr);
+						it.remove();
+					} catch( IOException ex ) {
+						// Remaining recipients are still delivered, failed ones are retried
+						if( failure == null ) {
+							failure = ex;
 						}
 					}
 				}
-			});
+				if( failure != null ) {
+					throw failure;
+				}
+			}
+
+			/**
+			 * Leitet die Nachricht an alle offenen Empfänger über den Smarthost weiter. Vom
+			 * Smarthost dauerhaft abgelehnte Empfänger erhalten eine Fehlermeldung,
+			 * vorübergehend abgelehnte werden später erneut versucht.
+			 */
+			private void relay() throws IOException {
+				List<SMTPClient.Reply> replies = relay.send(transmission.from, recipients, transmission.body, transmission.message);
+
+				SMTPClient.Reply retry = null;
+				Iterator<MailAddress> it = recipients.iterator();
+				for( SMTPClient.Reply reply : replies ) {
+					MailAddress addr = it.next();
+					if( reply.isPositive() ) {
+						LOG.debug("Relayed mail for recipient %s to %s", addr, relay.getHost());
+						metrics.delivered(transmission.getAge());
+						dispatch("delivered", transmission, addr, null);
+					} else if( reply.isTransient() ) {
+						retry = reply;
+						continue;
+					} else {
+						LOG.debug("Relay %s rejected recipient %s: %s", relay.getHost(), addr, reply);
+						bounce(transmission.from, addr, transmission.message);
+						failed(addr, "relay rejected " + reply.code);
+					}
+					done(addr);
+					it.remove();
+				}
+
+				if( retry != null ) {
+					throw new IOException("relay deferred: " + retry);
+				}
+			}
+
+			@Override
+			protected void deferred( IOException cause, long delay ) {
+				for( MailAddress addr : recipients ) {
+					metrics.deferred();
+					dispatch("deferred", transmission, addr, getReason(cause));
+				}
+			}
+
+			@Override
+			protected void giveUp( IOException cause ) {
+				for( MailAddress addr : recipients ) {
+					bounce(transmission.from, addr, transmission.message);
+					failed(addr, getReason(cause));
+					done(addr);
+				}
+				recipients.clear();
+			}
+
+			@Override
+			protected void finished() {
+				transmission.jobFinished();
+			}
+
+			private void failed( MailAddress addr, String reason ) {
+				metrics.failed(reason);
+				dispatch("failed", transmission, addr, reason);
+			}
+
+			private void done( MailAddress addr ) {
+				if( transmission.id != null ) {
+					journal.delivered(transmission.id, addr);
+				}
+			}
+
+		}
+
+
+		private final DeliveryScheduler scheduler;
+
+		/**
+		 * Smarthost für Empfänger, die nicht lokal sind, oder {@code null}.
+		 */
+		private final SMTPRelay relay;
+
+		private final QueueMetrics metrics = new QueueMetrics();
+
+		private final EventDispatcher<QueueEvent, QueueListener> dispatcher;
+
+		private final AtomicInteger count = new AtomicInteger(0);
+
+		private String failureNotice = null;
+
+		/**
+		 * Ordner für ausgelagerte Nachrichten.
+		 */
+		private final Path spoolDir;
+
+		/**
+		 * Größe in Bytes, ab der Nachrichten ausgelagert werden.
+		 */
+		private final int spoolThreshold;
+
+		/**
+		 * Journal für angenommene Nachrichten oder {@code null}, falls die Warteschlange nur im
+		 * Speicher gehalten wird. Das ist auch der Fall, wenn das Journal beim Start nicht
+		 * geöffnet werden konnte.
+		 */
+		private volatile TransmissionJournal journal;
+
+		public TransmissionQueue() {
+			String relayHost = config.get("smtp", "relay_host");
+			if( relayHost != null && !relayHost.isBlank() ) {
+				relay = new SMTPRelay(relayHost,
+					config.get("smtp", "relay_port", int.class),
+					config.get(Configuration.SECTION_MAIN, "host"),
+					config.get("smtp", "relay_pool_size", int.class),
+					config.get("smtp", "relay_idle_timeout", int.class),
+					config.get("smtp", "relay_timeout", int.class)
+				);
+				LOG.info("Relaying mail for remote recipients to %s:%d", relay.getHost(), relay.getPort());
+			} else {
+				relay = null;
+			}
+
+			dispatcher = new EventDispatcher<>();
+			dispatcher.registerEventType("queued", ( e, l ) -> l.mailQueued(e));
+			dispatcher.registerEventType("delivered", ( e, l ) -> l.mailDelivered(e));
+			dispatcher.registerEventType("deferred", ( e, l ) -> l.deliveryDeferred(e));
+			dispatcher.registerEventType("failed", ( e, l ) -> l.deliveryFailed(e));
+
+			scheduler = new DeliveryScheduler("smtp-delivery",
+				config.get("smtp", "delivery_workers", int.class),
+				config.get("smtp", "max_per_destination", int.class),
+				config.get("smtp", "max_attempts", int.class),
+				config.get("smtp", "retry_delay", long.class),
+				config.get("smtp", "max_retry_delay", long.class)
+			);
+
+			spoolDir = Paths.get(
+				config.get(Configuration.SECTION_MAIN, "data"),
+				config.get("smtp", "maildrop"),
+				config.get("smtp", "spool_dir")
+			);
+			if( config.get("smtp", "spool", boolean.class) ) {
+				spoolThreshold = config.get("smtp", "spool_threshold", int.class);
+			} else {
+				spoolThreshold = 0;
+			}
+
+			if( config.get("smtp", "journal", boolean.class) ) {
+				journal = new TransmissionJournal(
+					spoolDir.resolveSibling(config.get("smtp", "journal_dir")),
+					config.get("smtp", "journal_sync", boolean.class),
+					config.get("smtp", "journal_compact_threshold", int.class)
+				);
+			} else {
+				journal = null;
+			}
+		}
+
+		/**
+		 * Öffnet das Journal und stellt alle Nachrichten erneut in die Warteschlange, deren
+		 * Zustellung vor dem letzten Programmende nicht abgeschlossen wurde.
+		 */
+		private void replay() {
+			if( journal == null ) {
+				return;
+			}
+
+			List<TransmissionJournal.Entry> entries;
+			try {
+				entries = journal.open();
+			} catch( IOException ex ) {
+				// Without the journal every mail would be rejected until restart
+				LOG.error(ex, "Failed to open transmission journal, queued mails can not be restored and new mails are only queued in memory");
+				journal = null;
+				return;
+			}
+
+			for( TransmissionJournal.Entry entry : entries ) {
+				try {
+					SpooledMessage message = SpooledMessage.fromFile(journal.getMessageFile(entry.getId()));
+					submit(entry.getId(), entry.getFrom(), new ArrayList<>(entry.getRecipients()), entry.getBody(), message);
+				} catch( IOException ex ) {
+					LOG.error(ex, "Failed to restore queued mail %s", entry.getId());
+				}
+			}
+			if( !entries.isEmpty() ) {
+				LOG.info("Restored %d queued mails from transmission journal", entries.size());
+			}
+		}
+
+		/**
+		 * Erstellt einen neuen Puffer für eine eingehende Nachricht.
+		 *
+		 * @return Eine leere Nachricht.
+		 */
+		public SpooledMessage createMessage() {
+			return new SpooledMessage(spoolDir, spoolThreshold);
+		}
+
+		/**
+		 * Stellt eine Nachricht in die Warteschlange. Ist das Journal aktiviert, ist die Nachricht
+		 * dauerhaft gespeichert, wenn die Methode zurückkehrt.
+		 *
+		 * @param from Absender.
+		 * @param recipients Empfänger.
+		 * @param body Art des Inhalts laut {@code BODY}, siehe {@link SMTPHandler#BODY_7BIT}.
+		 * @param message Die Nachricht. Sie wird von der Warteschlange übernommen und nach der
+		 * 	Zustellung (oder bei einem Fehler) geschlossen.
+		 * @return Laufende Nummer der Nachricht.
+		 * @throws IOException Falls die Nachricht nicht gespeichert werden kann.
+		 */
+		public int queueTransmission( MailAddress from, List<MailAddress> recipients, String body, SpooledMessage message ) throws IOException {
+			recipients = new ArrayList<>(recipients);
+
+			String id = null;
+			// Replay rejects entries without recipients, nothing to deliver anyway
+			if( journal != null && !recipients.isEmpty() ) {
+				id = journal.nextId();
+				Path file = journal.getMessageFile(id);
+				try {
+					message.deliverTo(file);
+					message.close();
+					message = SpooledMessage.fromFile(file);
+					journal.queued(id, from, recipients, body);
+				} catch( IOException ex ) {
+					message.close();
+					Files.deleteIfExists(file);
+					throw ex;
+				}
+			}
+
+			submit(id, from, recipients, body, message);
+			return count.incrementAndGet();
+		}
+
+		/**
+		 * Verteilt die Empfänger auf einen Job pro Ziel und plant die Jobs ein.
+		 */
+		private void submit( String id, MailAddress from, List<MailAddress> recipients, String body, SpooledMessage message ) {
+			Transmission transmission = new Transmission(id, from, body, message);
+			Map<String, DeliveryJob> jobs = new LinkedHashMap<>();
+			for( MailAddress addr : recipients ) {
+				String destination = getDestination(addr);
+				jobs.computeIfAbsent(destination, ( d ) -> new DeliveryJob(d, transmission)).recipients.add(addr);
+			}
+			if( jobs.isEmpty() ) {
+				transmission.remaining.set(1);
+				transmission.jobFinished();
+				return;
+			}
+			transmission.remaining.set(jobs.size());
+			dispatch("queued", transmission, null, null);
+
+			LOG.debug("Message queued for transmission from mailbox %s (%d bytes)", from.getMailbox(), message.size());
+			// Add random delay to simulate slow network
+			int delay = settings.getInt("smtp", "random_send_delay", 0);
+			for( DeliveryJob job : jobs.values() ) {
+				scheduler.schedule(job, delay > 0 ? ThreadLocalRandom.current().nextInt(delay) : 0);
+			}
+		}
+
+		/**
+		 * Stellt die Nachricht an einen Empfänger zu.
+		 *
+		 * @return {@code true}, wenn die Nachricht zugestellt wurde, {@code false}, wenn der
+		 * 	Empfänger nicht erreichbar ist und eine Fehlermeldung erzeugt wurde.
+		 * @throws IOException Falls die Zustellung vorübergehend fehlschlägt und wiederholt werden
+		 * 	sollte.
+		 */
+		private boolean deliverTo( MailAddress from, MailAddress addr, SpooledMessage message ) throws IOException {
+			if( isLocalAddress(addr) && settings.hasUser(addr.getMailbox()) ) {
+				FilesystemMaildrop.deliver(addr.getMailbox(), settings.get("smtp", "maildrop"), config, message);
+				LOG.debug("Created new mail in mailbox %s (%d bytes)", addr.getMailbox(), message.size());
+				return true;
+			} else {
+				bounce(from, addr, message);
+				return false;
+			}
+		}
+
+		/**
+		 * Liefert die Kennzahlen der Warteschlange.
+		 *
+		 * @return Die Kennzahlen.
+		 */
+		public QueueMetrics getMetrics() {
+			return metrics;
+		}
+
+		public void addListener( QueueListener listener ) {
+			dispatcher.addListener(listener);
+		}
+
+		public void removeListener( QueueListener listener ) {
+			dispatcher.removeListener(listener);
+		}
+
+		private void dispatch( String type, Transmission transmission, MailAddress recipient, String reason ) {
+			dispatcher.dispatchEvent(type, new QueueEvent(metrics, transmission.from, recipient, transmission.getAge(), reason));
+		}
+
+		private String getReason( IOException cause ) {
+			return cause.getClass().getSimpleName();
+		}
+
+		/**
+		 * Legt eine Fehlermeldung im Maildrop des Absenders ab, falls dieser ein lokaler Nutzer ist
+		 * und {@code create_error_mails} aktiviert ist.
+		 */
+		private void bounce( MailAddress from, MailAddress addr, SpooledMessage message ) {
+			if( settings.getBoolean("smtp", "create_error_mails", false) && isLocalAddress(from) && settings.hasUser(from.getMailbox()) ) {
+				try {
+					String notice = String.format(getFailureNotice(),
+						"4Sc6Cj3Nvxz9sT7.1700811207",
+						settings.getHost(),
+						new Date(),
+						from,
+						addr,
+						message.readString()
+					);
+					FilesystemMaildrop.deliver(from.getMailbox(), settings.get("smtp", "maildrop"), config, new SpooledMessage(notice));
+					LOG.debug("Created new failure notice in mailbox %s", from.getMailbox());
+				} catch( IOException e ) {
+					LOG.error(e, "Failed to open mailbox for user %s", from.getMailbox());
+				}
+			} else {
+				LOG.debug("Transmission to recipient %s completed (NOOP).", addr.toString());
+			}
+		}
 
-			count += 1;
-			return count;
+		private String getDestination( MailAddress addr ) {
+			if( isLocalAddress(addr) ) {
+				return settings.getHost().toLowerCase();
+			} else {
+				return addr.getHostname() == null ? "" : addr.getHostname().toLowerCase();
+			}
 		}
 
 		private String getFailureNotice() {
@@ -113,7 +489,7 @@ public class SMTPFactory extends GenericProtocolHandlerFactory {
 			if( mail != null ) {
 				String hostname = mail.getHostname();
 				return hostname.equals("[127.0.0.1]")
-					|| hostname.equalsIgnoreCase(config.get("carrot", "host"));
+					|| hostname.equalsIgnoreCase(settings.getHost());
 			} else {
 				return false;
 			}
@@ -127,6 +503,7 @@ public class SMTPFactory extends GenericProtocolHandlerFactory {
 	public SMTPFactory( Ini config ) {
 		super(config, SMTPHandler.class);
 		transmissionQueue = new TransmissionQueue();
+		transmissionQueue.replay();
 	}
 
 	@Override
@@ -144,9 +521,24 @@ public class SMTPFactory extends GenericProtocolHandlerFactory {
 		return config;
 	}
 
+	public TransmissionQueue getTransmissionQueue() {
+		return transmissionQueue;
+	}
+
+	/**
+	 * Liefert die Kennzahlen der Warteschlange.
+	 *
+	 * @return Die Kennzahlen.
+	 * @see TransmissionQueue#getMetrics()
+	 */
+	public QueueMetrics getQueueMetrics() {
+		return transmissionQueue.getMetrics();
+	}
+
 	@Override
 	public ProtocolHandler create( Socket clientSocket ) {
-		return new SMTPHandler(clientSocket, config, transmissionQueue);
+		ConfigSnapshot current = settings;
+		return new SMTPHandler(clientSocket, current.getConfig(), current, transmissionQueue);
 	}
 
 	@Override
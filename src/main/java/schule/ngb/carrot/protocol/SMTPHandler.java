@@ -3,21 +3,67 @@ package schule.ngb.carrot.protocol;
 import org.ini4j.Ini;
 import schule.ngb.carrot.CarrotServer;
 import schule.ngb.carrot.maildrop.MailAddress;
+import schule.ngb.carrot.maildrop.SpooledMessage;
 import schule.ngb.carrot.protocol.SMTPFactory.TransmissionQueue;
+import schule.ngb.carrot.util.ConfigSnapshot;
+import schule.ngb.carrot.util.CredentialService;
+import schule.ngb.carrot.util.Digest;
 import schule.ngb.carrot.util.Log;
+import schule.ngb.carrot.util.LoginThrottle;
+import schule.ngb.carrot.util.TlsContext;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLContext;
+
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Base64;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
 
-@Protocol( name = "smtp", port = 25, factory = SMTPFactory.class )
+@Protocol( name = "smtp", port = 25, tlsPort = 465, factory = SMTPFactory.class )
 public class SMTPHandler extends StringProtocolHandler {
 
 	private static final Log LOG = Log.getLogger(SMTPHandler.class);
 
 
+	/**
+	 * Schreibt empfangene Bytes in die aktuelle Nachricht. Fehler beim Schreiben und zu große
+	 * Nachrichten werden vermerkt, damit die restlichen Daten trotzdem von der Verbindung gelesen
+	 * werden.
+	 */
+	private final class DataSink extends OutputStream {
+
+		@Override
+		public void write( int b ) {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write( byte[] b, int off, int len ) {
+			if( maxMessageSize > 0 && data.size() + len > maxMessageSize ) {
+				dataExceeded = true;
+			}
+			if( !dataFailed && !dataExceeded ) {
+				try {
+					data.write(b, off, len);
+				} catch( IOException ex ) {
+					LOG.error(ex, "Failed to spool message data");
+					dataFailed = true;
+				}
+			}
+		}
+
+	}
+
+
 	public static final int STATUS_SUCCESS = 200;
 
 	public static final int STATUS_SYSTEM = 211;
@@ -28,26 +74,42 @@ public class SMTPHandler extends StringProtocolHandler {
 
 	public static final int STATUS_QUIT = 221;
 
+	public static final int STATUS_AUTH_OK = 235;
+
 	public static final int STATUS_OK = 250;
 
+	public static final int STATUS_AUTH_CONTINUE = 334;
+
 	public static final int STATUS_INTERMEDIATE_REPLY = 354;
 
 	public static final int STATUS_DISCONNECT = 421;
 
 	public static final int STATUS_LOCAL_ERR = 451;
 
+	public static final int STATUS_TEMP_UNAVAILABLE = 454;
+
 	public static final int STATUS_UNKNOWN_CMD = 500;
 
 	public static final int STATUS_UNKNOWN_ARG = 501;
 
 	public static final int STATUS_WRONG_ORDER = 503;
 
+	public static final int STATUS_NOT_IMPLEMENTED = 504;
+
 	public static final int STATUS_NO_RECV = 521;
 
 	public static final int STATUS_NO_ACCESS = 530;
 
+	public static final int STATUS_AUTH_FAILED = 535;
+
 	public static final int STATUS_FAILURE = 550;
 
+	public static final int STATUS_EXCEEDED = 552;
+
+	public static final int STATUS_TRANSACTION_FAILED = 554;
+
+	public static final int STATUS_UNKNOWN_PARAM = 555;
+
 
 	public static final int STATE_AUTHENTICATE = 0;
 
@@ -61,6 +123,13 @@ public class SMTPHandler extends StringProtocolHandler {
 
 	public static final String TERMINATOR = ".";
 
+	/**
+	 * Arten des Inhalts laut Parameter {@code BODY} von {@code MAIL} (RFC 6152, RFC 3030).
+	 */
+	public static final String BODY_7BIT = "7BIT", BODY_8BITMIME = "8BITMIME", BODY_BINARYMIME = "BINARYMIME";
+
+	private static final byte[] CRLF_BYTES = {'\r', '\n'};
+
 
 	private int state = STATE_INIT, lastCode = 0;
 
@@ -70,30 +139,87 @@ public class SMTPHandler extends StringProtocolHandler {
 
 	private List<MailAddress> recipients;
 
-	private StringBuilder data;
+	private SpooledMessage data;
+
+	private boolean dataFailed = false;
+
+	/**
+	 * Ob die aktuelle Nachricht die maximale Größe überschritten hat.
+	 */
+	private boolean dataExceeded = false;
+
+	/**
+	 * Maximale Größe einer Nachricht in Bytes ({@code 0} für unbegrenzt).
+	 */
+	private final long maxMessageSize;
+
+	private final boolean acceptAnyRcpt;
+
+	/**
+	 * Unterstützte {@code AUTH}-Verfahren laut {@code auth_mechanisms}.
+	 */
+	private final List<String> authMechanisms;
+
+	/**
+	 * Lokale Adresse der Verbindung als Adressliteral, z.B. {@code [192.168.0.1]}.
+	 */
+	private final String localAddressLiteral;
+
+	/**
+	 * Art des Inhalts der aktuellen Nachricht laut {@code BODY}, zum Beispiel {@link #BODY_8BITMIME}.
+	 */
+	private String body = BODY_7BIT;
+
+	/**
+	 * Ob die aktuelle Nachricht per {@code BDAT} übertragen wird.
+	 */
+	private boolean chunking = false;
+
+	private final DataSink dataSink = new DataSink();
+
+	/**
+	 * Angemeldeter Nutzer nach erfolgreichem {@code AUTH} oder {@code null}.
+	 */
+	private String authUser;
+
+	/**
+	 * Laufender {@code AUTH}-Dialog ({@code PLAIN}, {@code LOGIN} oder {@code CRAM-MD5}) oder
+	 * {@code null}.
+	 */
+	private String authMechanism;
+
+	/**
+	 * Bei {@code LOGIN} der bereits übermittelte Nutzername, bei {@code CRAM-MD5} die gesendete
+	 * Challenge.
+	 */
+	private String authState;
 
 	private TransmissionQueue transmissionQueue;
 
-	public SMTPHandler( Socket clientSocket, Ini config, TransmissionQueue transmissionQueue ) {
-		super(clientSocket, config);
+	public SMTPHandler( Socket clientSocket, Ini config, ConfigSnapshot settings, TransmissionQueue transmissionQueue ) {
+		super(clientSocket, config, settings);
 		this.transmissionQueue = transmissionQueue;
-	}
 
-	private boolean isLocalMailPath( MailAddress mail ) {
-		if( mail != null ) {
-			String hostname = mail.getHostname();
-			return hostname.equals("[127.0.0.1]")
-				|| hostname.equals(String.format("[%s]", socket.getLocalAddress().getHostAddress()))
-				|| hostname.equalsIgnoreCase(config.get("carrot", "host"));
+		this.maxMessageSize = Math.max(0, settings.getLong("smtp", "max_message_size", 0));
+		this.acceptAnyRcpt = settings.getBoolean("smtp", "accept_any_rcpt", false);
+		this.authMechanisms = parseAuthMechanisms(settings.get("smtp", "auth_mechanisms"));
+		if( clientSocket != null && clientSocket.getLocalAddress() != null ) {
+			this.localAddressLiteral = "[" + clientSocket.getLocalAddress().getHostAddress() + "]";
 		} else {
-			return false;
+			this.localAddressLiteral = "[127.0.0.1]";
 		}
+
+		// Support PIPELINING (RFC 2920)
+		setBatchReplies(true);
+
+		// Discard unfinished messages if the connection drops
+		releaseOnClose(this::discardData);
 	}
 
 	@Override
 	public void handleConnect() {
 		send(STATUS_READY, "%s SMTP ready on %s (v%s)",
-			config.get("carrot", "host"),
+			settings.getHost(),
 			CarrotServer.APP_NAME, CarrotServer.APP_VERSION
 		);
 	}
@@ -107,12 +233,22 @@ public class SMTPHandler extends StringProtocolHandler {
 		}
 	}
 
+	@Override
+	public void handleRawLine( byte[] line, int length ) {
+		if( state == STATE_DATA ) {
+			resetTimer();
+			handleDataLine(line, length);
+		} else {
+			super.handleRawLine(line, length);
+		}
+	}
+
 	@Override
 	public void handleMessage( String message ) {
 		resetTimer();
 
-		if( state == STATE_DATA ) {
-			handleData(message);
+		if( authMechanism != null ) {
+			handleAuthResponse(message);
 			return;
 		}
 
@@ -123,11 +259,14 @@ public class SMTPHandler extends StringProtocolHandler {
 		try {
 			switch( command ) {
 
-				case "EHLO":
 				case "HELO":
 					handleHelo(value);
 					break;
 
+				case "EHLO":
+					handleEhlo(value);
+					break;
+
 				case "MAIL":
 					handleMail(value);
 					break;
@@ -137,9 +276,16 @@ public class SMTPHandler extends StringProtocolHandler {
 					break;
 
 				case "DATA":
+					if( body.equals(BODY_BINARYMIME) || chunking ) {
+						throw new ProtocolException(STATUS_WRONG_ORDER, "use BDAT for this message");
+					}
 					handleData(value);
 					break;
 
+				case "BDAT":
+					handleBdat(value);
+					break;
+
 				case "RSET":
 					handleRset();
 					break;
@@ -178,16 +324,15 @@ public class SMTPHandler extends StringProtocolHandler {
 					break;
 				*/
 
-				// SMTP AUTH Extension (move to ESMTPHandler)
-				/*
-				case "EHLO":
-					handleEhlo(value);
-					break;
-
+				// SMTP AUTH Extension (RFC 4954)
 				case "AUTH":
 					handleAuth(value);
 					break;
-				 */
+
+				// SMTP over TLS (RFC 3207)
+				case "STARTTLS":
+					handleStartTls(value);
+					break;
 
 				default:
 					send(STATUS_UNKNOWN_CMD, "Unknown command");
@@ -200,21 +345,266 @@ public class SMTPHandler extends StringProtocolHandler {
 
 	private void handleHelo( String value ) throws ProtocolException {
 		hostname = value;
-		send(STATUS_OK, config.get("carrot", "host"));
+		send(STATUS_OK, settings.getHost());
 	}
 
-	private void handleEhlo( String value ) throws ProtocolException {
+	protected void handleEhlo( String value ) throws ProtocolException {
 		hostname = value;
-		sendInline(STATUS_OK, config.get("carrot", "host"));
-		send(STATUS_OK, "AUTH PLAIN DIGEST-MD5");
+
+		List<String> extensions = getExtensions();
+		if( extensions.isEmpty() ) {
+			send(STATUS_OK, settings.getHost());
+		} else {
+			sendInline(STATUS_OK, settings.getHost());
+			for( int i = 0; i < extensions.size() - 1; i++ ) {
+				sendInline(STATUS_OK, extensions.get(i));
+			}
+			send(STATUS_OK, extensions.get(extensions.size() - 1));
+		}
+	}
+
+	/**
+	 * Liefert die Liste der SMTP-Erweiterungen, die als Antwort auf {@code EHLO} gesendet werden.
+	 *
+	 * @return Liste der Erweiterungen.
+	 */
+	protected List<String> getExtensions() {
+		List<String> extensions = new ArrayList<>();
+		extensions.add(maxMessageSize > 0 ? "SIZE " + maxMessageSize : "SIZE");
+		extensions.add("PIPELINING");
+		extensions.add("8BITMIME");
+		extensions.add("CHUNKING");
+		extensions.add("BINARYMIME");
+		List<String> mechanisms = getAuthMechanisms();
+		if( !mechanisms.isEmpty() ) {
+			extensions.add("AUTH " + String.join(" ", mechanisms));
+		}
+		if( !isSecure() && TlsContext.isConfigured(config) ) {
+			extensions.add("STARTTLS");
+		}
+		return extensions;
+	}
+
+	/**
+	 * Wechselt zu TLS (RFC 3207). Danach ist die Sitzung wieder im Ausgangszustand und der Client
+	 * muss erneut {@code EHLO} senden.
+	 *
+	 * @param value Argumente des Befehls.
+	 * @throws ProtocolException Falls TLS nicht möglich ist.
+	 */
+	private void handleStartTls( String value ) throws ProtocolException {
+		if( !value.isBlank() ) {
+			throw new ProtocolException(STATUS_UNKNOWN_ARG, "no parameters allowed");
+		}
+		if( isSecure() ) {
+			throw new ProtocolException(STATUS_WRONG_ORDER, "TLS already active");
+		}
+		if( state == STATE_RCPT ) {
+			throw new ProtocolException(STATUS_WRONG_ORDER, "STARTTLS not permitted during a mail transaction");
+		}
+		SSLContext context = TlsContext.get(config);
+		if( context == null ) {
+			throw new ProtocolException(STATUS_TEMP_UNAVAILABLE, "TLS not available due to temporary reason");
+		}
+
+		send(STATUS_READY, "ready to start TLS");
+		try {
+			startTls(context);
+		} catch( IOException ex ) {
+			LOG.debug("TLS negotiation failed: %s", ex.getMessage());
+			close();
+			return;
+		}
+
+		// Forget everything learned before TLS
+		hostname = null;
+		authUser = null;
+		state = STATE_INIT;
+		from = null;
+		recipients = null;
+		body = BODY_7BIT;
+		chunking = false;
+		discardData();
+	}
+
+	/**
+	 * Liefert die unterstützten {@code AUTH}-Verfahren laut {@code auth_mechanisms}.
+	 *
+	 * @return Liste der Verfahren in Großbuchstaben.
+	 */
+	protected List<String> getAuthMechanisms() {
+		return authMechanisms;
+	}
+
+	private static List<String> parseAuthMechanisms( String value ) {
+		List<String> mechanisms = new ArrayList<>();
+		if( value != null ) {
+			for( String m : value.split(",") ) {
+				m = m.trim().toUpperCase(Locale.ROOT);
+				if( m.equals("PLAIN") || m.equals("LOGIN") || m.equals("CRAM-MD5") ) {
+					mechanisms.add(m);
+				}
+			}
+		}
+		return List.copyOf(mechanisms);
+	}
+
+	/**
+	 * Liefert den mit {@code AUTH} angemeldeten Nutzer.
+	 *
+	 * @return Name des Nutzers oder {@code null}.
+	 */
+	public String getAuthenticatedUser() {
+		return authUser;
 	}
 
-	// TODO implement
-	private void handleAuth( String value ) {
-		if( value.toUpperCase().startsWith("PLAIN ") ) {
-			String authData = new String(Base64.getDecoder().decode(value.substring(6)));
-			String[] parts = authData.split("\0");
-			LOG.info("%s", Arrays.toString(parts));
+	private void handleAuth( String value ) throws ProtocolException {
+		if( authUser != null ) {
+			throw new ProtocolException(STATUS_WRONG_ORDER, "already authenticated");
+		}
+		if( state == STATE_RCPT ) {
+			throw new ProtocolException(STATUS_WRONG_ORDER, "AUTH not permitted during a mail transaction");
+		}
+
+		String[] parts = splitMessage(value.trim());
+		String mechanism = parts[0];
+		String initial = parts[1].trim();
+		if( mechanism.isEmpty() ) {
+			throw new ProtocolException(STATUS_UNKNOWN_ARG, "no authentication mechanism given");
+		}
+		if( !getAuthMechanisms().contains(mechanism) ) {
+			throw new ProtocolException(STATUS_NOT_IMPLEMENTED, "unrecognized authentication type");
+		}
+
+		authMechanism = mechanism;
+		authState = null;
+		switch( mechanism ) {
+			case "PLAIN":
+				if( initial.isEmpty() ) {
+					send(STATUS_AUTH_CONTINUE, "");
+				} else {
+					handleAuthResponse(initial);
+				}
+				break;
+
+			case "LOGIN":
+				if( initial.isEmpty() ) {
+					send(STATUS_AUTH_CONTINUE, encodeBase64("Username:"));
+				} else {
+					handleAuthResponse(initial);
+				}
+				break;
+
+			case "CRAM-MD5":
+				if( !initial.isEmpty() ) {
+					authMechanism = null;
+					throw new ProtocolException(STATUS_UNKNOWN_ARG, "CRAM-MD5 does not accept an initial response");
+				}
+				authState = String.format("<%d.%d@%s>",
+					ThreadLocalRandom.current().nextLong(Long.MAX_VALUE),
+					System.currentTimeMillis(),
+					settings.getHost()
+				);
+				send(STATUS_AUTH_CONTINUE, encodeBase64(authState));
+				break;
+		}
+	}
+
+	/**
+	 * Verarbeitet eine Antwort des Clients im laufenden {@code AUTH}-Dialog.
+	 *
+	 * @param response Die Base64-kodierte Antwort.
+	 */
+	private void handleAuthResponse( String response ) {
+		response = response.trim();
+		if( response.equals("*") ) {
+			endAuth();
+			send(STATUS_UNKNOWN_ARG, "authentication cancelled");
+			return;
+		}
+
+		String decoded;
+		try {
+			decoded = response.equals("=") ? "" : new String(Base64.getDecoder().decode(response), StandardCharsets.UTF_8);
+		} catch( IllegalArgumentException ex ) {
+			endAuth();
+			send(STATUS_UNKNOWN_ARG, "cannot decode response");
+			return;
+		}
+
+		CredentialService credentials = CredentialService.getInstance();
+		LoginThrottle throttle = LoginThrottle.getInstance();
+		String address = getRemoteAddress();
+		String user = null;
+		boolean valid = false;
+		switch( authMechanism ) {
+			case "PLAIN":
+				// [authzid] NUL authcid NUL passwd (RFC 4616)
+				String[] parts = decoded.split("\0", -1);
+				if( parts.length == 3 && (parts[0].isEmpty() || parts[0].equals(parts[1])) ) {
+					user = parts[1];
+					valid = throttle.getDelay(settings, address, user) == 0
+						&& credentials.verify(settings, user, parts[2]);
+				}
+				break;
+
+			case "LOGIN":
+				if( authState == null ) {
+					authState = decoded;
+					send(STATUS_AUTH_CONTINUE, encodeBase64("Password:"));
+					return;
+				}
+				user = authState;
+				valid = throttle.getDelay(settings, address, user) == 0
+					&& credentials.verify(settings, user, decoded);
+				break;
+
+			case "CRAM-MD5":
+				int space = decoded.lastIndexOf(' ');
+				if( space > 0 ) {
+					user = decoded.substring(0, space);
+					String password = credentials.getPlainPassword(settings, user);
+					if( password != null && throttle.getDelay(settings, address, user) == 0 ) {
+						String expected = hmacMd5(password, authState);
+						valid = MessageDigest.isEqual(
+							expected.getBytes(StandardCharsets.US_ASCII),
+							decoded.substring(space + 1).toLowerCase(Locale.ROOT).getBytes(StandardCharsets.US_ASCII)
+						);
+					}
+				}
+				break;
+		}
+
+		String mechanism = authMechanism;
+		endAuth();
+		if( valid ) {
+			authUser = user;
+			throttle.success(address, user);
+			LOG.info("User %s authenticated with %s", user, mechanism);
+			send(STATUS_AUTH_OK, "authentication successful");
+		} else {
+			LOG.info("Failed %s authentication for user %s", mechanism, user);
+			delayReplies(throttle.failure(settings, address, user));
+			send(STATUS_AUTH_FAILED, "authentication credentials invalid");
+		}
+	}
+
+	private void endAuth() {
+		authMechanism = null;
+		authState = null;
+	}
+
+	private static String encodeBase64( String value ) {
+		return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String hmacMd5( String key, String challenge ) {
+		try {
+			Mac mac = Mac.getInstance("HmacMD5");
+			mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacMD5"));
+			return Digest.toHex(mac.doFinal(challenge.getBytes(StandardCharsets.US_ASCII)));
+		} catch( GeneralSecurityException ex ) {
+			return "";
 		}
 	}
 
@@ -223,20 +613,51 @@ public class SMTPHandler extends StringProtocolHandler {
 			throw new ProtocolException(STATUS_FAILURE, "malformed command");
 		}
 
-		String mailPath = value.substring(5);
+		String[] pathAndParams = splitParameters(value.substring(5));
+		String mailPath = pathAndParams[0];
 		if( mailPath.isBlank() ) {
 			throw new ProtocolException(STATUS_UNKNOWN_ARG, "malformed <reverse-path>");
 		}
 
-		from = MailAddress.parseString(value);
-		if( !from.isFullyQualified() ) {
+		MailAddress reversePath = MailAddress.parseString(mailPath);
+		if( !reversePath.isFullyQualified() ) {
 			from = null;
 			throw new ProtocolException(STATUS_UNKNOWN_ARG, "malformed <reverse-path>");
 		}
 
+		String bodyType = BODY_7BIT;
+		String params = pathAndParams[1];
+		for( String param : params.isEmpty() ? new String[0] : params.split(" +") ) {
+			int eq = param.indexOf('=');
+			String key = (eq < 0 ? param : param.substring(0, eq)).toUpperCase();
+			String arg = eq < 0 ? "" : param.substring(eq + 1).toUpperCase();
+
+			if( key.equals("BODY") ) {
+				if( arg.equals(BODY_7BIT) || arg.equals(BODY_8BITMIME) || arg.equals(BODY_BINARYMIME) ) {
+					bodyType = arg;
+				} else {
+					throw new ProtocolException(STATUS_UNKNOWN_ARG, "unsupported BODY type");
+				}
+			} else if( key.equals("SIZE") ) {
+				// Reject oversized messages before any data is transferred (RFC 1870)
+				try {
+					long size = Long.parseLong(arg);
+					if( maxMessageSize > 0 && size > maxMessageSize ) {
+						throw new ProtocolException(STATUS_EXCEEDED, "message size exceeds fixed maximum message size");
+					}
+				} catch( NumberFormatException ex ) {
+					throw new ProtocolException(STATUS_UNKNOWN_ARG, "malformed SIZE parameter");
+				}
+			} else if( !key.isEmpty() ) {
+				throw new ProtocolException(STATUS_UNKNOWN_PARAM, "unrecognized parameter " + key);
+			}
+		}
 
+		from = reversePath;
+		body = bodyType;
+		chunking = false;
 		recipients = new ArrayList<>();
-		data = new StringBuilder();
+		discardData();
 
 		state = STATE_RCPT;
 
@@ -253,9 +674,7 @@ public class SMTPHandler extends StringProtocolHandler {
 		}
 
 		MailAddress rcptAddr = MailAddress.parseString(value.substring(3));
-		if( config.get("smtp", "accept_any_rcpt", boolean.class)
-			|| (isLocalMailPath(rcptAddr)
-			&& config.get("users", rcptAddr.getMailbox()) != null) ) {
+		if( acceptRecipient(rcptAddr) ) {
 			recipients.add(rcptAddr);
 			send(STATUS_OK, "OK");
 		} else {
@@ -263,21 +682,207 @@ public class SMTPHandler extends StringProtocolHandler {
 		}
 	}
 
-	private void handleData( String value ) {
-		if( state != STATE_DATA ) {
-			state = STATE_DATA;
-			send(STATUS_INTERMEDIATE_REPLY, "Ready to receive data; end with <CRLF>.<CRLF>");
-		} else if( TERMINATOR.equals(value) ) {
+	/**
+	 * Prüft, ob Nachrichten an den Empfänger angenommen werden.
+	 *
+	 * @param rcptAddr Adresse des Empfängers.
+	 * @return {@code true}, wenn der Empfänger angenommen wird.
+	 */
+	protected boolean acceptRecipient( MailAddress rcptAddr ) {
+		// Angemeldete Nutzer dürfen an beliebige Empfänger senden
+		return authUser != null
+			|| acceptAnyRcpt
+			|| (isLocalMailPath(rcptAddr) && settings.hasUser(rcptAddr.getMailbox()));
+	}
+
+	protected boolean isLocalMailPath( MailAddress mail ) {
+		if( mail != null ) {
+			String hostname = mail.getHostname();
+			return hostname.equals("[127.0.0.1]")
+				|| hostname.equals(localAddressLiteral)
+				|| hostname.equalsIgnoreCase(settings.getHost());
+		} else {
+			return false;
+		}
+	}
+
+	private void handleData( String value ) throws ProtocolException {
+		ProtocolException rejected = checkTransaction();
+		if( rejected != null ) {
+			throw rejected;
+		}
+		state = STATE_DATA;
+		startMessage();
+		setRawLines(true);
+		send(STATUS_INTERMEDIATE_REPLY, "Ready to receive data; end with <CRLF>.<CRLF>");
+	}
+
+	/**
+	 * Verarbeitet eine Zeile nach {@code DATA}. Die Bytes der Zeile werden unverändert (bis auf
+	 * das Entfernen eines führenden Punktes) in die Nachricht geschrieben, sodass 8-Bit Inhalte
+	 * erhalten bleiben.
+	 *
+	 * @param line Puffer mit der Zeile.
+	 * @param length Länge der Zeile.
+	 */
+	private void handleDataLine( byte[] line, int length ) {
+		if( length == 1 && line[0] == TERMINATOR.charAt(0) ) {
 			state = STATE_RCPT;
+			setRawLines(false);
+			finishMessage();
+		} else {
+			int off = (length > 0 && line[0] == TERMINATOR.charAt(0)) ? 1 : 0;
+			dataSink.write(line, off, length - off);
+			dataSink.write(CRLF_BYTES, 0, CRLF_BYTES.length);
+		}
+	}
 
-			int queue = transmissionQueue.queueTransmission(from, recipients, data.toString());
-			send(STATUS_OK, "mail queued for transmission at %d", queue);
+	private void startMessage() {
+		discardData();
+		data = createMessage();
+		dataFailed = false;
+		dataExceeded = false;
+	}
+
+	private void finishMessage() {
+		SpooledMessage message = data;
+		String bodyType = body;
+		data = null;
+		chunking = false;
+		body = BODY_7BIT;
+
+		if( dataExceeded ) {
+			message.close();
+			rejectMessage(STATUS_EXCEEDED, "message size exceeds fixed maximum message size");
+		} else if( dataFailed ) {
+			message.close();
+			rejectMessage(STATUS_LOCAL_ERR, "failed to store message");
 		} else {
-			if( value.startsWith(TERMINATOR) ) {
-				value = value.substring(1);
+			deliverMessage(from, recipients, bodyType, message);
+		}
+	}
+
+	/**
+	 * Liefert die Empfänger der aktuellen Nachricht.
+	 *
+	 * @return Liste der angenommenen Empfänger.
+	 */
+	protected List<MailAddress> getRecipients() {
+		return recipients == null ? List.of() : recipients;
+	}
+
+	/**
+	 * Erstellt einen neuen Puffer für eine eingehende Nachricht.
+	 *
+	 * @return Eine leere Nachricht.
+	 */
+	protected SpooledMessage createMessage() {
+		return transmissionQueue.createMessage();
+	}
+
+	/**
+	 * Wird aufgerufen, sobald eine Nachricht vollständig empfangen wurde, und stellt sie in die
+	 * Warteschlange. Die Methode übernimmt die Nachricht und sendet die Antwort an den Client.
+	 *
+	 * @param from Absender.
+	 * @param recipients Angenommene Empfänger.
+	 * @param body Art des Inhalts laut {@code BODY}.
+	 * @param message Die empfangene Nachricht.
+	 */
+	protected void deliverMessage( MailAddress from, List<MailAddress> recipients, String body, SpooledMessage message ) {
+		try {
+			int queue = transmissionQueue.queueTransmission(from, recipients, body, message);
+			send(STATUS_OK, "mail queued for transmission at %d", queue);
+		} catch( IOException ex ) {
+			LOG.error(ex, "Failed to queue message from %s", from);
+			send(STATUS_LOCAL_ERR, "failed to store message");
+		}
+	}
+
+	/**
+	 * Sendet die Antwort, wenn eine empfangene Nachricht nicht angenommen werden kann.
+	 *
+	 * @param code Statuscode der Antwort.
+	 * @param text Text der Antwort.
+	 */
+	protected void rejectMessage( int code, String text ) {
+		send(code, text);
+	}
+
+	/**
+	 * Verarbeitet einen {@code BDAT} Befehl (RFC 3030). Der folgende Datenblock wird ohne
+	 * zeilenweise Verarbeitung direkt in die Nachricht kopiert.
+	 *
+	 * @param value Argumente des Befehls ({@code <size> [LAST]}).
+	 * @throws ProtocolException Bei ungültigen Argumenten oder falscher Reihenfolge.
+	 */
+	private void handleBdat( String value ) throws ProtocolException {
+		String[] args = value.trim().split(" +");
+		long size;
+		boolean last = false;
+		try {
+			size = Long.parseLong(args[0]);
+			if( size < 0 || args.length > 2 ) {
+				throw new NumberFormatException();
 			}
-			data.append(value);
-			data.append(CRLF);
+			if( args.length == 2 ) {
+				if( !args[1].equalsIgnoreCase("LAST") ) {
+					throw new NumberFormatException();
+				}
+				last = true;
+			}
+		} catch( NumberFormatException ex ) {
+			throw new ProtocolException(STATUS_UNKNOWN_ARG, "syntax: BDAT <size> [LAST]");
+		}
+
+		ProtocolException rejected = checkTransaction();
+		boolean accept = rejected == null;
+		if( accept && data == null ) {
+			startMessage();
+			chunking = true;
+		}
+
+		try {
+			readBytes(size, accept ? dataSink : null);
+		} catch( IOException ex ) {
+			LOG.debug("Connection closed while receiving BDAT chunk");
+			discardData();
+			close();
+			return;
+		}
+
+		if( !accept ) {
+			throw rejected;
+		}
+
+		if( last ) {
+			finishMessage();
+		} else {
+			send(STATUS_OK, "%d octets received", size);
+		}
+	}
+
+	/**
+	 * Prüft vor {@code DATA} und {@code BDAT}, ob die Transaktion einen Absender und gültige
+	 * Empfänger hat. Mit {@code PIPELINING} sendet der Client {@code DATA}, ohne die Antworten auf
+	 * {@code RCPT} abzuwarten (RFC 2920).
+	 *
+	 * @return Die Ablehnung oder {@code null}.
+	 */
+	protected ProtocolException checkTransaction() {
+		if( from == null || recipients == null ) {
+			return new ProtocolException(STATUS_WRONG_ORDER, "need MAIL command");
+		}
+		if( state != STATE_RCPT || recipients.isEmpty() ) {
+			return new ProtocolException(STATUS_TRANSACTION_FAILED, "no valid recipients");
+		}
+		return null;
+	}
+
+	private void discardData() {
+		if( data != null ) {
+			data.close();
+			data = null;
 		}
 	}
 
@@ -285,7 +890,9 @@ public class SMTPHandler extends StringProtocolHandler {
 		state = STATE_INIT;
 		from = null;
 		recipients = null;
-		data = null;
+		body = BODY_7BIT;
+		chunking = false;
+		discardData();
 		send(STATUS_OK, "OK");
 	}
 
@@ -295,7 +902,7 @@ public class SMTPHandler extends StringProtocolHandler {
 		close();
 	}
 
-	private String[] splitMessage( String message ) {
+	protected String[] splitMessage( String message ) {
 		int space = message.indexOf(" ");
 		if( space > 0 ) {
 			return new String[]{
@@ -310,6 +917,28 @@ public class SMTPHandler extends StringProtocolHandler {
 		}
 	}
 
+	/**
+	 * Trennt den Pfad eines {@code MAIL FROM:} oder {@code RCPT TO:} Befehls von den folgenden
+	 * ESMTP-Parametern.
+	 *
+	 * @param value Argumente nach {@code FROM:} bzw. {@code TO:}.
+	 * @return Ein Array mit dem Pfad und den (durch Leerzeichen getrennten) Parametern.
+	 */
+	private String[] splitParameters( String value ) {
+		value = value.trim();
+		int end = value.indexOf('>');
+		if( end < 0 ) {
+			end = value.indexOf(' ');
+			end = end < 0 ? value.length() : end;
+		} else {
+			end += 1;
+		}
+		return new String[]{
+			value.substring(0, end),
+			value.substring(end).trim()
+		};
+	}
+
 	public void send( int code, String message ) {
 		send("%d %s", code, message);
 	}
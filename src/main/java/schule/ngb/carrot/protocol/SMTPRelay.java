@@ -0,0 +1,166 @@
+package schule.ngb.carrot.protocol;
+
+import schule.ngb.carrot.maildrop.MailAddress;
+import schule.ngb.carrot.maildrop.SpooledMessage;
+import schule.ngb.carrot.protocol.SMTPClient.Reply;
+import schule.ngb.carrot.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leitet Nachrichten an einen Smarthost weiter.
+ * <p>
+ * Verbindungen zum Smarthost werden in einem Pool gehalten und für weitere Nachrichten
+ * wiederverwendet. Die Anzahl gleichzeitiger Verbindungen ist auf {@code poolSize} begrenzt.
+ * Verbindungen, die länger als {@code idleTimeout} Millisekunden unbenutzt waren, werden vor der
+ * nächsten Benutzung geschlossen. Bricht eine wiederverwendete Verbindung ab, bevor der Server
+ * auf {@code MAIL} geantwortet hat (weil er sie inzwischen geschlossen hat), wird einmalig eine
+ * neue Verbindung aufgebaut. Spätere Fehler werden weitergegeben, da die Nachricht sonst doppelt
+ * zugestellt werden könnte.
+ */
+public final class SMTPRelay implements Closeable {
+
+	private static final Log LOG = Log.getLogger(SMTPRelay.class);
+
+
+	private final String host;
+
+	private final int port;
+
+	private final String heloName;
+
+	private final int timeout;
+
+	private final int idleTimeout;
+
+	private final Semaphore permits;
+
+	/**
+	 * Unbenutzte Verbindungen. Die zuletzt benutzte Verbindung liegt vorne.
+	 */
+	private final Deque<SMTPClient> idle = new ArrayDeque<>();
+
+	/**
+	 * Erstellt ein neues Relay. Verbindungen werden erst bei Bedarf aufgebaut.
+	 *
+	 * @param host Hostname des Smarthosts.
+	 * @param port Port des Smarthosts.
+	 * @param heloName Eigener Hostname für {@code EHLO}.
+	 * @param poolSize Maximale Anzahl gleichzeitiger Verbindungen.
+	 * @param idleTimeout Zeit in ms, nach der unbenutzte Verbindungen geschlossen werden.
+	 * @param timeout Timeout für Verbindungsaufbau und Antworten in ms.
+	 */
+	public SMTPRelay( String host, int port, String heloName, int poolSize, int idleTimeout, int timeout ) {
+		this.host = host;
+		this.port = port;
+		this.heloName = heloName;
+		this.permits = new Semaphore(Math.max(1, poolSize), true);
+		this.idleTimeout = idleTimeout;
+		this.timeout = timeout;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Sendet eine Nachricht über eine Verbindung aus dem Pool an den Smarthost.
+	 *
+	 * @param from Absender.
+	 * @param recipients Empfänger.
+	 * @param body Art des Inhalts laut {@code BODY}.
+	 * @param message Die Nachricht.
+	 * @return Antwort des Smarthosts pro Empfänger.
+	 * @throws IOException Falls keine Verbindung zum Smarthost möglich ist.
+	 * @see SMTPClient#send(MailAddress, List, String, SpooledMessage)
+	 */
+	public List<Reply> send( MailAddress from, List<MailAddress> recipients, String body, SpooledMessage message ) throws IOException {
+		try {
+			if( !permits.tryAcquire(timeout, TimeUnit.MILLISECONDS) ) {
+				throw new IOException("no free connection to relay " + host);
+			}
+		} catch( InterruptedException ex ) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for relay connection");
+		}
+
+		try {
+			SMTPClient client = pollIdle();
+			if( client != null ) {
+				try {
+					List<Reply> replies = client.send(from, recipients, body, message);
+					release(client);
+					return replies;
+				} catch( IOException ex ) {
+					client.close();
+					if( client.isMailAnswered() ) {
+						// The server may already have accepted the message, resending could duplicate it
+						throw ex;
+					}
+					LOG.debug("Pooled connection to %s failed, reconnecting: %s", host, ex.getMessage());
+				}
+			}
+
+			client = new SMTPClient(host, port, heloName, timeout);
+			try {
+				List<Reply> replies = client.send(from, recipients, body, message);
+				release(client);
+				return replies;
+			} catch( IOException ex ) {
+				client.close();
+				throw ex;
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Schließt alle unbenutzten Verbindungen.
+	 */
+	@Override
+	public void close() {
+		synchronized( idle ) {
+			for( SMTPClient client : idle ) {
+				client.quit();
+			}
+			idle.clear();
+		}
+	}
+
+	private SMTPClient pollIdle() {
+		long now = System.currentTimeMillis();
+		List<SMTPClient> expired = new ArrayList<>();
+		SMTPClient client;
+		synchronized( idle ) {
+			// Die am längsten unbenutzten Verbindungen liegen hinten
+			while( (client = idle.peekLast()) != null
+				&& (client.isClosed() || now - client.getLastUsed() >= idleTimeout) ) {
+				expired.add(idle.pollLast());
+			}
+			client = idle.pollFirst();
+		}
+		for( SMTPClient c : expired ) {
+			c.quit();
+		}
+		return client;
+	}
+
+	private void release( SMTPClient client ) {
+		synchronized( idle ) {
+			idle.addFirst(client);
+		}
+	}
+
+}
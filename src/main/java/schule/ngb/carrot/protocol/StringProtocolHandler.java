@@ -1,21 +1,36 @@
 package schule.ngb.carrot.protocol;
 
 import org.ini4j.Ini;
+import schule.ngb.carrot.util.ConfigSnapshot;
 import schule.ngb.carrot.util.Configuration;
 import schule.ngb.carrot.util.Log;
+import schule.ngb.carrot.util.TlsContext;
 
-import java.io.BufferedReader;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implementierung eines Textbasierten-Protokolls wie POP3 oder SMTP.
  * <p>
  * Ein {@link StringProtocolHandler} kpmmert sich um die Verwaltung eines {@link Socket}s zu einem
- * Client, öffnet Streams für die {@link BufferedReader Eingabe} und {@link PrintWriter Ausgabe} und
- * sendet und liest ASCII-Daten Zeilenweise.
+ * Client, öffnet Streams für die Eingabe und {@link PrintWriter Ausgabe} und sendet und liest
+ * ASCII-Daten Zeilenweise.
+ * <p>
+ * Die Eingabe wird in einem eigenen Byte-Puffer gelesen. Dadurch können Protokolle zwischen
+ * Textzeilen auch eine exakte Anzahl Bytes {@link #readBytes(long, OutputStream) unverändert
+ * lesen} (zum Beispiel für SMTP {@code BDAT}).
  */
 public abstract class StringProtocolHandler extends GenericProtocolHandler {
 
@@ -23,19 +38,97 @@ public abstract class StringProtocolHandler extends GenericProtocolHandler {
 
 	private static final Log LOG = Log.getLogger(StringProtocolHandler.class);
 
+	/**
+	 * Gemeinsamer Thread, der {@link #delayReplies(long) zurückgehaltene} Antworten sendet.
+	 */
+	private static final ScheduledExecutorService REPLY_TIMER = Executors.newSingleThreadScheduledExecutor(( r ) -> {
+		Thread t = new Thread(r, "reply-timer");
+		t.setDaemon(true);
+		return t;
+	});
+
+
+	/**
+	 * Puffer zwischen {@link #out} und der Verbindung. Er wird nur von {@link #flush()} geleert,
+	 * sodass Text und unveränderte Bytes ({@link #sendBytes(byte[], int, int)}) in der richtigen
+	 * Reihenfolge gemeinsam gesendet werden.
+	 */
+	private static final class OutputBuffer extends BufferedOutputStream {
+
+		private OutputBuffer( OutputStream out ) {
+			super(out, 8192);
+		}
+
+		@Override
+		public void flush() {
+			// Called by the writer, data is sent by flushToSocket()
+		}
+
+		private void flushToSocket() throws IOException {
+			super.flush();
+		}
 
-	private BufferedReader in;
+		@Override
+		public void close() throws IOException {
+			flushToSocket();
+			super.close();
+		}
+
+	}
+
+
+	private InputStream in;
 
 	private PrintWriter out;
 
+	private OutputBuffer outBuffer;
+
+	/**
+	 * Zeichensatz für empfangene Zeilen.
+	 */
+	private final Charset charset = Charset.defaultCharset();
+
+	/**
+	 * Eingabepuffer mit den Positionen des nächsten zu lesenden Bytes und dem Ende der gültigen
+	 * Daten.
+	 */
+	private final byte[] inBuffer = new byte[8192];
+
+	private int inPos = 0, inLimit = 0;
+
+	/**
+	 * Puffer für die aktuell gelesene Zeile.
+	 */
+	private byte[] lineBuffer = new byte[256];
+
 	private boolean autoResetTimer = true;
 
+	/**
+	 * Ob Antworten gesammelt und erst gesendet werden, wenn keine weiteren Befehle mehr im
+	 * Eingabepuffer stehen (Pipelining).
+	 */
+	private boolean batchReplies = false;
+
+	/**
+	 * Ob Zeilen ohne Dekodierung an {@link #handleRawLine(byte[], int)} übergeben werden.
+	 */
+	private boolean rawLines = false;
+
+	/**
+	 * Zeitpunkt, bis zu dem keine Antworten gesendet werden.
+	 */
+	private volatile long holdRepliesUntil = 0;
+
 	public StringProtocolHandler( Socket clientSocket, Ini config ) {
-		super(clientSocket, config);
+		this(clientSocket, config, ConfigSnapshot.compile(config));
+	}
+
+	public StringProtocolHandler( Socket clientSocket, Ini config, ConfigSnapshot settings ) {
+		super(clientSocket, config, settings);
 
 		try {
-			out = new PrintWriter(clientSocket.getOutputStream());
-			in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+			openOutput(clientSocket.getOutputStream());
+			in = clientSocket.getInputStream();
 		} catch( IOException e ) {
 			close();
 		}
@@ -49,6 +142,35 @@ public abstract class StringProtocolHandler extends GenericProtocolHandler {
 		this.autoResetTimer = pAutoResetTimer;
 	}
 
+	public boolean isBatchReplies() {
+		return batchReplies;
+	}
+
+	/**
+	 * Aktiviert das Sammeln von Antworten für Protokolle mit Pipelining. Antworten werden dann erst
+	 * gesendet, wenn alle bereits empfangenen Befehle abgearbeitet sind, und so in möglichst wenigen
+	 * Paketen übertragen.
+	 *
+	 * @param batchReplies {@code true}, um Antworten zu sammeln.
+	 */
+	public void setBatchReplies( boolean batchReplies ) {
+		this.batchReplies = batchReplies;
+	}
+
+	public boolean isRawLines() {
+		return rawLines;
+	}
+
+	/**
+	 * Schaltet zwischen dekodierten Zeilen ({@link #handleMessage(String)}) und unveränderten
+	 * Byte-Zeilen ({@link #handleRawLine(byte[], int)}) um.
+	 *
+	 * @param rawLines {@code true}, um Byte-Zeilen zu empfangen.
+	 */
+	protected void setRawLines( boolean rawLines ) {
+		this.rawLines = rawLines;
+	}
+
 	@Override
 	public void run() {
 		this.running = true;
@@ -56,19 +178,29 @@ public abstract class StringProtocolHandler extends GenericProtocolHandler {
 
 		if( !isClosed() ) {
 			handleConnect();
+			flush();
 		}
 
-		String message;
 		while( isRunning() ) {
 			try {
 				// Wait for the next full line of content
-				message = in.readLine();
-				if( message != null ) {
-					LOG.debug("%s received: %s", this.getClass().getSimpleName(), message);
+				int len = readLineBytes();
+				if( len >= 0 ) {
 					if( autoResetTimer ) {
 						resetTimer();
 					}
-					handleMessage(message);
+					if( rawLines ) {
+						handleRawLine(lineBuffer, len);
+					} else {
+						String message = new String(lineBuffer, 0, len, charset);
+						LOG.debug("%s received: %s", this.getClass().getSimpleName(), message);
+						handleMessage(message);
+					}
+
+					// Send collected replies once all pipelined commands are handled
+					if( !batchReplies || !hasBufferedInput() ) {
+						flush();
+					}
 				} else {
 					// Connection was closed
 					this.running = false;
@@ -87,8 +219,50 @@ public abstract class StringProtocolHandler extends GenericProtocolHandler {
 		close();
 	}
 
+	/**
+	 * Wechselt auf der bestehenden Verbindung zu TLS ({@code STLS}, {@code STARTTLS}). Bisher
+	 * gesendete Antworten werden vorher gesendet. Bereits empfangene, aber noch nicht gelesene
+	 * Eingaben werden verworfen, da sie unverschlüsselt übertragen wurden (RFC 3207, Abschnitt 4.2).
+	 * Der Handshake wird sofort durchgeführt.
+	 *
+	 * @param context Der Kontext für TLS.
+	 * @throws IOException Falls der Handshake fehlschlägt. Die Verbindung ist dann unbrauchbar.
+	 */
+	protected void startTls( SSLContext context ) throws IOException {
+		holdRepliesUntil = 0;
+		flush();
+
+		inPos = 0;
+		inLimit = 0;
+
+		SSLSocket ssl = TlsContext.wrap(context, socket);
+		socket = ssl;
+		in = ssl.getInputStream();
+		openOutput(ssl.getOutputStream());
+		ssl.startHandshake();
+	}
+
+	/**
+	 * Hält alle Antworten für {@code millis} Millisekunden zurück, zum Beispiel nach einer
+	 * fehlgeschlagenen Anmeldung. Der Handler liest in der Zeit weiter Befehle, deren Antworten
+	 * gesammelt und anschließend in der richtigen Reihenfolge von einem gemeinsamen Timer-Thread
+	 * gesendet werden. Wird die Verbindung vorher geschlossen, werden die Antworten sofort gesendet.
+	 *
+	 * @param millis Verzögerung in ms.
+	 */
+	protected void delayReplies( long millis ) {
+		if( millis <= 0 ) {
+			return;
+		}
+		holdRepliesUntil = Math.max(holdRepliesUntil, System.currentTimeMillis() + millis);
+		REPLY_TIMER.schedule(this::flush, millis, TimeUnit.MILLISECONDS);
+	}
+
 	@Override
 	public void close() {
+		// Send pending replies before the socket is shut down
+		holdRepliesUntil = 0;
+		flush();
 		super.close();
 
 		// Close streams
@@ -103,26 +277,169 @@ public abstract class StringProtocolHandler extends GenericProtocolHandler {
 		if( out != null ) {
 			out.close();
 			out = null;
+			outBuffer = null;
 		}
 	}
 
+	private void openOutput( OutputStream stream ) {
+		outBuffer = new OutputBuffer(stream);
+		out = new PrintWriter(new OutputStreamWriter(outBuffer, charset));
+	}
+
+	/**
+	 * Liest die nächste Zeile ohne Zeilenumbruch. Zeilen werden durch {@code LF} getrennt, ein
+	 * vorangehendes {@code CR} wird entfernt.
+	 *
+	 * @return Die gelesene Zeile oder {@code null}, falls die Verbindung geschlossen wurde.
+	 * @throws IOException Falls beim Lesen ein Fehler auftritt.
+	 */
+	protected String readLine() throws IOException {
+		int len = readLineBytes();
+		if( len < 0 ) {
+			return null;
+		}
+		return new String(lineBuffer, 0, len, charset);
+	}
+
+	private int readLineBytes() throws IOException {
+		int len = 0;
+		while( true ) {
+			if( inPos >= inLimit && !fill() ) {
+				return len > 0 ? len : -1;
+			}
+
+			int start = inPos;
+			while( inPos < inLimit && inBuffer[inPos] != '\n' ) {
+				inPos += 1;
+			}
+
+			int n = inPos - start;
+			if( len + n > lineBuffer.length ) {
+				byte[] grown = new byte[Math.max(lineBuffer.length * 2, len + n)];
+				System.arraycopy(lineBuffer, 0, grown, 0, len);
+				lineBuffer = grown;
+			}
+			System.arraycopy(inBuffer, start, lineBuffer, len, n);
+			len += n;
+
+			if( inPos < inLimit ) {
+				// Skip LF and strip CR
+				inPos += 1;
+				if( len > 0 && lineBuffer[len - 1] == '\r' ) {
+					len -= 1;
+				}
+				return len;
+			}
+		}
+	}
+
+	/**
+	 * Liest genau {@code count} Bytes unverändert aus der Eingabe und schreibt sie in
+	 * {@code target}. Ist {@code target} {@code null}, werden die Bytes verworfen.
+	 *
+	 * @param count Anzahl zu lesender Bytes.
+	 * @param target Ziel der Daten oder {@code null}.
+	 * @throws IOException Falls die Verbindung vorher geschlossen wird oder das Schreiben fehlschlägt.
+	 */
+	protected void readBytes( long count, OutputStream target ) throws IOException {
+		while( count > 0 ) {
+			if( inPos >= inLimit && !fill() ) {
+				throw new EOFException("connection closed while reading data");
+			}
+
+			int n = (int) Math.min(count, inLimit - inPos);
+			if( target != null ) {
+				target.write(inBuffer, inPos, n);
+			}
+			inPos += n;
+			count -= n;
+		}
+	}
+
+	/**
+	 * Prüft, ob bereits weitere Eingaben empfangen wurden, die ohne Blockieren gelesen werden
+	 * können.
+	 *
+	 * @return {@code true}, wenn Daten bereitstehen.
+	 */
+	protected boolean hasBufferedInput() {
+		try {
+			return inPos < inLimit || (in != null && in.available() > 0);
+		} catch( IOException ex ) {
+			return false;
+		}
+	}
+
+	private boolean fill() throws IOException {
+		InputStream in = this.in;
+		if( in == null ) {
+			return false;
+		}
+		int n = in.read(inBuffer, 0, inBuffer.length);
+		if( n <= 0 ) {
+			return false;
+		}
+		inPos = 0;
+		inLimit = n;
+		return true;
+	}
+
 	public void send( String message ) {
 		if( isRunning() ) {
 			LOG.debug("%s send: %s", this.getClass().getSimpleName(), message);
 
 			out.print(message);
 			out.print(CRLF);
-			out.flush();
+			if( !batchReplies ) {
+				flush();
+			}
 		}
 	}
 
 	public void send( String message, Object... args ) {
-		if( isRunning() ) {
-			LOG.debug("%s send: %s", this.getClass().getSimpleName(), String.format(message, args));
+		send(String.format(message, args));
+	}
 
-			out.print(String.format(message, args));
-			out.print(CRLF);
+	/**
+	 * Hängt Bytes unverändert an die Ausgabe an, zum Beispiel ein IMAP-Literal. Die Bytes werden
+	 * wie Textzeilen gepuffert und mit der nächsten {@link #flush() Leerung} gesendet.
+	 *
+	 * @param bytes Die Bytes.
+	 * @param offset Position des ersten Bytes.
+	 * @param length Anzahl der Bytes.
+	 */
+	public void sendBytes( byte[] bytes, int offset, int length ) {
+		PrintWriter out = this.out;
+		OutputBuffer outBuffer = this.outBuffer;
+		if( isRunning() && out != null ) {
+			LOG.debug("%s send: <%d bytes>", this.getClass().getSimpleName(), length);
+
+			// Move pending text into the buffer first
+			out.flush();
+			try {
+				outBuffer.write(bytes, offset, length);
+			} catch( IOException ignored ) {
+				// Like PrintWriter, a broken connection shows up on the next read
+			}
+			if( !batchReplies ) {
+				flush();
+			}
+		}
+	}
+
+	/**
+	 * Sendet alle gesammelten Antworten.
+	 */
+	public void flush() {
+		PrintWriter out = this.out;
+		OutputBuffer outBuffer = this.outBuffer;
+		if( out != null && System.currentTimeMillis() >= holdRepliesUntil ) {
 			out.flush();
+			try {
+				outBuffer.flushToSocket();
+			} catch( IOException ignored ) {
+				// Like PrintWriter, a broken connection shows up on the next read
+			}
 		}
 	}
 
@@ -136,6 +453,20 @@ public abstract class StringProtocolHandler extends GenericProtocolHandler {
 
 	public abstract void handleMessage( String message );
 
+	/**
+	 * Verarbeitet eine unverändert empfangene Zeile (ohne {@code CRLF}), wenn
+	 * {@link #setRawLines(boolean) Byte-Zeilen} aktiviert sind. Der Puffer wird für die nächste
+	 * Zeile wiederverwendet.
+	 * <p>
+	 * Die Standardimplementierung dekodiert die Zeile und ruft {@link #handleMessage(String)} auf.
+	 *
+	 * @param line Puffer mit der Zeile.
+	 * @param length Länge der Zeile im Puffer.
+	 */
+	public void handleRawLine( byte[] line, int length ) {
+		handleMessage(new String(line, 0, length, charset));
+	}
+
 	public abstract void handleDisconnect();
 
 }
@@ -0,0 +1,419 @@
+package schule.ngb.carrot.protocol;
+
+import schule.ngb.carrot.maildrop.MailAddress;
+import schule.ngb.carrot.util.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistentes Journal der SMTP Warteschlange.
+ * <p>
+ * Jede angenommene Nachricht wird als Datei ({@code <id>.msg}) im Ordner des Journals abgelegt
+ * und in einer Logdatei ({@code queue.log}) vermerkt, bevor der Client eine Bestätigung erhält.
+ * Die Logdatei wird nur erweitert. Sie enthält drei Arten von Einträgen (Felder durch Tabs
+ * getrennt):
+ * <ul>
+ *     <li>{@code Q <id> <from> [BODY=<type>] <rcpt>...} – Nachricht wurde angenommen. Die Art des
+ *     Inhalts fehlt bei {@code 7BIT}.</li>
+ *     <li>{@code D <id> <rcpt>} – Zustellung an einen Empfänger ist abgeschlossen.</li>
+ *     <li>{@code C <id>} – Zustellung an alle Empfänger ist abgeschlossen.</li>
+ * </ul>
+ * Beim Start wird die Logdatei eingelesen und alle nicht abgeschlossenen Nachrichten werden mit
+ * den noch offenen Empfängern zurückgegeben. Danach, und jeweils nach einer festen Anzahl
+ * abgeschlossener Nachrichten, wird die Logdatei kompaktiert: Sie wird durch eine neue Datei
+ * ersetzt, die nur noch die offenen Nachrichten enthält.
+ * <p>
+ * Nach einem Absturz kann eine Nachricht an einen Empfänger doppelt zugestellt werden, wenn der
+ * Absturz zwischen Zustellung und {@code D} Eintrag erfolgt. Angenommene Nachrichten gehen aber
+ * nicht verloren.
+ */
+public final class TransmissionJournal implements Closeable {
+
+	private static final Log LOG = Log.getLogger(TransmissionJournal.class);
+
+	private static final String LOG_FILE = "queue.log";
+
+	private static final String MESSAGE_EXTENSION = ".msg";
+
+
+	/**
+	 * Eine Nachricht im Journal, deren Zustellung noch nicht abgeschlossen ist.
+	 */
+	public static final class Entry {
+
+		private final String id;
+
+		private final MailAddress from;
+
+		private final List<MailAddress> recipients;
+
+		private final String body;
+
+		private Entry( String id, MailAddress from, List<MailAddress> recipients, String body ) {
+			this.id = id;
+			this.from = from;
+			this.recipients = recipients;
+			this.body = body;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public MailAddress getFrom() {
+			return from;
+		}
+
+		/**
+		 * Liefert die Empfänger, an die noch nicht zugestellt wurde.
+		 *
+		 * @return Liste offener Empfänger.
+		 */
+		public List<MailAddress> getRecipients() {
+			return recipients;
+		}
+
+		/**
+		 * Liefert die Art des Inhalts laut {@code BODY}.
+		 *
+		 * @return Zum Beispiel {@link SMTPHandler#BODY_8BITMIME}.
+		 */
+		public String getBody() {
+			return body;
+		}
+
+	}
+
+
+	private final Path dir;
+
+	private final Path logFile;
+
+	/**
+	 * Ob angenommene Nachrichten mit {@code fsync} auf den Datenträger geschrieben werden.
+	 */
+	private final boolean sync;
+
+	/**
+	 * Anzahl abgeschlossener Nachrichten, nach der die Logdatei kompaktiert wird.
+	 */
+	private final int compactThreshold;
+
+	private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis());
+
+	/**
+	 * Offene Nachrichten. Zugriffe sind über das Journal synchronisiert.
+	 */
+	private final Map<String, Entry> pending = new LinkedHashMap<>();
+
+	private FileChannel channel;
+
+	private int completed = 0;
+
+	public TransmissionJournal( Path dir, boolean sync, int compactThreshold ) {
+		this.dir = dir;
+		this.logFile = dir.resolve(LOG_FILE);
+		this.sync = sync;
+		this.compactThreshold = Math.max(1, compactThreshold);
+	}
+
+	/**
+	 * Öffnet das Journal, liest alle vorhandenen Einträge ein und kompaktiert die Logdatei.
+	 * Nachrichtendateien ohne Eintrag im Journal werden gelöscht.
+	 *
+	 * @return Die offenen Nachrichten in der Reihenfolge ihrer Annahme.
+	 * @throws IOException Falls das Journal nicht gelesen oder geschrieben werden kann.
+	 */
+	public synchronized List<Entry> open() throws IOException {
+		Files.createDirectories(dir);
+		if( Files.exists(logFile) ) {
+			replay();
+		}
+
+		List<Entry> entries = new ArrayList<>(pending.size());
+		for( Entry entry : new ArrayList<>(pending.values()) ) {
+			if( Files.exists(getMessageFile(entry.id)) ) {
+				entries.add(entry);
+			} else {
+				LOG.error("Message file for queued mail %s is missing", entry.id);
+				pending.remove(entry.id);
+			}
+		}
+
+		try( DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + MESSAGE_EXTENSION) ) {
+			for( Path file : files ) {
+				String name = file.getFileName().toString();
+				if( !pending.containsKey(name.substring(0, name.length() - MESSAGE_EXTENSION.length())) ) {
+					Files.deleteIfExists(file);
+				}
+			}
+		}
+
+		compact();
+		return entries;
+	}
+
+	private void replay() throws IOException {
+		// Eine letzte Zeile ohne Zeilenumbruch wurde bei einem Absturz nur teilweise geschrieben
+		boolean terminated = true;
+		try( FileChannel in = FileChannel.open(logFile, StandardOpenOption.READ) ) {
+			if( in.size() > 0 ) {
+				ByteBuffer last = ByteBuffer.allocate(1);
+				in.read(last, in.size() - 1);
+				terminated = last.get(0) == '\n';
+			}
+		}
+
+		int lineNumber = 0;
+		try( BufferedReader in = Files.newBufferedReader(logFile, StandardCharsets.UTF_8) ) {
+			String line, next = in.readLine();
+			while( (line = next) != null ) {
+				next = in.readLine();
+				lineNumber += 1;
+				if( next == null && !terminated ) {
+					LOG.warn("Skipping incomplete journal entry in line %d", lineNumber);
+					break;
+				}
+				String[] fields = line.split("\t");
+				if( fields.length < 2 ) {
+					LOG.warn("Skipping malformed journal entry in line %d", lineNumber);
+					continue;
+				}
+				String id = fields[1];
+				updateSequence(id);
+
+				switch( fields[0] ) {
+					case "Q":
+						if( fields.length < 4 ) {
+							LOG.warn("Skipping malformed journal entry in line %d", lineNumber);
+							break;
+						}
+						int first = 3;
+						String body = SMTPHandler.BODY_7BIT;
+						if( fields[3].startsWith("BODY=") ) {
+							body = fields[3].substring(5);
+							first = 4;
+						}
+						if( first >= fields.length ) {
+							LOG.warn("Skipping malformed journal entry in line %d", lineNumber);
+							break;
+						}
+						List<MailAddress> recipients = new ArrayList<>(fields.length - first);
+						for( int i = first; i < fields.length; i++ ) {
+							recipients.add(MailAddress.parseString(fields[i]));
+						}
+						pending.put(id, new Entry(id, MailAddress.parseString(fields[2]), recipients, body));
+						break;
+
+					case "D":
+						Entry entry = pending.get(id);
+						if( entry != null && fields.length > 2 ) {
+							removeRecipient(entry, fields[2]);
+						}
+						break;
+
+					case "C":
+						pending.remove(id);
+						break;
+
+					default:
+						LOG.warn("Skipping unknown journal entry in line %d", lineNumber);
+				}
+			}
+		}
+		LOG.info("Replayed %d journal entries, %d mails pending", lineNumber, pending.size());
+	}
+
+	private void updateSequence( String id ) {
+		try {
+			long value = Long.parseLong(id, 16);
+			sequence.accumulateAndGet(value, Math::max);
+		} catch( NumberFormatException ignored ) {
+		}
+	}
+
+	/**
+	 * Erzeugt eine neue, eindeutige ID für eine Nachricht.
+	 *
+	 * @return Die neue ID.
+	 */
+	public String nextId() {
+		return String.format("%016x", sequence.incrementAndGet());
+	}
+
+	/**
+	 * Liefert den Pfad, unter dem die Nachricht mit der ID {@code id} abgelegt wird.
+	 *
+	 * @param id ID der Nachricht.
+	 * @return Pfad zur Nachrichtendatei.
+	 */
+	public Path getMessageFile( String id ) {
+		return dir.resolve(id + MESSAGE_EXTENSION);
+	}
+
+	/**
+	 * Vermerkt eine angenommene Nachricht. Die Nachricht muss schon unter
+	 * {@link #getMessageFile(String)} abgelegt sein. Kehrt die Methode zurück, ist die Nachricht
+	 * (bei eingeschaltetem {@code sync}) dauerhaft gespeichert.
+	 *
+	 * @param id ID der Nachricht.
+	 * @param from Absender.
+	 * @param recipients Empfänger.
+	 * @param body Art des Inhalts laut {@code BODY}.
+	 * @throws IOException Falls das Journal nicht geschrieben werden kann.
+	 */
+	public void queued( String id, MailAddress from, List<MailAddress> recipients, String body ) throws IOException {
+		if( sync ) {
+			try( FileChannel message = FileChannel.open(getMessageFile(id), StandardOpenOption.WRITE) ) {
+				message.force(true);
+			}
+		}
+
+		Entry entry = new Entry(id, from, new ArrayList<>(recipients), body);
+		synchronized( this ) {
+			append(formatQueued(entry), sync);
+			pending.put(id, entry);
+		}
+	}
+
+	/**
+	 * Vermerkt die abgeschlossene Zustellung an einen Empfänger.
+	 *
+	 * @param id ID der Nachricht.
+	 * @param rcpt Der Empfänger.
+	 */
+	public synchronized void delivered( String id, MailAddress rcpt ) {
+		Entry entry = pending.get(id);
+		if( entry == null ) {
+			return;
+		}
+		String addr = rcpt.toQualifiedString();
+		removeRecipient(entry, addr);
+		try {
+			append("D\t" + id + "\t" + addr, false);
+		} catch( IOException ex ) {
+			LOG.error(ex, "Failed to write journal entry for mail %s", id);
+		}
+	}
+
+	/**
+	 * Vermerkt die abgeschlossene Zustellung an alle Empfänger. Die Nachrichtendatei muss danach
+	 * vom Aufrufer gelöscht werden.
+	 *
+	 * @param id ID der Nachricht.
+	 */
+	public synchronized void completed( String id ) {
+		if( pending.remove(id) == null ) {
+			return;
+		}
+		try {
+			append("C\t" + id, false);
+			completed += 1;
+			if( completed >= compactThreshold ) {
+				compact();
+			}
+		} catch( IOException ex ) {
+			LOG.error(ex, "Failed to write journal entry for mail %s", id);
+		}
+	}
+
+	/**
+	 * Ersetzt die Logdatei durch eine neue Datei, die nur die offenen Nachrichten enthält.
+	 *
+	 * @throws IOException Falls die neue Logdatei nicht geschrieben werden kann.
+	 */
+	public synchronized void compact() throws IOException {
+		Path tmp = logFile.resolveSibling(LOG_FILE + ".tmp");
+		try( FileChannel out = FileChannel.open(tmp,
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING) ) {
+			for( Entry entry : pending.values() ) {
+				write(out, formatQueued(entry) + "\n");
+			}
+			out.force(true);
+		}
+
+		closeChannel();
+		Files.move(tmp, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		completed = 0;
+		LOG.debug("Compacted transmission journal (%d mails pending)", pending.size());
+	}
+
+	/**
+	 * Liefert die Anzahl offener Nachrichten.
+	 *
+	 * @return Anzahl offener Nachrichten.
+	 */
+	public synchronized int size() {
+		return pending.size();
+	}
+
+	@Override
+	public synchronized void close() {
+		closeChannel();
+	}
+
+	private void append( String record, boolean force ) throws IOException {
+		if( channel == null ) {
+			throw new IOException("journal is not open");
+		}
+		write(channel, record + "\n");
+		if( force ) {
+			channel.force(false);
+		}
+	}
+
+	private static String formatQueued( Entry entry ) {
+		StringBuilder record = new StringBuilder(64);
+		record.append("Q\t").append(entry.id).append('\t').append(entry.from.toQualifiedString());
+		if( !SMTPHandler.BODY_7BIT.equals(entry.body) ) {
+			record.append("\tBODY=").append(entry.body);
+		}
+		for( MailAddress rcpt : entry.recipients ) {
+			record.append('\t').append(rcpt.toQualifiedString());
+		}
+		return record.toString();
+	}
+
+	private static void write( FileChannel out, String record ) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8));
+		while( buf.hasRemaining() ) {
+			out.write(buf);
+		}
+	}
+
+	private static void removeRecipient( Entry entry, String addr ) {
+		for( int i = 0; i < entry.recipients.size(); i++ ) {
+			if( entry.recipients.get(i).toQualifiedString().equals(addr) ) {
+				entry.recipients.remove(i);
+				return;
+			}
+		}
+	}
+
+	private void closeChannel() {
+		if( channel != null ) {
+			try {
+				channel.close();
+			} catch( IOException ignored ) {
+			}
+			channel = null;
+		}
+	}
+
+}
@@ -0,0 +1,144 @@
+package schule.ngb.carrot.util;
+
+import org.ini4j.Ini;
+import org.ini4j.Profile;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unveränderliche Momentaufnahme einer Konfiguration.
+ * <p>
+ * Abfragen über {@link Ini#get(Object, Object, Class)} durchsuchen bei jedem Aufruf die
+ * Abschnitte von ini4j und wandeln den Wert per Reflection um. Für Werte, die bei jedem Befehl
+ * oder jeder Nachricht gebraucht werden, ist das unnötig teuer. Ein {@code ConfigSnapshot} wird
+ * einmal pro {@link schule.ngb.carrot.protocol.GenericProtocolHandlerFactory Factory} aus der
+ * Konfiguration erstellt und an alle Handler weitergegeben. Häufig benötigte Werte wie der
+ * Hostname und das {@link UserDirectory} liegen direkt als Felder vor.
+ * <p>
+ * Änderungen an der {@code Ini} nach dem Erstellen werden nicht übernommen.
+ */
+public final class ConfigSnapshot {
+
+	/**
+	 * Erstellt eine Momentaufnahme von {@code config}.
+	 *
+	 * @param config Die Konfiguration.
+	 * @return Die Momentaufnahme.
+	 */
+	public static ConfigSnapshot compile( Ini config ) {
+		return new ConfigSnapshot(config);
+	}
+
+
+	private final Ini config;
+
+	private final Map<String, Map<String, String>> sections;
+
+	private final UserDirectory users;
+
+	private final String host;
+
+	private ConfigSnapshot( Ini config ) {
+		this.config = config;
+
+		Map<String, Map<String, String>> sections = new HashMap<>();
+		for( String name : config.keySet() ) {
+			Profile.Section section = config.get(name);
+			Map<String, String> values = new HashMap<>();
+			for( String key : section.keySet() ) {
+				values.put(key, section.get(key));
+			}
+			sections.put(name, Collections.unmodifiableMap(values));
+		}
+		this.sections = Collections.unmodifiableMap(sections);
+
+		this.users = UserDirectory.load(config);
+		this.host = get(Configuration.SECTION_MAIN, "host");
+	}
+
+	/**
+	 * Liefert die Konfiguration, aus der die Momentaufnahme erstellt wurde.
+	 *
+	 * @return Die Konfiguration.
+	 */
+	public Ini getConfig() {
+		return config;
+	}
+
+	/**
+	 * Liefert den Hostnamen des Servers ({@code [carrot] host}).
+	 *
+	 * @return Der Hostname.
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Liefert die Nutzer mit ihren gespeicherten Passwörtern.
+	 *
+	 * @return Das Nutzerverzeichnis.
+	 */
+	public UserDirectory getUserDirectory() {
+		return users;
+	}
+
+	public boolean hasUser( String name ) {
+		return users.hasUser(name);
+	}
+
+	public String get( String section, String key ) {
+		Map<String, String> values = sections.get(section);
+		return values == null ? null : values.get(key);
+	}
+
+	public String get( String section, String key, String defaultValue ) {
+		String value = get(section, key);
+		return value == null ? defaultValue : value;
+	}
+
+	public boolean getBoolean( String section, String key, boolean defaultValue ) {
+		String value = get(section, key);
+		return value == null || value.isBlank() ? defaultValue : Boolean.parseBoolean(value.trim());
+	}
+
+	public int getInt( String section, String key, int defaultValue ) {
+		String value = get(section, key);
+		if( value == null || value.isBlank() ) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch( NumberFormatException ex ) {
+			return defaultValue;
+		}
+	}
+
+	public long getLong( String section, String key, long defaultValue ) {
+		String value = get(section, key);
+		if( value == null || value.isBlank() ) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch( NumberFormatException ex ) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Liefert einen Wert, der mehrere durch Kommas getrennte Werte enthält.
+	 *
+	 * @param section Name des Abschnitts.
+	 * @param key Name des Schlüssels.
+	 * @return Die Werte oder ein leeres Array.
+	 * @see Configuration#toArray(String)
+	 */
+	public String[] getArray( String section, String key ) {
+		String value = get(section, key);
+		return value == null ? new String[0] : Configuration.toArray(value);
+	}
+
+}
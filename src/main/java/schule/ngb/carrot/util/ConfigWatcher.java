@@ -0,0 +1,120 @@
+package schule.ngb.carrot.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Überwacht Konfigurationsdateien auf Änderungen.
+ * <p>
+ * Beobachtet werden die Ordner der Dateien mit einem {@link WatchService}. Wird eine der Dateien
+ * erstellt oder geändert, wird {@code onChange} aufgerufen. Editoren schreiben Dateien oft in
+ * mehreren Schritten. Deshalb wird erst reagiert, wenn für {@code quietPeriod} Millisekunden
+ * keine weitere Änderung erfolgt ist. Der Aufruf erfolgt im Thread des Watchers.
+ */
+public final class ConfigWatcher implements Closeable {
+
+	private static final Log LOG = Log.getLogger(ConfigWatcher.class);
+
+
+	private final WatchService watchService;
+
+	private final Set<Path> files = new HashSet<>();
+
+	private final Runnable onChange;
+
+	private final long quietPeriod;
+
+	private final Thread thread;
+
+	/**
+	 * Erstellt einen Watcher für die angegebenen Dateien und startet ihn. Dateien in Ordnern, die
+	 * nicht existieren, werden ignoriert.
+	 *
+	 * @param files Die Konfigurationsdateien.
+	 * @param quietPeriod Wartezeit nach der letzten Änderung in ms.
+	 * @param onChange Wird nach einer Änderung aufgerufen.
+	 * @throws IOException Falls der {@code WatchService} nicht erstellt werden kann.
+	 */
+	public ConfigWatcher( List<Path> files, long quietPeriod, Runnable onChange ) throws IOException {
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.onChange = onChange;
+		this.quietPeriod = quietPeriod;
+
+		Set<Path> dirs = new HashSet<>();
+		for( Path file : files ) {
+			Path abs = file.toAbsolutePath().normalize();
+			Path dir = abs.getParent();
+			if( dir != null && dir.toFile().isDirectory() ) {
+				this.files.add(abs);
+				if( dirs.add(dir) ) {
+					dir.register(watchService,
+						StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY
+					);
+				}
+			}
+		}
+		LOG.debug("Watching configuration files %s", this.files);
+
+		thread = new Thread(this::run, "config-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void close() {
+		thread.interrupt();
+		try {
+			watchService.close();
+		} catch( IOException ignored ) {
+		}
+	}
+
+	private void run() {
+		try {
+			while( !Thread.currentThread().isInterrupted() ) {
+				WatchKey key = watchService.take();
+				boolean changed = collect(key);
+
+				// Weitere Änderungen abwarten
+				while( (key = watchService.poll(quietPeriod, TimeUnit.MILLISECONDS)) != null ) {
+					changed |= collect(key);
+				}
+
+				if( changed ) {
+					try {
+						onChange.run();
+					} catch( RuntimeException ex ) {
+						LOG.error(ex, "Failed to apply configuration changes");
+					}
+				}
+			}
+		} catch( InterruptedException | ClosedWatchServiceException ignored ) {
+		}
+	}
+
+	private boolean collect( WatchKey key ) {
+		boolean changed = false;
+		Path dir = (Path) key.watchable();
+		for( WatchEvent<?> event : key.pollEvents() ) {
+			if( event.context() instanceof Path ) {
+				Path file = dir.resolve((Path) event.context()).toAbsolutePath().normalize();
+				changed |= files.contains(file);
+			}
+		}
+		key.reset();
+		return changed;
+	}
+
+}
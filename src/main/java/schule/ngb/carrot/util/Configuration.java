@@ -77,6 +77,8 @@ public class Configuration {
 		options.addOption("d", "data", true, "set the data storage folder");
 		options.addOption(Option.builder().longOpt("headless").desc("start without gui").build());
 		options.addOption(Option.builder().longOpt("debug").desc("show debugging information").build());
+		options.addOption(Option.builder().longOpt("hash-password").desc("read a password from stdin and print its hash for the [users] section").build());
+		options.addOption(Option.builder().longOpt("reshard").desc("redistribute maildrops to the configured number of shards").build());
 		options.addOption(Option.builder("D").hasArgs().valueSeparator('=')
 			.desc("set arbitrary configuration properties for protocols and extensions").build());
 		return options;
@@ -0,0 +1,264 @@
+package schule.ngb.carrot.util;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Prüft Zugangsdaten gegen die Nutzer im {@link UserDirectory} der Konfiguration.
+ * <p>
+ * Passwörter können im Klartext oder als PBKDF2-Hash im Format
+ * {@code {PBKDF2}<iterationen>$<salt>$<hash>} (Base64) gespeichert werden. Einen Hash erzeugt
+ * {@link #hash(String)} oder die Kommandozeilenoption {@code --hash-password}.
+ * <p>
+ * Die Berechnung eines Hashes ist absichtlich teuer. Damit Clients, die sich häufig neu
+ * verbinden, diese Kosten nicht bei jeder Anmeldung tragen, werden erfolgreiche Prüfungen für
+ * {@code credential_cache_ttl} Millisekunden (Abschnitt {@code [carrot]}) zwischengespeichert.
+ * Im Cache liegt nur ein HMAC des Passworts mit einem zufälligen Schlüssel, der nur im Speicher
+ * existiert. Ändert sich der gespeicherte Hash eines Nutzers, ist der Eintrag ungültig.
+ */
+public final class CredentialService {
+
+	private static final Log LOG = Log.getLogger(CredentialService.class);
+
+	/**
+	 * Präfix für Passwörter, die als PBKDF2-Hash gespeichert sind.
+	 */
+	public static final String PBKDF2_PREFIX = "{PBKDF2}";
+
+	/**
+	 * Standardanzahl Iterationen für neue Hashes.
+	 */
+	public static final int DEFAULT_ITERATIONS = 100000;
+
+	/**
+	 * Standarddauer in ms, für die erfolgreiche Prüfungen zwischengespeichert werden.
+	 */
+	public static final long DEFAULT_CACHE_TTL = 300000;
+
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+
+	private static final int SALT_LENGTH = 16;
+
+	private static final int KEY_LENGTH = 256;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private static final CredentialService INSTANCE = new CredentialService();
+
+
+	/**
+	 * Liefert die gemeinsame Instanz für alle Protokolle.
+	 *
+	 * @return Der {@code CredentialService}.
+	 */
+	public static CredentialService getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Erzeugt einen PBKDF2-Hash mit {@link #DEFAULT_ITERATIONS} Iterationen und zufälligem Salt.
+	 *
+	 * @param password Das Passwort.
+	 * @return Der Hash im Format für die Konfiguration.
+	 */
+	public static String hash( String password ) {
+		return hash(password, DEFAULT_ITERATIONS);
+	}
+
+	/**
+	 * Erzeugt einen PBKDF2-Hash mit zufälligem Salt.
+	 *
+	 * @param password Das Passwort.
+	 * @param iterations Anzahl der Iterationen.
+	 * @return Der Hash im Format für die Konfiguration.
+	 */
+	public static String hash( String password, int iterations ) {
+		byte[] salt = new byte[SALT_LENGTH];
+		RANDOM.nextBytes(salt);
+		Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+		return PBKDF2_PREFIX + iterations
+			+ "$" + b64.encodeToString(salt)
+			+ "$" + b64.encodeToString(pbkdf2(password, salt, iterations, KEY_LENGTH));
+	}
+
+	/**
+	 * Prüft, ob ein gespeichertes Passwort ein Hash ist.
+	 *
+	 * @param stored Das gespeicherte Passwort.
+	 * @return {@code true}, wenn {@code stored} ein Hash ist.
+	 */
+	public static boolean isHashed( String stored ) {
+		return stored != null && stored.startsWith(PBKDF2_PREFIX);
+	}
+
+
+	/**
+	 * Erfolgreiche Prüfung eines Passworts.
+	 */
+	private static final class CacheEntry {
+
+		/**
+		 * Der gespeicherte Hash zum Zeitpunkt der Prüfung.
+		 */
+		private final String stored;
+
+		private final byte[] fingerprint;
+
+		private final long expires;
+
+		private CacheEntry( String stored, byte[] fingerprint, long expires ) {
+			this.stored = stored;
+			this.fingerprint = fingerprint;
+			this.expires = expires;
+		}
+
+	}
+
+
+	private final ConcurrentMap<String, CacheEntry> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * Schlüssel für die HMACs im Cache.
+	 */
+	private final SecretKeySpec cacheKey;
+
+	private CredentialService() {
+		byte[] key = new byte[32];
+		RANDOM.nextBytes(key);
+		cacheKey = new SecretKeySpec(key, "HmacSHA256");
+	}
+
+	/**
+	 * Prüft, ob ein Nutzer existiert.
+	 *
+	 * @param settings Die Konfiguration mit dem Nutzerverzeichnis.
+	 * @param user Name des Nutzers.
+	 * @return {@code true}, wenn der Nutzer existiert.
+	 */
+	public boolean hasUser( ConfigSnapshot settings, String user ) {
+		return settings.hasUser(user);
+	}
+
+	/**
+	 * Prüft das Passwort eines Nutzers.
+	 *
+	 * @param settings Die Konfiguration mit dem Nutzerverzeichnis.
+	 * @param user Name des Nutzers.
+	 * @param password Das übermittelte Passwort.
+	 * @return {@code true}, wenn das Passwort korrekt ist.
+	 */
+	public boolean verify( ConfigSnapshot settings, String user, String password ) {
+		if( user == null || password == null ) {
+			return false;
+		}
+		String stored = settings.getUserDirectory().getPassword(user);
+		if( stored == null ) {
+			return false;
+		}
+		if( !isHashed(stored) ) {
+			return MessageDigest.isEqual(
+				stored.getBytes(StandardCharsets.UTF_8),
+				password.getBytes(StandardCharsets.UTF_8)
+			);
+		}
+
+		long ttl = settings.getLong(Configuration.SECTION_MAIN, "credential_cache_ttl", DEFAULT_CACHE_TTL);
+
+		byte[] fingerprint = null;
+		if( ttl > 0 ) {
+			fingerprint = fingerprint(user, password);
+			CacheEntry entry = cache.get(user);
+			if( entry != null
+				&& entry.expires > System.currentTimeMillis()
+				&& entry.stored.equals(stored)
+				&& MessageDigest.isEqual(entry.fingerprint, fingerprint) ) {
+				return true;
+			}
+		}
+
+		if( verifyHash(stored, password) ) {
+			if( ttl > 0 ) {
+				cache.put(user, new CacheEntry(stored, fingerprint, System.currentTimeMillis() + ttl));
+			}
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * Liefert das Passwort eines Nutzers im Klartext. Verfahren wie {@code APOP} oder
+	 * {@code CRAM-MD5} benötigen das Passwort im Klartext und sind für Nutzer mit gehashtem
+	 * Passwort nicht möglich.
+	 *
+	 * @param settings Die Konfiguration mit dem Nutzerverzeichnis.
+	 * @param user Name des Nutzers.
+	 * @return Das Passwort oder {@code null}, wenn der Nutzer nicht existiert oder nur ein Hash
+	 * 	gespeichert ist.
+	 */
+	public String getPlainPassword( ConfigSnapshot settings, String user ) {
+		if( user == null ) {
+			return null;
+		}
+		String stored = settings.getUserDirectory().getPassword(user);
+		return isHashed(stored) ? null : stored;
+	}
+
+	/**
+	 * Entfernt alle zwischengespeicherten Prüfungen.
+	 */
+	public void clearCache() {
+		cache.clear();
+	}
+
+	private boolean verifyHash( String stored, String password ) {
+		String[] parts = stored.substring(PBKDF2_PREFIX.length()).split("\\$");
+		if( parts.length != 3 ) {
+			LOG.warn("Malformed password hash in configuration");
+			return false;
+		}
+		try {
+			int iterations = Integer.parseInt(parts[0]);
+			byte[] salt = Base64.getDecoder().decode(parts[1]);
+			byte[] expected = Base64.getDecoder().decode(parts[2]);
+			byte[] actual = pbkdf2(password, salt, iterations, expected.length * 8);
+			return MessageDigest.isEqual(expected, actual);
+		} catch( IllegalArgumentException ex ) {
+			LOG.warn("Malformed password hash in configuration");
+			return false;
+		}
+	}
+
+	private byte[] fingerprint( String user, String password ) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(cacheKey);
+			mac.update(user.getBytes(StandardCharsets.UTF_8));
+			mac.update((byte) 0);
+			return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+		} catch( GeneralSecurityException ex ) {
+			throw new IllegalStateException("HmacSHA256 not available", ex);
+		}
+	}
+
+	private static byte[] pbkdf2( String password, byte[] salt, int iterations, int keyLength ) {
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, keyLength);
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		} catch( GeneralSecurityException ex ) {
+			throw new IllegalStateException(ALGORITHM + " not available", ex);
+		} finally {
+			spec.clearPassword();
+		}
+	}
+
+}
@@ -1,50 +1,173 @@
 package schule.ngb.carrot.util;
 
-import java.math.BigInteger;
+import java.io.IOException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
 
+/**
+ * Hilfsmethoden für Hashes und Kodierungen.
+ * <p>
+ * {@link MessageDigest#getInstance(String)} durchsucht bei jedem Aufruf die installierten
+ * Provider. Deshalb wird pro Algorithmus einmal eine Instanz erstellt und für jeden Thread
+ * geklont. Hashes werden über eine Tabelle in Hex-Strings umgewandelt. Dateien und Kanäle werden
+ * blockweise gehasht, ohne ihren Inhalt als String einzulesen.
+ */
 public class Digest {
 
-	public static boolean md5Available() {
-		try {
-			MessageDigest md5 = MessageDigest.getInstance("MD5");
-			return true;
-		} catch( NoSuchAlgorithmException ex ) {
-			return false;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Ein Hash-Algorithmus mit einer Instanz pro Thread.
+	 */
+	private static final class Algorithm {
+
+		private final MessageDigest prototype;
+
+		private final ThreadLocal<MessageDigest> local;
+
+		private Algorithm( String name ) {
+			MessageDigest md;
+			try {
+				md = MessageDigest.getInstance(name);
+			} catch( NoSuchAlgorithmException ex ) {
+				md = null;
+			}
+			this.prototype = md;
+			this.local = ThreadLocal.withInitial(this::newInstance);
 		}
+
+		private MessageDigest newInstance() {
+			try {
+				return (MessageDigest) prototype.clone();
+			} catch( CloneNotSupportedException ex ) {
+				try {
+					return MessageDigest.getInstance(prototype.getAlgorithm());
+				} catch( NoSuchAlgorithmException ex2 ) {
+					throw new IllegalStateException(ex2);
+				}
+			}
+		}
+
+		private boolean isAvailable() {
+			return prototype != null;
+		}
+
+		/**
+		 * Liefert die zurückgesetzte Instanz des aktuellen Threads.
+		 */
+		private MessageDigest get() {
+			MessageDigest md = local.get();
+			md.reset();
+			return md;
+		}
+
+	}
+
+	private static final Algorithm MD5 = new Algorithm("MD5");
+
+	private static final Algorithm SHA1 = new Algorithm("SHA-1");
+
+
+	public static boolean md5Available() {
+		return MD5.isAvailable();
 	}
 
 	public static String md5( String content ) {
-		try {
-			MessageDigest md5 = MessageDigest.getInstance("MD5");
-			md5.update(StandardCharsets.UTF_8.encode(content));
-			return String.format("%032x", new BigInteger(1, md5.digest()));
-		} catch( NoSuchAlgorithmException ex ) {
+		return hash(MD5, content);
+	}
+
+	/**
+	 * Berechnet den MD5-Hash einer Datei, ohne sie vollständig einzulesen.
+	 *
+	 * @param file Die Datei.
+	 * @return Der Hash als Hex-String oder ein leerer String, falls MD5 nicht verfügbar ist.
+	 * @throws IOException Falls die Datei nicht gelesen werden kann.
+	 */
+	public static String md5( Path file ) throws IOException {
+		return hash(MD5, file);
+	}
+
+	/**
+	 * Berechnet den MD5-Hash der restlichen Daten eines Kanals. Der Kanal wird nicht geschlossen.
+	 *
+	 * @param channel Der Kanal.
+	 * @return Der Hash als Hex-String oder ein leerer String, falls MD5 nicht verfügbar ist.
+	 * @throws IOException Falls der Kanal nicht gelesen werden kann.
+	 */
+	public static String md5( ReadableByteChannel channel ) throws IOException {
+		return hash(MD5, channel);
+	}
+
+	public static boolean sha1Available() {
+		return SHA1.isAvailable();
+	}
+
+	public static String sha1( String content ) {
+		return hash(SHA1, content);
+	}
+
+	public static String sha1( Path file ) throws IOException {
+		return hash(SHA1, file);
+	}
+
+	public static String sha1( ReadableByteChannel channel ) throws IOException {
+		return hash(SHA1, channel);
+	}
+
+	/**
+	 * Wandelt Bytes in einen Hex-String mit Kleinbuchstaben um.
+	 *
+	 * @param bytes Die Bytes.
+	 * @return Der Hex-String mit zwei Zeichen pro Byte.
+	 */
+	public static String toHex( byte[] bytes ) {
+		char[] hex = new char[bytes.length * 2];
+		for( int i = 0, j = 0; i < bytes.length; i++ ) {
+			int b = bytes[i] & 0xff;
+			hex[j++] = HEX[b >>> 4];
+			hex[j++] = HEX[b & 0x0f];
+		}
+		return new String(hex);
+	}
+
+	private static String hash( Algorithm algorithm, String content ) {
+		if( !algorithm.isAvailable() ) {
 			return "";
 		}
+		MessageDigest md = algorithm.get();
+		md.update(StandardCharsets.UTF_8.encode(content));
+		return toHex(md.digest());
 	}
-	public static boolean sha1Available() {
-		try {
-			MessageDigest sha1 = MessageDigest.getInstance("SHA1");
-			return true;
-		} catch( NoSuchAlgorithmException ex ) {
-			return false;
+
+	private static String hash( Algorithm algorithm, Path file ) throws IOException {
+		try( FileChannel channel = FileChannel.open(file, StandardOpenOption.READ) ) {
+			return hash(algorithm, channel);
 		}
 	}
 
-	public static String sha1( String content ) {
-		try {
-			MessageDigest sha1 = MessageDigest.getInstance("SHA1");
-			sha1.update(StandardCharsets.UTF_8.encode(content));
-			return String.format("%032x", new BigInteger(1, sha1.digest()));
-		} catch( NoSuchAlgorithmException ex ) {
+	private static String hash( Algorithm algorithm, ReadableByteChannel channel ) throws IOException {
+		if( !algorithm.isAvailable() ) {
 			return "";
 		}
+		MessageDigest md = algorithm.get();
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		while( channel.read(buffer) >= 0 ) {
+			buffer.flip();
+			md.update(buffer);
+			buffer.clear();
+		}
+		return toHex(md.digest());
 	}
 
 	public static String encodeBase64( String content ) {
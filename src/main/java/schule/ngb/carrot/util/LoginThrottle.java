@@ -0,0 +1,224 @@
+package schule.ngb.carrot.util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bremst wiederholte fehlgeschlagene Anmeldungen aus.
+ * <p>
+ * Fehlversuche werden getrennt pro IP-Adresse und pro Nutzername gezählt. Nach dem {@code n}-ten
+ * Fehlversuch sind weitere Anmeldungen für {@code auth_throttle_delay * 2^(n-1)} Millisekunden
+ * (höchstens {@code auth_throttle_max_delay}) gesperrt. Während der Sperre werden Passwörter
+ * gar nicht erst geprüft, sodass gehashte Passwörter keine Rechenzeit kosten. Die Handler senden
+ * die Ablehnung erst nach Ablauf der Sperre, ohne dafür einen Thread zu blockieren (siehe
+ * {@link schule.ngb.carrot.protocol.StringProtocolHandler#delayReplies(long)}).
+ * <p>
+ * Einträge werden {@code auth_throttle_expire} Millisekunden nach dem letzten Fehlversuch
+ * vergessen. Die Tabelle enthält höchstens {@code auth_throttle_entries} Einträge. Ist sie voll,
+ * werden zuerst abgelaufene und danach die ältesten Einträge entfernt.
+ * <p>
+ * Alle Einstellungen stehen im Abschnitt {@code [carrot]}. POP3 und SMTP benutzen dieselbe
+ * Instanz.
+ */
+public final class LoginThrottle {
+
+	private static final Log LOG = Log.getLogger(LoginThrottle.class);
+
+	public static final long DEFAULT_DELAY = 1000;
+
+	public static final long DEFAULT_MAX_DELAY = 60000;
+
+	public static final long DEFAULT_EXPIRE = 900000;
+
+	public static final int DEFAULT_ENTRIES = 10000;
+
+	private static final LoginThrottle INSTANCE = new LoginThrottle();
+
+
+	/**
+	 * Liefert die gemeinsame Instanz für alle Protokolle.
+	 *
+	 * @return Der {@code LoginThrottle}.
+	 */
+	public static LoginThrottle getInstance() {
+		return INSTANCE;
+	}
+
+
+	/**
+	 * Fehlversuche für eine Adresse oder einen Nutzer.
+	 */
+	private static final class Entry {
+
+		private int failures = 0;
+
+		private long lastFailure;
+
+		private long blockedUntil;
+
+	}
+
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+	private LoginThrottle() {
+	}
+
+	/**
+	 * Liefert die verbleibende Sperrzeit für eine Anmeldung.
+	 *
+	 * @param settings Die Konfiguration.
+	 * @param address IP-Adresse des Clients.
+	 * @param user Name des Nutzers oder {@code null}.
+	 * @return Die Sperrzeit in ms oder {@code 0}, wenn eine Anmeldung erlaubt ist.
+	 */
+	public long getDelay( ConfigSnapshot settings, String address, String user ) {
+		if( !isEnabled(settings) ) {
+			return 0;
+		}
+		long now = System.currentTimeMillis();
+		return Math.max(remaining(addressKey(address), now), remaining(userKey(user), now));
+	}
+
+	/**
+	 * Zählt einen Fehlversuch. Ist die Anmeldung bereits gesperrt, wird die Sperre nicht
+	 * verlängert.
+	 *
+	 * @param settings Die Konfiguration.
+	 * @param address IP-Adresse des Clients.
+	 * @param user Name des Nutzers oder {@code null}.
+	 * @return Zeit in ms, nach der die Ablehnung gesendet werden soll.
+	 */
+	public long failure( ConfigSnapshot settings, String address, String user ) {
+		if( !isEnabled(settings) ) {
+			return 0;
+		}
+		long now = System.currentTimeMillis();
+		long delay = Math.max(
+			failure(settings, addressKey(address), now),
+			failure(settings, userKey(user), now)
+		);
+		if( delay > 0 ) {
+			LOG.debug("Failed login for %s from %s, delaying next attempt by %dms", user, address, delay);
+		}
+		return delay;
+	}
+
+	/**
+	 * Setzt die Fehlversuche eines Nutzers nach einer erfolgreichen Anmeldung zurück. Die
+	 * Fehlversuche der Adresse bleiben erhalten, bis sie ablaufen.
+	 *
+	 * @param address IP-Adresse des Clients.
+	 * @param user Name des Nutzers.
+	 */
+	public void success( String address, String user ) {
+		String key = userKey(user);
+		if( key != null ) {
+			entries.remove(key);
+		}
+	}
+
+	/**
+	 * Entfernt alle Einträge.
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	private long remaining( String key, long now ) {
+		if( key == null ) {
+			return 0;
+		}
+		Entry entry = entries.get(key);
+		if( entry == null ) {
+			return 0;
+		}
+		synchronized( entry ) {
+			return Math.max(0, entry.blockedUntil - now);
+		}
+	}
+
+	private long failure( ConfigSnapshot settings, String key, long now ) {
+		if( key == null ) {
+			return 0;
+		}
+		long base = settings.getLong(Configuration.SECTION_MAIN, "auth_throttle_delay", DEFAULT_DELAY);
+		long max = settings.getLong(Configuration.SECTION_MAIN, "auth_throttle_max_delay", DEFAULT_MAX_DELAY);
+		long expire = settings.getLong(Configuration.SECTION_MAIN, "auth_throttle_expire", DEFAULT_EXPIRE);
+
+		Entry entry = entries.get(key);
+		if( entry == null ) {
+			ensureCapacity(settings, now, expire);
+			entry = entries.computeIfAbsent(key, ( k ) -> new Entry());
+		}
+		synchronized( entry ) {
+			if( entry.blockedUntil > now ) {
+				return entry.blockedUntil - now;
+			}
+			if( now - entry.lastFailure > expire ) {
+				entry.failures = 0;
+			}
+			entry.failures += 1;
+			entry.lastFailure = now;
+			long delay = Math.min(max, base << Math.min(entry.failures - 1, 30));
+			entry.blockedUntil = now + delay;
+			return delay;
+		}
+	}
+
+	private void ensureCapacity( ConfigSnapshot settings, long now, long expire ) {
+		int capacity = settings.getInt(Configuration.SECTION_MAIN, "auth_throttle_entries", DEFAULT_ENTRIES);
+		if( entries.size() < capacity ) {
+			return;
+		}
+
+		entries.values().removeIf(( e ) -> {
+			synchronized( e ) {
+				return now - e.lastFailure > expire && e.blockedUntil <= now;
+			}
+		});
+
+		// Still full: drop the oldest tenth of the entries
+		if( entries.size() >= capacity ) {
+			int excess = entries.size() - capacity + Math.max(1, capacity / 10);
+			LOG.warn("Login throttle table full, dropping %d oldest entries", excess);
+			long[] times = new long[entries.size()];
+			int i = 0;
+			for( Entry e : entries.values() ) {
+				if( i == times.length ) {
+					break;
+				}
+				times[i++] = e.lastFailure;
+			}
+			Arrays.sort(times, 0, i);
+			long cutoff = i > 0 ? times[Math.min(excess, i) - 1] : Long.MIN_VALUE;
+			Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+			while( it.hasNext() && excess > 0 ) {
+				if( it.next().getValue().lastFailure <= cutoff ) {
+					it.remove();
+					excess -= 1;
+				}
+			}
+		}
+	}
+
+	private static boolean isEnabled( ConfigSnapshot settings ) {
+		return settings.getBoolean(Configuration.SECTION_MAIN, "auth_throttle", true);
+	}
+
+	private static String addressKey( String address ) {
+		return address == null ? null : "ip:" + address;
+	}
+
+	private static String userKey( String user ) {
+		return user == null || user.isEmpty() ? null : "user:" + user;
+	}
+
+}
@@ -0,0 +1,199 @@
+package schule.ngb.carrot.util;
+
+import org.ini4j.Ini;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * Stellt den {@link SSLContext} für TLS-Verbindungen bereit.
+ * <p>
+ * Schlüssel und Zertifikat werden aus einem Keystore geladen ({@code [carrot] tls_keystore},
+ * relative Pfade beziehen sich auf den Datenordner). Weitere Einstellungen sind
+ * {@code tls_keystore_password}, {@code tls_keystore_type} (Standard {@code PKCS12}),
+ * {@code tls_session_cache_size} und {@code tls_session_timeout} (in Sekunden).
+ * <p>
+ * TLS-Sitzungen werden im {@link SSLSessionContext} des {@code SSLContext} gespeichert. Damit
+ * Mail-Clients, die sich häufig neu verbinden, eine Sitzung fortsetzen können, statt einen
+ * vollständigen Handshake durchzuführen, nutzen alle Protokolle und Ports denselben Kontext. Er
+ * wird nur neu erstellt, wenn sich der Keystore oder seine Einstellungen ändern. Zusätzlich
+ * werden Session-Tickets (RFC 5077, RFC 8446) aktiviert, sodass Sitzungen auch ohne Eintrag im
+ * Cache fortgesetzt werden können.
+ */
+public final class TlsContext {
+
+	private static final Log LOG = Log.getLogger(TlsContext.class);
+
+	public static final int DEFAULT_SESSION_CACHE_SIZE = 10000;
+
+	public static final int DEFAULT_SESSION_TIMEOUT = 86400;
+
+
+	/**
+	 * Der zuletzt erstellte Kontext und die Einstellungen, mit denen er erstellt wurde.
+	 */
+	private static final class Entry {
+
+		private final String key;
+
+		private final SSLContext context;
+
+		private Entry( String key, SSLContext context ) {
+			this.key = key;
+			this.context = context;
+		}
+
+	}
+
+	/**
+	 * Zugriffe sind über {@code TlsContext.class} synchronisiert.
+	 */
+	private static Entry current = null;
+
+	static {
+		// Stateless resumption for TLS 1.2 and 1.3
+		if( System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null ) {
+			System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+		}
+	}
+
+	/**
+	 * Prüft, ob ein Keystore eingestellt ist.
+	 *
+	 * @param config Die Konfiguration.
+	 * @return {@code true}, wenn TLS konfiguriert ist.
+	 */
+	public static boolean isConfigured( Ini config ) {
+		return getKeystore(config) != null;
+	}
+
+	/**
+	 * Liefert den Kontext für die Konfiguration.
+	 *
+	 * @param config Die Konfiguration.
+	 * @return Der Kontext oder {@code null}, falls kein Keystore eingestellt ist oder er nicht
+	 * 	geladen werden kann.
+	 */
+	public static synchronized SSLContext get( Ini config ) {
+		Path keystore = getKeystore(config);
+		if( keystore == null ) {
+			return null;
+		}
+
+		String password = get(config, "tls_keystore_password", "");
+		String type = get(config, "tls_keystore_type", "PKCS12");
+		int cacheSize = getInt(config, "tls_session_cache_size", DEFAULT_SESSION_CACHE_SIZE);
+		int timeout = getInt(config, "tls_session_timeout", DEFAULT_SESSION_TIMEOUT);
+
+		String key;
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(keystore, BasicFileAttributes.class);
+			key = String.join("|", keystore.toString(),
+				Long.toString(attrs.lastModifiedTime().toMillis()), Long.toString(attrs.size()),
+				type, Integer.toString(password.hashCode()));
+		} catch( IOException ex ) {
+			LOG.error(ex, "TLS keystore %s not readable", keystore);
+			return current == null ? null : current.context;
+		}
+
+		if( current == null || !current.key.equals(key) ) {
+			try {
+				current = new Entry(key, create(keystore, type, password.toCharArray()));
+				LOG.info("Loaded TLS keystore %s", keystore);
+			} catch( IOException | GeneralSecurityException ex ) {
+				LOG.error(ex, "Failed to load TLS keystore %s", keystore);
+				return current == null ? null : current.context;
+			}
+		}
+
+		SSLSessionContext sessions = current.context.getServerSessionContext();
+		sessions.setSessionCacheSize(cacheSize);
+		sessions.setSessionTimeout(timeout);
+		return current.context;
+	}
+
+	/**
+	 * Startet TLS auf einer bestehenden Verbindung in der Rolle des Servers. Der Handshake
+	 * erfolgt beim ersten Lesen oder Schreiben.
+	 *
+	 * @param context Der Kontext.
+	 * @param socket Die unverschlüsselte Verbindung.
+	 * @return Die verschlüsselte Verbindung. Wird sie geschlossen, wird auch {@code socket}
+	 * 	geschlossen.
+	 * @throws IOException Falls die Verbindung nicht mehr besteht.
+	 */
+	public static SSLSocket wrap( SSLContext context, Socket socket ) throws IOException {
+		// Session tickets and the first reply are separate small records. With Nagle's
+		// algorithm the reply would wait for the client's delayed ACK.
+		socket.setTcpNoDelay(true);
+		SSLSocket ssl = (SSLSocket) context.getSocketFactory().createSocket(
+			socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true
+		);
+		ssl.setUseClientMode(false);
+		return ssl;
+	}
+
+	/**
+	 * Liefert den Pfad des Keystores laut {@code [carrot] tls_keystore}. Relative Pfade beziehen
+	 * sich auf den Datenordner.
+	 *
+	 * @param config Die Konfiguration.
+	 * @return Der Pfad oder {@code null}, falls kein Keystore eingestellt ist.
+	 */
+	public static Path getKeystore( Ini config ) {
+		String file = config.get(Configuration.SECTION_MAIN, "tls_keystore");
+		if( file == null || file.isBlank() ) {
+			return null;
+		}
+		Path path = Paths.get(file.trim());
+		if( !path.isAbsolute() ) {
+			path = Paths.get(config.get(Configuration.SECTION_MAIN, "data")).resolve(path);
+		}
+		return path.toAbsolutePath().normalize();
+	}
+
+	private static SSLContext create( Path keystore, String type, char[] password ) throws IOException, GeneralSecurityException {
+		KeyStore ks = KeyStore.getInstance(type);
+		try( InputStream in = Files.newInputStream(keystore) ) {
+			ks.load(in, password);
+		}
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(ks, password);
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(kmf.getKeyManagers(), null, null);
+		return context;
+	}
+
+	private static String get( Ini config, String key, String defaultValue ) {
+		String value = config.get(Configuration.SECTION_MAIN, key);
+		return value == null ? defaultValue : value.trim();
+	}
+
+	private static int getInt( Ini config, String key, int defaultValue ) {
+		String value = config.get(Configuration.SECTION_MAIN, key);
+		if( value == null || value.isBlank() ) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch( NumberFormatException ex ) {
+			return defaultValue;
+		}
+	}
+
+	private TlsContext() {
+	}
+
+}
@@ -0,0 +1,234 @@
+package schule.ngb.carrot.util;
+
+import org.ini4j.Ini;
+import org.ini4j.Profile;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Verzeichnis der Nutzer und ihrer gespeicherten Passwörter.
+ * <p>
+ * Nutzer werden aus dem Abschnitt {@code [users]} und optional aus einer eigenen Datei
+ * ({@code [carrot] users_file}) geladen. Die Datei enthält pro Zeile einen Eintrag
+ * {@code name = passwort}. Leere Zeilen und Zeilen, die mit {@code #} oder {@code ;} beginnen,
+ * werden ignoriert. Einträge in {@code [users]} haben Vorrang vor der Datei. Passwörter können im
+ * Klartext oder als Hash gespeichert werden (siehe {@link CredentialService}).
+ * <p>
+ * Ein {@code UserDirectory} ist unveränderlich. Beim Neuladen der Konfiguration wird ein neues
+ * Verzeichnis erstellt. Die Datei wird dabei nur neu eingelesen, wenn sich Größe oder
+ * Änderungszeit geändert haben. Sonst wird der bereits eingelesene Index weiterverwendet, auch
+ * von mehreren Protokollen gleichzeitig.
+ */
+public final class UserDirectory {
+
+	private static final Log LOG = Log.getLogger(UserDirectory.class);
+
+
+	/**
+	 * Eingelesener Inhalt einer Nutzerdatei.
+	 */
+	private static final class FileIndex {
+
+		private final Path path;
+
+		private final long modified;
+
+		private final long size;
+
+		private final Map<String, String> users;
+
+		private FileIndex( Path path, long modified, long size, Map<String, String> users ) {
+			this.path = path;
+			this.modified = modified;
+			this.size = size;
+			this.users = users;
+		}
+
+	}
+
+	/**
+	 * Zuletzt eingelesene Nutzerdatei. Zugriffe sind über {@code UserDirectory.class}
+	 * synchronisiert.
+	 */
+	private static FileIndex lastFile = null;
+
+	/**
+	 * Erstellt das Verzeichnis für eine Konfiguration.
+	 *
+	 * @param config Die Konfiguration.
+	 * @return Das Verzeichnis.
+	 */
+	public static UserDirectory load( Ini config ) {
+		Map<String, String> users = new HashMap<>();
+		Profile.Section section = config.get(Configuration.SECTION_USERS);
+		if( section != null ) {
+			for( String name : section.keySet() ) {
+				users.put(name, section.get(name));
+			}
+		}
+
+		FileIndex file = null;
+		Path path = getUsersFile(config);
+		if( path != null ) {
+			file = loadFile(path);
+		}
+		return new UserDirectory(Collections.unmodifiableMap(users), file);
+	}
+
+	/**
+	 * Liefert den Pfad der Nutzerdatei laut {@code [carrot] users_file}. Relative Pfade beziehen
+	 * sich auf den Datenordner.
+	 *
+	 * @param config Die Konfiguration.
+	 * @return Der Pfad oder {@code null}, falls keine Datei eingestellt ist.
+	 */
+	public static Path getUsersFile( Ini config ) {
+		String file = config.get(Configuration.SECTION_MAIN, "users_file");
+		if( file == null || file.isBlank() ) {
+			return null;
+		}
+		Path path = Paths.get(file.trim());
+		if( !path.isAbsolute() ) {
+			path = Paths.get(config.get(Configuration.SECTION_MAIN, "data")).resolve(path);
+		}
+		return path.toAbsolutePath().normalize();
+	}
+
+	private static synchronized FileIndex loadFile( Path path ) {
+		long modified, size;
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+			modified = attrs.lastModifiedTime().toMillis();
+			size = attrs.size();
+		} catch( IOException ex ) {
+			LOG.error(ex, "Users file %s not readable", path);
+			return null;
+		}
+
+		FileIndex previous = lastFile;
+		if( previous != null && previous.path.equals(path)
+			&& previous.modified == modified && previous.size == size ) {
+			return previous;
+		}
+
+		Timer timer = new Timer();
+		timer.start();
+		Map<String, String> users = new HashMap<>();
+		try( BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8) ) {
+			String line;
+			while( (line = in.readLine()) != null ) {
+				line = line.trim();
+				if( line.isEmpty() || line.charAt(0) == '#' || line.charAt(0) == ';' ) {
+					continue;
+				}
+				int eq = line.indexOf('=');
+				if( eq > 0 ) {
+					users.put(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+				}
+			}
+		} catch( IOException ex ) {
+			LOG.error(ex, "Failed to read users file %s", path);
+			return previous != null && previous.path.equals(path) ? previous : null;
+		}
+
+		if( previous != null && previous.path.equals(path) ) {
+			int added = 0, changed = 0;
+			for( Map.Entry<String, String> e : users.entrySet() ) {
+				String old = previous.users.get(e.getKey());
+				if( old == null ) {
+					added += 1;
+				} else if( !old.equals(e.getValue()) ) {
+					changed += 1;
+				}
+			}
+			int removed = previous.users.size() - (users.size() - added);
+			LOG.info("Reloaded %d users from %s in %dms (%d added, %d changed, %d removed)",
+				users.size(), path, timer.getMillis(), added, changed, removed);
+		} else {
+			LOG.info("Loaded %d users from %s in %dms", users.size(), path, timer.getMillis());
+		}
+
+		lastFile = new FileIndex(path, modified, size, Collections.unmodifiableMap(users));
+		return lastFile;
+	}
+
+
+	private final Map<String, String> users;
+
+	private final FileIndex file;
+
+	private UserDirectory( Map<String, String> users, FileIndex file ) {
+		this.users = users;
+		this.file = file;
+	}
+
+	/**
+	 * Prüft, ob ein Nutzer existiert.
+	 *
+	 * @param name Name des Nutzers.
+	 * @return {@code true}, wenn der Nutzer existiert.
+	 */
+	public boolean hasUser( String name ) {
+		return getPassword(name) != null;
+	}
+
+	/**
+	 * Liefert das gespeicherte Passwort (oder den Hash) eines Nutzers.
+	 *
+	 * @param name Name des Nutzers.
+	 * @return Das gespeicherte Passwort oder {@code null}, wenn der Nutzer nicht existiert.
+	 */
+	public String getPassword( String name ) {
+		if( name == null ) {
+			return null;
+		}
+		String stored = users.get(name);
+		if( stored == null && file != null ) {
+			stored = file.users.get(name);
+		}
+		return stored;
+	}
+
+	/**
+	 * Liefert die Namen aller Nutzer.
+	 *
+	 * @return Unveränderliche Menge der Namen.
+	 */
+	public Set<String> getUserNames() {
+		if( file == null ) {
+			return users.keySet();
+		}
+		Set<String> names = new HashSet<>(file.users.keySet());
+		names.addAll(users.keySet());
+		return Collections.unmodifiableSet(names);
+	}
+
+	public int size() {
+		if( file == null ) {
+			return users.size();
+		}
+		int n = file.users.size();
+		for( String name : users.keySet() ) {
+			if( !file.users.containsKey(name) ) {
+				n += 1;
+			}
+		}
+		return n;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+}